@@ -0,0 +1,225 @@
+package de.zalando.plpgsql.ast;
+
+import java.nio.CharBuffer;
+
+import java.util.Arrays;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Heap {@link FlatTree} keeping its columns in {@code int[]} arrays.
+ */
+final class ArrayFlatTree extends FlatTree {
+
+    final char[] source;
+
+    // node columns
+    final int[] rule;
+    final int[] parent;
+    final int[] firstChild;
+    final int[] nextSibling;
+    final int[] tokenStart;
+    final int[] tokenStop;
+    final int[] startOffset;
+    final int[] stopOffset;
+
+    // token columns, one entry per terminal node in source order
+    final int[] tokenType;
+    final int[] tokenLine;
+    final int[] tokenColumn;
+
+    ArrayFlatTree(final char[] source, final int nodeCount, final int tokenCount) {
+        this.source = source;
+        this.rule = new int[nodeCount];
+        this.parent = new int[nodeCount];
+        this.firstChild = new int[nodeCount];
+        this.nextSibling = new int[nodeCount];
+        this.tokenStart = new int[nodeCount];
+        this.tokenStop = new int[nodeCount];
+        this.startOffset = new int[nodeCount];
+        this.stopOffset = new int[nodeCount];
+        this.tokenType = new int[tokenCount];
+        this.tokenLine = new int[tokenCount];
+        this.tokenColumn = new int[tokenCount];
+    }
+
+    static ArrayFlatTree build(final ParserRuleContext root, final char[] source) {
+        int nodeCount = 0;
+        int tokenCount = 0;
+
+        ParseTree[] stack = new ParseTree[64];
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            final ParseTree node = stack[--top];
+            nodeCount++;
+            if (node instanceof TerminalNode) {
+                tokenCount++;
+            }
+
+            final int childCount = node.getChildCount();
+            if (top + childCount > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + childCount));
+            }
+
+            for (int i = 0; i < childCount; i++) {
+                stack[top++] = node.getChild(i);
+            }
+        }
+
+        final ArrayFlatTree tree = new ArrayFlatTree(source, nodeCount, tokenCount);
+        final int[] lastChild = new int[nodeCount];
+        int[] parentStack = new int[stack.length];
+
+        int id = 0;
+        int token = 0;
+        top = 0;
+        stack[top] = root;
+        parentStack[top++] = NONE;
+        while (top > 0) {
+            top--;
+
+            final ParseTree node = stack[top];
+            final int parentId = parentStack[top];
+            stack[top] = null;
+
+            tree.parent[id] = parentId;
+            tree.firstChild[id] = NONE;
+            tree.nextSibling[id] = NONE;
+            lastChild[id] = NONE;
+            if (parentId != NONE) {
+                if (lastChild[parentId] == NONE) {
+                    tree.firstChild[parentId] = id;
+                } else {
+                    tree.nextSibling[lastChild[parentId]] = id;
+                }
+
+                lastChild[parentId] = id;
+            }
+
+            if (node instanceof TerminalNode) {
+                final Token symbol = ((TerminalNode) node).getSymbol();
+                tree.rule[id] = TERMINAL;
+                tree.tokenStart[id] = token;
+                tree.tokenStop[id] = token;
+                tree.startOffset[id] = symbol.getStartIndex();
+                tree.stopOffset[id] = symbol.getStopIndex();
+                tree.tokenType[token] = symbol.getType();
+                tree.tokenLine[token] = symbol.getLine();
+                tree.tokenColumn[token] = symbol.getCharPositionInLine();
+                token++;
+            } else {
+                final ParserRuleContext ctx = (ParserRuleContext) node;
+                tree.rule[id] = ctx.getRuleIndex();
+
+                // the stop column is fixed up below once all terminals of the subtree are numbered
+                tree.tokenStart[id] = token;
+                tree.tokenStop[id] = token - 1;
+                tree.startOffset[id] = ctx.start == null ? 0 : ctx.start.getStartIndex();
+                tree.stopOffset[id] = ctx.stop == null ? tree.startOffset[id] - 1 : ctx.stop.getStopIndex();
+
+                final int childCount = ctx.getChildCount();
+                if (top + childCount > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + childCount));
+                    parentStack = Arrays.copyOf(parentStack, stack.length);
+                }
+
+                // push in reverse so that children are numbered in source order
+                for (int i = childCount - 1; i >= 0; i--) {
+                    stack[top] = ctx.getChild(i);
+                    parentStack[top++] = id;
+                }
+            }
+
+            id++;
+        }
+
+        // children have higher ids than their parents, so one backwards sweep propagates the last token upwards
+        for (int i = nodeCount - 1; i > 0; i--) {
+            final int p = tree.parent[i];
+            if (tree.tokenStop[i] > tree.tokenStop[p]) {
+                tree.tokenStop[p] = tree.tokenStop[i];
+            }
+        }
+
+        return tree;
+    }
+
+    @Override
+    public int size() {
+        return rule.length;
+    }
+
+    @Override
+    public int getTokenCount() {
+        return tokenType.length;
+    }
+
+    @Override
+    public CharSequence getSource() {
+        return CharBuffer.wrap(source);
+    }
+
+    @Override
+    public int getRuleIndex(final int node) {
+        return rule[node];
+    }
+
+    @Override
+    public int getParent(final int node) {
+        return parent[node];
+    }
+
+    @Override
+    public int getFirstChild(final int node) {
+        return firstChild[node];
+    }
+
+    @Override
+    public int getNextSibling(final int node) {
+        return nextSibling[node];
+    }
+
+    @Override
+    public int getTokenStart(final int node) {
+        return tokenStart[node];
+    }
+
+    @Override
+    public int getTokenStop(final int node) {
+        return tokenStop[node];
+    }
+
+    @Override
+    public int getStartOffset(final int node) {
+        return startOffset[node];
+    }
+
+    @Override
+    public int getStopOffset(final int node) {
+        return stopOffset[node];
+    }
+
+    @Override
+    public int getTokenTypeAt(final int token) {
+        return tokenType[token];
+    }
+
+    @Override
+    public int getTokenLine(final int token) {
+        return tokenLine[token];
+    }
+
+    @Override
+    public int getTokenColumn(final int token) {
+        return tokenColumn[token];
+    }
+
+    @Override
+    public String getText(final int node) {
+        return new String(source, getStartOffset(node), getTextLength(node));
+    }
+}
@@ -0,0 +1,489 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+/**
+ * Call graph of the functions of a corpus. Calls are the {@code functionCallExpr} nodes, which includes the calls of
+ * {@code PERFORM}, and the calls inside constant {@code EXECUTE} strings and constant {@code format} strings of an
+ * {@code EXECUTE} that parse as a statement. Functions are identified by their folded names, overloads share a node;
+ * called functions that are not part of the corpus, e.g. built-ins, are nodes without callees.
+ *
+ * <p/>The edges are kept in CSR int arrays together with the strongly connected components (Tarjan) and one bit set
+ * per component holding every function transitively called from it, so {@link #reaches(int, int)} is a bit test and
+ * the transitive callers or callees are one pass over the components. Functions can be {@link #put put} or
+ * {@link #remove removed} at any time; the next query recomputes the components but only the bit sets of the
+ * components that can reach a changed function.
+ *
+ * <p/>Not thread-safe.
+ */
+public final class CallGraph {
+
+    public static final int NONE = -1;
+
+    private static final Pattern FORMAT_PLACEHOLDER = Pattern.compile("%(?:\\d+\\$)?-?\\d*[sIL]");
+
+    private static final int[] NO_CALLEES = new int[0];
+
+    private final Map<String, Integer> nodes = new HashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+    private final BitSet defined = new BitSet();
+
+    // sorted distinct callees of every node, the source of truth for the arrays below
+    private int[][] callees = new int[16][];
+    private final BitSet changed = new BitSet();
+    private boolean stale = true;
+
+    // CSR layout
+    private int[] calleeOffsets;
+    private int[] calleeTargets;
+    private int[] callerOffsets;
+    private int[] callerSources;
+
+    // components in reverse topological order, callees first
+    private int[] components = new int[0];
+    private int[] componentOffsets;
+    private int[] componentMembers;
+
+    // functions transitively called, shared by the members of a component
+    private BitSet[] reach = new BitSet[0];
+    private int recomputed;
+
+    /**
+     * Adds a function or replaces the calls of a function of the same name.
+     */
+    public CallGraph put(final PlPgSqlParser.PlFunctionContext function) {
+        final int node = node(function.functionName.getText());
+        final IntList calls = new IntList();
+        for (final String name : calls(function)) {
+            calls.add(node(name));
+        }
+
+        final int[] sorted = calls.sorted();
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+
+        callees[node] = Arrays.copyOf(sorted, distinct);
+        defined.set(node);
+        changed.set(node);
+        stale = true;
+        return this;
+    }
+
+    /**
+     * Adds or replaces all functions of a unit.
+     */
+    public CallGraph putAll(final ParseTree unit) {
+        for (final PlPgSqlParser.PlFunctionContext function : FunctionExecutor.functions(unit)) {
+            put(function);
+        }
+
+        return this;
+    }
+
+    /**
+     * Removes a function; it stays a node without callees, like a called function outside of the corpus.
+     */
+    public CallGraph remove(final String function) {
+        final int node = getNode(function);
+        if (node != NONE && defined.get(node)) {
+            callees[node] = NO_CALLEES;
+            defined.clear(node);
+            changed.set(node);
+            stale = true;
+        }
+
+        return this;
+    }
+
+    public int getNodeCount() {
+        return names.size();
+    }
+
+    /**
+     * @return  the node of the function, or {@link #NONE}
+     */
+    public int getNode(final String function) {
+        final Integer node = nodes.get(SymbolPool.fold(function));
+        return node == null ? NONE : node;
+    }
+
+    /**
+     * @return  the folded name of the function
+     */
+    public String getName(final int node) {
+        return names.get(node);
+    }
+
+    /**
+     * @return  whether the function is part of the corpus
+     */
+    public boolean isDefined(final int node) {
+        return defined.get(node);
+    }
+
+    /**
+     * @return  the functions called directly, ascending
+     */
+    public int[] getCallees(final int node) {
+        analyze();
+        return Arrays.copyOfRange(calleeTargets, calleeOffsets[node], calleeOffsets[node + 1]);
+    }
+
+    /**
+     * @return  the functions calling the function directly, ascending
+     */
+    public int[] getCallers(final int node) {
+        analyze();
+        return Arrays.copyOfRange(callerSources, callerOffsets[node], callerOffsets[node + 1]);
+    }
+
+    public int getComponentCount() {
+        analyze();
+        return componentOffsets.length - 1;
+    }
+
+    /**
+     * @return  the strongly connected component of the function; components calling others have higher numbers
+     */
+    public int getComponent(final int node) {
+        analyze();
+        return components[node];
+    }
+
+    /**
+     * @return  the members of the component, ascending
+     */
+    public int[] getComponentMembers(final int component) {
+        analyze();
+        return Arrays.copyOfRange(componentMembers, componentOffsets[component], componentOffsets[component + 1]);
+    }
+
+    /**
+     * @return  whether the function eventually calls itself
+     */
+    public boolean isRecursive(final int node) {
+        return reaches(node, node);
+    }
+
+    /**
+     * @return  whether the one function eventually calls the other
+     */
+    public boolean reaches(final int from, final int to) {
+        analyze();
+        return reach[from].get(to);
+    }
+
+    /**
+     * @return  the functions eventually called by the function
+     */
+    public BitSet getTransitiveCallees(final int node) {
+        analyze();
+        return (BitSet) reach[node].clone();
+    }
+
+    /**
+     * @return  the functions eventually calling the function
+     */
+    public BitSet getTransitiveCallers(final int node) {
+        analyze();
+
+        final BitSet callers = new BitSet(names.size());
+        for (int component = 0; component < componentOffsets.length - 1; component++) {
+            if (reach[componentMembers[componentOffsets[component]]].get(node)) {
+                for (int i = componentOffsets[component]; i < componentOffsets[component + 1]; i++) {
+                    callers.set(componentMembers[i]);
+                }
+            }
+        }
+
+        return callers;
+    }
+
+    /**
+     * @return  the number of components whose bit sets were computed by the last analysis
+     */
+    int getRecomputedComponentCount() {
+        analyze();
+        return recomputed;
+    }
+
+    /**
+     * @return  the folded names of the functions called by the function, in source order and with duplicates
+     */
+    static List<String> calls(final PlPgSqlParser.PlFunctionContext function) {
+        return calls(function, null);
+    }
+
+    /**
+     * Also adds the token of every call to the positions, the string for the calls of dynamic SQL.
+     */
+    static List<String> calls(final PlPgSqlParser.PlFunctionContext function, final List<Token> positions) {
+        final List<String> calls = new ArrayList<String>();
+        calls(function.functionBody(), null, calls, positions);
+        return calls;
+    }
+
+    /**
+     * @param  literal  the string the node was parsed from if it is dynamic SQL
+     */
+    private static void calls(final ParserRuleContext root, final Token literal, final List<String> calls,
+            final List<Token> positions) {
+        final List<ParserRuleContext> stack = new ArrayList<ParserRuleContext>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            final ParserRuleContext node = stack.remove(stack.size() - 1);
+            if (node instanceof PlPgSqlParser.FunctionCallExprContext) {
+                final Token name = ((PlPgSqlParser.FunctionCallExprContext) node).functionCallName;
+                calls.add(SymbolPool.fold(name.getText()));
+                if (positions != null) {
+                    positions.add(literal == null ? name : literal);
+                }
+            } else if (node instanceof PlPgSqlParser.ExecuteCommandContext) {
+                final PlPgSqlParser.ExecuteCommandContext command = (PlPgSqlParser.ExecuteCommandContext) node;
+                if (command.STRING() != null) {
+                    sqlCalls(command.STRING().getSymbol(), false, calls, positions);
+                } else {
+                    final PlPgSqlParser.FunctionCallExprContext call = command.functionCallExpr();
+                    if (call.functionCallName.getText().equalsIgnoreCase("format") && !call.expression().isEmpty()
+                            && call.expression(0) instanceof PlPgSqlParser.StringLiteralExpressionContext) {
+                        sqlCalls(call.expression(0).getStart(), true, calls, positions);
+                    }
+                }
+            }
+
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                if (node.getChild(i) instanceof ParserRuleContext) {
+                    stack.add((ParserRuleContext) node.getChild(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * The calls of a string of dynamic SQL that parses as a statement, the placeholders of a format string are
+     * replaced by a name.
+     */
+    private static void sqlCalls(final Token literal, final boolean format, final List<String> calls,
+            final List<Token> positions) {
+        String sql = ParseUtil.stringValue(literal.getText()).trim();
+        if (format) {
+            sql = FORMAT_PLACEHOLDER.matcher(sql).replaceAll("x").replace("%%", "%");
+        }
+
+        final ParserRuleContext statement = ParseUtil.tryParseRule(sql.endsWith(";") ? sql : sql + ';',
+                PlPgSqlParser.RULE_stmt);
+        if (statement != null) {
+            calls(statement, literal, calls, positions);
+        }
+    }
+
+    private int node(final String function) {
+        final String name = SymbolPool.fold(function);
+        Integer node = nodes.get(name);
+        if (node == null) {
+            node = names.size();
+            nodes.put(name, node);
+            names.add(name);
+            if (node == callees.length) {
+                callees = Arrays.copyOf(callees, node * 2);
+            }
+
+            callees[node] = NO_CALLEES;
+            stale = true;
+        }
+
+        return node;
+    }
+
+    /**
+     * Rebuilds the arrays and components after changes, then the bit sets of the components reaching a changed or a
+     * new function. Components are numbered callees first, so those of the callees are complete when a component is
+     * computed.
+     */
+    private void analyze() {
+        if (!stale) {
+            return;
+        }
+
+        final int size = names.size();
+        calleeOffsets = new int[size + 1];
+        for (int node = 0; node < size; node++) {
+            calleeOffsets[node + 1] = calleeOffsets[node] + callees[node].length;
+        }
+
+        calleeTargets = new int[calleeOffsets[size]];
+        callerOffsets = new int[size + 1];
+        for (int node = 0; node < size; node++) {
+            System.arraycopy(callees[node], 0, calleeTargets, calleeOffsets[node], callees[node].length);
+            for (final int callee : callees[node]) {
+                callerOffsets[callee + 1]++;
+            }
+        }
+
+        for (int node = 0; node < size; node++) {
+            callerOffsets[node + 1] += callerOffsets[node];
+        }
+
+        final int[] fill = Arrays.copyOf(callerOffsets, size);
+        callerSources = new int[calleeTargets.length];
+        for (int node = 0; node < size; node++) {
+            for (final int callee : callees[node]) {
+                callerSources[fill[callee]++] = node;
+            }
+        }
+
+        components = stronglyConnectedComponents(size);
+
+        // the changed and new functions and everything calling them
+        final BitSet affected = (BitSet) changed.clone();
+        affected.set(reach.length, size);
+
+        final IntList queue = new IntList();
+        for (int node = affected.nextSetBit(0); node >= 0; node = affected.nextSetBit(node + 1)) {
+            queue.add(node);
+        }
+
+        while (queue.size() > 0) {
+            final int node = queue.removeLast();
+            for (int i = callerOffsets[node]; i < callerOffsets[node + 1]; i++) {
+                if (!affected.get(callerSources[i])) {
+                    affected.set(callerSources[i]);
+                    queue.add(callerSources[i]);
+                }
+            }
+        }
+
+        reach = Arrays.copyOf(reach, size);
+        recomputed = 0;
+        for (int component = 0; component < componentOffsets.length - 1; component++) {
+            final int first = componentOffsets[component];
+            final int last = componentOffsets[component + 1];
+            if (!affected.get(componentMembers[first])) {
+                continue;
+            }
+
+            final BitSet called = new BitSet(size);
+            for (int i = first; i < last; i++) {
+                final int member = componentMembers[i];
+                for (int j = calleeOffsets[member]; j < calleeOffsets[member + 1]; j++) {
+                    final int callee = calleeTargets[j];
+                    called.set(callee);
+                    if (components[callee] != component) {
+                        called.or(reach[callee]);
+                    }
+                }
+
+                // the members of a cycle call each other
+                if (last - first > 1) {
+                    called.set(member);
+                }
+            }
+
+            for (int i = first; i < last; i++) {
+                reach[componentMembers[i]] = called;
+            }
+
+            recomputed++;
+        }
+
+        changed.clear();
+        stale = false;
+    }
+
+    /**
+     * Tarjan's algorithm with explicit stacks, also fills the CSR arrays of the component members.
+     *
+     * @return  the component of every node
+     */
+    private int[] stronglyConnectedComponents(final int size) {
+        final int[] component = new int[size];
+        final int[] index = new int[size];
+        final int[] low = new int[size];
+        final int[] nextEdge = new int[size];
+        final int[] path = new int[size];
+        final int[] open = new int[size];
+        final BitSet onPath = new BitSet(size);
+        Arrays.fill(index, -1);
+
+        int counter = 0;
+        int count = 0;
+        int pathSize = 0;
+        for (int root = 0; root < size; root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+
+            int openSize = 0;
+            open[openSize++] = root;
+            index[root] = low[root] = counter++;
+            nextEdge[root] = calleeOffsets[root];
+            path[pathSize++] = root;
+            onPath.set(root);
+            while (openSize > 0) {
+                final int node = open[openSize - 1];
+                if (nextEdge[node] < calleeOffsets[node + 1]) {
+                    final int callee = calleeTargets[nextEdge[node]++];
+                    if (index[callee] < 0) {
+                        index[callee] = low[callee] = counter++;
+                        nextEdge[callee] = calleeOffsets[callee];
+                        path[pathSize++] = callee;
+                        onPath.set(callee);
+                        open[openSize++] = callee;
+                    } else if (onPath.get(callee)) {
+                        low[node] = Math.min(low[node], index[callee]);
+                    }
+
+                    continue;
+                }
+
+                openSize--;
+                if (low[node] == index[node]) {
+                    int member;
+                    do {
+                        member = path[--pathSize];
+                        onPath.clear(member);
+                        component[member] = count;
+                    } while (member != node);
+
+                    count++;
+                }
+
+                if (openSize > 0) {
+                    final int caller = open[openSize - 1];
+                    low[caller] = Math.min(low[caller], low[node]);
+                }
+            }
+        }
+
+        componentOffsets = new int[count + 1];
+        for (int node = 0; node < size; node++) {
+            componentOffsets[component[node] + 1]++;
+        }
+
+        for (int c = 0; c < count; c++) {
+            componentOffsets[c + 1] += componentOffsets[c];
+        }
+
+        final int[] fill = Arrays.copyOf(componentOffsets, count);
+        componentMembers = new int[size];
+        for (int node = 0; node < size; node++) {
+            componentMembers[fill[component[node]]++] = node;
+        }
+
+        return component;
+    }
+}
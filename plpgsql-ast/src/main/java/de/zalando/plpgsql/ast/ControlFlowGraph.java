@@ -0,0 +1,912 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Control-flow graph of a function body. Basic blocks are numbered densely, {@link #ENTRY} and {@link #EXIT} are
+ * empty; the nodes of the blocks and the edges are kept in CSR int arrays, so analyses keep their per-block data in
+ * arrays indexed by block.
+ *
+ * <p/>A block holds its statements in execution order, together with the parts of compound statements evaluated at
+ * that point: variable and alias declarations, {@code ifCondition} and {@code elsifCondition}, {@code searchExpr} and
+ * {@code whenExpressions} of a case, the condition of a while loop, the bounds, query or array of a for loop (before
+ * the loop) and its {@code varExpr} (in the loop header), and the {@code exceptionWhenConditions} of an exception
+ * clause (in the block dispatching to the handlers).
+ *
+ * <p/>Exceptional edges lead from every non-empty block inside a block statement with an exception clause to its
+ * dispatching block, from there to the enclosing dispatching block or the exit, and from {@code RAISE} statements and
+ * cases without {@code ELSE} to the nearest of those. Failing statements outside of any exception clause have no edge.
+ *
+ * <p/>Dominators are computed with the iterative algorithm of Cooper, Harvey and Kennedy; loops are the natural loops
+ * of the back edges, numbered so that enclosing loops come first.
+ */
+public final class ControlFlowGraph {
+
+    public static final int ENTRY = 0;
+    public static final int EXIT = 1;
+    public static final int NONE = -1;
+
+    private final ParserRuleContext[] nodes;
+    private final int[] nodeOffsets;
+
+    // CSR layout, exceptional holds the successor positions of exceptional edges
+    private final int[] successorOffsets;
+    private final int[] successors;
+    private final BitSet exceptional;
+    private final int[] predecessorOffsets;
+    private final int[] predecessors;
+    private final BitSet exceptionalPredecessors;
+
+    private final int[] reversePostorder;
+    private final int[] idom;
+
+    // preorder number of a block in the dominator tree and the last preorder number in its subtree
+    private final int[] dominatorPre;
+    private final int[] dominatorLast;
+
+    private final int[] loopHeaders;
+    private final int[] loopParents;
+    private final int[] loopDepths;
+    private final int[] innermostLoops;
+
+    private ControlFlowGraph(final ParserRuleContext[] nodes, final int[] nodeOffsets, final int[] successorOffsets,
+            final int[] successors, final BitSet exceptional) {
+        this.nodes = nodes;
+        this.nodeOffsets = nodeOffsets;
+        this.successorOffsets = successorOffsets;
+        this.successors = successors;
+        this.exceptional = exceptional;
+
+        final int blocks = nodeOffsets.length - 1;
+        predecessorOffsets = new int[blocks + 1];
+        for (final int successor : successors) {
+            predecessorOffsets[successor + 1]++;
+        }
+
+        for (int block = 0; block < blocks; block++) {
+            predecessorOffsets[block + 1] += predecessorOffsets[block];
+        }
+
+        final int[] fill = Arrays.copyOf(predecessorOffsets, blocks);
+        predecessors = new int[successors.length];
+        exceptionalPredecessors = new BitSet();
+        for (int block = 0; block < blocks; block++) {
+            for (int i = successorOffsets[block]; i < successorOffsets[block + 1]; i++) {
+                final int position = fill[successors[i]]++;
+                predecessors[position] = block;
+                exceptionalPredecessors.set(position, exceptional.get(i));
+            }
+        }
+
+        reversePostorder = reversePostorder();
+        idom = dominators();
+        dominatorPre = new int[blocks];
+        dominatorLast = new int[blocks];
+        numberDominatorTree();
+
+        innermostLoops = new int[blocks];
+        Arrays.fill(innermostLoops, NONE);
+
+        final IntList headers = new IntList();
+        final IntList parents = new IntList();
+        findLoops(headers, parents);
+        loopHeaders = headers.toArray();
+        loopParents = parents.toArray();
+        loopDepths = new int[loopHeaders.length];
+        for (int loop = 0; loop < loopHeaders.length; loop++) {
+            loopDepths[loop] = loopParents[loop] == NONE ? 1 : loopDepths[loopParents[loop]] + 1;
+        }
+    }
+
+    /**
+     * Builds the graph of a {@code plFunction}, {@code functionBody}, {@code blockStmt} or {@code stmts} node.
+     *
+     * @throws  IllegalArgumentException  if the node is of another rule, or an {@code EXIT} or {@code CONTINUE}
+     *                                    statement has no matching loop
+     */
+    public static ControlFlowGraph of(final ParserRuleContext body) {
+        ParserRuleContext node = body;
+        if (node instanceof PlPgSqlParser.PlFunctionContext) {
+            node = ((PlPgSqlParser.PlFunctionContext) node).functionBody();
+        }
+
+        if (node instanceof PlPgSqlParser.FunctionBodyContext) {
+            node = ((PlPgSqlParser.FunctionBodyContext) node).blockStmt();
+        }
+
+        final Builder builder = new Builder();
+        if (node instanceof PlPgSqlParser.BlockStmtContext) {
+            builder.block((PlPgSqlParser.BlockStmtContext) node);
+        } else if (node instanceof PlPgSqlParser.StmtsContext) {
+            builder.stmts((PlPgSqlParser.StmtsContext) node);
+        } else {
+            throw new IllegalArgumentException("no function body: " + PlPgSqlParser.ruleNames[body.getRuleIndex()]);
+        }
+
+        return builder.build();
+    }
+
+    public int getBlockCount() {
+        return nodeOffsets.length - 1;
+    }
+
+    /**
+     * @return  the statements and conditions of the block in execution order
+     */
+    public List<ParserRuleContext> getNodes(final int block) {
+        final int from = nodeOffsets[block];
+        final int to = nodeOffsets[block + 1];
+        return new AbstractList<ParserRuleContext>() {
+            @Override
+            public ParserRuleContext get(final int index) {
+                if (index < 0 || index >= to - from) {
+                    throw new IndexOutOfBoundsException(String.valueOf(index));
+                }
+
+                return nodes[from + index];
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    /**
+     * Scans all blocks.
+     *
+     * @return  the block holding the node, or {@link #NONE} if it is not part of any block
+     */
+    public int getBlock(final ParserRuleContext node) {
+        for (int block = 0; block < getBlockCount(); block++) {
+            for (int i = nodeOffsets[block]; i < nodeOffsets[block + 1]; i++) {
+                if (nodes[i] == node) {
+                    return block;
+                }
+            }
+        }
+
+        return NONE;
+    }
+
+    public int getSuccessorCount(final int block) {
+        return successorOffsets[block + 1] - successorOffsets[block];
+    }
+
+    public int getSuccessor(final int block, final int index) {
+        return successors[successorOffsets[block] + index];
+    }
+
+    public boolean isExceptional(final int block, final int index) {
+        return exceptional.get(successorOffsets[block] + index);
+    }
+
+    public int getPredecessorCount(final int block) {
+        return predecessorOffsets[block + 1] - predecessorOffsets[block];
+    }
+
+    public int getPredecessor(final int block, final int index) {
+        return predecessors[predecessorOffsets[block] + index];
+    }
+
+    public boolean isExceptionalPredecessor(final int block, final int index) {
+        return exceptionalPredecessors.get(predecessorOffsets[block] + index);
+    }
+
+    public boolean isReachable(final int block) {
+        return block == ENTRY || idom[block] != NONE;
+    }
+
+    /**
+     * @return  the reachable blocks in reverse postorder, starting with {@link #ENTRY}
+     */
+    public int[] getReversePostorder() {
+        return reversePostorder.clone();
+    }
+
+    /**
+     * @return  the immediate dominator, or {@link #NONE} for the entry and unreachable blocks
+     */
+    public int getImmediateDominator(final int block) {
+        return idom[block];
+    }
+
+    /**
+     * @return  whether every path from the entry to {@code block} passes {@code dominator}, false if one of them is
+     *          unreachable
+     */
+    public boolean dominates(final int dominator, final int block) {
+        return isReachable(dominator) && isReachable(block) && dominatorPre[dominator] <= dominatorPre[block]
+                && dominatorPre[block] <= dominatorLast[dominator];
+    }
+
+    public int getLoopCount() {
+        return loopHeaders.length;
+    }
+
+    public int getLoopHeader(final int loop) {
+        return loopHeaders[loop];
+    }
+
+    /**
+     * @return  the innermost loop enclosing the loop, or {@link #NONE}
+     */
+    public int getParentLoop(final int loop) {
+        return loopParents[loop];
+    }
+
+    /**
+     * @return  the innermost loop containing the block, or {@link #NONE}
+     */
+    public int getLoop(final int block) {
+        return innermostLoops[block];
+    }
+
+    /**
+     * @return  the number of loops containing the block
+     */
+    public int getLoopDepth(final int block) {
+        return innermostLoops[block] == NONE ? 0 : loopDepths[innermostLoops[block]];
+    }
+
+    public boolean isInLoop(final int block, final int loop) {
+        for (int l = innermostLoops[block]; l != NONE; l = loopParents[l]) {
+            if (l == loop) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int block = 0; block < getBlockCount(); block++) {
+            sb.append(block).append(" [");
+            for (int i = nodeOffsets[block]; i < nodeOffsets[block + 1]; i++) {
+                sb.append(i == nodeOffsets[block] ? "" : ", ");
+                sb.append(PlPgSqlParser.ruleNames[nodes[i].getRuleIndex()]);
+            }
+
+            sb.append("] ->");
+            for (int i = 0; i < getSuccessorCount(block); i++) {
+                sb.append(isExceptional(block, i) ? " !" : " ").append(getSuccessor(block, i));
+            }
+
+            sb.append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private int[] reversePostorder() {
+        final int blocks = getBlockCount();
+        final int[] postorder = new int[blocks];
+        final int[] stack = new int[blocks];
+        final int[] next = new int[blocks];
+        final boolean[] visited = new boolean[blocks];
+        int count = 0;
+        int depth = 0;
+        stack[depth++] = ENTRY;
+        visited[ENTRY] = true;
+        while (depth > 0) {
+            final int block = stack[depth - 1];
+            if (next[block] < getSuccessorCount(block)) {
+                final int successor = getSuccessor(block, next[block]++);
+                if (!visited[successor]) {
+                    visited[successor] = true;
+                    stack[depth++] = successor;
+                }
+            } else {
+                postorder[count++] = block;
+                depth--;
+            }
+        }
+
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = postorder[count - 1 - i];
+        }
+
+        return order;
+    }
+
+    private int[] dominators() {
+        final int[] order = new int[getBlockCount()];
+        for (int i = 0; i < reversePostorder.length; i++) {
+            order[reversePostorder[i]] = i;
+        }
+
+        final int[] dominators = new int[getBlockCount()];
+        Arrays.fill(dominators, NONE);
+        dominators[ENTRY] = ENTRY;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < reversePostorder.length; i++) {
+                final int block = reversePostorder[i];
+                int dominator = NONE;
+                for (int p = predecessorOffsets[block]; p < predecessorOffsets[block + 1]; p++) {
+                    final int predecessor = predecessors[p];
+                    if (dominators[predecessor] != NONE) {
+                        dominator = dominator == NONE ? predecessor
+                                                      : intersect(predecessor, dominator, dominators, order);
+                    }
+                }
+
+                if (dominators[block] != dominator) {
+                    dominators[block] = dominator;
+                    changed = true;
+                }
+            }
+        }
+
+        dominators[ENTRY] = NONE;
+        return dominators;
+    }
+
+    private static int intersect(final int a, final int b, final int[] dominators, final int[] order) {
+        int x = a;
+        int y = b;
+        while (x != y) {
+            while (order[x] > order[y]) {
+                x = dominators[x];
+            }
+
+            while (order[y] > order[x]) {
+                y = dominators[y];
+            }
+        }
+
+        return x;
+    }
+
+    private void numberDominatorTree() {
+        final int blocks = getBlockCount();
+        final int[] childOffsets = new int[blocks + 1];
+        for (int block = 0; block < blocks; block++) {
+            if (idom[block] != NONE) {
+                childOffsets[idom[block] + 1]++;
+            }
+        }
+
+        for (int block = 0; block < blocks; block++) {
+            childOffsets[block + 1] += childOffsets[block];
+        }
+
+        final int[] fill = Arrays.copyOf(childOffsets, blocks);
+        final int[] children = new int[childOffsets[blocks]];
+        for (int block = 0; block < blocks; block++) {
+            if (idom[block] != NONE) {
+                children[fill[idom[block]]++] = block;
+            }
+        }
+
+        Arrays.fill(dominatorPre, NONE);
+
+        final int[] preorder = new int[reversePostorder.length];
+        final int[] stack = new int[reversePostorder.length];
+        int count = 0;
+        int depth = 0;
+        stack[depth++] = ENTRY;
+        while (depth > 0) {
+            final int block = stack[--depth];
+            dominatorPre[block] = count;
+            dominatorLast[block] = count;
+            preorder[count++] = block;
+            for (int i = childOffsets[block + 1] - 1; i >= childOffsets[block]; i--) {
+                stack[depth++] = children[i];
+            }
+        }
+
+        // children follow their parents in preorder
+        for (int i = count - 1; i > 0; i--) {
+            final int block = preorder[i];
+            dominatorLast[idom[block]] = Math.max(dominatorLast[idom[block]], dominatorLast[block]);
+        }
+    }
+
+    private void findLoops(final IntList headers, final IntList parents) {
+        final int[] marks = new int[getBlockCount()];
+        final IntList work = new IntList();
+
+        // a header comes after the headers of the enclosing loops in reverse postorder
+        for (final int header : reversePostorder) {
+            boolean backEdge = false;
+            for (int p = predecessorOffsets[header]; p < predecessorOffsets[header + 1] && !backEdge; p++) {
+                backEdge = dominates(header, predecessors[p]);
+            }
+
+            if (!backEdge) {
+                continue;
+            }
+
+            final int loop = headers.size();
+            headers.add(header);
+            parents.add(innermostLoops[header]);
+            marks[header] = loop + 1;
+            innermostLoops[header] = loop;
+            for (int p = predecessorOffsets[header]; p < predecessorOffsets[header + 1]; p++) {
+                final int latch = predecessors[p];
+                if (dominates(header, latch) && marks[latch] != loop + 1) {
+                    marks[latch] = loop + 1;
+                    work.add(latch);
+                }
+            }
+
+            while (work.size() > 0) {
+                final int block = work.removeLast();
+                innermostLoops[block] = loop;
+                for (int p = predecessorOffsets[block]; p < predecessorOffsets[block + 1]; p++) {
+                    final int predecessor = predecessors[p];
+                    if (isReachable(predecessor) && marks[predecessor] != loop + 1) {
+                        marks[predecessor] = loop + 1;
+                        work.add(predecessor);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lowers the statements in a single pass; statement nesting is followed recursively.
+     */
+    private static final class Builder {
+
+        // the current block after a jump, a block is only created if further statements follow
+        private static final int DEAD = -2;
+
+        private final List<ParserRuleContext> nodes = new ArrayList<ParserRuleContext>();
+        private final IntList nodeBlocks = new IntList();
+        private final IntList edgeSources = new IntList();
+        private final IntList edgeTargets = new IntList();
+        private final BitSet exceptionalEdges = new BitSet();
+
+        // innermost dispatching block of an exception clause per block
+        private final IntList handlers = new IntList();
+        private final BitSet dispatchers = new BitSet();
+        private final List<Loop> loops = new ArrayList<Loop>();
+        private int handler = NONE;
+        private int current;
+
+        Builder() {
+            newBlock();
+            newBlock();
+            current = branch(ENTRY);
+        }
+
+        ControlFlowGraph build() {
+            edge(current, EXIT);
+
+            final int blocks = handlers.size();
+            final int[] nodeOffsets = new int[blocks + 1];
+            for (int i = 0; i < nodeBlocks.size(); i++) {
+                nodeOffsets[nodeBlocks.get(i) + 1]++;
+            }
+
+            for (int block = 0; block < blocks; block++) {
+                if (handlers.get(block) != NONE && !dispatchers.get(block) && nodeOffsets[block + 1] > 0) {
+                    exceptionalEdge(block, handlers.get(block));
+                }
+
+                nodeOffsets[block + 1] += nodeOffsets[block];
+            }
+
+            final int[] nodeFill = Arrays.copyOf(nodeOffsets, blocks);
+            final ParserRuleContext[] blockNodes = new ParserRuleContext[nodes.size()];
+            for (int i = 0; i < nodeBlocks.size(); i++) {
+                blockNodes[nodeFill[nodeBlocks.get(i)]++] = nodes.get(i);
+            }
+
+            // edges grouped by source in the order they were added
+            final int[] edgeOffsets = new int[blocks + 1];
+            for (int edge = 0; edge < edgeSources.size(); edge++) {
+                edgeOffsets[edgeSources.get(edge) + 1]++;
+            }
+
+            for (int block = 0; block < blocks; block++) {
+                edgeOffsets[block + 1] += edgeOffsets[block];
+            }
+
+            final int[] edgeFill = Arrays.copyOf(edgeOffsets, blocks);
+            final int[] edges = new int[edgeSources.size()];
+            for (int edge = 0; edge < edgeSources.size(); edge++) {
+                edges[edgeFill[edgeSources.get(edge)]++] = edge;
+            }
+
+            // an edge added both as normal and exceptional edge is normal
+            final int[] successorOffsets = new int[blocks + 1];
+            final int[] successors = new int[edges.length];
+            final BitSet exceptional = new BitSet();
+            int size = 0;
+            for (int block = 0; block < blocks; block++) {
+                successorOffsets[block] = size;
+                for (int i = edgeOffsets[block]; i < edgeOffsets[block + 1]; i++) {
+                    final int edge = edges[i];
+                    int position = successorOffsets[block];
+                    while (position < size && successors[position] != edgeTargets.get(edge)) {
+                        position++;
+                    }
+
+                    if (position == size) {
+                        successors[size] = edgeTargets.get(edge);
+                        exceptional.set(size++, exceptionalEdges.get(edge));
+                    } else if (!exceptionalEdges.get(edge)) {
+                        exceptional.clear(position);
+                    }
+                }
+            }
+
+            successorOffsets[blocks] = size;
+            return new ControlFlowGraph(blockNodes, nodeOffsets, successorOffsets, Arrays.copyOf(successors, size),
+                    exceptional);
+        }
+
+        void stmts(final PlPgSqlParser.StmtsContext stmts) {
+            for (final PlPgSqlParser.StmtContext stmt : stmts.stmt()) {
+                statement((ParserRuleContext) stmt.getChild(0));
+            }
+        }
+
+        void block(final PlPgSqlParser.BlockStmtContext block) {
+            for (final PlPgSqlParser.VarDeclarationListContext declarations : block.varDeclarationList()) {
+                for (int i = 0; i < declarations.getChildCount(); i++) {
+                    add(current(), (ParserRuleContext) declarations.getChild(i));
+                }
+            }
+
+            final PlPgSqlParser.ExceptionHandlingBlockContext exceptions = block.exceptionHandlingBlock();
+            if (exceptions == null) {
+                stmts(block.stmts());
+                return;
+            }
+
+            final int outer = handler;
+            final int dispatcher = newBlock();
+            dispatchers.set(dispatcher);
+            handler = dispatcher;
+
+            final int start = newBlock();
+            edge(current, start);
+            current = start;
+            stmts(block.stmts());
+            handler = outer;
+
+            final IntList ends = new IntList();
+            ends.add(current);
+            current = DEAD;
+            for (int i = 0; i < exceptions.getChildCount(); i++) {
+                final ParseTree child = exceptions.getChild(i);
+                if (child instanceof PlPgSqlParser.ExceptionWhenConditionsContext) {
+                    add(dispatcher, (ParserRuleContext) child);
+                } else if (child instanceof PlPgSqlParser.StmtsContext) {
+
+                    // a handler starts after THEN, the trailing statements can only belong to a handler without WHEN
+                    final PlPgSqlParser.StmtsContext stmts = (PlPgSqlParser.StmtsContext) child;
+                    if (isToken(exceptions.getChild(i - 1), PlPgSqlParser.THEN)
+                            || (current == DEAD && !stmts.stmt().isEmpty())) {
+                        ends.add(current);
+                        current = branch(dispatcher);
+                    }
+
+                    stmts(stmts);
+                }
+            }
+
+            ends.add(current);
+            exceptionalEdge(dispatcher, outer == NONE ? EXIT : outer);
+            join(ends);
+        }
+
+        private void statement(final ParserRuleContext statement) {
+            switch (statement.getRuleIndex()) {
+
+                case PlPgSqlParser.RULE_blockStmt :
+                    block((PlPgSqlParser.BlockStmtContext) statement);
+                    break;
+
+                case PlPgSqlParser.RULE_ifStmt :
+                    ifStmt((PlPgSqlParser.IfStmtContext) statement);
+                    break;
+
+                case PlPgSqlParser.RULE_caseStmt :
+                    caseExpr(((PlPgSqlParser.CaseStmtContext) statement).caseExpr());
+                    break;
+
+                case PlPgSqlParser.RULE_loopStmt :
+                    final PlPgSqlParser.LoopStmtContext loopStmt = (PlPgSqlParser.LoopStmtContext) statement;
+                    loop(label(loopStmt.firstLabel, loopStmt.lastLabel), null, false, loopStmt.stmts());
+                    break;
+
+                case PlPgSqlParser.RULE_whileStmt :
+                    final PlPgSqlParser.WhileStmtContext whileStmt = (PlPgSqlParser.WhileStmtContext) statement;
+                    loop(label(whileStmt.firstLabel, whileStmt.lastLabel), whileStmt.condition(), true,
+                        whileStmt.stmts());
+                    break;
+
+                case PlPgSqlParser.RULE_forInIntStmt :
+                    final PlPgSqlParser.ForInIntStmtContext forInInt = (PlPgSqlParser.ForInIntStmtContext) statement;
+                    loop(label(forInInt.firstLabel, forInInt.lastLabel), forInInt.varExpr(), true, forInInt.stmts(),
+                        forInInt.forInIntFromExpression(), forInInt.forInIntToExpression(),
+                        forInInt.forInIntByExpression());
+                    break;
+
+                case PlPgSqlParser.RULE_forInQueryStmt :
+                    final PlPgSqlParser.ForInQueryStmtContext forInQuery = (PlPgSqlParser.ForInQueryStmtContext)
+                        statement;
+                    loop(label(forInQuery.firstLabel, forInQuery.lastLabel), forInQuery.varExpr(), true,
+                        forInQuery.stmts(), forInQuery.forInQuery());
+                    break;
+
+                case PlPgSqlParser.RULE_forInExecuteStmt :
+                    final PlPgSqlParser.ForInExecuteStmtContext forInExecute =
+                        (PlPgSqlParser.ForInExecuteStmtContext) statement;
+                    loop(label(forInExecute.firstLabel, forInExecute.lastLabel), forInExecute.varExpr(), true,
+                        forInExecute.stmts(), forInExecute.execute());
+                    break;
+
+                case PlPgSqlParser.RULE_forEachStmt :
+                    final PlPgSqlParser.ForEachStmtContext forEach = (PlPgSqlParser.ForEachStmtContext) statement;
+                    loop(label(forEach.firstLabel, forEach.lastLabel), forEach.varExpr(), true, forEach.stmts(),
+                        forEach.forEachArrayExpression());
+                    break;
+
+                case PlPgSqlParser.RULE_exitStmt :
+                    final PlPgSqlParser.ExitStmtContext exit = (PlPgSqlParser.ExitStmtContext) statement;
+                    jump(exit, exit.targetLabel, exit.exitWhenClause() != null, true);
+                    break;
+
+                case PlPgSqlParser.RULE_continueStmt :
+                    final PlPgSqlParser.ContinueStmtContext next = (PlPgSqlParser.ContinueStmtContext) statement;
+                    jump(next, next.targetLabel, next.continueWhenClause() != null, false);
+                    break;
+
+                case PlPgSqlParser.RULE_returnStmt :
+                    add(current(), statement);
+                    if (((PlPgSqlParser.ReturnStmtContext) statement).returnSimple() != null) {
+                        edge(current, EXIT);
+                        current = DEAD;
+                    }
+
+                    break;
+
+                case PlPgSqlParser.RULE_raiseStmt :
+                    add(current(), statement);
+                    if (raises(statement)) {
+                        exceptionalEdge(current, handler == NONE ? EXIT : handler);
+                        current = DEAD;
+                    }
+
+                    break;
+
+                default :
+                    add(current(), statement);
+            }
+        }
+
+        private void ifStmt(final PlPgSqlParser.IfStmtContext ifStmt) {
+            final IntList ends = new IntList();
+            int test = NONE;
+            boolean otherwise = false;
+            for (int i = 0; i < ifStmt.getChildCount(); i++) {
+                final ParseTree child = ifStmt.getChild(i);
+                if (child instanceof PlPgSqlParser.IfConditionContext) {
+                    test = current();
+                    add(test, (ParserRuleContext) child);
+                } else if (child instanceof PlPgSqlParser.ElsifConditionContext) {
+                    test = branch(test);
+                    add(test, (ParserRuleContext) child);
+                } else if (child instanceof PlPgSqlParser.StmtsContext) {
+                    current = branch(test);
+                    stmts((PlPgSqlParser.StmtsContext) child);
+                    ends.add(current);
+                } else {
+                    otherwise |= isToken(child, PlPgSqlParser.ELSE);
+                }
+            }
+
+            if (!otherwise) {
+                ends.add(test);
+            }
+
+            join(ends);
+        }
+
+        /**
+         * A case without matching {@code WHEN} and without {@code ELSE} raises {@code CASE_NOT_FOUND}.
+         */
+        private void caseExpr(final PlPgSqlParser.CaseExprContext caseExpr) {
+            final IntList ends = new IntList();
+            int test = NONE;
+            boolean otherwise = false;
+            for (int i = 0; i < caseExpr.getChildCount(); i++) {
+                final ParseTree child = caseExpr.getChild(i);
+                if (child instanceof PlPgSqlParser.SearchExprContext) {
+                    add(current(), (ParserRuleContext) child);
+                } else if (child instanceof PlPgSqlParser.WhenExpressionsContext) {
+                    test = test == NONE ? current() : branch(test);
+                    add(test, (ParserRuleContext) child);
+                } else if (child instanceof PlPgSqlParser.StmtsContext) {
+                    current = branch(test);
+                    stmts((PlPgSqlParser.StmtsContext) child);
+                    ends.add(current);
+                } else {
+                    otherwise |= isToken(child, PlPgSqlParser.ELSE);
+                }
+            }
+
+            if (!otherwise) {
+                exceptionalEdge(test, handler == NONE ? EXIT : handler);
+            }
+
+            join(ends);
+        }
+
+        /**
+         * @param  head        the node evaluated in the loop header on every iteration, or null
+         * @param  exhaustive  whether the loop ends when the header says so, as opposed to only by {@code EXIT}
+         * @param  init        the nodes evaluated once before the loop, null elements are skipped
+         */
+        private void loop(final String label, final ParserRuleContext head, final boolean exhaustive,
+                final PlPgSqlParser.StmtsContext body, final ParserRuleContext... init) {
+            for (final ParserRuleContext node : init) {
+                if (node != null) {
+                    add(current(), node);
+                }
+            }
+
+            final int header = newBlock();
+            edge(current, header);
+            if (head != null) {
+                add(header, head);
+            }
+
+            final Loop loop = new Loop(label, header);
+            loops.add(loop);
+            current = branch(header);
+            stmts(body);
+            edge(current, header);
+            loops.remove(loops.size() - 1);
+
+            if (exhaustive) {
+                loop.exits.add(header);
+            }
+
+            join(loop.exits);
+        }
+
+        private void jump(final ParserRuleContext statement, final Token target, final boolean conditional,
+                final boolean exit) {
+            final Loop loop = findLoop(statement, target);
+            final int from = current();
+            add(from, statement);
+            if (exit) {
+                loop.exits.add(from);
+            } else {
+                edge(from, loop.header);
+            }
+
+            current = conditional ? branch(from) : DEAD;
+        }
+
+        private Loop findLoop(final ParserRuleContext statement, final Token target) {
+            for (int i = loops.size() - 1; i >= 0; i--) {
+                final Loop loop = loops.get(i);
+                if (target == null || target.getText().equalsIgnoreCase(loop.label)) {
+                    return loop;
+                }
+            }
+
+            throw new IllegalArgumentException(statement.start.getText() + " at line " + statement.start.getLine()
+                    + (target == null ? " outside of a loop" : " refers to unknown loop label " + target.getText()));
+        }
+
+        /**
+         * Continues in a new block after the given blocks, or in no block if none of them is reachable.
+         */
+        private void join(final IntList ends) {
+            current = DEAD;
+            for (int i = 0; i < ends.size(); i++) {
+                if (ends.get(i) != DEAD) {
+                    edge(ends.get(i), current());
+                }
+            }
+        }
+
+        private int branch(final int from) {
+            final int block = newBlock();
+            edge(from, block);
+            return block;
+        }
+
+        private int current() {
+            if (current == DEAD) {
+                current = newBlock();
+            }
+
+            return current;
+        }
+
+        private int newBlock() {
+            handlers.add(handler);
+            return handlers.size() - 1;
+        }
+
+        private void add(final int block, final ParserRuleContext node) {
+            nodes.add(node);
+            nodeBlocks.add(block);
+        }
+
+        private void edge(final int from, final int to) {
+            if (from != DEAD) {
+                edgeSources.add(from);
+                edgeTargets.add(to);
+            }
+        }
+
+        private void exceptionalEdge(final int from, final int to) {
+            exceptionalEdges.set(edgeSources.size(), from != DEAD);
+            edge(from, to);
+        }
+
+        private static String label(final Token first, final Token last) {
+            return first != null ? first.getText() : last != null ? last.getText() : null;
+        }
+
+        /**
+         * Raising without level or with a level other than DEBUG, LOG, INFO, NOTICE or WARNING raises an exception.
+         */
+        private static boolean raises(final ParserRuleContext raise) {
+            final ParseTree level = raise.getChild(1);
+            if (!(level instanceof TerminalNode)) {
+                return true;
+            }
+
+            switch (((TerminalNode) level).getSymbol().getType()) {
+
+                case PlPgSqlParser.DEBUG1 :
+                case PlPgSqlParser.DEBUG2 :
+                case PlPgSqlParser.DEBUG3 :
+                case PlPgSqlParser.DEBUG4 :
+                case PlPgSqlParser.DEBUG5 :
+                case PlPgSqlParser.INFO :
+                case PlPgSqlParser.NOTICE :
+                case PlPgSqlParser.WARNING :
+                case PlPgSqlParser.LOG :
+                    return false;
+
+                default :
+                    return true;
+            }
+        }
+
+        private static boolean isToken(final ParseTree node, final int type) {
+            return node instanceof TerminalNode && ((TerminalNode) node).getSymbol().getType() == type;
+        }
+    }
+
+    private static final class Loop {
+        private final String label;
+        private final int header;
+
+        // blocks jumping past the loop
+        private final IntList exits = new IntList();
+
+        Loop(final String label, final int header) {
+            this.label = label;
+            this.header = header;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package de.zalando.plpgsql.ast;
+
+import java.io.ByteArrayOutputStream;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+
+/**
+ * In-memory store of function sources that keeps them deflated in blocks. Several sources share a block so that the
+ * compressor sees enough context, and every block is compressed with a preset dictionary of PL/pgSQL keywords and
+ * common names (see {@link #trainDictionary(Iterable, int)}). A source is only inflated and parsed when it is
+ * accessed, the most recently used trees are kept in a small LRU.
+ *
+ * <p/>Sources are appended to an uncompressed pending block which is compressed once it reaches the block size or on
+ * {@link #flush()}.
+ *
+ * <p/>Thread-safe; parsing a source does not block other accesses.
+ */
+public final class CorpusStore {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_CACHED_TREES = 64;
+
+    private static final Pattern KEYWORD = Pattern.compile("[A-Z][A-Z_]+");
+
+    /**
+     * Dictionary made of the grammar keywords and the usual type names and phrases of function definitions.
+     */
+    public static final byte[] DEFAULT_DICTIONARY = defaultDictionary();
+
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private final int blockSize;
+    private final byte[] dictionary;
+
+    private final List<byte[]> blocks = new ArrayList<byte[]>();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    // per entry: block (blocks.size() while pending), byte offset and byte length within the block
+    private int[] entryBlock = new int[64];
+    private int[] entryOffset = new int[64];
+    private int[] entryLength = new int[64];
+    private int size;
+
+    private long uncompressedBytes;
+    private long compressedBytes;
+
+    // the block inflated last, consecutive entries are usually read from the same block
+    private int inflatedBlock = -1;
+    private byte[] inflated;
+
+    private final LinkedHashMap<Integer, ParserRuleContext> trees;
+
+    private long hitCount;
+    private long missCount;
+    private long loadSuccessCount;
+    private long loadExceptionCount;
+    private long totalLoadTime;
+    private long evictionCount;
+
+    public CorpusStore() {
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_CACHED_TREES, DEFAULT_DICTIONARY);
+    }
+
+    public CorpusStore(final int blockSize, final int cachedTrees, final byte[] dictionary) {
+        Preconditions.checkArgument(blockSize > 0, "blockSize must be positive");
+        Preconditions.checkArgument(cachedTrees >= 0, "cachedTrees must not be negative");
+        this.blockSize = blockSize;
+        this.dictionary = dictionary.clone();
+        this.trees = new LinkedHashMap<Integer, ParserRuleContext>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, ParserRuleContext> eldest) {
+                if (size() > cachedTrees) {
+                    evictionCount++;
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    private static byte[] defaultDictionary() {
+        final StringBuilder builder = new StringBuilder();
+        for (final String name : PlPgSqlParser.tokenNames) {
+            if (KEYWORD.matcher(name).matches()) {
+                final String keyword = name.replace('_', ' ');
+                builder.append(keyword.toLowerCase(Locale.ROOT)).append(' ').append(keyword).append(' ');
+            }
+        }
+
+        // the most frequent strings go last, they are closest to the data
+        builder.append("varchar timestamp numeric boolean bigint text integer IS NOT NULL ");
+        builder.append("RAISE EXCEPTION 'SELECT * FROM INSERT INTO UPDATE SET DELETE FROM WHERE ");
+        builder.append("CREATE OR REPLACE FUNCTION RETURNS SETOF RETURNS integer AS $$\nDECLARE\nBEGIN\n    ");
+        builder.append("END IF;\n    RETURN ;\nEND;\n$$ LANGUAGE plpgsql;\n");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a dictionary from sample sources: the default dictionary followed by the most frequent identifiers and
+     * keywords of the samples, weighted by their length.
+     */
+    public static byte[] trainDictionary(final Iterable<String> samples, final int maxSize) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (final String sample : samples) {
+            final PlPgSqlLexer lexer = new PlPgSqlLexer(new ANTLRInputStream(sample));
+            lexer.removeErrorListeners();
+            for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken()) {
+                if (token.getChannel() == Token.DEFAULT_CHANNEL && token.getText().length() > 2) {
+                    final Integer count = counts.get(token.getText());
+                    counts.put(token.getText(), count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        final List<Map.Entry<String, Integer>> terms = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+        Collections.sort(terms, new Comparator<Map.Entry<String, Integer>>() {
+                @Override
+                public int compare(final Map.Entry<String, Integer> a, final Map.Entry<String, Integer> b) {
+                    final long weightA = (long) a.getValue() * a.getKey().length();
+                    final long weightB = (long) b.getValue() * b.getKey().length();
+                    return weightA < weightB ? -1 : (weightA == weightB ? a.getKey().compareTo(b.getKey()) : 1);
+                }
+            });
+
+        final int limit = Math.min(maxSize, MAX_DICTIONARY_SIZE);
+        final ByteArrayOutputStream trained = new ByteArrayOutputStream();
+        final int from = Math.max(0, DEFAULT_DICTIONARY.length - limit / 2);
+        trained.write(DEFAULT_DICTIONARY, from, DEFAULT_DICTIONARY.length - from);
+
+        // terms are sorted by ascending weight, keep the heaviest ones that fit
+        final List<byte[]> selected = new ArrayList<byte[]>();
+        int room = limit - trained.size();
+        for (int i = terms.size() - 1; i >= 0; i--) {
+            final byte[] term = (terms.get(i).getKey() + ' ').getBytes(StandardCharsets.UTF_8);
+            if (term.length <= room) {
+                selected.add(term);
+                room -= term.length;
+            }
+        }
+
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            trained.write(selected.get(i), 0, selected.get(i).length);
+        }
+
+        return trained.toByteArray();
+    }
+
+    /**
+     * @return  the id of the added source
+     */
+    public synchronized int add(final String source) {
+        final byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        if (size == entryBlock.length) {
+            entryBlock = Arrays.copyOf(entryBlock, size * 2);
+            entryOffset = Arrays.copyOf(entryOffset, size * 2);
+            entryLength = Arrays.copyOf(entryLength, size * 2);
+        }
+
+        final int id = size++;
+        entryBlock[id] = blocks.size();
+        entryOffset[id] = pending.size();
+        entryLength[id] = bytes.length;
+        pending.write(bytes, 0, bytes.length);
+        uncompressedBytes += bytes.length;
+
+        if (pending.size() >= blockSize) {
+            flush();
+        }
+
+        return id;
+    }
+
+    /**
+     * Compresses the pending block.
+     */
+    public synchronized void flush() {
+        if (pending.size() == 0) {
+            return;
+        }
+
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(pending.toByteArray());
+            deflater.finish();
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(pending.size() / 3);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            final byte[] block = out.toByteArray();
+            blocks.add(block);
+            compressedBytes += block.length;
+            pending.reset();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public synchronized String getSource(final int id) {
+        Preconditions.checkElementIndex(id, size);
+
+        final int block = entryBlock[id];
+        if (block == blocks.size()) {
+            return new String(pending.toByteArray(), entryOffset[id], entryLength[id], StandardCharsets.UTF_8);
+        }
+
+        if (block != inflatedBlock) {
+            inflated = inflate(blocks.get(block));
+            inflatedBlock = block;
+        }
+
+        return new String(inflated, entryOffset[id], entryLength[id], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the parse tree of a source, parsing it on the first access and after it was evicted from the LRU. The
+     * parse runs without holding the lock of the store; if several threads parse the same source, the first tree
+     * added to the LRU is returned to all of them.
+     *
+     * @throws  org.antlr.v4.runtime.misc.ParseCancellationException  if the source cannot be parsed
+     */
+    public ParserRuleContext getTree(final int id) {
+        final long start;
+        final String source;
+        synchronized (this) {
+            final ParserRuleContext cached = trees.get(id);
+            if (cached != null) {
+                hitCount++;
+                return cached;
+            }
+
+            missCount++;
+            start = System.nanoTime();
+            source = getSource(id);
+        }
+
+        final ParserRuleContext tree;
+        try {
+            tree = (ParserRuleContext) ParseUtil.parse(source);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                loadExceptionCount++;
+                totalLoadTime += System.nanoTime() - start;
+            }
+
+            throw e;
+        }
+
+        synchronized (this) {
+            loadSuccessCount++;
+            totalLoadTime += System.nanoTime() - start;
+
+            final ParserRuleContext first = trees.get(id);
+            if (first != null) {
+                return first;
+            }
+
+            trees.put(id, tree);
+            return tree;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return  the UTF-8 size of all sources
+     */
+    public synchronized long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * @return  the size of the compressed blocks plus the pending block
+     */
+    public synchronized long getCompressedBytes() {
+        return compressedBytes + pending.size();
+    }
+
+    public synchronized double getCompressionRatio() {
+        final long compressed = getCompressedBytes();
+        return compressed == 0 ? 1.0 : (double) uncompressedBytes / compressed;
+    }
+
+    /**
+     * @return  statistics of the tree LRU, a load is the inflation and parse of a source
+     */
+    public synchronized CacheStats stats() {
+        return new CacheStats(hitCount, missCount, loadSuccessCount, loadExceptionCount, totalLoadTime, evictionCount);
+    }
+
+    private byte[] inflate(final byte[] block) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(block);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(block.length * 4);
+            final byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                } else if (n == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("truncated corpus block");
+                }
+
+                out.write(buffer, 0, n);
+            }
+
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupt corpus block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Gen/kill bit vector problem over a {@link ControlFlowGraph}, solved with a worklist in (reverse) postorder. The
+ * transfer function of a block is {@code gen | (facts & ~kill)}; the sets of all blocks are kept in one
+ * {@code long[]} each, so a problem costs five bit vectors per block.
+ *
+ * <p/>Along exceptional edges flow the facts of every point inside a block, not only those at its end: forward, the
+ * facts at the start plus (union) what the block generates, even if only {@link #genPartially(int, int) partially},
+ * or minus (intersection) what it kills; backward, the facts of the handler are merged into those at the start of
+ * the block.
+ *
+ * @see  DefUseAnalysis
+ */
+public final class DataflowProblem {
+
+    public enum Direction {
+        FORWARD,
+        BACKWARD
+    }
+
+    public enum Meet {
+        UNION,
+        INTERSECTION
+    }
+
+    private final ControlFlowGraph cfg;
+    private final int bits;
+    private final int words;
+    private final Direction direction;
+    private final Meet meet;
+
+    // words of all blocks in one array, block after block
+    private final long[] gen;
+    private final long[] kill;
+    private final long[] partialGen;
+    private final long[] boundary;
+
+    public DataflowProblem(final ControlFlowGraph cfg, final int bits, final Direction direction, final Meet meet) {
+        Preconditions.checkArgument(bits >= 0, "negative number of bits: %s", bits);
+        this.cfg = Preconditions.checkNotNull(cfg);
+        this.bits = bits;
+        this.words = (bits + 63) >>> 6;
+        this.direction = Preconditions.checkNotNull(direction);
+        this.meet = Preconditions.checkNotNull(meet);
+        this.gen = new long[cfg.getBlockCount() * words];
+        this.kill = new long[cfg.getBlockCount() * words];
+        this.partialGen = new long[cfg.getBlockCount() * words];
+        this.boundary = new long[words];
+    }
+
+    public ControlFlowGraph getControlFlowGraph() {
+        return cfg;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public DataflowProblem gen(final int block, final int bit) {
+        Preconditions.checkElementIndex(bit, bits);
+        gen[block * words + (bit >>> 6)] |= 1L << bit;
+        return this;
+    }
+
+    public DataflowProblem kill(final int block, final int bit) {
+        Preconditions.checkElementIndex(bit, bits);
+        kill[block * words + (bit >>> 6)] |= 1L << bit;
+        return this;
+    }
+
+    /**
+     * Sets a fact generated inside the block but killed again before its end.
+     */
+    public DataflowProblem genPartially(final int block, final int bit) {
+        Preconditions.checkElementIndex(bit, bits);
+        partialGen[block * words + (bit >>> 6)] |= 1L << bit;
+        return this;
+    }
+
+    /**
+     * Sets a fact holding at the start of {@link ControlFlowGraph#ENTRY} (forward) or at the end of
+     * {@link ControlFlowGraph#EXIT} (backward).
+     */
+    public DataflowProblem boundary(final int bit) {
+        Preconditions.checkElementIndex(bit, bits);
+        boundary[bit >>> 6] |= 1L << bit;
+        return this;
+    }
+
+    public Solution solve() {
+        final boolean forward = direction == Direction.FORWARD;
+        final boolean union = meet == Meet.UNION;
+        final int blocks = cfg.getBlockCount();
+        final int start = forward ? ControlFlowGraph.ENTRY : ControlFlowGraph.EXIT;
+
+        // facts before and after the transfer function in the direction of the problem
+        final long[] before = new long[blocks * words];
+        final long[] after = new long[blocks * words];
+        final long[] identity = new long[words];
+        if (!union) {
+            fillTop(identity, 0);
+            for (int block = 0; block < blocks; block++) {
+                fillTop(before, block * words);
+                fillTop(after, block * words);
+            }
+        }
+
+        final long[] value = new long[words];
+        final long[] handlerValue = new long[words];
+        final int[] queue = order(forward);
+        final boolean[] queued = new boolean[blocks];
+        Arrays.fill(queued, true);
+
+        int head = 0;
+        int size = blocks;
+        while (size > 0) {
+            final int block = queue[head];
+            head = (head + 1) % blocks;
+            size--;
+            queued[block] = false;
+
+            boolean handlers = false;
+            if (block == start) {
+                System.arraycopy(boundary, 0, value, 0, words);
+            } else {
+                System.arraycopy(identity, 0, value, 0, words);
+                System.arraycopy(identity, 0, handlerValue, 0, words);
+
+                final int sources = forward ? cfg.getPredecessorCount(block) : cfg.getSuccessorCount(block);
+                for (int i = 0; i < sources; i++) {
+                    final int source = forward ? cfg.getPredecessor(block, i) : cfg.getSuccessor(block, i);
+                    final boolean exceptional = forward ? cfg.isExceptionalPredecessor(block, i)
+                                                        : cfg.isExceptional(block, i);
+                    final int offset = source * words;
+                    for (int w = 0; w < words; w++) {
+                        if (!exceptional) {
+                            value[w] = union ? value[w] | after[offset + w] : value[w] & after[offset + w];
+                        } else if (forward) {
+                            value[w] = union ? value[w] | before[offset + w] | gen[offset + w] | partialGen[offset + w]
+                                             : value[w] & before[offset + w] & ~kill[offset + w];
+                        } else {
+                            handlerValue[w] = union ? handlerValue[w] | after[offset + w]
+                                                    : handlerValue[w] & after[offset + w];
+                        }
+                    }
+
+                    handlers |= exceptional && !forward;
+                }
+            }
+
+            boolean changed = false;
+            final int offset = block * words;
+            for (int w = 0; w < words; w++) {
+                long facts = gen[offset + w] | (value[w] & ~kill[offset + w]);
+                if (handlers) {
+                    facts = union ? facts | handlerValue[w] : facts & handlerValue[w];
+                }
+
+                changed |= before[offset + w] != value[w] || after[offset + w] != facts;
+                before[offset + w] = value[w];
+                after[offset + w] = facts;
+            }
+
+            if (changed) {
+                final int targets = forward ? cfg.getSuccessorCount(block) : cfg.getPredecessorCount(block);
+                for (int i = 0; i < targets; i++) {
+                    final int target = forward ? cfg.getSuccessor(block, i) : cfg.getPredecessor(block, i);
+                    if (!queued[target]) {
+                        queued[target] = true;
+                        queue[(head + size++) % blocks] = target;
+                    }
+                }
+            }
+        }
+
+        return forward ? new Solution(bits, before, after) : new Solution(bits, after, before);
+    }
+
+    /**
+     * @return  the reachable blocks in reverse postorder (forward) or postorder (backward), followed by the others
+     */
+    private int[] order(final boolean forward) {
+        final int[] reversePostorder = cfg.getReversePostorder();
+        final int[] order = new int[cfg.getBlockCount()];
+        for (int i = 0; i < reversePostorder.length; i++) {
+            order[i] = forward ? reversePostorder[i] : reversePostorder[reversePostorder.length - 1 - i];
+        }
+
+        int size = reversePostorder.length;
+        for (int block = 0; block < order.length; block++) {
+            if (!cfg.isReachable(block)) {
+                order[size++] = block;
+            }
+        }
+
+        return order;
+    }
+
+    private void fillTop(final long[] facts, final int offset) {
+        for (int w = 0; w < words; w++) {
+            facts[offset + w] = w < words - 1 || (bits & 63) == 0 ? -1L : (1L << bits) - 1;
+        }
+    }
+
+    /**
+     * Facts at the start and the end of every block.
+     */
+    public static final class Solution {
+        private final int bits;
+        private final int words;
+        private final long[] entry;
+        private final long[] exit;
+
+        private Solution(final int bits, final long[] entry, final long[] exit) {
+            this.bits = bits;
+            this.words = (bits + 63) >>> 6;
+            this.entry = entry;
+            this.exit = exit;
+        }
+
+        public int getBits() {
+            return bits;
+        }
+
+        public boolean holdsAtEntry(final int block, final int bit) {
+            return holds(entry, block, bit);
+        }
+
+        public boolean holdsAtExit(final int block, final int bit) {
+            return holds(exit, block, bit);
+        }
+
+        public BitSet getEntry(final int block) {
+            return BitSet.valueOf(Arrays.copyOfRange(entry, block * words, (block + 1) * words));
+        }
+
+        public BitSet getExit(final int block) {
+            return BitSet.valueOf(Arrays.copyOfRange(exit, block * words, (block + 1) * words));
+        }
+
+        private boolean holds(final long[] facts, final int block, final int bit) {
+            Preconditions.checkElementIndex(bit, bits);
+            return (facts[block * words + (bit >>> 6)] & (1L << bit)) != 0;
+        }
+    }
+}
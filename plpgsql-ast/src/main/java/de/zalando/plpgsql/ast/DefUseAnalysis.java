@@ -0,0 +1,491 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import com.google.common.base.Function;
+
+/**
+ * Reaching definitions, live variables and def-use chains of a function.
+ *
+ * <p/>Variables are the arguments, declared variables and loop variables of the {@link SymbolTable}, numbered in the
+ * order of their symbols; a declaration shadowing another one is a variable of its own, names are resolved by the
+ * symbol table.
+ *
+ * <p/>Definitions are the arguments (in {@link ControlFlowGraph#ENTRY}), declarations, assignments, {@code INTO}
+ * targets and loop variables; assigning a field or array element also uses the variable. Uses are the {@code varExpr}
+ * nodes naming a variable, plus a use of every {@code OUT} and {@code INOUT} argument in {@link ControlFlowGraph#EXIT}.
+ * Chains are kept in CSR int arrays.
+ */
+public final class DefUseAnalysis {
+
+    public static final int NONE = -1;
+
+    private final ControlFlowGraph cfg;
+    private final SymbolTable symbols;
+    private final int[] variableSymbols;
+    private final int[] symbolVariables;
+
+    private final ParserRuleContext[] definitions;
+    private final int[] definitionVariables;
+    private final int[] definitionBlocks;
+
+    private final ParserRuleContext[] uses;
+    private final int[] useVariables;
+    private final int[] useBlocks;
+
+    // CSR layout, the definitions reaching a use and the uses reached by a definition
+    private final int[] useDefinitionOffsets;
+    private final int[] useDefinitions;
+    private final int[] definitionUseOffsets;
+    private final int[] definitionUses;
+
+    private final DataflowProblem.Solution reachingDefinitions;
+    private final DataflowProblem.Solution liveVariables;
+
+    private DefUseAnalysis(final Builder builder) {
+        cfg = builder.cfg;
+        symbols = builder.symbols;
+        variableSymbols = builder.variableSymbols.toArray();
+        symbolVariables = builder.symbolVariables;
+        definitions = builder.definitions.toArray(new ParserRuleContext[builder.definitions.size()]);
+        definitionVariables = builder.definitionVariables.toArray();
+        definitionBlocks = builder.definitionBlocks.toArray();
+        uses = builder.uses.toArray(new ParserRuleContext[builder.uses.size()]);
+        useVariables = builder.useVariables.toArray();
+        useBlocks = builder.useBlocks.toArray();
+
+        final int[] eventOffsets = builder.eventOffsets.toArray();
+        final int[] events = builder.events.toArray();
+
+        // definitions of each variable
+        final BitSet[] definitionsOf = new BitSet[variableSymbols.length];
+        for (int variable = 0; variable < variableSymbols.length; variable++) {
+            definitionsOf[variable] = new BitSet();
+        }
+
+        for (int definition = 0; definition < definitions.length; definition++) {
+            definitionsOf[definitionVariables[definition]].set(definition);
+        }
+
+        reachingDefinitions = reachingDefinitions(eventOffsets, events, definitionsOf);
+        liveVariables = liveVariables(eventOffsets, events);
+
+        // replay the events of every block on the definitions reaching its start
+        useDefinitionOffsets = new int[uses.length + 1];
+        final IntList chains = new IntList();
+        for (int block = 0; block < cfg.getBlockCount(); block++) {
+            final BitSet reaching = reachingDefinitions.getEntry(block);
+            for (int i = eventOffsets[block]; i < eventOffsets[block + 1]; i++) {
+                final int event = events[i];
+                if (isUse(event)) {
+                    final BitSet reached = (BitSet) definitionsOf[useVariables[index(event)]].clone();
+                    reached.and(reaching);
+                    for (int d = reached.nextSetBit(0); d >= 0; d = reached.nextSetBit(d + 1)) {
+                        chains.add(d);
+                    }
+
+                    useDefinitionOffsets[index(event) + 1] = chains.size();
+                } else {
+                    reaching.andNot(definitionsOf[definitionVariables[index(event)]]);
+                    reaching.set(index(event));
+                }
+            }
+        }
+
+        useDefinitions = chains.toArray();
+
+        definitionUseOffsets = new int[definitions.length + 1];
+        for (final int definition : useDefinitions) {
+            definitionUseOffsets[definition + 1]++;
+        }
+
+        for (int definition = 0; definition < definitions.length; definition++) {
+            definitionUseOffsets[definition + 1] += definitionUseOffsets[definition];
+        }
+
+        final int[] fill = Arrays.copyOf(definitionUseOffsets, definitions.length);
+        definitionUses = new int[useDefinitions.length];
+        for (int use = 0; use < uses.length; use++) {
+            for (int i = useDefinitionOffsets[use]; i < useDefinitionOffsets[use + 1]; i++) {
+                definitionUses[fill[useDefinitions[i]]++] = use;
+            }
+        }
+    }
+
+    public static DefUseAnalysis of(final PlPgSqlParser.PlFunctionContext function) {
+        return new DefUseAnalysis(new Builder(function));
+    }
+
+    /**
+     * Analyzes every function of the units in parallel.
+     *
+     * @return  the analyses in source order
+     */
+    public static List<DefUseAnalysis> ofAll(final Iterable<? extends ParseTree> units,
+            final FunctionExecutor executor) throws InterruptedException {
+        return executor.map(units, new Function<PlPgSqlParser.PlFunctionContext, DefUseAnalysis>() {
+                    @Override
+                    public DefUseAnalysis apply(final PlPgSqlParser.PlFunctionContext function) {
+                        return of(function);
+                    }
+                });
+    }
+
+    public ControlFlowGraph getControlFlowGraph() {
+        return cfg;
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbols;
+    }
+
+    public int getVariableCount() {
+        return variableSymbols.length;
+    }
+
+    /**
+     * @return  the folded name of the variable
+     */
+    public String getVariableName(final int variable) {
+        return symbols.getName(variableSymbols[variable]);
+    }
+
+    public int getVariableSymbol(final int variable) {
+        return variableSymbols[variable];
+    }
+
+    /**
+     * @return  the variable of the symbol or the symbol it aliases, or {@link #NONE} for labels
+     */
+    public int getSymbolVariable(final int symbol) {
+        final int variable = symbols.getKind(symbol) == SymbolTable.Kind.ALIAS ? symbols.getAliasTarget(symbol)
+                                                                              : symbol;
+        return variable == SymbolTable.NONE ? NONE : symbolVariables[variable];
+    }
+
+    /**
+     * @return  the first declared variable of that name or alias, or {@link #NONE}
+     */
+    public int getVariable(final String name) {
+        final String folded = SymbolPool.fold(name);
+        for (int symbol = 0; symbol < symbols.getSymbolCount(); symbol++) {
+            if (symbols.getKind(symbol) != SymbolTable.Kind.LABEL && symbols.getName(symbol).equals(folded)) {
+                return getSymbolVariable(symbol);
+            }
+        }
+
+        return NONE;
+    }
+
+    public int getDefinitionCount() {
+        return definitions.length;
+    }
+
+    /**
+     * @return  the argument, declaration, statement or loop variable defining the variable
+     */
+    public ParserRuleContext getDefinitionNode(final int definition) {
+        return definitions[definition];
+    }
+
+    public int getDefinitionVariable(final int definition) {
+        return definitionVariables[definition];
+    }
+
+    public int getDefinitionBlock(final int definition) {
+        return definitionBlocks[definition];
+    }
+
+    public int getUseCount() {
+        return uses.length;
+    }
+
+    /**
+     * @return  the {@code varExpr}, or the {@code functionArg} for the use of an output argument
+     */
+    public ParserRuleContext getUseNode(final int use) {
+        return uses[use];
+    }
+
+    public int getUseVariable(final int use) {
+        return useVariables[use];
+    }
+
+    public int getUseBlock(final int use) {
+        return useBlocks[use];
+    }
+
+    /**
+     * @return  the definitions reaching the use, ascending
+     */
+    public int[] getDefinitions(final int use) {
+        return Arrays.copyOfRange(useDefinitions, useDefinitionOffsets[use], useDefinitionOffsets[use + 1]);
+    }
+
+    /**
+     * @return  the uses reached by the definition, ascending
+     */
+    public int[] getUses(final int definition) {
+        return Arrays.copyOfRange(definitionUses, definitionUseOffsets[definition],
+                definitionUseOffsets[definition + 1]);
+    }
+
+    /**
+     * @return  whether no use reads the value of the definition
+     */
+    public boolean isDead(final int definition) {
+        return definitionUseOffsets[definition] == definitionUseOffsets[definition + 1];
+    }
+
+    /**
+     * @return  the definitions reaching the start and the end of every block
+     */
+    public DataflowProblem.Solution getReachingDefinitions() {
+        return reachingDefinitions;
+    }
+
+    /**
+     * @return  the variables live at the start and the end of every block
+     */
+    public DataflowProblem.Solution getLiveVariables() {
+        return liveVariables;
+    }
+
+    private DataflowProblem.Solution reachingDefinitions(final int[] eventOffsets, final int[] events,
+            final BitSet[] definitionsOf) {
+        final DataflowProblem problem = new DataflowProblem(cfg, definitions.length, DataflowProblem.Direction.FORWARD,
+                DataflowProblem.Meet.UNION);
+        final BitSet gen = new BitSet();
+        final BitSet kill = new BitSet();
+        final BitSet all = new BitSet();
+        for (int block = 0; block < cfg.getBlockCount(); block++) {
+            gen.clear();
+            kill.clear();
+            all.clear();
+            for (int i = eventOffsets[block]; i < eventOffsets[block + 1]; i++) {
+                if (!isUse(events[i])) {
+                    final BitSet same = definitionsOf[definitionVariables[index(events[i])]];
+                    gen.andNot(same);
+                    kill.or(same);
+                    gen.set(index(events[i]));
+                    all.set(index(events[i]));
+                }
+            }
+
+            for (int d = all.nextSetBit(0); d >= 0; d = all.nextSetBit(d + 1)) {
+                if (gen.get(d)) {
+                    problem.gen(block, d);
+                } else {
+                    problem.genPartially(block, d);
+                }
+            }
+
+            for (int d = kill.nextSetBit(0); d >= 0; d = kill.nextSetBit(d + 1)) {
+                problem.kill(block, d);
+            }
+        }
+
+        return problem.solve();
+    }
+
+    private DataflowProblem.Solution liveVariables(final int[] eventOffsets, final int[] events) {
+        final DataflowProblem problem = new DataflowProblem(cfg, variableSymbols.length,
+                DataflowProblem.Direction.BACKWARD, DataflowProblem.Meet.UNION);
+        final BitSet gen = new BitSet();
+        final BitSet kill = new BitSet();
+        for (int block = 0; block < cfg.getBlockCount(); block++) {
+            gen.clear();
+            kill.clear();
+            for (int i = eventOffsets[block + 1] - 1; i >= eventOffsets[block]; i--) {
+                if (isUse(events[i])) {
+                    gen.set(useVariables[index(events[i])]);
+                } else {
+                    gen.clear(definitionVariables[index(events[i])]);
+                    kill.set(definitionVariables[index(events[i])]);
+                }
+            }
+
+            for (int v = gen.nextSetBit(0); v >= 0; v = gen.nextSetBit(v + 1)) {
+                problem.gen(block, v);
+            }
+
+            for (int v = kill.nextSetBit(0); v >= 0; v = kill.nextSetBit(v + 1)) {
+                problem.kill(block, v);
+            }
+        }
+
+        return problem.solve();
+    }
+
+    private static boolean isUse(final int event) {
+        return (event & 1) != 0;
+    }
+
+    private static int index(final int event) {
+        return event >>> 1;
+    }
+
+    /**
+     * Collects the variables, then the definitions and uses of every block in execution order.
+     */
+    private static final class Builder {
+        private final ControlFlowGraph cfg;
+        private final SymbolTable symbols;
+        private final IntList variableSymbols = new IntList();
+        private final int[] symbolVariables;
+
+        private final List<ParserRuleContext> definitions = new ArrayList<ParserRuleContext>();
+        private final IntList definitionVariables = new IntList();
+        private final IntList definitionBlocks = new IntList();
+        private final List<ParserRuleContext> uses = new ArrayList<ParserRuleContext>();
+        private final IntList useVariables = new IntList();
+        private final IntList useBlocks = new IntList();
+
+        // definition index * 2 or use index * 2 + 1, grouped by block
+        private final IntList eventOffsets = new IntList();
+        private final IntList events = new IntList();
+
+        private final IntList defined = new IntList();
+        private final Deque<ParseTree> stack = new ArrayDeque<ParseTree>();
+
+        Builder(final PlPgSqlParser.PlFunctionContext function) {
+            cfg = ControlFlowGraph.of(function);
+            symbols = SymbolTable.of(function);
+            symbolVariables = new int[symbols.getSymbolCount()];
+            for (int symbol = 0; symbol < symbolVariables.length; symbol++) {
+                final SymbolTable.Kind kind = symbols.getKind(symbol);
+                if (kind == SymbolTable.Kind.ALIAS || kind == SymbolTable.Kind.LABEL) {
+                    symbolVariables[symbol] = NONE;
+                } else {
+                    symbolVariables[symbol] = variableSymbols.size();
+                    variableSymbols.add(symbol);
+                }
+            }
+
+            final List<PlPgSqlParser.FunctionArgContext> args = function.functionArgsList().functionArg();
+            for (int block = 0; block < cfg.getBlockCount(); block++) {
+                eventOffsets.add(events.size());
+                if (block == ControlFlowGraph.ENTRY) {
+                    for (int i = 0; i < args.size(); i++) {
+                        define(args.get(i), symbolVariables[symbols.getArgument(i)], block);
+                    }
+                } else if (block == ControlFlowGraph.EXIT) {
+                    for (int i = 0; i < args.size(); i++) {
+                        final Token mode = args.get(i).argMode;
+                        if (mode != null && mode.getType() != PlPgSqlParser.IN) {
+                            use(args.get(i), symbolVariables[symbols.getArgument(i)], block);
+                        }
+                    }
+                }
+
+                for (final ParserRuleContext node : cfg.getNodes(block)) {
+                    scan(node, block);
+                }
+            }
+
+            eventOffsets.add(events.size());
+        }
+
+        /**
+         * Records the uses below the node in preorder, then its definitions.
+         */
+        private void scan(final ParserRuleContext node, final int block) {
+            defined.clear();
+            stack.push(node);
+            while (!stack.isEmpty()) {
+                final ParseTree tree = stack.pop();
+                if (tree instanceof PlPgSqlParser.VarExprContext) {
+                    final int variable = resolve(((PlPgSqlParser.VarExprContext) tree).getStart());
+                    if (tree == node) {
+                        defined.add(variable);
+                    } else if (variable != NONE) {
+                        use((ParserRuleContext) tree, variable, block);
+                    }
+
+                    continue;
+                }
+
+                if (tree instanceof PlPgSqlParser.AssignExprContext) {
+                    final PlPgSqlParser.AssignExprContext assign = (PlPgSqlParser.AssignExprContext) tree;
+                    final ParseTree receiver = assign.receiver;
+                    if (receiver.getChildCount() == 1 && receiver.getChild(0) instanceof PlPgSqlParser.VarExprContext
+                            && ((ParserRuleContext) receiver.getChild(0)).getStart().getType() == PlPgSqlParser.ID) {
+                        defined.add(resolve(((ParserRuleContext) receiver.getChild(0)).getStart()));
+                    } else {
+
+                        // a field or element, the variable is used as well
+                        defined.add(resolve(assign.receiver.getStart()));
+                        stack.push(assign.receiver);
+                    }
+
+                    stack.push(assign.value);
+                    continue;
+                }
+
+                if (tree instanceof PlPgSqlParser.IntoClauseContext) {
+                    for (final TerminalNode target : ((PlPgSqlParser.IntoClauseContext) tree).ID()) {
+                        defined.add(resolve(target.getSymbol()));
+                    }
+
+                    continue;
+                }
+
+                if (tree instanceof PlPgSqlParser.ExecuteIntoTargetContext) {
+                    defined.add(resolve(((PlPgSqlParser.ExecuteIntoTargetContext) tree).target));
+                    continue;
+                }
+
+                if (tree instanceof PlPgSqlParser.ReturningIntoTargetContext) {
+                    defined.add(resolve(((PlPgSqlParser.ReturningIntoTargetContext) tree).target));
+                    continue;
+                }
+
+                if (tree == node && tree instanceof PlPgSqlParser.VarDeclarationContext) {
+                    defined.add(resolve(((PlPgSqlParser.VarDeclarationContext) tree).varName));
+                }
+
+                for (int i = tree.getChildCount() - 1; i >= 0; i--) {
+                    stack.push(tree.getChild(i));
+                }
+            }
+
+            for (int i = 0; i < defined.size(); i++) {
+                if (defined.get(i) != NONE) {
+                    define(node, defined.get(i), block);
+                }
+            }
+        }
+
+        /**
+         * @return  the variable declared or referenced by the token, or {@link #NONE}
+         */
+        private int resolve(final Token token) {
+            final int symbol = symbols.resolve(token);
+            return symbol == SymbolTable.NONE ? NONE : symbolVariables[symbol];
+        }
+
+        private void define(final ParserRuleContext node, final int variable, final int block) {
+            events.add(definitions.size() * 2);
+            definitions.add(node);
+            definitionVariables.add(variable);
+            definitionBlocks.add(block);
+        }
+
+        private void use(final ParserRuleContext node, final int variable, final int block) {
+            events.add(uses.size() * 2 + 1);
+            uses.add(node);
+            useVariables.add(variable);
+            useBlocks.add(block);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package de.zalando.plpgsql.ast;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * Struct-of-arrays encoding of a parse tree. Nodes are numbered in preorder (the root is 0) and every property is
+ * kept in a primitive column indexed by that number. Text is never copied, it is addressed by offsets into the
+ * original char buffer.
+ *
+ * <p/>{@link #flatten(ParserRuleContext)} builds a heap tree backed by {@code int[]} columns, {@link FlatTreeStore}
+ * hands out views that read the same columns from memory-mapped files.
+ */
+public abstract class FlatTree {
+
+    /**
+     * Rule index stored for terminal nodes.
+     */
+    public static final int TERMINAL = -1;
+
+    /**
+     * Link value for a missing parent, child or sibling.
+     */
+    public static final int NONE = -1;
+
+    FlatTree() { }
+
+    public static FlatTree flatten(final ParserRuleContext root) {
+        return flatten(root, sourceOf(root));
+    }
+
+    public static FlatTree flatten(final ParserRuleContext root, final char[] source) {
+        return ArrayFlatTree.build(root, source);
+    }
+
+    private static char[] sourceOf(final ParserRuleContext root) {
+        if (root.start == null) {
+            return new char[0];
+        }
+
+        final CharStream input = root.start.getInputStream();
+        if (input == null || input.size() == 0) {
+            return new char[0];
+        }
+
+        return input.getText(Interval.of(0, input.size() - 1)).toCharArray();
+    }
+
+    public abstract int size();
+
+    public abstract int getTokenCount();
+
+    /**
+     * The complete source the tree was parsed from.
+     */
+    public abstract CharSequence getSource();
+
+    public abstract int getRuleIndex(int node);
+
+    public abstract int getParent(int node);
+
+    public abstract int getFirstChild(int node);
+
+    public abstract int getNextSibling(int node);
+
+    public abstract int getTokenStart(int node);
+
+    public abstract int getTokenStop(int node);
+
+    public abstract int getStartOffset(int node);
+
+    public abstract int getStopOffset(int node);
+
+    public abstract int getTokenTypeAt(int token);
+
+    public abstract int getTokenLine(int token);
+
+    public abstract int getTokenColumn(int token);
+
+    public boolean isTerminal(final int node) {
+        return getRuleIndex(node) == TERMINAL;
+    }
+
+    public String getRuleName(final int node) {
+        final int rule = getRuleIndex(node);
+        return rule == TERMINAL ? null : PlPgSqlParser.ruleNames[rule];
+    }
+
+    public int getChildCount(final int node) {
+        int count = 0;
+        for (int child = getFirstChild(node); child != NONE; child = getNextSibling(child)) {
+            count++;
+        }
+
+        return count;
+    }
+
+    public int getChild(final int node, final int index) {
+        int child = getFirstChild(node);
+        for (int i = 0; i < index && child != NONE; i++) {
+            child = getNextSibling(child);
+        }
+
+        return child;
+    }
+
+    /**
+     * Returns the first node id after the subtree of the given node, i.e. the subtree occupies the id range [node,
+     * getSubtreeEnd(node)).
+     */
+    public int getSubtreeEnd(final int node) {
+        int n = node;
+        while (n != NONE) {
+            final int sibling = getNextSibling(n);
+            if (sibling != NONE) {
+                return sibling;
+            }
+
+            n = getParent(n);
+        }
+
+        return size();
+    }
+
+    /**
+     * Token type of a terminal node, {@link Token#INVALID_TYPE} for rule nodes.
+     */
+    public int getTokenType(final int node) {
+        return isTerminal(node) ? getTokenTypeAt(getTokenStart(node)) : Token.INVALID_TYPE;
+    }
+
+    public int getTextLength(final int node) {
+        return Math.max(0, getStopOffset(node) - getStartOffset(node) + 1);
+    }
+
+    /**
+     * Source text covered by the node, including any whitespace and comments between its tokens.
+     */
+    public String getText(final int node) {
+        final int start = getStartOffset(node);
+        return getSource().subSequence(start, start + getTextLength(node)).toString();
+    }
+
+    public boolean textEquals(final int node, final CharSequence text, final boolean ignoreCase) {
+        final int length = getTextLength(node);
+        if (length != text.length()) {
+            return false;
+        }
+
+        final CharSequence source = getSource();
+        final int offset = getStartOffset(node);
+        for (int i = 0; i < length; i++) {
+            final char a = source.charAt(offset + i);
+            final char b = text.charAt(i);
+            if (a != b && !(ignoreCase && Character.toLowerCase(a) == Character.toLowerCase(b))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public void walk(final FlatTreeListener listener) {
+        if (size() > 0) {
+            walk(listener, 0);
+        }
+    }
+
+    /**
+     * Walks the subtree of the given node in preorder without recursion and without allocating.
+     */
+    public void walk(final FlatTreeListener listener, final int root) {
+        int node = root;
+        while (true) {
+            if (listener.enterNode(this, node)) {
+                final int child = getFirstChild(node);
+                if (child != NONE) {
+                    node = child;
+                    continue;
+                }
+            }
+
+            listener.exitNode(this, node);
+            while (node != root && getNextSibling(node) == NONE) {
+                node = getParent(node);
+                listener.exitNode(this, node);
+            }
+
+            if (node == root) {
+                return;
+            }
+
+            node = getNextSibling(node);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package de.zalando.plpgsql.ast;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Compact, versioned binary form of a {@link FlatTree}. Columns are delta and varint encoded, links that follow from
+ * the preorder numbering (a first child is always the next node) are stored as flags only.
+ *
+ * <p/>Every encoded tree carries the {@link #GRAMMAR_FINGERPRINT} of the grammar it was parsed with. Decoding a tree
+ * produced by a different grammar or format version fails with an {@link IOException}.
+ */
+public final class FlatTreeCodec {
+    private FlatTreeCodec() { }
+
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Hash over the serialized ATNs and the rule and token names of lexer and parser. Changes whenever the grammar
+     * changes in a way that affects parse trees.
+     */
+    public static final long GRAMMAR_FINGERPRINT = grammarFingerprint();
+
+    private static final int MAGIC = 0x504c5446; // PLTF
+
+    private static long grammarFingerprint() {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(PlPgSqlLexer._serializedATN, StandardCharsets.UTF_8);
+        hasher.putString(PlPgSqlParser._serializedATN, StandardCharsets.UTF_8);
+        for (final String name : PlPgSqlParser.ruleNames) {
+            hasher.putString(name, StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+
+        for (final String name : PlPgSqlParser.tokenNames) {
+            hasher.putString(name, StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+
+        return hasher.hash().asLong();
+    }
+
+    public static byte[] encode(final FlatTree tree) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 4 * tree.size());
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(GRAMMAR_FINGERPRINT);
+
+            final int nodes = tree.size();
+            final int tokens = tree.getTokenCount();
+            writeVarInt(out, nodes);
+            writeVarInt(out, tokens);
+
+            final byte[] source = tree.getSource().toString().getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, source.length);
+            out.write(source);
+
+            int previousTokenStart = 0;
+            int previousStartOffset = 0;
+            for (int i = 0; i < nodes; i++) {
+                final int nextSibling = tree.getNextSibling(i);
+                final int hasChild = tree.getFirstChild(i) == FlatTree.NONE ? 0 : 1;
+
+                // rule + 1 keeps terminals non-negative, the lowest bit flags a first child
+                writeVarInt(out, ((tree.getRuleIndex(i) + 1) << 1) | hasChild);
+                writeVarInt(out, i == 0 ? 0 : i - tree.getParent(i));
+                writeVarInt(out, nextSibling == FlatTree.NONE ? 0 : nextSibling - i);
+                writeVarInt(out, tree.getTokenStart(i) - previousTokenStart);
+                writeVarInt(out, tree.getTokenStop(i) - tree.getTokenStart(i) + 1);
+                writeSignedVarInt(out, tree.getStartOffset(i) - previousStartOffset);
+                writeSignedVarInt(out, tree.getStopOffset(i) - tree.getStartOffset(i));
+                previousTokenStart = tree.getTokenStart(i);
+                previousStartOffset = tree.getStartOffset(i);
+            }
+
+            int previousLine = 0;
+            for (int i = 0; i < tokens; i++) {
+                writeVarInt(out, tree.getTokenTypeAt(i) + 1);
+                writeSignedVarInt(out, tree.getTokenLine(i) - previousLine);
+                writeVarInt(out, tree.getTokenColumn(i));
+                previousLine = tree.getTokenLine(i);
+            }
+
+            out.flush();
+        } catch (IOException e) {
+
+            // cannot happen for a byte array
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public static FlatTree decode(final byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not an encoded flat tree");
+        }
+
+        final int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("unsupported flat tree format version " + version);
+        }
+
+        if (in.readLong() != GRAMMAR_FINGERPRINT) {
+            throw new IOException("flat tree was encoded with a different grammar");
+        }
+
+        final int nodes = readVarInt(in);
+        final int tokens = readVarInt(in);
+        final byte[] source = new byte[readVarInt(in)];
+        in.readFully(source);
+
+        final ArrayFlatTree tree = new ArrayFlatTree(new String(source, StandardCharsets.UTF_8).toCharArray(), nodes,
+                tokens);
+
+        int previousTokenStart = 0;
+        int previousStartOffset = 0;
+        for (int i = 0; i < nodes; i++) {
+            final int ruleAndFlag = readVarInt(in);
+            final int parentDelta = readVarInt(in);
+            final int siblingDelta = readVarInt(in);
+            tree.rule[i] = (ruleAndFlag >>> 1) - 1;
+            tree.firstChild[i] = (ruleAndFlag & 1) == 0 ? FlatTree.NONE : i + 1;
+            tree.parent[i] = i == 0 ? FlatTree.NONE : i - parentDelta;
+            tree.nextSibling[i] = siblingDelta == 0 ? FlatTree.NONE : i + siblingDelta;
+            tree.tokenStart[i] = previousTokenStart + readVarInt(in);
+            tree.tokenStop[i] = tree.tokenStart[i] + readVarInt(in) - 1;
+            tree.startOffset[i] = previousStartOffset + readSignedVarInt(in);
+            tree.stopOffset[i] = tree.startOffset[i] + readSignedVarInt(in);
+            previousTokenStart = tree.tokenStart[i];
+            previousStartOffset = tree.startOffset[i];
+        }
+
+        int previousLine = 0;
+        for (int i = 0; i < tokens; i++) {
+            tree.tokenType[i] = readVarInt(in) - 1;
+            tree.tokenLine[i] = previousLine + readSignedVarInt(in);
+            tree.tokenColumn[i] = readVarInt(in);
+            previousLine = tree.tokenLine[i];
+        }
+
+        return tree;
+    }
+
+    private static void writeVarInt(final DataOutputStream out, final int value) throws IOException {
+        int v = value;
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+
+        out.writeByte(v);
+    }
+
+    private static void writeSignedVarInt(final DataOutputStream out, final int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    private static int readVarInt(final DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("malformed varint");
+    }
+
+    private static int readSignedVarInt(final DataInputStream in) throws IOException {
+        final int value = readVarInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
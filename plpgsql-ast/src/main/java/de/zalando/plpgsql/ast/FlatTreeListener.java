@@ -0,0 +1,14 @@
+package de.zalando.plpgsql.ast;
+
+/**
+ * Callback for {@link FlatTree#walk(FlatTreeListener)}. Nodes are passed as ids, so walking allocates nothing.
+ */
+public interface FlatTreeListener {
+
+    /**
+     * @return  {@code false} to skip the children of the node; {@link #exitNode(FlatTree, int)} is still called
+     */
+    boolean enterNode(FlatTree tree, int node);
+
+    void exitNode(FlatTree tree, int node);
+}
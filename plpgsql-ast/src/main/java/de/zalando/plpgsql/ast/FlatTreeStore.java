@@ -0,0 +1,263 @@
+package de.zalando.plpgsql.ast;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Append-only store of {@link FlatTree}s in memory-mapped segment files. Only the key index lives on the heap, trees
+ * returned by {@link #get(String)} read their columns and source text directly from the mapped files.
+ *
+ * <p/>Storing a key again appends a new record that supersedes the old one; the space of superseded records is not
+ * reclaimed.
+ */
+public final class FlatTreeStore implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 256L << 20;
+
+    private static final int SEGMENT_MAGIC = 0x46545331; // FTS1
+
+    private static final int SEGMENT_HEADER_SIZE = 8;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String SEGMENT_SUFFIX = ".ftree";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlatTreeStore.class);
+
+    private final File directory;
+    private final long maxSegmentSize;
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    // one more than the highest number of a segment file, files may be missing in between
+    private int nextSegment;
+
+    // key -> segment number in the upper, record offset in the lower 32 bits
+    private final Map<String, Long> index = new HashMap<String, Long>();
+
+    private FlatTreeStore(final File directory, final long maxSegmentSize) {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    public static FlatTreeStore open(final File directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static FlatTreeStore open(final File directory, final long maxSegmentSize) throws IOException {
+        Preconditions.checkArgument(maxSegmentSize > SEGMENT_HEADER_SIZE && maxSegmentSize <= Integer.MAX_VALUE,
+            "invalid segment size %s", maxSegmentSize);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create store directory " + directory);
+        }
+
+        final FlatTreeStore store = new FlatTreeStore(directory, maxSegmentSize);
+        final String[] names = directory.list(new FilenameFilter() {
+                    @Override
+                    public boolean accept(final File dir, final String name) {
+                        return name.endsWith(SEGMENT_SUFFIX);
+                    }
+                });
+        if (names == null) {
+            throw new IOException("cannot list store directory " + directory);
+        }
+
+        Arrays.sort(names);
+
+        try {
+            for (final String name : names) {
+                store.load(new File(directory, name));
+            }
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+
+        return store;
+    }
+
+    private void load(final File file) throws IOException {
+        final Segment segment = new Segment(file);
+        final int number = segments.size();
+        segments.add(segment);
+        nextSegment = Math.max(nextSegment, segmentNumber(file.getName()) + 1);
+
+        final ByteBuffer buffer = segment.map();
+        if (buffer.limit() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != SEGMENT_MAGIC) {
+            throw new IOException("not a flat tree segment: " + file);
+        }
+
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("unsupported segment version " + buffer.getInt(4) + " in " + file);
+        }
+
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset + MappedFlatTree.HEADER_SIZE <= buffer.limit()) {
+            final int length = buffer.getInt(offset + 4);
+            if (buffer.getInt(offset) != MappedFlatTree.RECORD_MAGIC || length <= 0
+                    || offset + length > buffer.limit()) {
+                break;
+            }
+
+            index.put(MappedFlatTree.readKey(buffer, offset), location(number, offset));
+            offset += length;
+        }
+
+        if (offset < buffer.limit()) {
+
+            // a write was interrupted, drop the incomplete record
+            LOGGER.warn("truncating segment {} from {} to {} bytes", new Object[] {file, buffer.limit(), offset});
+            segment.truncate(offset);
+        }
+    }
+
+    public synchronized void put(final String key, final FlatTree tree) throws IOException {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int length = MappedFlatTree.recordLength(keyBytes.length, tree.size(), tree.getTokenCount(),
+                tree.getSource().length());
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null
+                || (segment.size > SEGMENT_HEADER_SIZE && segment.size + length > maxSegmentSize)) {
+            segment = createSegment();
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        MappedFlatTree.write(record, keyBytes, tree);
+        record.flip();
+
+        final long offset = segment.append(record);
+        index.put(key, location(segments.size() - 1, (int) offset));
+    }
+
+    /**
+     * @return  a view of the stored tree or {@code null} if the key is unknown
+     */
+    public synchronized FlatTree get(final String key) throws IOException {
+        final Long location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+
+        final Segment segment = segments.get((int) (location >>> 32));
+        return new MappedFlatTree(segment.map(), (int) (location & 0xffffffffL));
+    }
+
+    public synchronized boolean contains(final String key) {
+        return index.containsKey(key);
+    }
+
+    public synchronized Set<String> keys() {
+        return new HashSet<String>(index.keySet());
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (final Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        segments.clear();
+        index.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        final File file = new File(directory, segmentName(nextSegment++));
+        final Segment segment = new Segment(file);
+        segments.add(segment);
+
+        final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(SEGMENT_MAGIC).putInt(FORMAT_VERSION).flip();
+        segment.append(header);
+        return segment;
+    }
+
+    private static String segmentName(final int number) {
+        return String.format("segment-%06d%s", number, SEGMENT_SUFFIX);
+    }
+
+    private static int segmentNumber(final String name) {
+        try {
+            return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static long location(final int segment, final int offset) {
+        return ((long) segment << 32) | (offset & 0xffffffffL);
+    }
+
+    private static final class Segment {
+        private final FileChannel channel;
+        private long size;
+
+        // mapping of [0, size), replaced after appends; views keep older mappings alive until they are collected
+        private MappedByteBuffer mapped;
+
+        Segment(final File file) throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            size = channel.size();
+        }
+
+        ByteBuffer map() throws IOException {
+            if (mapped == null || mapped.capacity() != size) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            return mapped;
+        }
+
+        long append(final ByteBuffer data) throws IOException {
+            final long offset = size;
+            long position = offset;
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+
+            size = position;
+            return offset;
+        }
+
+        void truncate(final long newSize) throws IOException {
+            channel.truncate(newSize);
+            size = newSize;
+            mapped = null;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package de.zalando.plpgsql.ast;
+
+import java.io.Closeable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.ParseTreeVisitor;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+
+/**
+ * Runs analyses on the functions of parsed units in parallel, one task per {@code plFunction}. Results are returned
+ * in source order: units in the order given, functions in the order they appear in their unit.
+ *
+ * <p/>Listeners and visitors are created from a {@link Supplier} for every function, so they do not need to be thread
+ * safe and each instance only holds the state of one function.
+ */
+public final class FunctionExecutor implements Closeable {
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    /**
+     * Creates an executor with a fork join pool using all available processors.
+     */
+    public FunctionExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an executor with a fork join pool of the given parallelism, {@link #close()} shuts it down.
+     */
+    public FunctionExecutor(final int parallelism) {
+        this(new ForkJoinPool(parallelism), true);
+    }
+
+    /**
+     * Runs the tasks on the given executor service, which is not shut down by {@link #close()}.
+     */
+    public FunctionExecutor(final ExecutorService executor) {
+        this(executor, false);
+    }
+
+    private FunctionExecutor(final ExecutorService executor, final boolean ownsExecutor) {
+        this.executor = Preconditions.checkNotNull(executor, "executor");
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * @return  the functions of a unit, a function by itself
+     */
+    public static List<PlPgSqlParser.PlFunctionContext> functions(final ParseTree unit) {
+        if (unit instanceof PlPgSqlParser.PlFunctionContext) {
+            return Collections.singletonList((PlPgSqlParser.PlFunctionContext) unit);
+        }
+
+        Preconditions.checkArgument(unit instanceof PlPgSqlParser.UnitContext, "not a unit or function: %s", unit);
+        return ((PlPgSqlParser.UnitContext) unit).plFunction();
+    }
+
+    /**
+     * Applies the task to every function of the units.
+     *
+     * @return  the results in source order
+     *
+     * @throws  RuntimeException  the first failure in source order, the remaining tasks are cancelled
+     */
+    public <R> List<R> map(final Iterable<? extends ParseTree> units,
+            final Function<? super PlPgSqlParser.PlFunctionContext, ? extends R> task) throws InterruptedException {
+        final List<Callable<R>> tasks = new ArrayList<Callable<R>>();
+        for (final ParseTree unit : units) {
+            for (final PlPgSqlParser.PlFunctionContext function : functions(unit)) {
+                tasks.add(new Callable<R>() {
+                        @Override
+                        public R call() {
+                            return task.apply(function);
+                        }
+                    });
+            }
+        }
+
+        final List<Future<R>> futures = new ArrayList<Future<R>>(tasks.size());
+        for (final Callable<R> callable : tasks) {
+            futures.add(executor.submit(callable));
+        }
+
+        final List<R> results = new ArrayList<R>(futures.size());
+        try {
+            for (final Future<R> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            if (results.size() < futures.size()) {
+                for (final Future<R> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Walks every function with a new listener.
+     *
+     * @return  the listeners in source order of their functions
+     */
+    public <L extends ParseTreeListener> List<L> walk(final Iterable<? extends ParseTree> units,
+            final Supplier<? extends L> listeners) throws InterruptedException {
+        return map(units, new Function<PlPgSqlParser.PlFunctionContext, L>() {
+                    @Override
+                    public L apply(final PlPgSqlParser.PlFunctionContext function) {
+                        final L listener = listeners.get();
+                        SelectiveTreeWalker.DEFAULT.walk(listener, function);
+                        return listener;
+                    }
+                });
+    }
+
+    /**
+     * Walks every function once with a new listener of each supplier, see {@link FusedTreeWalker}.
+     *
+     * @return  per function in source order the listeners in the order of the suppliers
+     */
+    public List<List<ParseTreeListener>> walkAll(final Iterable<? extends ParseTree> units,
+            final List<? extends Supplier<? extends ParseTreeListener>> listeners) throws InterruptedException {
+        return map(units, new Function<PlPgSqlParser.PlFunctionContext, List<ParseTreeListener>>() {
+                    @Override
+                    public List<ParseTreeListener> apply(final PlPgSqlParser.PlFunctionContext function) {
+                        final FusedTreeWalker walker = new FusedTreeWalker();
+                        for (final Supplier<? extends ParseTreeListener> supplier : listeners) {
+                            walker.add(supplier.get());
+                        }
+
+                        walker.walk(function);
+                        return walker.getListeners();
+                    }
+                });
+    }
+
+    /**
+     * Visits every function with a new visitor.
+     *
+     * @return  the results in source order
+     */
+    public <T> List<T> visit(final Iterable<? extends ParseTree> units,
+            final Supplier<? extends ParseTreeVisitor<? extends T>> visitors) throws InterruptedException {
+        return map(units, new Function<PlPgSqlParser.PlFunctionContext, T>() {
+                    @Override
+                    public T apply(final PlPgSqlParser.PlFunctionContext function) {
+                        return function.accept(visitors.get());
+                    }
+                });
+    }
+
+    /**
+     * Shuts down the pool if this executor created it.
+     */
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Walks a tree once for several listeners. Every listener sees the events it would see from its own
+ * {@link SelectiveTreeWalker} walk, in the same order, and events of one node are delivered to the listeners in the
+ * order they were added. Rules a listener does not handle are skipped for it, and subtrees none of the listeners
+ * cares about are not entered at all. The tree is walked with an explicit stack like in {@link IterativeTreeWalker}.
+ *
+ * <p/>If timing is enabled, the time spent in each listener's callbacks is summed up over all walks, so slow
+ * analyses can be spotted. Instances are not thread safe.
+ */
+public final class FusedTreeWalker {
+
+    private static final int RULES = PlPgSqlParser.ruleNames.length;
+
+    private static final int INITIAL_DEPTH = 64;
+
+    private final boolean timed;
+
+    private final List<ParseTreeListener> listeners = new ArrayList<ParseTreeListener>();
+
+    private final List<ListenerProfile> profiles = new ArrayList<ListenerProfile>();
+
+    private long[] nanos = new long[0];
+
+    private long[] events = new long[0];
+
+    // per rule index the listeners to call, rebuilt after listeners were added
+    private int[][] enterDispatch;
+    private int[][] exitDispatch;
+    private boolean[] descend;
+    private int[] terminalDispatch;
+    private int[] errorDispatch;
+
+    public FusedTreeWalker() {
+        this(false);
+    }
+
+    /**
+     * @param  timed  whether to measure the time spent in each listener
+     */
+    public FusedTreeWalker(final boolean timed) {
+        this.timed = timed;
+    }
+
+    public FusedTreeWalker add(final ParseTreeListener listener) {
+        Preconditions.checkNotNull(listener, "listener");
+        listeners.add(listener);
+        profiles.add(ListenerProfile.of(listener.getClass()));
+        nanos = Arrays.copyOf(nanos, listeners.size());
+        events = Arrays.copyOf(events, listeners.size());
+        enterDispatch = null;
+        return this;
+    }
+
+    public List<ParseTreeListener> getListeners() {
+        return Collections.unmodifiableList(listeners);
+    }
+
+    public boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * @return  the nanoseconds spent in the listener's callbacks, always {@code 0} if timing is disabled
+     */
+    public long getNanos(final ParseTreeListener listener) {
+        return nanos[indexOf(listener)];
+    }
+
+    /**
+     * @return  the number of callbacks delivered to the listener
+     */
+    public long getEvents(final ParseTreeListener listener) {
+        return events[indexOf(listener)];
+    }
+
+    public void resetTimings() {
+        Arrays.fill(nanos, 0);
+        Arrays.fill(events, 0);
+    }
+
+    private int indexOf(final ParseTreeListener listener) {
+        for (int i = 0; i < listeners.size(); i++) {
+            if (listeners.get(i) == listener) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("listener is not registered: " + listener);
+    }
+
+    private void buildDispatch() {
+        enterDispatch = new int[RULES][];
+        exitDispatch = new int[RULES][];
+        descend = new boolean[RULES];
+
+        final int[] enter = new int[listeners.size()];
+        final int[] exit = new int[listeners.size()];
+        for (int rule = 0; rule < RULES; rule++) {
+            int enterCount = 0;
+            int exitCount = 0;
+            for (int i = 0; i < profiles.size(); i++) {
+                final ListenerProfile profile = profiles.get(i);
+                if (profile.everyRule || profile.enter[rule]) {
+                    enter[enterCount++] = i;
+                }
+
+                if (profile.everyRule || profile.exit[rule]) {
+                    exit[exitCount++] = i;
+                }
+
+                descend[rule] |= profile.descend[rule];
+            }
+
+            enterDispatch[rule] = Arrays.copyOf(enter, enterCount);
+            exitDispatch[rule] = Arrays.copyOf(exit, exitCount);
+        }
+
+        int terminalCount = 0;
+        int errorCount = 0;
+        for (int i = 0; i < profiles.size(); i++) {
+            if (profiles.get(i).terminals) {
+                enter[terminalCount++] = i;
+            }
+
+            if (profiles.get(i).errorNodes) {
+                exit[errorCount++] = i;
+            }
+        }
+
+        terminalDispatch = Arrays.copyOf(enter, terminalCount);
+        errorDispatch = Arrays.copyOf(exit, errorCount);
+    }
+
+    public void walk(final ParseTree t) {
+        if (enterDispatch == null) {
+            buildDispatch();
+        }
+
+        if (!(t instanceof ParserRuleContext)) {
+            visitLeaf(t);
+            return;
+        }
+
+        ParserRuleContext[] nodes = new ParserRuleContext[INITIAL_DEPTH];
+        int[] next = new int[INITIAL_DEPTH];
+        int top = 0;
+
+        nodes[0] = (ParserRuleContext) t;
+        enterRule(nodes[0]);
+        while (top >= 0) {
+            final ParserRuleContext node = nodes[top];
+            if (next[top] == node.getChildCount() || !descend[node.getRuleIndex()]) {
+                exitRule(node);
+                nodes[top--] = null;
+                continue;
+            }
+
+            final ParseTree child = node.getChild(next[top]++);
+            if (!(child instanceof ParserRuleContext)) {
+                visitLeaf(child);
+                continue;
+            }
+
+            if (++top == nodes.length) {
+                nodes = Arrays.copyOf(nodes, top * 2);
+                next = Arrays.copyOf(next, top * 2);
+            }
+
+            nodes[top] = (ParserRuleContext) child;
+            next[top] = 0;
+            enterRule(nodes[top]);
+        }
+    }
+
+    private void enterRule(final ParserRuleContext ctx) {
+        final int rule = ctx.getRuleIndex();
+        for (final int i : enterDispatch[rule]) {
+            final long start = timed ? System.nanoTime() : 0;
+            final ParseTreeListener listener = listeners.get(i);
+            final ListenerProfile profile = profiles.get(i);
+            if (profile.everyRule) {
+                listener.enterEveryRule(ctx);
+            }
+
+            if (profile.enter[rule]) {
+                ctx.enterRule(listener);
+            }
+
+            record(i, start);
+        }
+    }
+
+    private void exitRule(final ParserRuleContext ctx) {
+        final int rule = ctx.getRuleIndex();
+        for (final int i : exitDispatch[rule]) {
+            final long start = timed ? System.nanoTime() : 0;
+            final ParseTreeListener listener = listeners.get(i);
+            final ListenerProfile profile = profiles.get(i);
+            if (profile.exit[rule]) {
+                ctx.exitRule(listener);
+            }
+
+            if (profile.everyRule) {
+                listener.exitEveryRule(ctx);
+            }
+
+            record(i, start);
+        }
+    }
+
+    private void visitLeaf(final ParseTree t) {
+        if (t instanceof ErrorNode) {
+            for (final int i : errorDispatch) {
+                final long start = timed ? System.nanoTime() : 0;
+                listeners.get(i).visitErrorNode((ErrorNode) t);
+                record(i, start);
+            }
+        } else if (t instanceof TerminalNode) {
+            for (final int i : terminalDispatch) {
+                final long start = timed ? System.nanoTime() : 0;
+                listeners.get(i).visitTerminal((TerminalNode) t);
+                record(i, start);
+            }
+        }
+    }
+
+    private void record(final int listener, final long start) {
+        if (timed) {
+            nanos[listener] += System.nanoTime() - start;
+        }
+
+        events[listener]++;
+    }
+}
@@ -0,0 +1,436 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Functions affected by dropping or changing a table or a column: the functions referencing it and, through the
+ * {@link CallGraph}, every function eventually calling one of them. The table accesses come from a
+ * {@link TableIndex}, the column references are indexed when a function is added, so queries only look up postings
+ * and walk the callers.
+ *
+ * <p/>Column references are {@code %TYPE} and {@code %ROWTYPE} types, insert columns, update assignments,
+ * {@code SELECT *} and {@code RETURNING *}, and the names in the expressions of a query: qualified names whose
+ * qualifier is a table or alias of an enclosing query, and unqualified names that are no variables, which may be
+ * columns of any table of the innermost query with tables. A row type or {@code *} references all columns.
+ *
+ * <p/>Table names are folded and kept as written, a lookup of a qualified name also finds the references of the
+ * unqualified one. Functions are identified by their folded names like in the call graph.
+ */
+public final class ImpactAnalysis {
+
+    public enum Reference {
+        TABLE,
+        TYPE,
+        ROW_TYPE,
+        ALL_COLUMNS,
+        INSERT_COLUMN,
+        UPDATE_COLUMN,
+        QUALIFIED_NAME,
+        UNQUALIFIED_NAME
+    }
+
+    private static final String ALL = "*";
+
+    private static final Reference[] REFERENCES = Reference.values();
+
+    private static final Comparator<Usage> USAGE_ORDER = new Comparator<Usage>() {
+        @Override
+        public int compare(final Usage a, final Usage b) {
+            int result = a.function.compareTo(b.function);
+            if (result == 0) {
+                result = a.line != b.line ? (a.line < b.line ? -1 : 1)
+                                          : (a.column < b.column ? -1 : (a.column == b.column ? 0 : 1));
+            }
+
+            return result;
+        }
+    };
+
+    private final CallGraph calls = new CallGraph();
+    private final TableIndex tables = new TableIndex();
+
+    // keyed by table + '.' + column, the column is * for references of all columns
+    private final Map<String, IntList> columnPostings = new HashMap<String, IntList>();
+
+    // keyed by table, the references of any column
+    private final Map<String, IntList> tablePostings = new HashMap<String, IntList>();
+
+    // one entry per column reference
+    private final IntList functions = new IntList();
+    private final IntList kinds = new IntList();
+    private final IntList lines = new IntList();
+    private final IntList columns = new IntList();
+
+    /**
+     * Adds a function; overloads and later versions of a function add to the references of the same name.
+     */
+    public ImpactAnalysis add(final PlPgSqlParser.PlFunctionContext function) {
+        final int number = tables.add(function);
+        calls.put(function);
+
+        final SymbolTable symbols = SymbolTable.of(function);
+        final List<ParseTree> stack = new ArrayList<ParseTree>();
+        stack.add(function);
+        while (!stack.isEmpty()) {
+            final ParseTree node = stack.remove(stack.size() - 1);
+            if (node instanceof TerminalNode) {
+                typeReference(number, ((TerminalNode) node).getSymbol());
+                continue;
+            }
+
+            if (node instanceof PlPgSqlParser.VarExprContext) {
+                nameReference(number, (PlPgSqlParser.VarExprContext) node, symbols);
+            } else if (node instanceof PlPgSqlParser.InsertColumnContext) {
+                final PlPgSqlParser.InsertContext insert = (PlPgSqlParser.InsertContext) ((ParserRuleContext) node)
+                        .getParent().getParent();
+                columnReference(number, insert.table.getText(), ((PlPgSqlParser.InsertColumnContext) node).column,
+                    Reference.INSERT_COLUMN);
+            } else if (node instanceof PlPgSqlParser.UpdateSingleSetAssignmentContext) {
+                updateReference(number, (ParserRuleContext) node,
+                    ((PlPgSqlParser.UpdateSingleSetAssignmentContext) node).column);
+            } else if (node instanceof PlPgSqlParser.UpdateMultiSetColumnContext) {
+                updateReference(number, (ParserRuleContext) node,
+                    ((PlPgSqlParser.UpdateMultiSetColumnContext) node).column);
+            } else if (node instanceof PlPgSqlParser.SelectAllContext
+                    || node instanceof PlPgSqlParser.ReturningAllContext) {
+                final ParserRuleContext all = (ParserRuleContext) node;
+                for (final Token[] table : queryTables(all, true)) {
+                    reference(number, table[0].getText(), ALL, Reference.ALL_COLUMNS, all.getStart());
+                }
+            }
+
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                stack.add(node.getChild(i));
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds all functions of a unit.
+     */
+    public ImpactAnalysis addAll(final ParseTree unit) {
+        for (final PlPgSqlParser.PlFunctionContext function : FunctionExecutor.functions(unit)) {
+            add(function);
+        }
+
+        return this;
+    }
+
+    public CallGraph getCallGraph() {
+        return calls;
+    }
+
+    public TableIndex getTableIndex() {
+        return tables;
+    }
+
+    /**
+     * @return  the functions accessing the table or any of its columns and their callers
+     */
+    public Impact ofTable(final String table) {
+        final List<Usage> usages = new ArrayList<Usage>();
+        for (final int access : tables.getAccesses(table)) {
+            usages.add(new Usage(tables.getFunctionName(tables.getFunction(access)), Reference.TABLE,
+                    tables.getLine(access), tables.getColumn(access)));
+        }
+
+        for (final String key : keys(table)) {
+            addUsages(tablePostings.get(key), usages);
+        }
+
+        return impact(usages);
+    }
+
+    /**
+     * @return  the functions referencing the column, including references of all columns of its table, and their
+     *          callers
+     */
+    public Impact ofColumn(final String table, final String column) {
+        final List<Usage> usages = new ArrayList<Usage>();
+        for (final String key : keys(table)) {
+            addUsages(columnPostings.get(key + '.' + SymbolPool.fold(column)), usages);
+            addUsages(columnPostings.get(key + '.' + ALL), usages);
+        }
+
+        return impact(usages);
+    }
+
+    private Impact impact(final List<Usage> usages) {
+        final SortedSet<String> direct = new TreeSet<String>();
+        final BitSet reached = new BitSet();
+        final IntList queue = new IntList();
+        for (final Usage usage : usages) {
+            direct.add(usage.function);
+
+            final int node = calls.getNode(usage.function);
+            if (!reached.get(node)) {
+                reached.set(node);
+                queue.add(node);
+            }
+        }
+
+        final SortedSet<String> callers = new TreeSet<String>();
+        while (queue.size() > 0) {
+            for (final int caller : calls.getCallers(queue.removeLast())) {
+                if (!reached.get(caller)) {
+                    reached.set(caller);
+                    queue.add(caller);
+                    callers.add(calls.getName(caller));
+                }
+            }
+        }
+
+        callers.removeAll(direct);
+        Collections.sort(usages, USAGE_ORDER);
+        return new Impact(usages, direct, callers);
+    }
+
+    private void addUsages(final IntList postings, final List<Usage> usages) {
+        if (postings == null) {
+            return;
+        }
+
+        for (int i = 0; i < postings.size(); i++) {
+            final int reference = postings.get(i);
+            usages.add(new Usage(tables.getFunctionName(functions.get(reference)), REFERENCES[kinds.get(reference)],
+                    lines.get(reference), columns.get(reference)));
+        }
+    }
+
+    /**
+     * @return  the folded table name and, if it is qualified, the unqualified one
+     */
+    private static List<String> keys(final String table) {
+        final String name = SymbolPool.fold(table);
+        final int dot = name.lastIndexOf('.');
+        final List<String> keys = new ArrayList<String>(2);
+        keys.add(name);
+        if (dot >= 0) {
+            keys.add(name.substring(dot + 1));
+        }
+
+        return keys;
+    }
+
+    /**
+     * {@code table.column%TYPE} and {@code table%ROWTYPE}, a {@code %TYPE} of a plain name is the type of a variable.
+     */
+    private void typeReference(final int function, final Token token) {
+        final String text = token.getText();
+        if (token.getType() == PlPgSqlLexer.COPY_TYPE) {
+            final String name = text.substring(0, text.indexOf('%'));
+            final int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                reference(function, name.substring(0, dot), name.substring(dot + 1), Reference.TYPE, token);
+            }
+        } else if (token.getType() == PlPgSqlLexer.ROW_TYPE) {
+            reference(function, text.substring(0, text.indexOf('%')), ALL, Reference.ROW_TYPE, token);
+        }
+    }
+
+    private void nameReference(final int function, final PlPgSqlParser.VarExprContext name,
+            final SymbolTable symbols) {
+        if (name.ANONYMOUS_PARAMETER() != null || symbols.resolve(name) != SymbolTable.NONE
+                || !(name.getParent() instanceof PlPgSqlParser.VariableExpressionContext)) {
+            return;
+        }
+
+        final String text = name.getText();
+        final int dot = text.indexOf('.');
+        if (dot < 0) {
+            for (final Token[] table : queryTables(name, true)) {
+                reference(function, table[0].getText(), text, Reference.UNQUALIFIED_NAME, name.getStart());
+            }
+
+            return;
+        }
+
+        final String qualifier = SymbolPool.fold(text.substring(0, dot));
+        for (final Token[] table : queryTables(name, false)) {
+            final String tableName = SymbolPool.fold(table[0].getText());
+            if (table[1] != null ? SymbolPool.fold(table[1].getText()).equals(qualifier)
+                                 : tableName.substring(tableName.lastIndexOf('.') + 1).equals(qualifier)) {
+                reference(function, table[0].getText(), text.substring(dot + 1), Reference.QUALIFIED_NAME,
+                    name.getStart());
+                return;
+            }
+        }
+    }
+
+    private void updateReference(final int function, final ParserRuleContext assignment, final Token column) {
+        ParserRuleContext update = assignment;
+        while (!(update instanceof PlPgSqlParser.UpdateContext)) {
+            update = update.getParent();
+        }
+
+        columnReference(function, ((PlPgSqlParser.UpdateContext) update).table.getText(), column,
+            Reference.UPDATE_COLUMN);
+    }
+
+    private void columnReference(final int function, final String table, final Token column,
+            final Reference reference) {
+        final String name = column.getText();
+        reference(function, table, name.substring(name.lastIndexOf('.') + 1), reference, column);
+    }
+
+    private void reference(final int function, final String table, final String column, final Reference reference,
+            final Token position) {
+        final String tableName = SymbolPool.fold(table);
+        final int id = functions.size();
+        postings(columnPostings, tableName + '.' + SymbolPool.fold(column)).add(id);
+        postings(tablePostings, tableName).add(id);
+        functions.add(function);
+        kinds.add(reference.ordinal());
+        lines.add(position.getLine());
+        columns.add(position.getCharPositionInLine());
+    }
+
+    private static IntList postings(final Map<String, IntList> index, final String key) {
+        IntList postings = index.get(key);
+        if (postings == null) {
+            postings = new IntList();
+            index.put(key, postings);
+        }
+
+        return postings;
+    }
+
+    /**
+     * @param   innermost  whether to stop at the innermost query with tables
+     *
+     * @return  the name and alias tokens of the tables of the queries around the node, innermost first
+     */
+    private static List<Token[]> queryTables(final ParserRuleContext node, final boolean innermost) {
+        final List<Token[]> result = new ArrayList<Token[]>();
+        for (ParserRuleContext query = node; query != null && !(query instanceof PlPgSqlParser.StmtContext);
+                query = query.getParent()) {
+            final int size = result.size();
+            if (query instanceof PlPgSqlParser.UpdateContext) {
+                final PlPgSqlParser.UpdateContext update = (PlPgSqlParser.UpdateContext) query;
+                result.add(new Token[] { update.table, update.tableAliasName });
+            } else if (query instanceof PlPgSqlParser.DeleteContext) {
+                final PlPgSqlParser.DeleteContext delete = (PlPgSqlParser.DeleteContext) query;
+                result.add(new Token[] { delete.table, delete.tableAliasName });
+                if (delete.deleteUsingClause() != null) {
+                    for (final PlPgSqlParser.DeleteUsingTableContext using
+                            : delete.deleteUsingClause().deleteUsingTable()) {
+                        result.add(new Token[] { using.tableName, null });
+                    }
+                }
+            } else if (query instanceof PlPgSqlParser.InsertContext) {
+                result.add(new Token[] { ((PlPgSqlParser.InsertContext) query).table, null });
+            } else if (!(query instanceof PlPgSqlParser.SelectContext)
+                    && !(query instanceof PlPgSqlParser.PerformStmtContext)) {
+                continue;
+            }
+
+            TableIndex.fromTables(query, result);
+            if (innermost && result.size() > size) {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * A reference of a table or column in a function.
+     */
+    public static final class Usage {
+        private final String function;
+        private final Reference reference;
+        private final int line;
+        private final int column;
+
+        Usage(final String function, final Reference reference, final int line, final int column) {
+            this.function = function;
+            this.reference = reference;
+            this.line = line;
+            this.column = column;
+        }
+
+        /**
+         * @return  the folded function name
+         */
+        public String getFunction() {
+            return function;
+        }
+
+        public Reference getReference() {
+            return reference;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        @Override
+        public String toString() {
+            return reference + " in " + function + " at " + line + ':' + column;
+        }
+    }
+
+    /**
+     * The result of an analysis.
+     */
+    public static final class Impact {
+        private final List<Usage> usages;
+        private final SortedSet<String> functions;
+        private final SortedSet<String> callers;
+
+        Impact(final List<Usage> usages, final SortedSet<String> functions, final SortedSet<String> callers) {
+            this.usages = Collections.unmodifiableList(usages);
+            this.functions = Collections.unmodifiableSortedSet(functions);
+            this.callers = Collections.unmodifiableSortedSet(callers);
+        }
+
+        /**
+         * @return  the references, ordered by function and position
+         */
+        public List<Usage> getUsages() {
+            return usages;
+        }
+
+        /**
+         * @return  the functions with references
+         */
+        public SortedSet<String> getFunctions() {
+            return functions;
+        }
+
+        /**
+         * @return  the functions without references that eventually call a function with references
+         */
+        public SortedSet<String> getCallers() {
+            return callers;
+        }
+
+        /**
+         * @return  the functions with references and their callers
+         */
+        public SortedSet<String> getAffectedFunctions() {
+            final SortedSet<String> affected = new TreeSet<String>(functions);
+            affected.addAll(callers);
+            return Collections.unmodifiableSortedSet(affected);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.Arrays;
+
+/**
+ * Growable int array for intermediate results of the analyses.
+ */
+final class IntList {
+    private int[] values = new int[16];
+    private int size;
+
+    void add(final int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+
+        values[size++] = value;
+    }
+
+    int get(final int index) {
+        return values[index];
+    }
+
+    void set(final int index, final int value) {
+        values[index] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int removeLast() {
+        return values[--size];
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    int[] sorted() {
+        final int[] sorted = toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+}
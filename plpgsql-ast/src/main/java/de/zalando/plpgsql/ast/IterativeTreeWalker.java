@@ -0,0 +1,69 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.Arrays;
+
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.RuleNode;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * {@link ParseTreeWalker} that keeps the path to the current node on an explicit stack instead of the call stack, so
+ * the depth of the tree is not limited by the thread's stack size. Listeners see the same events in the same order as
+ * with {@link ParseTreeWalker#DEFAULT}.
+ */
+public class IterativeTreeWalker extends ParseTreeWalker {
+
+    public static final IterativeTreeWalker DEFAULT = new IterativeTreeWalker();
+
+    private static final int INITIAL_DEPTH = 64;
+
+    @Override
+    public void walk(final ParseTreeListener listener, final ParseTree t) {
+        if (!(t instanceof RuleNode)) {
+            visitLeaf(listener, t);
+            return;
+        }
+
+        // the rule nodes on the path from the root and the index of the next child to visit for each of them
+        RuleNode[] nodes = new RuleNode[INITIAL_DEPTH];
+        int[] next = new int[INITIAL_DEPTH];
+        int top = 0;
+
+        nodes[0] = (RuleNode) t;
+        enterRule(listener, nodes[0]);
+        while (top >= 0) {
+            final RuleNode node = nodes[top];
+            if (next[top] == node.getChildCount()) {
+                exitRule(listener, node);
+                nodes[top--] = null;
+                continue;
+            }
+
+            final ParseTree child = node.getChild(next[top]++);
+            if (!(child instanceof RuleNode)) {
+                visitLeaf(listener, child);
+                continue;
+            }
+
+            if (++top == nodes.length) {
+                nodes = Arrays.copyOf(nodes, top * 2);
+                next = Arrays.copyOf(next, top * 2);
+            }
+
+            nodes[top] = (RuleNode) child;
+            next[top] = 0;
+            enterRule(listener, nodes[top]);
+        }
+    }
+
+    private static void visitLeaf(final ParseTreeListener listener, final ParseTree t) {
+        if (t instanceof ErrorNode) {
+            listener.visitErrorNode((ErrorNode) t);
+        } else if (t instanceof TerminalNode) {
+            listener.visitTerminal((TerminalNode) t);
+        }
+    }
+}
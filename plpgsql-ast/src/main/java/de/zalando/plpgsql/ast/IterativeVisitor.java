@@ -0,0 +1,125 @@
+package de.zalando.plpgsql.ast;
+
+import java.lang.reflect.Method;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.RuleNode;
+
+/**
+ * {@link PlPgSqlBaseVisitor} whose {@link #visitChildren(RuleNode)} walks the subtree with an explicit stack. Nodes
+ * whose visit method is not overridden would only call {@code visitChildren} again, so they are handled inside the
+ * loop with the same {@link #defaultResult()}, {@link #aggregateResult(Object, Object)} and
+ * {@link #shouldVisitNextChild(RuleNode, Object)} calls as the recursive implementation.
+ *
+ * <p/>Overridden visit methods are still called through {@code accept}, so the call stack only grows with the number
+ * of nested nodes the visitor actually handles, not with the depth of the tree.
+ */
+public class IterativeVisitor<T> extends PlPgSqlBaseVisitor<T> {
+
+    private static final ConcurrentMap<Class<?>, Set<Class<?>>> HANDLED =
+        new ConcurrentHashMap<Class<?>, Set<Class<?>>>();
+
+    /**
+     * Marks visitor classes that override {@code visitChildren}, every node is dispatched for them.
+     */
+    private static final Set<Class<?>> DISPATCH_ALL = Collections.unmodifiableSet(new HashSet<Class<?>>());
+
+    private static final int INITIAL_DEPTH = 64;
+
+    private final Set<Class<?>> handled = handledContexts(getClass());
+
+    private static Set<Class<?>> handledContexts(final Class<?> type) {
+        Set<Class<?>> contexts = HANDLED.get(type);
+        if (contexts == null) {
+            contexts = scan(type);
+
+            final Set<Class<?>> previous = HANDLED.putIfAbsent(type, contexts);
+            if (previous != null) {
+                contexts = previous;
+            }
+        }
+
+        return contexts;
+    }
+
+    /**
+     * @return  the context classes for which the visitor class overrides the visit method
+     */
+    private static Set<Class<?>> scan(final Class<?> type) {
+        final Set<Class<?>> contexts = new HashSet<Class<?>>();
+        for (Class<?> c = type; c != IterativeVisitor.class; c = c.getSuperclass()) {
+            for (final Method method : c.getDeclaredMethods()) {
+                final Class<?>[] parameters = method.getParameterTypes();
+                if (method.isSynthetic() || parameters.length != 1) {
+                    continue;
+                }
+
+                if (method.getName().equals("visitChildren")) {
+                    return DISPATCH_ALL;
+                }
+
+                if (method.getName().startsWith("visit") && ParserRuleContext.class.isAssignableFrom(parameters[0])) {
+                    contexts.add(parameters[0]);
+                }
+            }
+        }
+
+        return contexts;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T visitChildren(final RuleNode node) {
+        if (handled == DISPATCH_ALL) {
+            return super.visitChildren(node);
+        }
+
+        // the rule nodes on the path from node, their next child and the result aggregated so far
+        RuleNode[] nodes = new RuleNode[INITIAL_DEPTH];
+        int[] next = new int[INITIAL_DEPTH];
+        Object[] results = new Object[INITIAL_DEPTH];
+        int top = 0;
+
+        nodes[0] = node;
+        results[0] = defaultResult();
+        while (true) {
+            final RuleNode current = nodes[top];
+            final T result = (T) results[top];
+            if (next[top] < current.getChildCount() && shouldVisitNextChild(current, result)) {
+                final ParseTree child = current.getChild(next[top]++);
+                if (!(child instanceof RuleNode) || handled.contains(child.getClass())) {
+                    results[top] = aggregateResult(result, child.accept(this));
+                    continue;
+                }
+
+                if (++top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, top * 2);
+                    next = Arrays.copyOf(next, top * 2);
+                    results = Arrays.copyOf(results, top * 2);
+                }
+
+                nodes[top] = (RuleNode) child;
+                next[top] = 0;
+                results[top] = defaultResult();
+                continue;
+            }
+
+            if (top == 0) {
+                return result;
+            }
+
+            nodes[top] = null;
+            results[top] = null;
+            top--;
+            results[top] = aggregateResult((T) results[top], result);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package de.zalando.plpgsql.ast;
+
+import java.lang.reflect.Method;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+
+/**
+ * The rules a listener class handles, derived once per class from the methods it overrides in
+ * {@link PlPgSqlBaseListener}. Listeners that do not extend the base listener are assumed to handle everything.
+ */
+final class ListenerProfile {
+
+    private static final ConcurrentMap<Class<?>, ListenerProfile> PROFILES =
+        new ConcurrentHashMap<Class<?>, ListenerProfile>();
+
+    private static final Map<String, Integer> RULES_BY_CONTEXT = rulesByContext();
+
+    private static final int RULES = PlPgSqlParser.ruleNames.length;
+
+    final boolean[] enter = new boolean[RULES];
+    final boolean[] exit = new boolean[RULES];
+    final boolean[] descend = new boolean[RULES];
+    final BitSet handled = new BitSet(RULES);
+    boolean everyRule;
+    boolean terminals;
+    boolean errorNodes;
+
+    private ListenerProfile() { }
+
+    private static Map<String, Integer> rulesByContext() {
+        final Map<String, Integer> rules = new HashMap<String, Integer>();
+        for (int rule = 0; rule < PlPgSqlParser.ruleNames.length; rule++) {
+            final String name = PlPgSqlParser.ruleNames[rule];
+            rules.put(Character.toUpperCase(name.charAt(0)) + name.substring(1) + "Context", rule);
+        }
+
+        return rules;
+    }
+
+    static ListenerProfile of(final Class<? extends ParseTreeListener> type) {
+        ListenerProfile profile = PROFILES.get(type);
+        if (profile == null) {
+            profile = PlPgSqlBaseListener.class.isAssignableFrom(type) ? build(type) : all();
+
+            final ListenerProfile previous = PROFILES.putIfAbsent(type, profile);
+            if (previous != null) {
+                profile = previous;
+            }
+        }
+
+        return profile;
+    }
+
+    private static ListenerProfile all() {
+        final ListenerProfile profile = new ListenerProfile();
+        profile.handled.set(0, RULES);
+        profile.everyRule = true;
+        profile.terminals = true;
+        profile.errorNodes = true;
+        for (int rule = 0; rule < RULES; rule++) {
+            profile.enter[rule] = true;
+            profile.exit[rule] = true;
+            profile.descend[rule] = true;
+        }
+
+        return profile;
+    }
+
+    private static ListenerProfile build(final Class<?> type) {
+        final ListenerProfile profile = new ListenerProfile();
+        for (Class<?> c = type; c != PlPgSqlBaseListener.class; c = c.getSuperclass()) {
+            for (final Method method : c.getDeclaredMethods()) {
+                if (method.isSynthetic() || method.getParameterTypes().length != 1) {
+                    continue;
+                }
+
+                final String name = method.getName();
+                if (name.equals("enterEveryRule") || name.equals("exitEveryRule")) {
+                    profile.everyRule = true;
+                } else if (name.equals("visitTerminal")) {
+                    profile.terminals = true;
+                } else if (name.equals("visitErrorNode")) {
+                    profile.errorNodes = true;
+                } else if (name.startsWith("enter") || name.startsWith("exit")) {
+                    final int rule = ruleOf(method.getParameterTypes()[0]);
+                    if (rule >= 0) {
+                        profile.handled.set(rule);
+                        if (name.startsWith("enter")) {
+                            profile.enter[rule] = true;
+                        } else {
+                            profile.exit[rule] = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        final boolean everything = profile.everyRule || profile.terminals || profile.errorNodes;
+        for (int rule = 0; rule < RULES; rule++) {
+            profile.descend[rule] = everything || RuleGraph.canContainAny(rule, profile.handled);
+        }
+
+        return profile;
+    }
+
+    /**
+     * @return  the rule of a context class, labeled alternatives map to the rule of their super class
+     */
+    private static int ruleOf(final Class<?> contextType) {
+        for (Class<?> c = contextType; c != null && ParserRuleContext.class.isAssignableFrom(c);
+                c = c.getSuperclass()) {
+            if (c.getEnclosingClass() == PlPgSqlParser.class && RULES_BY_CONTEXT.containsKey(c.getSimpleName())) {
+                return RULES_BY_CONTEXT.get(c.getSimpleName());
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,227 @@
+package de.zalando.plpgsql.ast;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Zero-copy {@link FlatTree} view of a record inside a memory-mapped {@link FlatTreeStore} segment.
+ *
+ * <p/>Record layout (little endian, 4 byte aligned):
+ *
+ * <pre>
+ * int magic, int recordLength, int keyLength, int nodeCount, int tokenCount, int sourceLength
+ * byte[keyLength] key (UTF-8)
+ * int[nodeCount] rule, parent, firstChild, nextSibling, tokenStart, tokenStop, startOffset, stopOffset
+ * int[tokenCount] tokenType, tokenLine, tokenColumn
+ * char[sourceLength] source
+ * </pre>
+ */
+final class MappedFlatTree extends FlatTree {
+
+    static final int RECORD_MAGIC = 0x46545231; // FTR1
+
+    static final int HEADER_SIZE = 6 * 4;
+
+    private static final int NODE_COLUMNS = 8;
+
+    private static final int TOKEN_COLUMNS = 3;
+
+    private final IntBuffer ints;
+    private final CharBuffer source;
+    private final int nodeCount;
+    private final int tokenCount;
+
+    MappedFlatTree(final ByteBuffer segment, final int recordOffset) {
+        final ByteBuffer record = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        record.position(recordOffset);
+
+        final int magic = record.getInt();
+        if (magic != RECORD_MAGIC) {
+            throw new IllegalStateException("no flat tree record at offset " + recordOffset);
+        }
+
+        record.getInt();
+
+        final int keyLength = record.getInt();
+        nodeCount = record.getInt();
+        tokenCount = record.getInt();
+
+        final int sourceLength = record.getInt();
+        final int intsOffset = recordOffset + HEADER_SIZE + align(keyLength);
+        final int intsLength = 4 * (NODE_COLUMNS * nodeCount + TOKEN_COLUMNS * tokenCount);
+
+        ints = slice(segment, intsOffset, intsLength).asIntBuffer();
+        source = slice(segment, intsOffset + intsLength, 2 * sourceLength).asCharBuffer();
+    }
+
+    static int recordLength(final int keyLength, final int nodeCount, final int tokenCount, final int sourceLength) {
+        return HEADER_SIZE + align(keyLength) + 4 * (NODE_COLUMNS * nodeCount + TOKEN_COLUMNS * tokenCount)
+                + align(2 * sourceLength);
+    }
+
+    static void write(final ByteBuffer out, final byte[] key, final FlatTree tree) {
+        final int nodes = tree.size();
+        final int tokens = tree.getTokenCount();
+        final CharSequence text = tree.getSource();
+        final int start = out.position();
+
+        out.putInt(RECORD_MAGIC);
+        out.putInt(recordLength(key.length, nodes, tokens, text.length()));
+        out.putInt(key.length);
+        out.putInt(nodes);
+        out.putInt(tokens);
+        out.putInt(text.length());
+        out.put(key);
+        pad(out);
+
+        for (int i = 0; i < nodes; i++) {
+            out.putInt(tree.getRuleIndex(i));
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            out.putInt(tree.getParent(i));
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            out.putInt(tree.getFirstChild(i));
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            out.putInt(tree.getNextSibling(i));
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            out.putInt(tree.getTokenStart(i));
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            out.putInt(tree.getTokenStop(i));
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            out.putInt(tree.getStartOffset(i));
+        }
+
+        for (int i = 0; i < nodes; i++) {
+            out.putInt(tree.getStopOffset(i));
+        }
+
+        for (int i = 0; i < tokens; i++) {
+            out.putInt(tree.getTokenTypeAt(i));
+        }
+
+        for (int i = 0; i < tokens; i++) {
+            out.putInt(tree.getTokenLine(i));
+        }
+
+        for (int i = 0; i < tokens; i++) {
+            out.putInt(tree.getTokenColumn(i));
+        }
+
+        for (int i = 0; i < text.length(); i++) {
+            out.putChar(text.charAt(i));
+        }
+
+        pad(out);
+
+        assert out.position() - start == recordLength(key.length, nodes, tokens, text.length());
+    }
+
+    static String readKey(final ByteBuffer segment, final int recordOffset) {
+        final ByteBuffer record = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final byte[] key = new byte[record.getInt(recordOffset + 8)];
+        record.position(recordOffset + HEADER_SIZE);
+        record.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer slice(final ByteBuffer segment, final int offset, final int length) {
+        final ByteBuffer slice = segment.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int align(final int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static void pad(final ByteBuffer out) {
+        while ((out.position() & 3) != 0) {
+            out.put((byte) 0);
+        }
+    }
+
+    @Override
+    public int size() {
+        return nodeCount;
+    }
+
+    @Override
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    @Override
+    public CharSequence getSource() {
+        return source;
+    }
+
+    @Override
+    public int getRuleIndex(final int node) {
+        return ints.get(node);
+    }
+
+    @Override
+    public int getParent(final int node) {
+        return ints.get(nodeCount + node);
+    }
+
+    @Override
+    public int getFirstChild(final int node) {
+        return ints.get(2 * nodeCount + node);
+    }
+
+    @Override
+    public int getNextSibling(final int node) {
+        return ints.get(3 * nodeCount + node);
+    }
+
+    @Override
+    public int getTokenStart(final int node) {
+        return ints.get(4 * nodeCount + node);
+    }
+
+    @Override
+    public int getTokenStop(final int node) {
+        return ints.get(5 * nodeCount + node);
+    }
+
+    @Override
+    public int getStartOffset(final int node) {
+        return ints.get(6 * nodeCount + node);
+    }
+
+    @Override
+    public int getStopOffset(final int node) {
+        return ints.get(7 * nodeCount + node);
+    }
+
+    @Override
+    public int getTokenTypeAt(final int token) {
+        return ints.get(NODE_COLUMNS * nodeCount + token);
+    }
+
+    @Override
+    public int getTokenLine(final int token) {
+        return ints.get(NODE_COLUMNS * nodeCount + tokenCount + token);
+    }
+
+    @Override
+    public int getTokenColumn(final int token) {
+        return ints.get(NODE_COLUMNS * nodeCount + 2 * tokenCount + token);
+    }
+}
@@ -0,0 +1,137 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimated retained bytes of a {@link ParseResult}, by category and, for rule contexts, by rule.
+ *
+ * @see  MemoryEstimator
+ */
+public final class MemoryEstimate {
+
+    public enum Category {
+
+        /**
+         * Rule contexts and their child lists.
+         */
+        CONTEXTS,
+
+        /**
+         * Terminal nodes of the tree, without their tokens.
+         */
+        TERMINALS,
+
+        TOKENS,
+
+        /**
+         * The token stream and its token list.
+         */
+        TOKEN_STREAM,
+
+        /**
+         * Texts explicitly stored in tokens, most tokens read their text from the input instead.
+         */
+        STRINGS,
+
+        /**
+         * The input stream and its char buffer.
+         */
+        CHAR_BUFFER,
+
+        /**
+         * Objects retained through the tokens, like the lexer.
+         */
+        OTHER
+    }
+
+    private final Map<Category, Long> bytes = new EnumMap<Category, Long>(Category.class);
+    private final long[] ruleBytes = new long[PlPgSqlParser.ruleNames.length];
+    private final int[] ruleCounts = new int[PlPgSqlParser.ruleNames.length];
+    private final boolean exact;
+
+    MemoryEstimate(final boolean exact) {
+        this.exact = exact;
+        for (final Category category : Category.values()) {
+            bytes.put(category, 0L);
+        }
+    }
+
+    void add(final Category category, final long size) {
+        bytes.put(category, bytes.get(category) + size);
+    }
+
+    void addRule(final int ruleIndex, final long size) {
+        ruleBytes[ruleIndex] += size;
+        ruleCounts[ruleIndex]++;
+        add(Category.CONTEXTS, size);
+    }
+
+    /**
+     * @return  whether every object was inspected, {@code false} for the estimates of
+     *          {@link MemoryEstimator#estimateQuick(ParseResult)}
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (final long size : bytes.values()) {
+            total += size;
+        }
+
+        return total;
+    }
+
+    public long getBytes(final Category category) {
+        return bytes.get(category);
+    }
+
+    public long getRuleBytes(final int ruleIndex) {
+        return ruleBytes[ruleIndex];
+    }
+
+    public int getRuleCount(final int ruleIndex) {
+        return ruleCounts[ruleIndex];
+    }
+
+    /**
+     * @return  the indexes of all rules with contexts, largest first
+     */
+    public List<Integer> getRulesBySize() {
+        final List<Integer> rules = new ArrayList<Integer>();
+        for (int rule = 0; rule < ruleCounts.length; rule++) {
+            if (ruleCounts[rule] > 0) {
+                rules.add(rule);
+            }
+        }
+
+        Collections.sort(rules, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer a, final Integer b) {
+                    return Long.compare(ruleBytes[b], ruleBytes[a]);
+                }
+            });
+        return rules;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(getTotalBytes()).append(" bytes ").append(bytes);
+
+        final List<Integer> rules = getRulesBySize();
+        builder.append(", largest rules {");
+        for (int i = 0; i < Math.min(5, rules.size()); i++) {
+            final int rule = rules.get(i);
+            builder.append(i == 0 ? "" : ", ").append(PlPgSqlParser.ruleNames[rule]).append('=').append(ruleBytes[rule]);
+        }
+
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,286 @@
+package de.zalando.plpgsql.ast;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates the heap retained by a {@link ParseResult} without a heap dump. Shallow object sizes are derived from the
+ * declared fields of each class, assuming the HotSpot layout: a 12 byte header with compressed oops (16 without),
+ * 4 or 8 byte references and 8 byte alignment. Collection internals that cannot be inspected, like the capacity of
+ * an {@link ArrayList}, are modelled after the way ANTLR fills them.
+ *
+ * <p/>{@link #estimate(ParseResult)} visits every context, token and the lexer reachable through the tokens.
+ * {@link #estimateQuick(ParseResult)} only counts nodes and multiplies by cached shallow sizes, it allocates nothing
+ * per node and is meant to be sampled in production.
+ */
+public final class MemoryEstimator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemoryEstimator.class);
+
+    private static final Field TOKEN_TEXT = accessibleField(CommonToken.class, "text");
+    private static final Field INPUT_DATA = accessibleField(ANTLRInputStream.class, "data");
+    private static final Field LIST_DATA = accessibleField(ArrayList.class, "elementData");
+
+    private final boolean compressedOops;
+    private final int referenceSize;
+    private final int headerSize;
+    private final ConcurrentMap<Class<?>, Long> shallowSizes = new ConcurrentHashMap<Class<?>, Long>();
+
+    /**
+     * Assumes compressed oops if the maximum heap is below 32 GB.
+     */
+    public MemoryEstimator() {
+        this(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax() < 32L << 30);
+    }
+
+    public MemoryEstimator(final boolean compressedOops) {
+        this.compressedOops = compressedOops;
+        this.referenceSize = compressedOops ? 4 : 8;
+        this.headerSize = compressedOops ? 12 : 16;
+    }
+
+    private static Field accessibleField(final Class<?> type, final String name) {
+        try {
+            final Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            LOGGER.info("cannot access {}.{}, estimates will be less precise", type.getName(), name);
+            return null;
+        }
+    }
+
+    public boolean isCompressedOops() {
+        return compressedOops;
+    }
+
+    public MemoryEstimate estimate(final ParseResult result) {
+        final MemoryEstimate estimate = new MemoryEstimate(true);
+        final Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+
+        addInput(estimate, result);
+        estimate.add(MemoryEstimate.Category.TOKEN_STREAM, shallowSize(result.getTokens().getClass()));
+
+        final List<Token> tokens = result.getTokens().getTokens();
+        estimate.add(MemoryEstimate.Category.TOKEN_STREAM, arrayListSize(tokens));
+        for (final Token token : tokens) {
+            addToken(estimate, token, seen);
+        }
+
+        final Deque<ParseTree> stack = new ArrayDeque<ParseTree>();
+        stack.push(result.getTree());
+        while (!stack.isEmpty()) {
+            final ParseTree node = stack.pop();
+            if (node instanceof TerminalNode) {
+                estimate.add(MemoryEstimate.Category.TERMINALS, shallowSize(node.getClass()));
+
+                // tokens conjured by error recovery are not part of the stream
+                addToken(estimate, ((TerminalNode) node).getSymbol(), seen);
+                continue;
+            }
+
+            final ParserRuleContext context = (ParserRuleContext) node;
+            estimate.addRule(context.getRuleIndex(), shallowSize(context.getClass()) + childListSize(context));
+            for (int i = 0; i < context.getChildCount(); i++) {
+                stack.push(context.getChild(i));
+            }
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Estimates from node and token counts only. Explicit token texts and objects retained through the tokens are not
+     * inspected, so the result is a lower bound of {@link #estimate(ParseResult)}.
+     */
+    public MemoryEstimate estimateQuick(final ParseResult result) {
+        final MemoryEstimate estimate = new MemoryEstimate(false);
+        addInput(estimate, result);
+
+        final List<Token> tokens = result.getTokens().getTokens();
+        estimate.add(MemoryEstimate.Category.TOKEN_STREAM,
+            shallowSize(result.getTokens().getClass()) + arrayListSize(tokens));
+        if (!tokens.isEmpty()) {
+            estimate.add(MemoryEstimate.Category.TOKENS, tokens.size() * shallowSize(tokens.get(0).getClass()));
+        }
+
+        final long terminalSize = shallowSize(TerminalNodeImpl.class);
+        final Deque<ParserRuleContext> stack = new ArrayDeque<ParserRuleContext>();
+        stack.push(result.getTree());
+        while (!stack.isEmpty()) {
+            final ParserRuleContext context = stack.pop();
+            estimate.addRule(context.getRuleIndex(), shallowSize(context.getClass()) + childListSize(context));
+            for (int i = 0; i < context.getChildCount(); i++) {
+                final ParseTree child = context.getChild(i);
+                if (child instanceof ParserRuleContext) {
+                    stack.push((ParserRuleContext) child);
+                } else {
+                    estimate.add(MemoryEstimate.Category.TERMINALS, terminalSize);
+                }
+            }
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Estimates a cache entry that holds a {@link FlatTree} built by {@link FlatTree#flatten(ParserRuleContext)}.
+     */
+    public long estimate(final FlatTree tree) {
+        final long columns = 8 * arraySize(4, tree.size()) + 3 * arraySize(4, tree.getTokenCount());
+        return shallowSize(tree.getClass()) + columns + arraySize(2, tree.getSource().length());
+    }
+
+    /**
+     * @return  the size of an instance of the class, without anything it references
+     */
+    public long shallowSize(final Class<?> type) {
+        Long size = shallowSizes.get(type);
+        if (size == null) {
+            long fields = 0;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (final Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        fields += fieldSize(field.getType());
+                    }
+                }
+            }
+
+            size = align(headerSize + fields);
+            shallowSizes.put(type, size);
+        }
+
+        return size;
+    }
+
+    public long arraySize(final int elementSize, final int length) {
+        return align(headerSize + 4 + (long) elementSize * length);
+    }
+
+    private void addInput(final MemoryEstimate estimate, final ParseResult result) {
+        estimate.add(MemoryEstimate.Category.CHAR_BUFFER, shallowSize(result.getInput().getClass()));
+
+        char[] data = null;
+        if (INPUT_DATA != null && result.getInput() instanceof ANTLRInputStream) {
+            try {
+                data = (char[]) INPUT_DATA.get(result.getInput());
+            } catch (IllegalAccessException e) {
+                LOGGER.debug("cannot read input buffer", e);
+            }
+        }
+
+        estimate.add(MemoryEstimate.Category.CHAR_BUFFER,
+            arraySize(2, data == null ? result.getInput().size() : data.length));
+    }
+
+    private void addToken(final MemoryEstimate estimate, final Token token, final Map<Object, Boolean> seen) {
+        if (seen.put(token, Boolean.TRUE) != null) {
+            return;
+        }
+
+        estimate.add(MemoryEstimate.Category.TOKENS, shallowSize(token.getClass()));
+        if (!(token instanceof CommonToken)) {
+            return;
+        }
+
+        if (TOKEN_TEXT != null) {
+            try {
+                final String text = (String) TOKEN_TEXT.get(token);
+
+                // interned texts are shared, see SymbolPool
+                if (text != null && seen.put(text, Boolean.TRUE) == null) {
+                    estimate.add(MemoryEstimate.Category.STRINGS, stringSize(text));
+                }
+            } catch (IllegalAccessException e) {
+                LOGGER.debug("cannot read token text", e);
+            }
+        }
+
+        final Object tokenSource = token.getTokenSource();
+        if (tokenSource != null && seen.put(tokenSource, Boolean.TRUE) == null) {
+            estimate.add(MemoryEstimate.Category.OTHER, shallowSize(tokenSource.getClass()) + shallowSize(Pair.class));
+        }
+    }
+
+    private long childListSize(final ParserRuleContext context) {
+        final List<ParseTree> children = context.children;
+        if (children == null) {
+            return 0;
+        }
+
+        if (children instanceof ArrayList) {
+            return arrayListSize(children);
+        }
+
+        if (children.getClass() == Collections.singletonList(null).getClass()) {
+            return shallowSize(children.getClass());
+        }
+
+        return shallowSize(children.getClass()) + arraySize(referenceSize, children.size());
+    }
+
+    private long arrayListSize(final List<?> list) {
+        if (LIST_DATA != null && list instanceof ArrayList) {
+            try {
+                return shallowSize(ArrayList.class) + arraySize(referenceSize, ((Object[]) LIST_DATA.get(list)).length);
+            } catch (IllegalAccessException e) {
+                LOGGER.debug("cannot read list capacity", e);
+            }
+        }
+
+        // the capacity an ArrayList reaches when filled one by one
+        int capacity = 10;
+        while (capacity < list.size()) {
+            capacity += capacity >> 1;
+        }
+
+        return shallowSize(ArrayList.class) + arraySize(referenceSize, capacity);
+    }
+
+    private long stringSize(final String text) {
+        return shallowSize(String.class) + arraySize(2, text.length());
+    }
+
+    private int fieldSize(final Class<?> type) {
+        if (!type.isPrimitive()) {
+            return referenceSize;
+        }
+
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+
+        return type == char.class || type == short.class ? 2 : 1;
+    }
+
+    private static long align(final long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -0,0 +1,329 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.Arrays;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Dense preorder numbering of the rule and terminal nodes of a parse tree, the same numbering {@link FlatTree} uses.
+ * Analyses keep their per-node data in the primitive tables created by {@link #newIntTable()} and friends instead of
+ * identity hash maps. Since a subtree occupies the id range {@code [id, id + getSubtreeSize(id))}, ancestor checks are
+ * two comparisons.
+ *
+ * <p/>{@link #getId(ParseTree)} does not hash: nodes are bucketed by the index of their first token and ordered by the
+ * index of their last token within a bucket, so a binary search finds the few nodes spanning the same tokens (a chain
+ * of rules plus empty rules), which are compared by identity. Left-recursive chains like {@code a || b || c} start at
+ * the same token but end at different ones.
+ */
+public final class NodeIds {
+
+    private final ParseTree[] nodes;
+    private final int[] parent;
+    private final int[] subtreeSize;
+
+    // nodes grouped by start token index + 1 and ordered by stop token index + 1 within a group, CSR layout
+    private final int[] bucketOffsets;
+    private final int[] bucketIds;
+    private final int[] bucketStops;
+
+    private NodeIds(final ParseTree[] nodes, final int[] parent, final int[] subtreeSize, final int[] bucketOffsets,
+            final int[] bucketIds, final int[] bucketStops) {
+        this.nodes = nodes;
+        this.parent = parent;
+        this.subtreeSize = subtreeSize;
+        this.bucketOffsets = bucketOffsets;
+        this.bucketIds = bucketIds;
+        this.bucketStops = bucketStops;
+    }
+
+    /**
+     * Numbers all nodes below the root. The tree must not be modified afterwards.
+     */
+    public static NodeIds of(final ParserRuleContext root) {
+        ParseTree[] nodes = new ParseTree[64];
+        int[] parent = new int[64];
+        int size = 0;
+        int maxKey = 0;
+
+        ParseTree[] stack = new ParseTree[64];
+        int[] parents = new int[64];
+        int top = 0;
+        stack[top] = root;
+        parents[top++] = FlatTree.NONE;
+        while (top > 0) {
+            top--;
+
+            final ParseTree node = stack[top];
+            stack[top] = null;
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                parent = Arrays.copyOf(parent, size * 2);
+            }
+
+            final int id = size++;
+            nodes[id] = node;
+            parent[id] = parents[top];
+            maxKey = Math.max(maxKey, key(node));
+
+            final int childCount = node.getChildCount();
+            if (top + childCount > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + childCount));
+                parents = Arrays.copyOf(parents, stack.length);
+            }
+
+            for (int i = childCount - 1; i >= 0; i--) {
+                stack[top] = node.getChild(i);
+                parents[top++] = id;
+            }
+        }
+
+        // children have higher ids than their parents
+        final int[] subtreeSize = new int[size];
+        Arrays.fill(subtreeSize, 1);
+        for (int id = size - 1; id > 0; id--) {
+            subtreeSize[parent[id]] += subtreeSize[id];
+        }
+
+        final int[] bucketOffsets = new int[maxKey + 2];
+        for (int id = 0; id < size; id++) {
+            bucketOffsets[key(nodes[id]) + 1]++;
+        }
+
+        for (int key = 0; key <= maxKey; key++) {
+            bucketOffsets[key + 1] += bucketOffsets[key];
+        }
+
+        final int[] fill = Arrays.copyOf(bucketOffsets, maxKey + 1);
+        final int[] bucketIds = new int[size];
+        for (int id = 0; id < size; id++) {
+            bucketIds[fill[key(nodes[id])]++] = id;
+        }
+
+        // ids ascend within a bucket, the sort by stop keeps them ascending for equal stops
+        final int[] bucketStops = new int[size];
+        long[] sorted = new long[0];
+        for (int key = 0; key <= maxKey; key++) {
+            final int from = bucketOffsets[key];
+            final int length = bucketOffsets[key + 1] - from;
+            if (length > sorted.length) {
+                sorted = new long[length];
+            }
+
+            for (int i = 0; i < length; i++) {
+                final int id = bucketIds[from + i];
+                sorted[i] = (long) stopKey(nodes[id]) << 32 | id;
+            }
+
+            Arrays.sort(sorted, 0, length);
+            for (int i = 0; i < length; i++) {
+                bucketIds[from + i] = (int) sorted[i];
+                bucketStops[from + i] = (int) (sorted[i] >>> 32);
+            }
+        }
+
+        return new NodeIds(Arrays.copyOf(nodes, size), Arrays.copyOf(parent, size), subtreeSize, bucketOffsets,
+                bucketIds, bucketStops);
+    }
+
+    private static int key(final ParseTree node) {
+        final Token token = node instanceof TerminalNode ? ((TerminalNode) node).getSymbol()
+                                                         : ((ParserRuleContext) node).start;
+        return token == null ? 0 : Math.max(0, token.getTokenIndex() + 1);
+    }
+
+    private static int stopKey(final ParseTree node) {
+        final Token token = node instanceof TerminalNode ? ((TerminalNode) node).getSymbol()
+                                                         : ((ParserRuleContext) node).stop;
+        return token == null ? 0 : Math.max(0, token.getTokenIndex() + 1);
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @throws  IllegalArgumentException  if the node is not part of the numbered tree
+     */
+    public int getId(final ParseTree node) {
+        final int key = key(node);
+        if (key + 1 < bucketOffsets.length) {
+            final int stop = stopKey(node);
+            final int end = bucketOffsets[key + 1];
+            int low = bucketOffsets[key];
+            int high = end;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (bucketStops[middle] < stop) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            for (int i = low; i < end && bucketStops[i] == stop; i++) {
+                if (nodes[bucketIds[i]] == node) {
+                    return bucketIds[i];
+                }
+            }
+        }
+
+        throw new IllegalArgumentException("node is not part of the numbered tree");
+    }
+
+    public ParseTree getNode(final int id) {
+        return nodes[id];
+    }
+
+    /**
+     * @return  the rule index of the node or {@link FlatTree#TERMINAL}
+     */
+    public int getRuleIndex(final int id) {
+        return nodes[id] instanceof ParserRuleContext ? ((ParserRuleContext) nodes[id]).getRuleIndex()
+                                                      : FlatTree.TERMINAL;
+    }
+
+    /**
+     * @return  the id of the parent or {@link FlatTree#NONE} for the root
+     */
+    public int getParent(final int id) {
+        return parent[id];
+    }
+
+    /**
+     * @return  the number of nodes in the subtree, including the node itself
+     */
+    public int getSubtreeSize(final int id) {
+        return subtreeSize[id];
+    }
+
+    /**
+     * @return  the first id after the subtree of the node
+     */
+    public int getSubtreeEnd(final int id) {
+        return id + subtreeSize[id];
+    }
+
+    /**
+     * @return  the first child or {@link FlatTree#NONE}
+     */
+    public int getFirstChild(final int id) {
+        return subtreeSize[id] > 1 ? id + 1 : FlatTree.NONE;
+    }
+
+    /**
+     * @return  the next sibling or {@link FlatTree#NONE}
+     */
+    public int getNextSibling(final int id) {
+        final int next = id + subtreeSize[id];
+        return parent[id] != FlatTree.NONE && next < getSubtreeEnd(parent[id]) ? next : FlatTree.NONE;
+    }
+
+    /**
+     * @return  whether {@code ancestor} is a proper ancestor of {@code node}
+     */
+    public boolean isAncestor(final int ancestor, final int node) {
+        return ancestor < node && node < ancestor + subtreeSize[ancestor];
+    }
+
+    public boolean isAncestor(final ParseTree ancestor, final ParseTree node) {
+        return isAncestor(getId(ancestor), getId(node));
+    }
+
+    public IntTable newIntTable() {
+        return new IntTable(nodes.length);
+    }
+
+    public LongTable newLongTable() {
+        return new LongTable(nodes.length);
+    }
+
+    public <T> ObjectTable<T> newObjectTable() {
+        return new ObjectTable<T>(this);
+    }
+
+    /**
+     * Per-node {@code int} values, initially 0.
+     */
+    public static final class IntTable {
+        private final int[] values;
+
+        IntTable(final int size) {
+            values = new int[size];
+        }
+
+        public int get(final int id) {
+            return values[id];
+        }
+
+        public void set(final int id, final int value) {
+            values[id] = value;
+        }
+
+        public void fill(final int value) {
+            Arrays.fill(values, value);
+        }
+    }
+
+    /**
+     * Per-node {@code long} values, initially 0.
+     */
+    public static final class LongTable {
+        private final long[] values;
+
+        LongTable(final int size) {
+            values = new long[size];
+        }
+
+        public long get(final int id) {
+            return values[id];
+        }
+
+        public void set(final int id, final long value) {
+            values[id] = value;
+        }
+
+        public void fill(final long value) {
+            Arrays.fill(values, value);
+        }
+    }
+
+    /**
+     * Per-node references, initially {@code null}. A drop-in replacement for {@code ParseTreeProperty}.
+     */
+    public static final class ObjectTable<T> {
+        private final NodeIds ids;
+        private final Object[] values;
+
+        ObjectTable(final NodeIds ids) {
+            this.ids = ids;
+            this.values = new Object[ids.size()];
+        }
+
+        @SuppressWarnings("unchecked")
+        public T get(final int id) {
+            return (T) values[id];
+        }
+
+        public T get(final ParseTree node) {
+            return get(ids.getId(node));
+        }
+
+        public void set(final int id, final T value) {
+            values[id] = value;
+        }
+
+        public void put(final ParseTree node, final T value) {
+            set(ids.getId(node), value);
+        }
+
+        public T removeFrom(final ParseTree node) {
+            final int id = ids.getId(node);
+            final T value = get(id);
+            values[id] = null;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package de.zalando.plpgsql.ast;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+
+/**
+ * Disk cache of encoded {@link FlatTree}s keyed by the SHA-256 of the source text. Entry files are prefixed with the
+ * {@link FlatTreeCodec#GRAMMAR_FINGERPRINT}, entries of other grammar versions are dropped when the cache is opened.
+ * The least recently used entries are evicted once the cache grows beyond its size limit.
+ *
+ * @see  ParseUtil#parseFlat(java.io.InputStream, ParseCache)
+ */
+public final class ParseCache {
+
+    private static final String SUFFIX = ".tree";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String PREFIX = Long.toHexString(FlatTreeCodec.GRAMMAR_FINGERPRINT) + '-';
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParseCache.class);
+
+    private final File directory;
+    private final long maxBytes;
+
+    // key -> entry size in bytes, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long loadSuccessCount;
+    private long loadExceptionCount;
+    private long totalLoadTime;
+    private long evictionCount;
+
+    private ParseCache(final File directory, final long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public static ParseCache open(final File directory, final long maxBytes) throws IOException {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create cache directory " + directory);
+        }
+
+        final ParseCache cache = new ParseCache(directory, maxBytes);
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("cannot list cache directory " + directory);
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(final File a, final File b) {
+                    return Longs.compare(a.lastModified(), b.lastModified());
+                }
+            });
+
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(SUFFIX) && !name.endsWith(TEMP_SUFFIX)) {
+                continue;
+            }
+
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                cache.entries.put(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), file.length());
+                cache.totalBytes += file.length();
+            } else if (!file.delete()) {
+                LOGGER.warn("cannot delete outdated cache file {}", file);
+            }
+        }
+
+        synchronized (cache) {
+            cache.evict();
+        }
+
+        return cache;
+    }
+
+    public static String key(final char[] source) {
+        return Hashing.sha256().hashString(CharBuffer.wrap(source), StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * @return  the cached tree or {@code null} on a miss
+     */
+    public FlatTree get(final String key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                missCount++;
+                return null;
+            }
+        }
+
+        final File file = file(key);
+        try {
+            final FlatTree tree = FlatTreeCodec.decode(Files.readAllBytes(file.toPath()));
+            file.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                hitCount++;
+            }
+
+            return tree;
+        } catch (NoSuchFileException e) {
+            LOGGER.debug("cache entry {} vanished", key);
+        } catch (IOException e) {
+            LOGGER.warn("dropping unreadable cache entry " + key, e);
+        }
+
+        synchronized (this) {
+            missCount++;
+            remove(key);
+        }
+
+        return null;
+    }
+
+    public void put(final String key, final FlatTree tree) throws IOException {
+        final byte[] data = FlatTreeCodec.encode(tree);
+        final File file = file(key);
+        final File temp = File.createTempFile(PREFIX, TEMP_SUFFIX, directory);
+        try {
+            Files.write(temp.toPath(), data);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+
+        synchronized (this) {
+            final Long previous = entries.put(key, (long) data.length);
+            totalBytes += data.length - (previous == null ? 0 : previous);
+            evict();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        for (final String key : entries.keySet().toArray(new String[entries.size()])) {
+            remove(key);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized CacheStats stats() {
+        return new CacheStats(hitCount, missCount, loadSuccessCount, loadExceptionCount, totalLoadTime, evictionCount);
+    }
+
+    synchronized void recordLoadSuccess(final long nanos) {
+        loadSuccessCount++;
+        totalLoadTime += nanos;
+    }
+
+    synchronized void recordLoadException(final long nanos) {
+        loadExceptionCount++;
+        totalLoadTime += nanos;
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            totalBytes -= entry.getValue();
+            evictionCount++;
+            delete(entry.getKey());
+        }
+    }
+
+    private void remove(final String key) {
+        final Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+            delete(key);
+        }
+    }
+
+    private void delete(final String key) {
+        final File file = file(key);
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("cannot delete cache entry {}", file);
+        }
+    }
+
+    private File file(final String key) {
+        return new File(directory, PREFIX + key + SUFFIX);
+    }
+}
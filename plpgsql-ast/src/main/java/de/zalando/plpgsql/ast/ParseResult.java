@@ -0,0 +1,35 @@
+package de.zalando.plpgsql.ast;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * Everything a parse leaves behind: the tree, the buffered tokens including the hidden channels and the input.
+ *
+ * @see  ParseUtil#parseResult(java.io.InputStream)
+ */
+public final class ParseResult {
+
+    private final ParserRuleContext tree;
+    private final CommonTokenStream tokens;
+    private final CharStream input;
+
+    ParseResult(final ParserRuleContext tree, final CommonTokenStream tokens, final CharStream input) {
+        this.tree = tree;
+        this.tokens = tokens;
+        this.input = input;
+    }
+
+    public ParserRuleContext getTree() {
+        return tree;
+    }
+
+    public CommonTokenStream getTokens() {
+        return tokens;
+    }
+
+    public CharStream getInput() {
+        return input;
+    }
+}
@@ -3,24 +3,188 @@ package de.zalando.plpgsql.ast;
 import java.io.IOException;
 import java.io.InputStream;
 
+import java.lang.reflect.InvocationTargetException;
+
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 
+import org.apache.commons.io.IOUtils;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+
 public final class ParseUtil {
     private ParseUtil() { }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ParseUtil.class);
 
     public static ParseTree parse(final InputStream in) throws IOException {
-        final ANTLRInputStream input = new ANTLRInputStream(in);
+        return parse(new ANTLRInputStream(in), null, null).getTree();
+    }
+
+    public static ParseTree parse(final String source) {
+        return parse(new ANTLRInputStream(source), null, null).getTree();
+    }
+
+    /**
+     * Parses the input with identifier and type name tokens interned in the given pool, see {@link SymbolToken}.
+     */
+    public static ParseTree parse(final InputStream in, final SymbolPool symbols) throws IOException {
+        return parse(new ANTLRInputStream(in), symbols, null).getTree();
+    }
+
+    /**
+     * Parses the input and compacts every rule as soon as it is complete, see {@link TreeCompactor}.
+     */
+    public static ParseTree parse(final InputStream in, final TreeCompactor compactor) throws IOException {
+        return parse(new ANTLRInputStream(in), null, compactor).getTree();
+    }
+
+    /**
+     * Parses the input and keeps the token stream and input along with the tree, e.g. for
+     * {@link MemoryEstimator}.
+     */
+    public static ParseResult parseResult(final InputStream in) throws IOException {
+        return parse(new ANTLRInputStream(in), null, null);
+    }
+
+    /**
+     * Parses a fragment, e.g. a statement or an expression, starting at the given rule of {@link PlPgSqlParser}.
+     *
+     * @throws  ParseCancellationException  if the fragment is not a complete instance of the rule
+     */
+    public static ParserRuleContext parseRule(final String fragment, final int ruleIndex) {
+        return parseRule(fragment, ruleIndex, true);
+    }
+
+    /**
+     * Like {@link #parseRule(String, int)} but without reporting syntax errors, for fragments that are not expected
+     * to parse, e.g. dynamic SQL.
+     *
+     * @return  the tree or null if the fragment is not a complete instance of the rule
+     */
+    static ParserRuleContext tryParseRule(final String fragment, final int ruleIndex) {
+        try {
+            return parseRule(fragment, ruleIndex, false);
+        } catch (ParseCancellationException e) {
+            return null;
+        }
+    }
+
+    private static ParserRuleContext parseRule(final String fragment, final int ruleIndex, final boolean report) {
+        final PlPgSqlLexer lexer = new PlPgSqlLexer(new ANTLRInputStream(fragment));
+        final CommonTokenStream tokens = new CommonTokenStream(lexer);
+        final PlPgSqlParser parser = new PlPgSqlParser(tokens);
+        parser.setErrorHandler(new BailErrorStrategy());
+        if (report) {
+            parser.addErrorListener(new SyntaxErrorListener());
+        } else {
+            lexer.removeErrorListeners();
+            parser.removeErrorListeners();
+        }
+
+        final String rule = PlPgSqlParser.ruleNames[ruleIndex];
+        final ParserRuleContext tree;
+        try {
+
+            // left recursive rules only have a method taking the precedence
+            if (isLeftRecursive(rule)) {
+                tree = (ParserRuleContext) PlPgSqlParser.class.getMethod(rule, int.class).invoke(parser, 0);
+            } else {
+                tree = (ParserRuleContext) PlPgSqlParser.class.getMethod(rule).invoke(parser);
+            }
+        } catch (InvocationTargetException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (tokens.LA(1) != Token.EOF) {
+            throw new ParseCancellationException("unexpected input after " + rule + " at " + tokens.LT(1));
+        }
+
+        return tree;
+    }
+
+    private static boolean isLeftRecursive(final String rule) {
+        try {
+            PlPgSqlParser.class.getMethod(rule);
+            return false;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    public static FlatTree parseFlat(final InputStream in) throws IOException {
+        return parseFlat(in, null);
+    }
+
+    /**
+     * Parses the input into a {@link FlatTree}. If a cache is given it is consulted before lexing, and trees that had
+     * to be parsed are added to it.
+     */
+    public static FlatTree parseFlat(final InputStream in, final ParseCache cache) throws IOException {
+        final char[] source = IOUtils.toCharArray(in);
+
+        String key = null;
+        if (cache != null) {
+            key = ParseCache.key(source);
+
+            final FlatTree cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final long start = System.nanoTime();
+        final FlatTree tree;
+        try {
+            tree = FlatTree.flatten(parse(new ANTLRInputStream(source, source.length), null, null).getTree(),
+                    source);
+        } catch (RuntimeException e) {
+            if (cache != null) {
+                cache.recordLoadException(System.nanoTime() - start);
+            }
+
+            throw e;
+        }
+
+        if (cache != null) {
+            cache.recordLoadSuccess(System.nanoTime() - start);
+            cache.put(key, tree);
+        }
+
+        return tree;
+    }
+
+    /**
+     * @return  the content of a quoted or dollar-quoted string literal, e.g. of a {@code STRING} token
+     */
+    public static String stringValue(final String literal) {
+        if (literal.startsWith("$")) {
+            final int tag = literal.indexOf('$', 1) + 1;
+            return literal.substring(tag, literal.length() - tag);
+        }
+
+        return literal.substring(1, literal.length() - 1).replace("''", "'");
+    }
+
+    private static ParseResult parse(final CharStream input, final SymbolPool symbols,
+            final TreeCompactor compactor) {
 
         // create a lexer that feeds off of input CharStream
         final PlPgSqlLexer lexer = new PlPgSqlLexer(input);
+        if (symbols != null) {
+            lexer.setTokenFactory(symbols.getTokenFactory());
+        }
 
         // create a buffer of tokens pulled from the lexer
         final CommonTokenStream tokens = new CommonTokenStream(lexer);
@@ -30,10 +194,13 @@ public final class ParseUtil {
         parser.setErrorHandler(new BailErrorStrategy());
         parser.addErrorListener(new SyntaxErrorListener());
 // parser.addErrorListener(new DiagnosticErrorListener());
+        if (compactor != null) {
+            parser.addParseListener(compactor);
+        }
 
-        final ParseTree tree = parser.unit();
+        final ParserRuleContext tree = parser.unit();
         LOGGER.debug(tree.toStringTree(parser));
-        return tree;
+        return new ParseResult(tree, tokens, input);
     }
 
 }
@@ -0,0 +1,70 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Matches many {@link TreePattern}s in one pass over a tree. Patterns are grouped by the rule of their root, so every
+ * node is only offered to the patterns that can match at it.
+ */
+public final class PatternSet {
+
+    private static final TreePattern[] NONE = new TreePattern[0];
+
+    private final List<TreePattern> patterns = new ArrayList<TreePattern>();
+
+    private final TreePattern[][] byRule = new TreePattern[PlPgSqlParser.ruleNames.length][];
+
+    public PatternSet() {
+        Arrays.fill(byRule, NONE);
+    }
+
+    public PatternSet add(final TreePattern pattern) {
+        Preconditions.checkNotNull(pattern, "pattern");
+        patterns.add(pattern);
+
+        final TreePattern[] candidates = byRule[pattern.getRuleIndex()];
+        byRule[pattern.getRuleIndex()] = Arrays.copyOf(candidates, candidates.length + 1);
+        byRule[pattern.getRuleIndex()][candidates.length] = pattern;
+        return this;
+    }
+
+    public List<TreePattern> getPatterns() {
+        return Collections.unmodifiableList(patterns);
+    }
+
+    /**
+     * @return  the matches of all patterns, by node in preorder and by pattern in the order they were added
+     */
+    public List<TreePattern.Match> match(final ParserRuleContext root) {
+        final List<TreePattern.Match> matches = new ArrayList<TreePattern.Match>();
+        final Deque<ParseTree> stack = new ArrayDeque<ParseTree>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final ParseTree node = stack.pop();
+            if (!(node instanceof ParserRuleContext)) {
+                continue;
+            }
+
+            final ParserRuleContext context = (ParserRuleContext) node;
+            for (final TreePattern pattern : byRule[context.getRuleIndex()]) {
+                matches.addAll(pattern.match(context));
+            }
+
+            for (int i = context.getChildCount() - 1; i >= 0; i--) {
+                stack.push(context.getChild(i));
+            }
+        }
+
+        return matches;
+    }
+}
@@ -0,0 +1,194 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.Arrays;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * Maps source positions to the innermost rule node containing them. The source is cut into segments that have the
+ * same innermost node, lookups are a binary search over the segment starts. Lines are 1-based and columns 0-based,
+ * like {@link org.antlr.v4.runtime.Token#getLine()} and {@link org.antlr.v4.runtime.Token#getCharPositionInLine()}.
+ *
+ * <p/>Building the index is a single pass over the {@link NodeIds} of the tree that allocates only the segment and
+ * line tables, so after a reparse it is simply built again.
+ */
+public final class PositionIndex {
+
+    private final NodeIds ids;
+    private final int[] segmentStart;
+    private final int[] segmentNode;
+    private final int segmentCount;
+    private final int[] lineStart;
+    private final int length;
+
+    private PositionIndex(final NodeIds ids, final int[] segmentStart, final int[] segmentNode,
+            final int segmentCount, final int[] lineStart, final int length) {
+        this.ids = ids;
+        this.segmentStart = segmentStart;
+        this.segmentNode = segmentNode;
+        this.segmentCount = segmentCount;
+        this.lineStart = lineStart;
+        this.length = length;
+    }
+
+    public static PositionIndex of(final ParserRuleContext root) {
+        return of(NodeIds.of(root));
+    }
+
+    public static PositionIndex of(final NodeIds ids) {
+        final ParserRuleContext root = (ParserRuleContext) ids.getNode(0);
+        final CharStream input = root.start == null ? null : root.start.getInputStream();
+        final String source = input == null || input.size() == 0 ? ""
+                                                                  : input.getText(Interval.of(0, input.size() - 1));
+        return of(ids, source);
+    }
+
+    public static PositionIndex of(final NodeIds ids, final CharSequence source) {
+        int[] segmentStart = new int[64];
+        int[] segmentNode = new int[64];
+        int count = 0;
+
+        // rule nodes whose subtree has not been left yet
+        final int[] open = new int[ids.size()];
+        int depth = 0;
+
+        for (int id = 0; id <= ids.size(); id++) {
+            while (depth > 0 && (id == ids.size() || ids.getSubtreeEnd(open[depth - 1]) <= id)) {
+                final ParserRuleContext closed = (ParserRuleContext) ids.getNode(open[--depth]);
+                final int offset = closed.stop.getStopIndex() + 1;
+                final int enclosing = depth == 0 ? FlatTree.NONE : open[depth - 1];
+                if (count > 0 && segmentStart[count - 1] == offset) {
+                    segmentNode[count - 1] = enclosing;
+                } else if (count == 0 || segmentStart[count - 1] < offset) {
+                    if (count == segmentStart.length) {
+                        segmentStart = Arrays.copyOf(segmentStart, count * 2);
+                        segmentNode = Arrays.copyOf(segmentNode, count * 2);
+                    }
+
+                    segmentStart[count] = offset;
+                    segmentNode[count++] = enclosing;
+                }
+            }
+
+            if (id == ids.size() || ids.getRuleIndex(id) == FlatTree.TERMINAL) {
+                continue;
+            }
+
+            final ParserRuleContext node = (ParserRuleContext) ids.getNode(id);
+            if (node.start == null || node.stop == null || node.stop.getStopIndex() < node.start.getStartIndex()) {
+
+                // empty rules cover no position
+                continue;
+            }
+
+            final int offset = node.start.getStartIndex();
+            if (count > 0 && segmentStart[count - 1] == offset) {
+                segmentNode[count - 1] = id;
+            } else {
+                if (count == segmentStart.length) {
+                    segmentStart = Arrays.copyOf(segmentStart, count * 2);
+                    segmentNode = Arrays.copyOf(segmentNode, count * 2);
+                }
+
+                segmentStart[count] = offset;
+                segmentNode[count++] = id;
+            }
+
+            open[depth++] = id;
+        }
+
+        return new PositionIndex(ids, segmentStart, segmentNode, count, lineStarts(source), source.length());
+    }
+
+    /**
+     * @return  the offsets at which the lines of the source start, the first line starts at 0
+     */
+    public static int[] lineStarts(final CharSequence source) {
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+
+                starts[count++] = i + 1;
+            }
+        }
+
+        return Arrays.copyOf(starts, count);
+    }
+
+    public NodeIds getNodeIds() {
+        return ids;
+    }
+
+    /**
+     * @return  the id of the innermost rule node containing the offset or {@link FlatTree#NONE}
+     */
+    public int getIdAt(final int offset) {
+        if (offset < 0 || offset >= length) {
+            return FlatTree.NONE;
+        }
+
+        final int segment = Arrays.binarySearch(segmentStart, 0, segmentCount, offset);
+        if (segment >= 0) {
+            return segmentNode[segment];
+        }
+
+        final int before = -segment - 2;
+        return before < 0 ? FlatTree.NONE : segmentNode[before];
+    }
+
+    /**
+     * @return  the innermost rule node containing the offset or {@code null}
+     */
+    public ParserRuleContext getNodeAt(final int offset) {
+        final int id = getIdAt(offset);
+        return id == FlatTree.NONE ? null : (ParserRuleContext) ids.getNode(id);
+    }
+
+    public ParserRuleContext getNodeAt(final int line, final int column) {
+        return getNodeAt(getOffset(line, column));
+    }
+
+    /**
+     * @return  the innermost node of the given rule containing the offset or {@code null}, e.g. the statement at the
+     *          cursor
+     */
+    public ParserRuleContext getEnclosingNode(final int offset, final int ruleIndex) {
+        for (int id = getIdAt(offset); id != FlatTree.NONE; id = ids.getParent(id)) {
+            if (ids.getRuleIndex(id) == ruleIndex) {
+                return (ParserRuleContext) ids.getNode(id);
+            }
+        }
+
+        return null;
+    }
+
+    public int getLineCount() {
+        return lineStart.length;
+    }
+
+    /**
+     * @return  the offset of the position or -1 if the line does not exist
+     */
+    public int getOffset(final int line, final int column) {
+        if (line < 1 || line > lineStart.length) {
+            return -1;
+        }
+
+        return lineStart[line - 1] + column;
+    }
+
+    public int getLine(final int offset) {
+        final int line = Arrays.binarySearch(lineStart, offset);
+        return line >= 0 ? line + 1 : -line - 1;
+    }
+
+    public int getColumn(final int offset) {
+        return offset - lineStart[getLine(offset) - 1];
+    }
+}
@@ -0,0 +1,101 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.RuleTransition;
+import org.antlr.v4.runtime.atn.Transition;
+
+/**
+ * Rule containment relation of the {@link PlPgSqlParser} grammar, derived from its ATN: rule {@code a} can contain
+ * rule {@code b} if a context of {@code b} can occur anywhere in the subtree of a context of {@code a}. Walkers and
+ * queries use it to skip subtrees that cannot hold what they are looking for.
+ */
+public final class RuleGraph {
+    private RuleGraph() { }
+
+    private static final BitSet[] CONTAINED = containedRules(PlPgSqlParser._ATN);
+
+    private static BitSet[] containedRules(final ATN atn) {
+        final int rules = atn.ruleToStartState.length;
+
+        // rules invoked directly by each rule
+        final BitSet[] invoked = new BitSet[rules];
+        for (int rule = 0; rule < rules; rule++) {
+            invoked[rule] = new BitSet(rules);
+
+            final BitSet visited = new BitSet();
+            final Deque<ATNState> pending = new ArrayDeque<ATNState>();
+            pending.push(atn.ruleToStartState[rule]);
+            while (!pending.isEmpty()) {
+                final ATNState state = pending.pop();
+
+                // the transitions of a stop state lead back into the invoking rules
+                if (visited.get(state.stateNumber) || state.getStateType() == ATNState.RULE_STOP) {
+                    continue;
+                }
+
+                visited.set(state.stateNumber);
+                for (int i = 0; i < state.getNumberOfTransitions(); i++) {
+                    final Transition transition = state.transition(i);
+                    if (transition instanceof RuleTransition) {
+                        invoked[rule].set(transition.target.ruleIndex);
+                        pending.push(((RuleTransition) transition).followState);
+                    } else {
+                        pending.push(transition.target);
+                    }
+                }
+            }
+        }
+
+        // transitive closure, iterated until stable since the grammar is recursive
+        final BitSet[] contained = new BitSet[rules];
+        for (int rule = 0; rule < rules; rule++) {
+            contained[rule] = (BitSet) invoked[rule].clone();
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int rule = 0; rule < rules; rule++) {
+                final int before = contained[rule].cardinality();
+                for (int inner = contained[rule].nextSetBit(0); inner >= 0;
+                        inner = contained[rule].nextSetBit(inner + 1)) {
+                    contained[rule].or(invoked[inner]);
+                }
+
+                changed |= contained[rule].cardinality() != before;
+            }
+        }
+
+        return contained;
+    }
+
+    public static int getRuleCount() {
+        return CONTAINED.length;
+    }
+
+    /**
+     * @return  whether a context of rule {@code inner} can occur below a context of rule {@code outer}
+     */
+    public static boolean canContain(final int outer, final int inner) {
+        return CONTAINED[outer].get(inner);
+    }
+
+    /**
+     * @return  whether any of the rules can occur below a context of rule {@code outer}
+     */
+    public static boolean canContainAny(final int outer, final BitSet rules) {
+        return CONTAINED[outer].intersects(rules);
+    }
+
+    /**
+     * @return  all rules that can occur below a context of the rule
+     */
+    public static BitSet getContainedRules(final int rule) {
+        return (BitSet) CONTAINED[rule].clone();
+    }
+}
@@ -0,0 +1,78 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.BitSet;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * {@link ParseTreeWalker} that only visits what a listener cares about. For every listener class it determines once
+ * which rules the listener handles, i.e. which {@code enter}/{@code exit} methods of {@link PlPgSqlBaseListener} it
+ * overrides. Events are dispatched only for those rules, looked up by rule index, and subtrees that cannot contain any
+ * of them according to the {@link RuleGraph} are skipped.
+ *
+ * <p/>Listeners overriding {@code enterEveryRule}, {@code exitEveryRule}, {@code visitTerminal} or
+ * {@code visitErrorNode} see the whole tree, as do listeners that do not extend {@link PlPgSqlBaseListener}.
+ */
+public class SelectiveTreeWalker extends ParseTreeWalker {
+
+    public static final SelectiveTreeWalker DEFAULT = new SelectiveTreeWalker();
+
+    /**
+     * @return  the rules whose events the walker delivers to listeners of the class
+     */
+    public static BitSet getHandledRules(final Class<? extends ParseTreeListener> listenerType) {
+        return (BitSet) ListenerProfile.of(listenerType).handled.clone();
+    }
+
+    @Override
+    public void walk(final ParseTreeListener listener, final ParseTree t) {
+        walk(listener, ListenerProfile.of(listener.getClass()), t);
+    }
+
+    private void walk(final ParseTreeListener listener, final ListenerProfile profile, final ParseTree t) {
+        if (t instanceof ErrorNode) {
+            if (profile.errorNodes) {
+                listener.visitErrorNode((ErrorNode) t);
+            }
+
+            return;
+        }
+
+        if (t instanceof TerminalNode) {
+            if (profile.terminals) {
+                listener.visitTerminal((TerminalNode) t);
+            }
+
+            return;
+        }
+
+        final ParserRuleContext ctx = (ParserRuleContext) t;
+        final int rule = ctx.getRuleIndex();
+        if (profile.everyRule) {
+            listener.enterEveryRule(ctx);
+        }
+
+        if (profile.enter[rule]) {
+            ctx.enterRule(listener);
+        }
+
+        if (profile.descend[rule]) {
+            for (int i = 0; i < ctx.getChildCount(); i++) {
+                walk(listener, profile, ctx.getChild(i));
+            }
+        }
+
+        if (profile.exit[rule]) {
+            ctx.exitRule(listener);
+        }
+
+        if (profile.everyRule) {
+            listener.exitEveryRule(ctx);
+        }
+    }
+}
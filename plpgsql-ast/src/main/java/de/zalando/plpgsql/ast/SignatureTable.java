@@ -0,0 +1,190 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * {@link TypeCatalog} filled with function signatures and column types, for example the {@link #builtins()} plus the
+ * functions of the analyzed code.
+ *
+ * <p/>A call matches a signature of the same name and arity whose parameter types the argument types equal, are
+ * implicitly converted to or are unknown for; a last parameter {@code variadic t} takes any number of arguments of
+ * type {@code t}. The parameter types {@code any} and {@code anyelement} match all arguments, a return type
+ * {@code anyelement} is the type of the first argument passed for an {@code anyelement} parameter. The first matching
+ * signature wins, so specific overloads have to be added before generic ones.
+ *
+ * <p/>Not thread-safe while being filled.
+ */
+public final class SignatureTable implements TypeCatalog {
+
+    private static final String VARIADIC = "variadic ";
+    private static final String ANY = "any";
+    private static final String ANY_ELEMENT = "anyelement";
+
+    // return type followed by the parameter types
+    private final Map<String, List<String[]>> functions = new HashMap<String, List<String[]>>();
+
+    // keyed by table + '.' + column
+    private final Map<String, String> columns = new HashMap<String, String>();
+
+    /**
+     * @return  a table with the signatures of commonly used built-in functions
+     */
+    public static SignatureTable builtins() {
+        final SignatureTable table = new SignatureTable();
+        table.function("length", "integer", "text");
+        table.function("char_length", "integer", "text");
+        table.function("lower", "text", "text");
+        table.function("upper", "text", "text");
+        table.function("substr", "text", "text", "integer");
+        table.function("substr", "text", "text", "integer", "integer");
+        table.function("replace", "text", "text", "text", "text");
+        table.function("md5", "text", "text");
+        table.function("concat", "text", "variadic any");
+        table.function("format", "text", "text", "variadic any");
+        table.function("to_char", "text", "any", "text");
+        table.function("to_number", "numeric", "text", "text");
+        table.function("to_date", "date", "text", "text");
+        table.function("to_timestamp", "timestamptz", "text", "text");
+        table.function("now", "timestamptz");
+        table.function("clock_timestamp", "timestamptz");
+        table.function("random", "float8");
+        table.function("round", "numeric", "numeric");
+        table.function("round", "numeric", "numeric", "integer");
+        table.function("floor", "numeric", "numeric");
+        table.function("ceil", "numeric", "numeric");
+        table.function("abs", "anyelement", "anyelement");
+        table.function("coalesce", "anyelement", "variadic anyelement");
+        table.function("nullif", "anyelement", "anyelement", "anyelement");
+        table.function("greatest", "anyelement", "variadic anyelement");
+        table.function("least", "anyelement", "variadic anyelement");
+        table.function("min", "anyelement", "anyelement");
+        table.function("max", "anyelement", "anyelement");
+        table.function("count", "bigint", "variadic any");
+        table.function("avg", "numeric", "any");
+        table.function("string_agg", "text", "text", "text");
+        table.function("array_length", "integer", "any", "integer");
+        table.function("array_upper", "integer", "any", "integer");
+        table.function("nextval", "bigint", "text");
+        table.function("currval", "bigint", "text");
+        return table;
+    }
+
+    /**
+     * Adds a signature; the names of the types are normalized.
+     */
+    public SignatureTable function(final String name, final String returnType, final String... parameterTypes) {
+        final String[] signature = new String[parameterTypes.length + 1];
+        signature[0] = TypeInference.normalize(Preconditions.checkNotNull(returnType));
+        for (int i = 0; i < parameterTypes.length; i++) {
+            final String type = SymbolPool.fold(parameterTypes[i]);
+            signature[i + 1] = type.startsWith(VARIADIC)
+                ? VARIADIC + TypeInference.normalize(type.substring(VARIADIC.length())) : TypeInference.normalize(type);
+        }
+
+        final String key = SymbolPool.fold(name);
+        List<String[]> overloads = functions.get(key);
+        if (overloads == null) {
+            overloads = new ArrayList<String[]>(1);
+            functions.put(key, overloads);
+        }
+
+        overloads.add(signature);
+        return this;
+    }
+
+    public SignatureTable column(final String table, final String column, final String type) {
+        columns.put(SymbolPool.fold(table) + '.' + SymbolPool.fold(column), TypeInference.normalize(type));
+        return this;
+    }
+
+    /**
+     * Adds the signatures of all functions of a unit, without their {@code OUT} arguments.
+     */
+    public SignatureTable addFunctions(final ParseTree unit) {
+        for (final PlPgSqlParser.PlFunctionContext function : FunctionExecutor.functions(unit)) {
+            final List<String> parameterTypes = new ArrayList<String>();
+            for (final PlPgSqlParser.FunctionArgContext arg : function.functionArgsList().functionArg()) {
+                if (arg.argMode == null || arg.argMode.getType() != PlPgSqlParser.OUT) {
+                    parameterTypes.add(arg.type.getText());
+                }
+            }
+
+            function(function.functionName.getText(), function.functionReturns().type.getText(),
+                parameterTypes.toArray(new String[parameterTypes.size()]));
+        }
+
+        return this;
+    }
+
+    @Override
+    public String getReturnType(final String function, final List<String> argumentTypes) {
+        final List<String[]> overloads = functions.get(function);
+        if (overloads != null) {
+            for (final String[] signature : overloads) {
+                if (matches(signature, argumentTypes)) {
+                    return returnType(signature, argumentTypes);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public String getColumnType(final String table, final String column) {
+        final String type = columns.get(table + '.' + column);
+        final int dot = table.lastIndexOf('.');
+        return type != null || dot < 0 ? type : columns.get(table.substring(dot + 1) + '.' + column);
+    }
+
+    private static boolean matches(final String[] signature, final List<String> argumentTypes) {
+        final int parameters = signature.length - 1;
+        final boolean variadic = parameters > 0 && signature[parameters].startsWith(VARIADIC);
+        if (variadic ? argumentTypes.size() < parameters - 1 : argumentTypes.size() != parameters) {
+            return false;
+        }
+
+        for (int i = 0; i < argumentTypes.size(); i++) {
+            if (!accepts(parameter(signature, i), argumentTypes.get(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String parameter(final String[] signature, final int argument) {
+        final String last = signature[signature.length - 1];
+        return argument < signature.length - 2 || !last.startsWith(VARIADIC) ? signature[argument + 1]
+                                                                              : last.substring(VARIADIC.length());
+    }
+
+    private static boolean accepts(final String parameter, final String argument) {
+        return argument == null || argument.equals(TypeInference.UNKNOWN) || parameter.equals(ANY)
+                || parameter.equals(ANY_ELEMENT) || parameter.equals(argument)
+                || TypeInference.convertsImplicitly(argument, parameter);
+    }
+
+    private static String returnType(final String[] signature, final List<String> argumentTypes) {
+        if (!signature[0].equals(ANY_ELEMENT)) {
+            return signature[0];
+        }
+
+        for (int i = 0; i < argumentTypes.size(); i++) {
+            final String argument = argumentTypes.get(i);
+            if (parameter(signature, i).equals(ANY_ELEMENT) && argument != null
+                    && !argument.equals(TypeInference.UNKNOWN)) {
+                return argument;
+            }
+        }
+
+        return null;
+    }
+}
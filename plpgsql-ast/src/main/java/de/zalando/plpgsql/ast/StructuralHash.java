@@ -0,0 +1,137 @@
+package de.zalando.plpgsql.ast;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Merkle style hashes of all subtrees of a parse tree. The hash of a rule node combines its rule index with the hashes
+ * of its children, the hash of a terminal its token type and text. Whitespace and comments never reach the tree and
+ * keywords are compared case-insensitively, so subtrees that differ only in layout have the same hash. Hashes do not
+ * depend on the JVM and can be persisted.
+ *
+ * <p/>All hashes are computed in one bottom-up pass by {@link #compute(ParserRuleContext, boolean)} and kept in a
+ * {@link NodeIds} table, afterwards {@link #get(int)} is an array access.
+ */
+public final class StructuralHash {
+
+    private static final long RULE_SEED = 0x9e3779b97f4a7c15L;
+    private static final long TOKEN_SEED = 0xc2b2ae3d27d4eb4fL;
+    private static final long PRIME = 0x100000001b3L;
+
+    private final ParserRuleContext root;
+    private final boolean ignoreIdentifierCase;
+    private final NodeIds ids;
+    private final NodeIds.LongTable hashes;
+
+    private StructuralHash(final ParserRuleContext root, final boolean ignoreIdentifierCase, final NodeIds ids) {
+        this.root = root;
+        this.ignoreIdentifierCase = ignoreIdentifierCase;
+        this.ids = ids;
+        this.hashes = ids.newLongTable();
+    }
+
+    public static StructuralHash compute(final ParserRuleContext root) {
+        return compute(root, false);
+    }
+
+    /**
+     * @param  ignoreIdentifierCase  whether identifiers and type names that differ in case only hash equally, like
+     *                               unquoted names in PostgreSQL
+     */
+    public static StructuralHash compute(final ParserRuleContext root, final boolean ignoreIdentifierCase) {
+        return compute(NodeIds.of(root), ignoreIdentifierCase);
+    }
+
+    public static StructuralHash compute(final NodeIds ids, final boolean ignoreIdentifierCase) {
+        final StructuralHash hash = new StructuralHash((ParserRuleContext) ids.getNode(0), ignoreIdentifierCase, ids);
+
+        // in reverse preorder all children of a node are hashed before the node itself
+        for (int id = ids.size() - 1; id >= 0; id--) {
+            hash.hashes.set(id, hash.combine(id));
+        }
+
+        return hash;
+    }
+
+    public ParserRuleContext getRoot() {
+        return root;
+    }
+
+    public NodeIds getNodeIds() {
+        return ids;
+    }
+
+    public boolean isIgnoringIdentifierCase() {
+        return ignoreIdentifierCase;
+    }
+
+    public long get(final int id) {
+        return hashes.get(id);
+    }
+
+    /**
+     * @return  the hash of a node of the tree this was computed for
+     */
+    public long get(final ParseTree node) {
+        return hashes.get(ids.getId(node));
+    }
+
+    private long combine(final int id) {
+        final ParseTree node = ids.getNode(id);
+        if (node instanceof TerminalNode) {
+            return hashToken(((TerminalNode) node).getSymbol());
+        }
+
+        long h = RULE_SEED + ids.getRuleIndex(id);
+        for (int child = ids.getFirstChild(id); child != FlatTree.NONE; child = ids.getNextSibling(child)) {
+            h = (h ^ hashes.get(child)) * PRIME;
+        }
+
+        return mix(h + node.getChildCount());
+    }
+
+    private long hashToken(final Token token) {
+        final int type = token.getType();
+        long h = TOKEN_SEED + type;
+        switch (type) {
+
+            // quote tokens only delimit, their tags and the whitespace after AS are layout
+            case PlPgSqlLexer.QUOTE :
+            case PlPgSqlLexer.DOLLAR_QUOTE :
+            case PlPgSqlLexer.F_QUOTE :
+            case PlPgSqlLexer.F_DOLLAR_QUOTE :
+                return mix(h);
+
+            case PlPgSqlLexer.STRING :
+            case PlPgSqlLexer.INTEGER_VALUE :
+            case PlPgSqlLexer.DECIMAL_VALUE :
+                return mix(hashText(h, token.getText(), false));
+
+            default :
+                return mix(hashText(h, token.getText(), ignoreIdentifierCase || !SymbolPool.isSymbolType(type)));
+        }
+    }
+
+    private static long hashText(final long seed, final String text, final boolean ignoreCase) {
+        long h = seed;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            h = (h ^ (ignoreCase ? Character.toLowerCase(c) : c)) * PRIME;
+        }
+
+        return h;
+    }
+
+    // finalizer of MurmurHash3
+    private static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,697 @@
+package de.zalando.plpgsql.ast;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * On-disk index of the function definitions, calls, table accesses and variables of a corpus, kept in sorted
+ * memory-mapped segment files. Opening the index only maps the segments listed in the manifest, a lookup is a binary
+ * search per segment, so a new process answers queries without parsing anything.
+ *
+ * <p/>The entries of a source, e.g. a file, are {@link #put put} or {@link #remove removed} as a whole and written by
+ * {@link #commit()} as a new segment; a segment shadows the entries of all older segments for the sources it lists.
+ * Once there are more segments than the merge threshold they are merged into one in the background, readers keep
+ * using the old segments until the manifest is switched.
+ *
+ * <p/>Keys are folded names; tables are indexed by the name as written, see {@link TableIndex}. Lookups are
+ * thread-safe, updates are serialized.
+ */
+public final class SymbolIndex implements Closeable {
+
+    public enum Kind {
+
+        /**
+         * Key is the function name, the detail the number of arguments.
+         */
+        DEFINITION,
+
+        /**
+         * Key is the called function.
+         */
+        CALL,
+
+        /**
+         * Key is the table, the detail its {@link TableIndex.Mode} and {@link TableIndex.Statement}.
+         */
+        TABLE,
+
+        /**
+         * Key is the variable name, the detail its {@link SymbolTable.Kind}.
+         */
+        VARIABLE
+    }
+
+    public static final int DEFAULT_MERGE_THRESHOLD = 8;
+
+    private static final int SEGMENT_MAGIC = 0x53494458; // SIDX
+
+    private static final int FORMAT_VERSION = 1;
+
+    // magic, version, entry count, source count
+    private static final int SEGMENT_HEADER_SIZE = 16;
+
+    // kind, key, source, function, detail, line, column
+    private static final int ENTRY_SIZE = 28;
+
+    private static final String SEGMENT_SUFFIX = ".sidx";
+
+    private static final String MANIFEST = "MANIFEST";
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SymbolIndex.class);
+
+    private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry a, final Entry b) {
+            int result = a.source.compareTo(b.source);
+            if (result == 0) {
+                result = a.line != b.line ? (a.line < b.line ? -1 : 1)
+                                          : (a.column < b.column ? -1 : (a.column == b.column ? 0 : 1));
+            }
+
+            return result != 0 ? result : a.kind.compareTo(b.kind);
+        }
+    };
+
+    /**
+     * Unsigned lexicographic order, the order of the code points for UTF-8.
+     */
+    private static final Comparator<byte[]> BYTES_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(final byte[] a, final byte[] b) {
+            final int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                if (a[i] != b[i]) {
+                    return (a[i] & 0xff) - (b[i] & 0xff);
+                }
+            }
+
+            return a.length - b.length;
+        }
+    };
+
+    private final File directory;
+    private final int mergeThreshold;
+    private final ExecutorService merger;
+
+    // oldest first, replaced as a whole on commit and merge
+    private volatile List<Segment> segments;
+    private int nextSegment;
+    private boolean merging;
+
+    // entries of the sources put or removed since the last commit
+    private final Map<String, List<Entry>> pending = new LinkedHashMap<String, List<Entry>>();
+
+    private SymbolIndex(final File directory, final int mergeThreshold, final List<Segment> segments,
+            final int nextSegment) {
+        this.directory = directory;
+        this.mergeThreshold = mergeThreshold;
+        this.segments = segments;
+        this.nextSegment = nextSegment;
+        this.merger = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat(
+                    "symbol-index-merge-%d").build());
+    }
+
+    public static SymbolIndex open(final File directory) throws IOException {
+        return open(directory, DEFAULT_MERGE_THRESHOLD);
+    }
+
+    /**
+     * Opens or creates an index; segment files not listed in the manifest are leftovers of interrupted commits or
+     * merges and deleted.
+     */
+    public static SymbolIndex open(final File directory, final int mergeThreshold) throws IOException {
+        Preconditions.checkArgument(mergeThreshold > 1, "mergeThreshold must be greater than one");
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create index directory " + directory);
+        }
+
+        final List<String> listed = new ArrayList<String>();
+        final File manifest = new File(directory, MANIFEST);
+        if (manifest.isFile()) {
+            for (final String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    listed.add(line.trim());
+                }
+            }
+        }
+
+        final String[] names = directory.list(new FilenameFilter() {
+                    @Override
+                    public boolean accept(final File dir, final String name) {
+                        return name.endsWith(SEGMENT_SUFFIX);
+                    }
+                });
+        if (names == null) {
+            throw new IOException("cannot list index directory " + directory);
+        }
+
+        final List<Segment> segments = new ArrayList<Segment>();
+        for (final String name : listed) {
+            segments.add(new Segment(new File(directory, name)));
+        }
+
+        int nextSegment = 0;
+        for (final String name : names) {
+            nextSegment = Math.max(nextSegment, segmentNumber(name) + 1);
+            if (!listed.contains(name) && !new File(directory, name).delete()) {
+                LOGGER.warn("cannot delete unused segment {}", name);
+            }
+        }
+
+        return new SymbolIndex(directory, mergeThreshold, ImmutableList.copyOf(segments), nextSegment);
+    }
+
+    /**
+     * Replaces the entries of a source with those of the functions of the unit on the next commit.
+     */
+    public synchronized void put(final String source, final ParseTree unit) {
+        pending.remove(source);
+        pending.put(source, entries(source, unit));
+    }
+
+    /**
+     * Removes the entries of a source on the next commit.
+     */
+    public synchronized void remove(final String source) {
+        pending.remove(source);
+        pending.put(source, Collections.<Entry>emptyList());
+    }
+
+    /**
+     * Writes the pending changes as a new segment and schedules a merge if there are too many segments.
+     */
+    public synchronized void commit() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (final List<Entry> sourceEntries : pending.values()) {
+            entries.addAll(sourceEntries);
+        }
+
+        final String name = segmentName(nextSegment++);
+        writeSegment(new File(directory, name), pending.keySet(), entries);
+
+        final List<Segment> updated = new ArrayList<Segment>(segments);
+        updated.add(new Segment(new File(directory, name)));
+        writeManifest(updated);
+        segments = ImmutableList.copyOf(updated);
+        pending.clear();
+
+        if (segments.size() > mergeThreshold && !merging) {
+            merge();
+        }
+    }
+
+    /**
+     * Schedules a merge of all current segments into one.
+     */
+    public synchronized Future<Void> merge() {
+        merging = true;
+        return merger.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try {
+                            mergeSegments();
+                            return null;
+                        } catch (IOException | RuntimeException e) {
+                            LOGGER.warn("merging the segments of " + directory + " failed", e);
+                            throw e;
+                        } finally {
+                            synchronized (SymbolIndex.this) {
+                                merging = false;
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @return  the committed entries of the kind with the key, ordered by source and position
+     */
+    public List<Entry> find(final Kind kind, final String key) {
+        final byte[] keyBytes = SymbolPool.fold(key).getBytes(StandardCharsets.UTF_8);
+        final List<Segment> current = segments;
+        final List<Entry> found = new ArrayList<Entry>();
+        for (int i = current.size() - 1; i >= 0; i--) {
+            final Segment segment = current.get(i);
+            for (int entry = segment.lowerBound(kind, keyBytes);
+                    entry < segment.entryCount && segment.compare(entry, kind, keyBytes) == 0; entry++) {
+                final byte[] source = segment.bytes(segment.field(entry, 2));
+                if (!isShadowed(current, i, source)) {
+                    found.add(segment.entry(entry));
+                }
+            }
+        }
+
+        Collections.sort(found, ENTRY_ORDER);
+        return found;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Waits for a running merge; pending changes that were not committed are lost.
+     */
+    @Override
+    public void close() throws IOException {
+        merger.shutdown();
+        try {
+            if (!merger.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("merge of " + directory + " did not finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the merge of " + directory, e);
+        }
+    }
+
+    /**
+     * @return  the entries of the functions of a unit
+     */
+    static List<Entry> entries(final String source, final ParseTree unit) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (final PlPgSqlParser.PlFunctionContext function : FunctionExecutor.functions(unit)) {
+            final String name = SymbolPool.fold(function.functionName.getText());
+            entries.add(new Entry(Kind.DEFINITION, name, source, name,
+                    function.functionArgsList().functionArg().size(), function.functionName));
+
+            final List<Token> positions = new ArrayList<Token>();
+            final List<String> calls = CallGraph.calls(function, positions);
+            for (int i = 0; i < calls.size(); i++) {
+                entries.add(new Entry(Kind.CALL, calls.get(i), source, name, 0, positions.get(i)));
+            }
+
+            final TableIndex tables = new TableIndex();
+            for (final int access : tables.getAccesses(tables.add(function))) {
+                entries.add(new Entry(Kind.TABLE, tables.getTable(access), source, name,
+                        tables.getMode(access).ordinal() << 8 | tables.getStatement(access).ordinal(),
+                        tables.getLine(access), tables.getColumn(access)));
+            }
+
+            final SymbolTable symbols = SymbolTable.of(function);
+            for (int symbol = 0; symbol < symbols.getSymbolCount(); symbol++) {
+                if (symbols.getKind(symbol) != SymbolTable.Kind.LABEL) {
+                    entries.add(new Entry(Kind.VARIABLE, symbols.getName(symbol), source, name,
+                            symbols.getKind(symbol).ordinal(), symbols.getDeclaration(symbol).getStart()));
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    private void mergeSegments() throws IOException {
+        final List<Segment> merged = segments;
+        if (merged.size() < 2) {
+            return;
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        final Set<String> sources = new HashSet<String>();
+        for (int i = 0; i < merged.size(); i++) {
+            final Segment segment = merged.get(i);
+            for (int entry = 0; entry < segment.entryCount; entry++) {
+                final byte[] source = segment.bytes(segment.field(entry, 2));
+                if (!isShadowed(merged, i, source)) {
+                    final Entry value = segment.entry(entry);
+                    entries.add(value);
+                    sources.add(value.source);
+                }
+            }
+        }
+
+        final String name;
+        synchronized (this) {
+            name = segmentName(nextSegment++);
+        }
+
+        writeSegment(new File(directory, name), sources, entries);
+
+        final Segment segment = new Segment(new File(directory, name));
+        synchronized (this) {
+
+            // segments committed during the merge follow the merged one
+            final List<Segment> updated = new ArrayList<Segment>();
+            updated.add(segment);
+            updated.addAll(segments.subList(merged.size(), segments.size()));
+            writeManifest(updated);
+            segments = ImmutableList.copyOf(updated);
+        }
+
+        // mapped buffers stay valid after their files are deleted
+        for (final Segment old : merged) {
+            if (!old.file.delete()) {
+                LOGGER.warn("cannot delete merged segment {}", old.file);
+            }
+        }
+
+        LOGGER.debug("merged {} segments into {} with {} entries", new Object[] {merged.size(), name, entries.size()});
+    }
+
+    /**
+     * @return  whether a segment newer than the given one lists the source
+     */
+    private static boolean isShadowed(final List<Segment> segments, final int segment, final byte[] source) {
+        for (int i = segment + 1; i < segments.size(); i++) {
+            if (segments.get(i).containsSource(source)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void writeManifest(final List<Segment> updated) throws IOException {
+        final StringBuilder manifest = new StringBuilder();
+        for (final Segment segment : updated) {
+            manifest.append(segment.file.getName()).append('\n');
+        }
+
+        final File temporary = new File(directory, MANIFEST + ".tmp");
+        write(temporary, ByteBuffer.wrap(manifest.toString().getBytes(StandardCharsets.UTF_8)));
+        Files.move(temporary.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Segment layout: the header, the sorted offsets of the source names, the sorted entries and the strings, each a
+     * length followed by its UTF-8 bytes. The string fields of an entry are offsets into the file.
+     */
+    private static void writeSegment(final File file, final Set<String> sources, final List<Entry> entries)
+        throws IOException {
+        final Map<String, byte[]> encoded = new HashMap<String, byte[]>();
+        final List<byte[]> sortedSources = new ArrayList<byte[]>();
+        for (final String source : sources) {
+            sortedSources.add(encode(source, encoded));
+        }
+
+        Collections.sort(sortedSources, BYTES_ORDER);
+
+        final byte[][] keys = new byte[entries.size()][];
+        final Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            final Entry entry = entries.get(i);
+            keys[i] = encode(entry.key, encoded);
+            encode(entry.source, encoded);
+            encode(entry.function, encoded);
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer a, final Integer b) {
+                    final int kinds = entries.get(a).kind.compareTo(entries.get(b).kind);
+                    return kinds != 0 ? kinds : BYTES_ORDER.compare(keys[a], keys[b]);
+                }
+            });
+
+        final int stringsOffset = SEGMENT_HEADER_SIZE + sortedSources.size() * 4 + entries.size() * ENTRY_SIZE;
+        final Map<String, Integer> offsets = new HashMap<String, Integer>();
+        int size = stringsOffset;
+        for (final Map.Entry<String, byte[]> string : encoded.entrySet()) {
+            offsets.put(string.getKey(), size);
+            size += 4 + string.getValue().length;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(SEGMENT_MAGIC).putInt(FORMAT_VERSION).putInt(entries.size()).putInt(sortedSources.size());
+        for (final byte[] source : sortedSources) {
+            buffer.putInt(offsets.get(new String(source, StandardCharsets.UTF_8)));
+        }
+
+        for (final int i : order) {
+            final Entry entry = entries.get(i);
+            buffer.putInt(entry.kind.ordinal()).putInt(offsets.get(entry.key)).putInt(offsets.get(entry.source));
+            buffer.putInt(offsets.get(entry.function)).putInt(entry.detail).putInt(entry.line).putInt(entry.column);
+        }
+
+        for (final Map.Entry<String, byte[]> string : encoded.entrySet()) {
+            buffer.putInt(string.getValue().length).put(string.getValue());
+        }
+
+        buffer.flip();
+        write(file, buffer);
+    }
+
+    private static byte[] encode(final String string, final Map<String, byte[]> encoded) {
+        byte[] bytes = encoded.get(string);
+        if (bytes == null) {
+            bytes = string.getBytes(StandardCharsets.UTF_8);
+            encoded.put(string, bytes);
+        }
+
+        return bytes;
+    }
+
+    private static void write(final File file, final ByteBuffer data) throws IOException {
+        try(final FileOutputStream out = new FileOutputStream(file)) {
+            final FileChannel channel = out.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+
+            channel.force(true);
+        }
+    }
+
+    private static String segmentName(final int number) {
+        return String.format("segment-%06d%s", number, SEGMENT_SUFFIX);
+    }
+
+    private static int segmentNumber(final String name) {
+        try {
+            return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * An indexed name with its position in a source.
+     */
+    public static final class Entry {
+        private final Kind kind;
+        private final String key;
+        private final String source;
+        private final String function;
+        private final int detail;
+        private final int line;
+        private final int column;
+
+        Entry(final Kind kind, final String key, final String source, final String function, final int detail,
+                final Token position) {
+            this(kind, key, source, function, detail, position.getLine(), position.getCharPositionInLine());
+        }
+
+        Entry(final Kind kind, final String key, final String source, final String function, final int detail,
+                final int line, final int column) {
+            this.kind = kind;
+            this.key = key;
+            this.source = source;
+            this.function = function;
+            this.detail = detail;
+            this.line = line;
+            this.column = column;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return  the folded name of the function containing the entry
+         */
+        public String getFunction() {
+            return function;
+        }
+
+        /**
+         * @return  the kind specific detail, see {@link Kind}
+         */
+        public int getDetail() {
+            return detail;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        public TableIndex.Mode getTableMode() {
+            Preconditions.checkState(kind == Kind.TABLE, "not a table entry");
+            return TableIndex.Mode.values()[detail >>> 8];
+        }
+
+        public TableIndex.Statement getTableStatement() {
+            Preconditions.checkState(kind == Kind.TABLE, "not a table entry");
+            return TableIndex.Statement.values()[detail & 0xff];
+        }
+
+        public SymbolTable.Kind getVariableKind() {
+            Preconditions.checkState(kind == Kind.VARIABLE, "not a variable entry");
+            return SymbolTable.Kind.values()[detail];
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + key + " in " + function + " at " + source + ':' + line + ':' + column;
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final ByteBuffer buffer;
+        private final int entryCount;
+        private final int sourceCount;
+
+        Segment(final File file) throws IOException {
+            this.file = file;
+            try(final RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            if (buffer.limit() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != SEGMENT_MAGIC) {
+                throw new IOException("not a symbol index segment: " + file);
+            }
+
+            if (buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("unsupported segment version " + buffer.getInt(4) + " in " + file);
+            }
+
+            entryCount = buffer.getInt(8);
+            sourceCount = buffer.getInt(12);
+        }
+
+        int field(final int entry, final int field) {
+            return buffer.getInt(SEGMENT_HEADER_SIZE + sourceCount * 4 + entry * ENTRY_SIZE + field * 4);
+        }
+
+        byte[] bytes(final int offset) {
+            final byte[] bytes = new byte[buffer.getInt(offset)];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(offset + 4);
+            view.get(bytes);
+            return bytes;
+        }
+
+        String string(final int offset) {
+            return new String(bytes(offset), StandardCharsets.UTF_8);
+        }
+
+        Entry entry(final int entry) {
+            return new Entry(KINDS[field(entry, 0)], string(field(entry, 1)), string(field(entry, 2)),
+                    string(field(entry, 3)), field(entry, 4), field(entry, 5), field(entry, 6));
+        }
+
+        /**
+         * @return  the order of the entry relative to the kind and key
+         */
+        int compare(final int entry, final Kind kind, final byte[] key) {
+            final int kinds = field(entry, 0) - kind.ordinal();
+            return kinds != 0 ? kinds : compareString(field(entry, 1), key);
+        }
+
+        int lowerBound(final Kind kind, final byte[] key) {
+            int low = 0;
+            int high = entryCount;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (compare(middle, kind, key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        boolean containsSource(final byte[] source) {
+            int low = 0;
+            int high = sourceCount - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int order = compareString(buffer.getInt(SEGMENT_HEADER_SIZE + middle * 4), source);
+                if (order == 0) {
+                    return true;
+                } else if (order < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            return false;
+        }
+
+        private int compareString(final int offset, final byte[] other) {
+            final int length = buffer.getInt(offset);
+            final int common = Math.min(length, other.length);
+            for (int i = 0; i < common; i++) {
+                final int a = buffer.get(offset + 4 + i) & 0xff;
+                final int b = other[i] & 0xff;
+                if (a != b) {
+                    return a - b;
+                }
+            }
+
+            return length - other.length;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Shared table of identifier and type names. Names are folded to lower case like PostgreSQL does for unquoted
+ * identifiers and every folded name gets a dense symbol id, so that {@code Customer_Id} and {@code customer_id} map to
+ * the same id. The exact spellings are interned as well, identical token texts of all parses share one string.
+ *
+ * <p/>Install the pool with {@link ParseUtil#parse(java.io.InputStream, SymbolPool)}; tokens of the types accepted by
+ * {@link #isSymbolType(int)} are then created as {@link SymbolToken}s. The pool is thread-safe and meant to be shared
+ * across parses.
+ */
+public final class SymbolPool {
+
+    public static final int NO_SYMBOL = -1;
+
+    private final ConcurrentMap<String, Integer> symbols = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, Spelling> spellings = new ConcurrentHashMap<String, Spelling>();
+    private final TokenFactory<CommonToken> tokenFactory = new InterningTokenFactory();
+
+    private volatile String[] names = new String[256];
+    private int size;
+
+    public static boolean isSymbolType(final int tokenType) {
+        switch (tokenType) {
+
+            case PlPgSqlLexer.ID :
+            case PlPgSqlLexer.QNAME :
+            case PlPgSqlLexer.ARRAY_TYPE :
+            case PlPgSqlLexer.COPY_TYPE :
+            case PlPgSqlLexer.ROW_TYPE :
+                return true;
+
+            default :
+                return false;
+        }
+    }
+
+    public static String fold(final String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return  the symbol id of the token or {@link #NO_SYMBOL} if it was not created by a pool
+     */
+    public static int symbolOf(final Token token) {
+        return token instanceof SymbolToken ? ((SymbolToken) token).getSymbol() : NO_SYMBOL;
+    }
+
+    public static int symbolOf(final ParseTree node) {
+        return node instanceof TerminalNode ? symbolOf(((TerminalNode) node).getSymbol()) : NO_SYMBOL;
+    }
+
+    public int intern(final String name) {
+        return spelling(name).symbol;
+    }
+
+    /**
+     * @return  the symbol id of the name or {@link #NO_SYMBOL} if it was never interned
+     */
+    public int lookup(final String name) {
+        final Spelling spelling = spellings.get(name);
+        if (spelling != null) {
+            return spelling.symbol;
+        }
+
+        final Integer symbol = symbols.get(fold(name));
+        return symbol == null ? NO_SYMBOL : symbol;
+    }
+
+    /**
+     * @return  the folded name of the symbol
+     */
+    public String getName(final int symbol) {
+        return names[symbol];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public TokenFactory<CommonToken> getTokenFactory() {
+        return tokenFactory;
+    }
+
+    private Spelling spelling(final String text) {
+        Spelling spelling = spellings.get(text);
+        if (spelling == null) {
+            spelling = new Spelling(text, symbol(fold(text)));
+
+            final Spelling previous = spellings.putIfAbsent(text, spelling);
+            if (previous != null) {
+                spelling = previous;
+            }
+        }
+
+        return spelling;
+    }
+
+    private int symbol(final String folded) {
+        final Integer existing = symbols.get(folded);
+        if (existing != null) {
+            return existing;
+        }
+
+        synchronized (this) {
+            final Integer raced = symbols.get(folded);
+            if (raced != null) {
+                return raced;
+            }
+
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+            }
+
+            // the name is stored before the id is published through the map
+            final int symbol = size++;
+            names[symbol] = folded;
+            symbols.put(folded, symbol);
+            return symbol;
+        }
+    }
+
+    private static final class Spelling {
+        private final String text;
+        private final int symbol;
+
+        Spelling(final String text, final int symbol) {
+            this.text = text;
+            this.symbol = symbol;
+        }
+    }
+
+    private final class InterningTokenFactory implements TokenFactory<CommonToken> {
+
+        @Override
+        public CommonToken create(final Pair<TokenSource, CharStream> source, final int type, final String text,
+                final int channel, final int start, final int stop, final int line, final int charPositionInLine) {
+            final CommonToken token;
+            if (text == null && isSymbolType(type) && source.b != null) {
+                final Spelling spelling = spelling(source.b.getText(Interval.of(start, stop)));
+                token = new SymbolToken(source, type, channel, start, stop, spelling.symbol);
+                token.setText(spelling.text);
+            } else {
+                token = new CommonToken(source, type, channel, start, stop);
+                if (text != null) {
+                    token.setText(text);
+                }
+            }
+
+            token.setLine(line);
+            token.setCharPositionInLine(charPositionInLine);
+            return token;
+        }
+
+        @Override
+        public CommonToken create(final int type, final String text) {
+            return new CommonToken(type, text);
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Scopes and symbols of a function, with every name in its body resolved to its declaration. The scope tree is built
+ * and all names are resolved in one traversal; the results are kept in an int array indexed by token, so
+ * {@link #resolve(Token)} is a single array access.
+ *
+ * <p/>The function is the outermost scope, holding the arguments and labelled with the function name; every block
+ * statement and every loop opens a nested scope. Declarations are visible from the end of their declaration to the
+ * end of their scope and shadow those of enclosing scopes; the variable of an integer for loop is only visible inside
+ * the loop, the targets of the other for loops are existing variables. Loop labels are resolved separately from
+ * variables, a qualified name {@code label.name} refers to a variable of the labelled scope.
+ *
+ * <p/>References are the {@code varExpr} nodes, the targets of {@code INTO} clauses, the variables named by alias
+ * declarations and the labels of {@code EXIT}, {@code CONTINUE} and {@code END LOOP}. Names resolving to an alias
+ * resolve to the aliased symbol; names of table columns and other unknown names resolve to {@link #NONE}.
+ */
+public final class SymbolTable {
+
+    public static final int NONE = -1;
+
+    public enum Kind {
+        ARGUMENT,
+        VARIABLE,
+        ALIAS,
+        LOOP_VARIABLE,
+        LABEL
+    }
+
+    private final PlPgSqlParser.PlFunctionContext function;
+
+    private final ParserRuleContext[] scopeNodes;
+    private final int[] scopeParents;
+
+    private final String[] names;
+    private final Kind[] kinds;
+    private final int[] scopes;
+    private final ParserRuleContext[] declarations;
+    private final int[] aliasTargets;
+    private final int[] arguments;
+
+    // symbol of the declaring or referencing token, indexed by token index - tokenOffset
+    private final int tokenOffset;
+    private final int[] tokenSymbols;
+
+    private final Token[] references;
+    private final int[] referenceSymbols;
+
+    // CSR layout, the references of every symbol
+    private final int[] symbolReferenceOffsets;
+    private final int[] symbolReferences;
+
+    private SymbolTable(final Builder builder) {
+        function = builder.function;
+        scopeNodes = builder.scopeNodes.toArray(new ParserRuleContext[builder.scopeNodes.size()]);
+        scopeParents = builder.scopeParents.toArray();
+        names = builder.names.toArray(new String[builder.names.size()]);
+        kinds = builder.kinds.toArray(new Kind[builder.kinds.size()]);
+        scopes = builder.scopes.toArray();
+        declarations = builder.declarations.toArray(new ParserRuleContext[builder.declarations.size()]);
+        aliasTargets = builder.aliasTargets.toArray();
+        arguments = builder.arguments.toArray();
+        tokenOffset = builder.tokenOffset;
+        tokenSymbols = builder.tokenSymbols;
+        references = builder.references.toArray(new Token[builder.references.size()]);
+        referenceSymbols = builder.referenceSymbols.toArray();
+
+        symbolReferenceOffsets = new int[names.length + 1];
+        for (final int symbol : referenceSymbols) {
+            if (symbol != NONE) {
+                symbolReferenceOffsets[symbol + 1]++;
+            }
+        }
+
+        for (int symbol = 0; symbol < names.length; symbol++) {
+            symbolReferenceOffsets[symbol + 1] += symbolReferenceOffsets[symbol];
+        }
+
+        final int[] fill = Arrays.copyOf(symbolReferenceOffsets, names.length);
+        symbolReferences = new int[symbolReferenceOffsets[names.length]];
+        for (int reference = 0; reference < referenceSymbols.length; reference++) {
+            if (referenceSymbols[reference] != NONE) {
+                symbolReferences[fill[referenceSymbols[reference]]++] = reference;
+            }
+        }
+    }
+
+    /**
+     * @throws  IllegalArgumentException  if the tokens of the function carry no token index
+     */
+    public static SymbolTable of(final PlPgSqlParser.PlFunctionContext function) {
+        return new SymbolTable(new Builder(function));
+    }
+
+    public PlPgSqlParser.PlFunctionContext getFunction() {
+        return function;
+    }
+
+    public int getScopeCount() {
+        return scopeNodes.length;
+    }
+
+    /**
+     * @return  the function, block statement or loop of the scope
+     */
+    public ParserRuleContext getScopeNode(final int scope) {
+        return scopeNodes[scope];
+    }
+
+    /**
+     * @return  the enclosing scope, or {@link #NONE} for the function
+     */
+    public int getParentScope(final int scope) {
+        return scopeParents[scope];
+    }
+
+    public int getSymbolCount() {
+        return names.length;
+    }
+
+    /**
+     * @return  the folded name of the symbol
+     */
+    public String getName(final int symbol) {
+        return names[symbol];
+    }
+
+    public Kind getKind(final int symbol) {
+        return kinds[symbol];
+    }
+
+    public int getScope(final int symbol) {
+        return scopes[symbol];
+    }
+
+    /**
+     * @return  the {@code functionArg}, {@code varDeclaration}, {@code aliasDeclaration}, the {@code varExpr} of an
+     *          integer for loop, or the labelled loop or function
+     */
+    public ParserRuleContext getDeclaration(final int symbol) {
+        return declarations[symbol];
+    }
+
+    /**
+     * @return  the symbol an alias stands for, or {@link #NONE} if the symbol is no alias or aliases an unknown name
+     */
+    public int getAliasTarget(final int symbol) {
+        return aliasTargets[symbol];
+    }
+
+    /**
+     * @return  the symbol of the argument at the zero-based position, as referenced by {@code $n}
+     */
+    public int getArgument(final int position) {
+        return arguments[position];
+    }
+
+    public int getArgumentCount() {
+        return arguments.length;
+    }
+
+    /**
+     * @return  the symbol declared or referenced by the token, or {@link #NONE}
+     */
+    public int resolve(final Token token) {
+        final int index = token.getTokenIndex() - tokenOffset;
+        return index >= 0 && index < tokenSymbols.length ? tokenSymbols[index] : NONE;
+    }
+
+    public int resolve(final PlPgSqlParser.VarExprContext varExpr) {
+        return resolve(varExpr.getStart());
+    }
+
+    public int getReferenceCount() {
+        return references.length;
+    }
+
+    public Token getReferenceToken(final int reference) {
+        return references[reference];
+    }
+
+    /**
+     * @return  the symbol the reference resolves to, or {@link #NONE}
+     */
+    public int getReferenceSymbol(final int reference) {
+        return referenceSymbols[reference];
+    }
+
+    /**
+     * @return  the references resolving to the symbol, ascending
+     */
+    public int[] getReferences(final int symbol) {
+        return Arrays.copyOfRange(symbolReferences, symbolReferenceOffsets[symbol], symbolReferenceOffsets[symbol + 1]);
+    }
+
+    /**
+     * @return  whether no reference resolves to the symbol
+     */
+    public boolean isUnused(final int symbol) {
+        return symbolReferenceOffsets[symbol] == symbolReferenceOffsets[symbol + 1];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int symbol = 0; symbol < names.length; symbol++) {
+            sb.append(symbol).append(' ').append(kinds[symbol]).append(' ').append(names[symbol]).append(" in ")
+              .append(scopes[symbol]);
+            if (aliasTargets[symbol] != NONE) {
+                sb.append(" for ").append(aliasTargets[symbol]);
+            }
+
+            sb.append(" referenced ").append(symbolReferenceOffsets[symbol + 1] - symbolReferenceOffsets[symbol])
+              .append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Walks the function body once in preorder, declaring and resolving names in the scope each node is visited in.
+     */
+    private static final class Builder {
+        private final PlPgSqlParser.PlFunctionContext function;
+
+        private final List<ParserRuleContext> scopeNodes = new ArrayList<ParserRuleContext>();
+        private final IntList scopeParents = new IntList();
+        private final IntList scopeLabels = new IntList();
+
+        // visible variables of every scope by folded name, filled while walking
+        private final List<Map<String, Integer>> scopeVariables = new ArrayList<Map<String, Integer>>();
+
+        private final List<String> names = new ArrayList<String>();
+        private final List<Kind> kinds = new ArrayList<Kind>();
+        private final IntList scopes = new IntList();
+        private final List<ParserRuleContext> declarations = new ArrayList<ParserRuleContext>();
+        private final IntList aliasTargets = new IntList();
+        private final IntList arguments = new IntList();
+
+        private final int tokenOffset;
+        private final int[] tokenSymbols;
+
+        private final List<Token> references = new ArrayList<Token>();
+        private final IntList referenceSymbols = new IntList();
+
+        Builder(final PlPgSqlParser.PlFunctionContext function) {
+            this.function = function;
+            tokenOffset = function.getStart().getTokenIndex();
+            Preconditions.checkArgument(tokenOffset >= 0, "tokens of the function carry no token index");
+            tokenSymbols = new int[function.getStop().getTokenIndex() - tokenOffset + 1];
+            Arrays.fill(tokenSymbols, NONE);
+
+            final int root = scope(function, NONE);
+            label(function.functionName, function, root);
+            for (final PlPgSqlParser.FunctionArgContext arg : function.functionArgsList().functionArg()) {
+                arguments.add(declare(arg.argName, Kind.ARGUMENT, arg, root));
+            }
+
+            final Deque<ParserRuleContext> stack = new ArrayDeque<ParserRuleContext>();
+            final IntList treeScopes = new IntList();
+            stack.push(function.functionBody());
+            treeScopes.add(root);
+            while (!stack.isEmpty()) {
+                final ParserRuleContext context = stack.pop();
+                int scope = treeScopes.removeLast();
+                if (scope < 0) {
+
+                    // leaving a declaration, it is visible from now on
+                    final PlPgSqlParser.VarDeclarationContext declaration = (PlPgSqlParser.VarDeclarationContext)
+                        context;
+                    declare(declaration.varName, Kind.VARIABLE, declaration, ~scope);
+                    continue;
+                }
+
+                if (context instanceof PlPgSqlParser.BlockStmtContext) {
+                    scope = scope(context, scope);
+                } else if (isLoop(context)) {
+                    scope = scope(context, scope);
+
+                    final Token first = loopLabel(context, true);
+                    final Token last = loopLabel(context, false);
+                    if (first != null || last != null) {
+                        label(first != null ? first : last, context, scope);
+                    }
+
+                    if (first != null && last != null) {
+                        reference(last, resolveLabel(last.getText(), scope));
+                    }
+                } else if (context instanceof PlPgSqlParser.StmtsContext
+                        && context.getParent() instanceof PlPgSqlParser.ForInIntStmtContext) {
+
+                    // the variable of an integer loop becomes visible in the loop body
+                    final PlPgSqlParser.VarExprContext variable = ((PlPgSqlParser.ForInIntStmtContext)
+                            context.getParent()).varExpr();
+                    declare(variable.getStart(), Kind.LOOP_VARIABLE, variable, scope);
+                } else if (context instanceof PlPgSqlParser.VarDeclarationContext) {
+                    stack.push(context);
+                    treeScopes.add(~scope);
+                } else if (context instanceof PlPgSqlParser.AliasDeclarationContext) {
+                    final PlPgSqlParser.AliasDeclarationContext alias = (PlPgSqlParser.AliasDeclarationContext)
+                        context;
+                    final int target = resolveVariable(alias.oldVarName, scope);
+                    reference(alias.oldVarName, target);
+                    aliasTargets.set(declare(alias.newVarName, Kind.ALIAS, alias, scope), target);
+                    continue;
+                } else if (context instanceof PlPgSqlParser.VarExprContext) {
+                    if (!(context.getParent() instanceof PlPgSqlParser.ForInIntStmtContext)) {
+                        reference(context.getStart(), resolveVariable(context.getStart(), scope));
+                    }
+
+                    continue;
+                } else if (context instanceof PlPgSqlParser.IntoClauseContext) {
+                    for (final TerminalNode target : ((PlPgSqlParser.IntoClauseContext) context).ID()) {
+                        reference(target.getSymbol(), resolveVariable(target.getSymbol(), scope));
+                    }
+
+                    continue;
+                } else if (context instanceof PlPgSqlParser.ExecuteIntoTargetContext) {
+                    final Token target = ((PlPgSqlParser.ExecuteIntoTargetContext) context).target;
+                    reference(target, resolveVariable(target, scope));
+                    continue;
+                } else if (context instanceof PlPgSqlParser.ReturningIntoTargetContext) {
+                    final Token target = ((PlPgSqlParser.ReturningIntoTargetContext) context).target;
+                    reference(target, resolveVariable(target, scope));
+                    continue;
+                } else if (context instanceof PlPgSqlParser.ExitStmtContext) {
+                    final Token target = ((PlPgSqlParser.ExitStmtContext) context).targetLabel;
+                    if (target != null) {
+                        reference(target, resolveLabel(target.getText(), scope));
+                    }
+                } else if (context instanceof PlPgSqlParser.ContinueStmtContext) {
+                    final Token target = ((PlPgSqlParser.ContinueStmtContext) context).targetLabel;
+                    if (target != null) {
+                        reference(target, resolveLabel(target.getText(), scope));
+                    }
+                }
+
+                for (int i = context.getChildCount() - 1; i >= 0; i--) {
+                    final ParseTree child = context.getChild(i);
+                    if (child instanceof ParserRuleContext) {
+                        stack.push((ParserRuleContext) child);
+                        treeScopes.add(scope);
+                    }
+                }
+            }
+        }
+
+        private static boolean isLoop(final ParserRuleContext context) {
+            return context instanceof PlPgSqlParser.LoopStmtContext
+                    || context instanceof PlPgSqlParser.WhileStmtContext
+                    || context instanceof PlPgSqlParser.ForInIntStmtContext
+                    || context instanceof PlPgSqlParser.ForInQueryStmtContext
+                    || context instanceof PlPgSqlParser.ForInExecuteStmtContext
+                    || context instanceof PlPgSqlParser.ForEachStmtContext;
+        }
+
+        private static Token loopLabel(final ParserRuleContext loop, final boolean first) {
+            if (loop instanceof PlPgSqlParser.LoopStmtContext) {
+                final PlPgSqlParser.LoopStmtContext stmt = (PlPgSqlParser.LoopStmtContext) loop;
+                return first ? stmt.firstLabel : stmt.lastLabel;
+            } else if (loop instanceof PlPgSqlParser.WhileStmtContext) {
+                final PlPgSqlParser.WhileStmtContext stmt = (PlPgSqlParser.WhileStmtContext) loop;
+                return first ? stmt.firstLabel : stmt.lastLabel;
+            } else if (loop instanceof PlPgSqlParser.ForInIntStmtContext) {
+                final PlPgSqlParser.ForInIntStmtContext stmt = (PlPgSqlParser.ForInIntStmtContext) loop;
+                return first ? stmt.firstLabel : stmt.lastLabel;
+            } else if (loop instanceof PlPgSqlParser.ForInQueryStmtContext) {
+                final PlPgSqlParser.ForInQueryStmtContext stmt = (PlPgSqlParser.ForInQueryStmtContext) loop;
+                return first ? stmt.firstLabel : stmt.lastLabel;
+            } else if (loop instanceof PlPgSqlParser.ForInExecuteStmtContext) {
+                final PlPgSqlParser.ForInExecuteStmtContext stmt = (PlPgSqlParser.ForInExecuteStmtContext) loop;
+                return first ? stmt.firstLabel : stmt.lastLabel;
+            } else {
+                final PlPgSqlParser.ForEachStmtContext stmt = (PlPgSqlParser.ForEachStmtContext) loop;
+                return first ? stmt.firstLabel : stmt.lastLabel;
+            }
+        }
+
+        private int scope(final ParserRuleContext node, final int parent) {
+            scopeNodes.add(node);
+            scopeParents.add(parent);
+            scopeLabels.add(NONE);
+            scopeVariables.add(null);
+            return scopeNodes.size() - 1;
+        }
+
+        private void label(final Token token, final ParserRuleContext node, final int scope) {
+            final int symbol = symbol(token, Kind.LABEL, node, scope);
+            scopeLabels.set(scope, symbol);
+        }
+
+        private int declare(final Token token, final Kind kind, final ParserRuleContext node, final int scope) {
+            final int symbol = symbol(token, kind, node, scope);
+            Map<String, Integer> variables = scopeVariables.get(scope);
+            if (variables == null) {
+                variables = new HashMap<String, Integer>();
+                scopeVariables.set(scope, variables);
+            }
+
+            variables.put(names.get(symbol), symbol);
+            return symbol;
+        }
+
+        private int symbol(final Token token, final Kind kind, final ParserRuleContext node, final int scope) {
+            final int symbol = names.size();
+            names.add(SymbolPool.fold(token.getText()));
+            kinds.add(kind);
+            scopes.add(scope);
+            declarations.add(node);
+            aliasTargets.add(NONE);
+            tokenSymbols[token.getTokenIndex() - tokenOffset] = symbol;
+            return symbol;
+        }
+
+        private void reference(final Token token, final int symbol) {
+            references.add(token);
+            referenceSymbols.add(symbol);
+            tokenSymbols[token.getTokenIndex() - tokenOffset] = symbol;
+        }
+
+        /**
+         * Resolves an identifier, the first part of a qualified name or the qualified name of a variable in a
+         * labelled scope, and an anonymous parameter; aliases are followed.
+         */
+        private int resolveVariable(final Token token, final int scope) {
+            final String text = token.getText();
+            if (token.getType() == PlPgSqlParser.ANONYMOUS_PARAMETER) {
+                final int position = Integer.parseInt(text.substring(1)) - 1;
+                return position < arguments.size() ? arguments.get(position) : NONE;
+            }
+
+            final int dot = text.indexOf('.');
+            final String first = SymbolPool.fold(dot < 0 ? text : text.substring(0, dot));
+            final int secondDot = dot < 0 ? -1 : text.indexOf('.', dot + 1);
+            final String second = dot < 0 ? null
+                                           : SymbolPool.fold(secondDot < 0 ? text.substring(dot + 1)
+                                                                           : text.substring(dot + 1, secondDot));
+            for (int s = scope; s != NONE; s = scopeParents.get(s)) {
+                Integer symbol = lookup(s, first);
+                if (symbol == null && second != null && scopeLabels.get(s) != NONE
+                        && names.get(scopeLabels.get(s)).equals(first)) {
+                    symbol = lookup(s, second);
+                }
+
+                if (symbol != null) {
+                    return kinds.get(symbol) == Kind.ALIAS ? aliasTargets.get(symbol) : symbol;
+                }
+            }
+
+            return NONE;
+        }
+
+        private Integer lookup(final int scope, final String name) {
+            final Map<String, Integer> variables = scopeVariables.get(scope);
+            return variables == null ? null : variables.get(name);
+        }
+
+        private int resolveLabel(final String name, final int scope) {
+            final String folded = SymbolPool.fold(name);
+            for (int s = scope; s != NONE; s = scopeParents.get(s)) {
+                if (scopeLabels.get(s) != NONE && names.get(scopeLabels.get(s)).equals(folded)) {
+                    return scopeLabels.get(s);
+                }
+            }
+
+            return NONE;
+        }
+    }
+}
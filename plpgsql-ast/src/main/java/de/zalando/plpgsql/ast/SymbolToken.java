@@ -0,0 +1,26 @@
+package de.zalando.plpgsql.ast;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
+
+/**
+ * Identifier or type name token carrying the id of its folded name in a {@link SymbolPool}. Two symbol tokens of the
+ * same pool name the same object iff their symbol ids are equal.
+ */
+public class SymbolToken extends CommonToken {
+    private static final long serialVersionUID = 1L;
+
+    private final int symbol;
+
+    public SymbolToken(final Pair<TokenSource, CharStream> source, final int type, final int channel, final int start,
+            final int stop, final int symbol) {
+        super(source, type, channel, start, stop);
+        this.symbol = symbol;
+    }
+
+    public int getSymbol() {
+        return symbol;
+    }
+}
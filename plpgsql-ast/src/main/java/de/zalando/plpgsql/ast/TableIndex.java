@@ -0,0 +1,372 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Tables read and written by the functions of a corpus, with an inverted index from table to accesses.
+ *
+ * <p/>Reads are the tables of {@code FROM} clauses, joins and {@code DELETE ... USING}, writes the tables of
+ * {@code INSERT}, {@code UPDATE} and {@code DELETE}, locks those of {@code FOR UPDATE} and {@code FOR SHARE}, which
+ * lock all tables of their select unless they name some. Names of {@code WITH} queries are not tables, the tables
+ * read by them are. Every access records the statement it belongs to and the position of the table name.
+ *
+ * <p/>Table names are folded and kept as written, a lookup of a qualified name also finds the accesses of the
+ * unqualified one. Functions are only added, overloads are separate functions.
+ */
+public final class TableIndex {
+
+    public enum Mode {
+        READ,
+        WRITE,
+        LOCK
+    }
+
+    /**
+     * The kind of the outermost statement around an access, {@code EXPRESSION} for queries inside expressions of other
+     * statements, e.g. of an {@code IF}.
+     */
+    public enum Statement {
+        SELECT,
+        PERFORM,
+        INSERT,
+        UPDATE,
+        DELETE,
+        FOR_QUERY,
+        RETURN_QUERY,
+        EXPRESSION
+    }
+
+    private static final Mode[] MODES = Mode.values();
+    private static final Statement[] STATEMENTS = Statement.values();
+
+    private final List<String> functionNames = new ArrayList<String>();
+    private final IntList functionOffsets = new IntList();
+
+    private final Map<String, Integer> tableIds = new HashMap<String, Integer>();
+    private final List<String> tableNames = new ArrayList<String>();
+    private final List<IntList> postings = new ArrayList<IntList>();
+
+    // one entry per access
+    private final IntList functions = new IntList();
+    private final IntList tables = new IntList();
+    private final IntList kinds = new IntList();
+    private final IntList lines = new IntList();
+    private final IntList columns = new IntList();
+
+    public TableIndex() {
+        functionOffsets.add(0);
+    }
+
+    /**
+     * @return  the number of the function
+     */
+    public int add(final PlPgSqlParser.PlFunctionContext function) {
+        final int number = functionNames.size();
+        final List<ParserRuleContext> stack = new ArrayList<ParserRuleContext>();
+        stack.add(function.functionBody());
+        while (!stack.isEmpty()) {
+            final ParserRuleContext node = stack.remove(stack.size() - 1);
+            if (node instanceof PlPgSqlParser.FromTableContext) {
+                read(number, ((PlPgSqlParser.FromTableContext) node).tableName, node);
+            } else if (node instanceof PlPgSqlParser.JoinContext) {
+                read(number, joinTable((PlPgSqlParser.JoinContext) node), node);
+            } else if (node instanceof PlPgSqlParser.DeleteUsingTableContext) {
+                read(number, ((PlPgSqlParser.DeleteUsingTableContext) node).tableName, node);
+            } else if (node instanceof PlPgSqlParser.InsertContext) {
+                access(number, ((PlPgSqlParser.InsertContext) node).table, Mode.WRITE, node);
+            } else if (node instanceof PlPgSqlParser.UpdateContext) {
+                access(number, ((PlPgSqlParser.UpdateContext) node).table, Mode.WRITE, node);
+            } else if (node instanceof PlPgSqlParser.DeleteContext) {
+                access(number, ((PlPgSqlParser.DeleteContext) node).table, Mode.WRITE, node);
+            } else if (node instanceof PlPgSqlParser.ForClauseContext) {
+                lock(number, (PlPgSqlParser.ForClauseContext) node);
+            }
+
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                if (node.getChild(i) instanceof ParserRuleContext) {
+                    stack.add((ParserRuleContext) node.getChild(i));
+                }
+            }
+        }
+
+        functionNames.add(SymbolPool.fold(function.functionName.getText()));
+        functionOffsets.add(functions.size());
+        return number;
+    }
+
+    /**
+     * Adds all functions of a unit.
+     */
+    public TableIndex addAll(final ParseTree unit) {
+        for (final PlPgSqlParser.PlFunctionContext function : FunctionExecutor.functions(unit)) {
+            add(function);
+        }
+
+        return this;
+    }
+
+    public int getFunctionCount() {
+        return functionNames.size();
+    }
+
+    /**
+     * @return  the folded name of the function
+     */
+    public String getFunctionName(final int function) {
+        return functionNames.get(function);
+    }
+
+    /**
+     * @return  the folded names of all accessed tables
+     */
+    public Set<String> getTables() {
+        return Collections.unmodifiableSet(tableIds.keySet());
+    }
+
+    public int getAccessCount() {
+        return functions.size();
+    }
+
+    /**
+     * @return  the accesses of the function in tree order
+     */
+    public int[] getAccesses(final int function) {
+        final int first = functionOffsets.get(function);
+        final int[] accesses = new int[functionOffsets.get(function + 1) - first];
+        for (int i = 0; i < accesses.length; i++) {
+            accesses[i] = first + i;
+        }
+
+        return accesses;
+    }
+
+    /**
+     * @return  the accesses of the table, ascending
+     */
+    public int[] getAccesses(final String table) {
+        final String name = SymbolPool.fold(table);
+        final IntList qualified = postings(name);
+        final int dot = name.lastIndexOf('.');
+        final IntList unqualified = dot < 0 ? null : postings(name.substring(dot + 1));
+        if (unqualified == null) {
+            return qualified == null ? new int[0] : qualified.toArray();
+        }
+
+        return qualified == null ? unqualified.toArray() : merge(qualified.toArray(), unqualified.toArray());
+    }
+
+    /**
+     * @return  the functions accessing the table in the mode, ascending
+     */
+    public int[] getFunctions(final String table, final Mode mode) {
+        final IntList result = new IntList();
+        for (final int access : getAccesses(table)) {
+            final int function = functions.get(access);
+            if (getMode(access) == mode && (result.size() == 0 || result.get(result.size() - 1) != function)) {
+                result.add(function);
+            }
+        }
+
+        return result.toArray();
+    }
+
+    public int getFunction(final int access) {
+        return functions.get(access);
+    }
+
+    /**
+     * @return  the folded table name as written
+     */
+    public String getTable(final int access) {
+        return tableNames.get(tables.get(access));
+    }
+
+    public Mode getMode(final int access) {
+        return MODES[kinds.get(access) & 0xff];
+    }
+
+    public Statement getStatement(final int access) {
+        return STATEMENTS[kinds.get(access) >>> 8];
+    }
+
+    public int getLine(final int access) {
+        return lines.get(access);
+    }
+
+    public int getColumn(final int access) {
+        return columns.get(access);
+    }
+
+    private IntList postings(final String table) {
+        final Integer id = tableIds.get(table);
+        return id == null ? null : postings.get(id);
+    }
+
+    private void read(final int function, final Token table, final ParserRuleContext node) {
+        if (!isWithQuery(node, table.getText())) {
+            access(function, table, Mode.READ, node);
+        }
+    }
+
+    private void lock(final int function, final PlPgSqlParser.ForClauseContext clause) {
+        final List<Token[]> candidates = new ArrayList<Token[]>();
+        fromTables(clause.getParent(), candidates);
+        if (clause.lockedTables() == null) {
+            for (final Token[] candidate : candidates) {
+                if (!isWithQuery(clause, candidate[0].getText())) {
+                    access(function, candidate[0], Mode.LOCK, clause);
+                }
+            }
+
+            return;
+        }
+
+        for (final PlPgSqlParser.LockedTableContext locked : clause.lockedTables().lockedTable()) {
+            final String name = SymbolPool.fold(locked.getText());
+            String table = name;
+            for (final Token[] candidate : candidates) {
+                final Token reference = candidate[1] != null ? candidate[1] : candidate[0];
+                final String referenceName = SymbolPool.fold(reference.getText());
+                if (referenceName.substring(referenceName.lastIndexOf('.') + 1).equals(name)) {
+                    table = candidate[0].getText();
+                    break;
+                }
+            }
+
+            if (!isWithQuery(clause, table)) {
+                access(function, table, locked.getStart(), Mode.LOCK, clause);
+            }
+        }
+    }
+
+    private void access(final int function, final Token table, final Mode mode, final ParserRuleContext node) {
+        access(function, table.getText(), table, mode, node);
+    }
+
+    private void access(final int function, final String table, final Token position, final Mode mode,
+            final ParserRuleContext node) {
+        final String name = SymbolPool.fold(table);
+        Integer id = tableIds.get(name);
+        if (id == null) {
+            id = tableNames.size();
+            tableIds.put(name, id);
+            tableNames.add(name);
+            postings.add(new IntList());
+        }
+
+        postings.get(id).add(functions.size());
+        functions.add(function);
+        tables.add(id);
+        kinds.add(statement(node).ordinal() << 8 | mode.ordinal());
+        lines.add(position.getLine());
+        columns.add(position.getCharPositionInLine());
+    }
+
+    /**
+     * Adds the name and alias tokens of the tables in the FROM clause and the joins of a query, the alias is null if
+     * there is none.
+     */
+    static void fromTables(final ParserRuleContext query, final List<Token[]> tables) {
+        final PlPgSqlParser.FromClauseContext from = query.getRuleContext(PlPgSqlParser.FromClauseContext.class, 0);
+        if (from != null) {
+            for (final PlPgSqlParser.TableExpressionContext table : from.tableExpression()) {
+                if (table instanceof PlPgSqlParser.FromTableContext) {
+                    final PlPgSqlParser.FromTableContext fromTable = (PlPgSqlParser.FromTableContext) table;
+                    tables.add(new Token[] { fromTable.tableName, fromTable.alias });
+                }
+            }
+        }
+
+        final List<PlPgSqlParser.JoinClauseContext> joins = query.getRuleContexts(
+                PlPgSqlParser.JoinClauseContext.class);
+        for (final PlPgSqlParser.JoinClauseContext join : joins) {
+            tables.add(new Token[] { joinTable(join.join()), null });
+        }
+    }
+
+    private static Token joinTable(final PlPgSqlParser.JoinContext join) {
+        for (final ParseTree child : join.children) {
+            final Token token = child instanceof TerminalNode ? ((TerminalNode) child).getSymbol() : null;
+            if (token != null && (token.getType() == PlPgSqlParser.ID || token.getType() == PlPgSqlParser.QNAME)) {
+                return token;
+            }
+        }
+
+        throw new IllegalArgumentException("no table in " + join.getText());
+    }
+
+    /**
+     * @return  whether the name is one of a {@code WITH} query of an enclosing statement
+     */
+    private static boolean isWithQuery(final ParserRuleContext node, final String name) {
+        final String folded = SymbolPool.fold(name);
+        for (ParserRuleContext ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+            final PlPgSqlParser.WithClauseContext with = ancestor.getRuleContext(PlPgSqlParser.WithClauseContext.class,
+                    0);
+            if (with != null
+                    && (ancestor instanceof PlPgSqlParser.SelectContext
+                        || ancestor instanceof PlPgSqlParser.InsertContext
+                        || ancestor instanceof PlPgSqlParser.UpdateContext
+                        || ancestor instanceof PlPgSqlParser.DeleteContext)) {
+                for (final PlPgSqlParser.WithQueryContext query : with.withQueries().withQuery()) {
+                    if (SymbolPool.fold(query.withTempTable.getText()).equals(folded)) {
+                        return true;
+                    }
+                }
+            }
+
+            if (ancestor instanceof PlPgSqlParser.StmtContext) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    private static Statement statement(final ParserRuleContext node) {
+        Statement statement = Statement.EXPRESSION;
+        for (ParserRuleContext ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+            if (ancestor instanceof PlPgSqlParser.StmtContext) {
+                break;
+            } else if (ancestor instanceof PlPgSqlParser.SelectStmtContext) {
+                statement = Statement.SELECT;
+            } else if (ancestor instanceof PlPgSqlParser.PerformStmtContext) {
+                statement = Statement.PERFORM;
+            } else if (ancestor instanceof PlPgSqlParser.InsertContext) {
+                statement = Statement.INSERT;
+            } else if (ancestor instanceof PlPgSqlParser.UpdateContext) {
+                statement = Statement.UPDATE;
+            } else if (ancestor instanceof PlPgSqlParser.DeleteContext) {
+                statement = Statement.DELETE;
+            } else if (ancestor instanceof PlPgSqlParser.ForInQueryStmtContext) {
+                statement = Statement.FOR_QUERY;
+            } else if (ancestor instanceof PlPgSqlParser.ReturnQueryContext) {
+                statement = Statement.RETURN_QUERY;
+            }
+        }
+
+        return statement;
+    }
+
+    private static int[] merge(final int[] a, final int[] b) {
+        final int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < a.length || j < b.length) {
+            merged[k++] = j == b.length || (i < a.length && a[i] < b[j]) ? a[i++] : b[j++];
+        }
+
+        return merged;
+    }
+}
@@ -0,0 +1,441 @@
+package de.zalando.plpgsql.ast;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Prefilter for term searches over the {@code .sql} files of a directory: one Bloom filter per function over the
+ * identifiers of the function, built by the lexer alone. A search only parses the files with candidate functions and
+ * checks the identifiers of those functions.
+ *
+ * <p/>Identifiers are the parts of {@code ID}, {@code QNAME} and type name tokens, folded; a qualified term matches
+ * consecutive parts. The filters of a file are kept next to it in a {@code .terms} file and rebuilt by
+ * {@link #refresh()} when the size or modification time of the file changes.
+ *
+ * <p/>Not thread-safe.
+ */
+public final class TermFilter {
+
+    public static final double DEFAULT_FPP = 0.01;
+
+    private static final String SQL_SUFFIX = ".sql";
+
+    private static final String SUFFIX = ".terms";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TermFilter.class);
+
+    private final File directory;
+    private final double fpp;
+
+    // by file name
+    private final Map<String, FileTerms> files = new TreeMap<String, FileTerms>();
+
+    public TermFilter(final File directory) {
+        this(directory, DEFAULT_FPP);
+    }
+
+    public TermFilter(final File directory, final double fpp) {
+        Preconditions.checkArgument(fpp > 0 && fpp < 1, "fpp must be between 0 and 1");
+        this.directory = directory;
+        this.fpp = fpp;
+    }
+
+    /**
+     * Loads the filters of new files from their {@code .terms} files, lexes the files that changed and drops the
+     * filters of deleted files.
+     *
+     * @return  the number of files that were lexed
+     */
+    public int refresh() throws IOException {
+        final File[] sources = directory.listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(final File dir, final String name) {
+                        return name.endsWith(SQL_SUFFIX);
+                    }
+                });
+        if (sources == null) {
+            throw new IOException("cannot list directory " + directory);
+        }
+
+        Arrays.sort(sources);
+
+        final Set<String> names = new HashSet<String>();
+        int lexed = 0;
+        for (final File source : sources) {
+            names.add(source.getName());
+
+            FileTerms terms = files.get(source.getName());
+            if (terms == null || !terms.isCurrent(source)) {
+                terms = read(source);
+            }
+
+            if (terms == null) {
+                terms = lex(source, fpp);
+                write(source, terms);
+                lexed++;
+            }
+
+            files.put(source.getName(), terms);
+        }
+
+        for (final Iterator<String> i = files.keySet().iterator(); i.hasNext();) {
+            final String name = i.next();
+            if (!names.contains(name)) {
+                i.remove();
+
+                final File stale = new File(directory, name + SUFFIX);
+                if (stale.exists() && !stale.delete()) {
+                    LOGGER.warn("cannot delete term filter {}", stale);
+                }
+            }
+        }
+
+        return lexed;
+    }
+
+    public int getFunctionCount() {
+        int count = 0;
+        for (final FileTerms terms : files.values()) {
+            count += terms.names.length;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return  the functions that might contain the term, at the position of their {@code CREATE}
+     */
+    public List<Match> candidates(final String term) {
+        final List<String> parts = parts(term);
+        Preconditions.checkArgument(!parts.isEmpty(), "no identifier in %s", term);
+
+        final List<Match> candidates = new ArrayList<Match>();
+        for (final Map.Entry<String, FileTerms> file : files.entrySet()) {
+            final FileTerms terms = file.getValue();
+            for (int function = 0; function < terms.filters.size(); function++) {
+                if (mightContain(terms.filters.get(function), parts)) {
+                    candidates.add(new Match(file.getKey(), function, terms.names[function], terms.lines[function],
+                            terms.columns[function]));
+                }
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Parses the files of the candidates and checks their functions.
+     *
+     * @return  the identifier tokens matching the term
+     */
+    public List<Match> search(final String term) throws IOException {
+        final List<String> parts = parts(term);
+        final List<Match> matches = new ArrayList<Match>();
+        String parsedFile = null;
+        List<PlPgSqlParser.PlFunctionContext> functions = null;
+        for (final Match candidate : candidates(term)) {
+            if (!candidate.file.equals(parsedFile)) {
+                parsedFile = candidate.file;
+                try(final FileInputStream in = new FileInputStream(new File(directory, candidate.file))) {
+                    functions = FunctionExecutor.functions(ParseUtil.parse(in));
+                } catch (ParseCancellationException e) {
+                    LOGGER.warn("skipping unparsable file {}", candidate.file);
+                    functions = new ArrayList<PlPgSqlParser.PlFunctionContext>();
+                }
+            }
+
+            if (candidate.function < functions.size()) {
+                collect(candidate, functions.get(candidate.function), parts, matches);
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * @return  the folded identifier parts of a token text or term
+     */
+    static List<String> parts(final String text) {
+        final List<String> parts = new ArrayList<String>(2);
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean identifier = i < text.length()
+                    && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_');
+            if (identifier && start < 0) {
+                start = i;
+            } else if (!identifier && start >= 0) {
+                parts.add(SymbolPool.fold(text.substring(start, i)));
+                start = -1;
+            }
+        }
+
+        return parts;
+    }
+
+    private static boolean isIdentifier(final int tokenType) {
+        switch (tokenType) {
+
+            case PlPgSqlLexer.ID :
+            case PlPgSqlLexer.QNAME :
+            case PlPgSqlLexer.ARRAY_TYPE :
+            case PlPgSqlLexer.COPY_TYPE :
+            case PlPgSqlLexer.ROW_TYPE :
+                return true;
+
+            default :
+                return false;
+        }
+    }
+
+    private static boolean mightContain(final BloomFilter<CharSequence> filter, final List<String> parts) {
+        for (final String part : parts) {
+            if (!filter.mightContain(part)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void collect(final Match candidate, final ParseTree node, final List<String> parts,
+            final List<Match> matches) {
+        if (node instanceof TerminalNode) {
+            final Token token = ((TerminalNode) node).getSymbol();
+            if (isIdentifier(token.getType()) && Collections.indexOfSubList(parts(token.getText()), parts) >= 0) {
+                matches.add(new Match(candidate.file, candidate.function, candidate.name, token.getLine(),
+                        token.getCharPositionInLine()));
+            }
+
+            return;
+        }
+
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collect(candidate, node.getChild(i), parts, matches);
+        }
+    }
+
+    /**
+     * Splits the tokens into functions at every {@code CREATE} and adds the identifiers to the filter of the current
+     * function.
+     */
+    private static FileTerms lex(final File source, final double fpp) throws IOException {
+        final PlPgSqlLexer lexer;
+        try(final FileInputStream in = new FileInputStream(source)) {
+            lexer = new PlPgSqlLexer(new ANTLRInputStream(in));
+        }
+
+        lexer.removeErrorListeners();
+
+        final List<String> names = new ArrayList<String>();
+        final IntList lines = new IntList();
+        final IntList columns = new IntList();
+        final List<Set<String>> identifiers = new ArrayList<Set<String>>();
+        Set<String> current = null;
+        int previousType = Token.INVALID_TYPE;
+        for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken()) {
+            if (token.getChannel() != Token.DEFAULT_CHANNEL) {
+                continue;
+            }
+
+            if (token.getType() == PlPgSqlLexer.CREATE) {
+                current = new HashSet<String>();
+                identifiers.add(current);
+                names.add("");
+                lines.add(token.getLine());
+                columns.add(token.getCharPositionInLine());
+            } else if (current != null && isIdentifier(token.getType())) {
+                if (previousType == PlPgSqlLexer.FUNCTION && names.get(names.size() - 1).isEmpty()) {
+                    names.set(names.size() - 1, SymbolPool.fold(token.getText()));
+                }
+
+                current.addAll(parts(token.getText()));
+            }
+
+            previousType = token.getType();
+        }
+
+        final List<BloomFilter<CharSequence>> filters = new ArrayList<BloomFilter<CharSequence>>();
+        for (final Set<String> function : identifiers) {
+            final BloomFilter<CharSequence> filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                    Math.max(function.size(), 1), fpp);
+            for (final String identifier : function) {
+                filter.put(identifier);
+            }
+
+            filters.add(filter);
+        }
+
+        return new FileTerms(source.length(), source.lastModified(), names.toArray(new String[names.size()]),
+                lines.toArray(), columns.toArray(), filters);
+    }
+
+    /**
+     * @return  the filters of the {@code .terms} file if it belongs to the current version of the source, otherwise
+     *          {@code null}
+     */
+    private static FileTerms read(final File source) {
+        final File file = new File(source.getPath() + SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try(final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION || in.readLong() != FlatTreeCodec.GRAMMAR_FINGERPRINT
+                    || in.readLong() != source.length() || in.readLong() != source.lastModified()) {
+                return null;
+            }
+
+            final int count = in.readInt();
+            final String[] names = new String[count];
+            final int[] lines = new int[count];
+            final int[] columns = new int[count];
+            final List<BloomFilter<CharSequence>> filters = new ArrayList<BloomFilter<CharSequence>>(count);
+            for (int i = 0; i < count; i++) {
+                names[i] = in.readUTF();
+                lines[i] = in.readInt();
+                columns[i] = in.readInt();
+
+                @SuppressWarnings("unchecked")
+                final BloomFilter<CharSequence> filter = (BloomFilter<CharSequence>) in.readObject();
+                filters.add(filter);
+            }
+
+            return new FileTerms(source.length(), source.lastModified(), names, lines, columns, filters);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            LOGGER.warn("ignoring unreadable term filter {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    private static void write(final File source, final FileTerms terms) throws IOException {
+        final File temporary = new File(source.getPath() + SUFFIX + TEMP_SUFFIX);
+        try(final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(temporary)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(FlatTreeCodec.GRAMMAR_FINGERPRINT);
+            out.writeLong(terms.length);
+            out.writeLong(terms.lastModified);
+            out.writeInt(terms.names.length);
+            for (int i = 0; i < terms.names.length; i++) {
+                out.writeUTF(terms.names[i]);
+                out.writeInt(terms.lines[i]);
+                out.writeInt(terms.columns[i]);
+                out.writeObject(terms.filters.get(i));
+            }
+        }
+
+        Files.move(temporary.toPath(), new File(source.getPath() + SUFFIX).toPath(),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * A function of a file, either a candidate or with the position of a matching identifier.
+     */
+    public static final class Match {
+        private final String file;
+        private final int function;
+        private final String name;
+        private final int line;
+        private final int column;
+
+        Match(final String file, final int function, final String name, final int line, final int column) {
+            this.file = file;
+            this.function = function;
+            this.name = name;
+            this.line = line;
+            this.column = column;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return  the position of the function in its file
+         */
+        public int getFunction() {
+            return function;
+        }
+
+        /**
+         * @return  the folded function name
+         */
+        public String getName() {
+            return name;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        @Override
+        public String toString() {
+            return file + ':' + line + ':' + column + " in " + name;
+        }
+    }
+
+    private static final class FileTerms {
+        private final long length;
+        private final long lastModified;
+        private final String[] names;
+        private final int[] lines;
+        private final int[] columns;
+        private final List<BloomFilter<CharSequence>> filters;
+
+        FileTerms(final long length, final long lastModified, final String[] names, final int[] lines,
+                final int[] columns, final List<BloomFilter<CharSequence>> filters) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.names = names;
+            this.lines = lines;
+            this.columns = columns;
+            this.filters = filters;
+        }
+
+        boolean isCurrent(final File source) {
+            return source.length() == length && source.lastModified() == lastModified;
+        }
+    }
+}
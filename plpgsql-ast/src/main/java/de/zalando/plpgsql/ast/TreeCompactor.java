@@ -0,0 +1,195 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Shrinks parse trees that are retained for a long time. Separator terminals ({@code ;}, {@code ,}, {@code [} and
+ * {@code ]}) are removed, child lists are trimmed to their size and rules with a single child, like the wrapper chain
+ * {@code ifCondition -> condition -> expression}, hold an immutable singleton list instead of an {@link ArrayList}.
+ *
+ * <p/>The wrapper contexts themselves are kept: the generated accessors such as {@code ifStmt.ifCondition()} find
+ * their result by type among the children. Parentheses are kept as well because they have generated accessors
+ * ({@code L_BRACKET()}). After compaction {@code getText()} no longer reproduces separators and positional
+ * {@code getChild(i)} access may shift; token start and stop positions are unaffected.
+ *
+ * <p/>Use {@link #compact(ParserRuleContext)} on a finished tree, or register a compactor as parse listener with
+ * {@link ParseUtil#parse(java.io.InputStream, TreeCompactor)} to compact every rule as soon as it is complete.
+ */
+public final class TreeCompactor implements ParseTreeListener {
+
+    // estimated shallow sizes with compressed oops
+    private static final int CONTEXT_BYTES = 40;
+    private static final int TERMINAL_BYTES = 24;
+    private static final int ARRAY_LIST_BYTES = 24;
+    private static final int SINGLETON_LIST_BYTES = 16;
+
+    private static final boolean[] SEPARATORS = separators();
+
+    private final Stats stats = new Stats();
+
+    private static boolean[] separators() {
+        final List<String> names = Arrays.asList("';'", "','", "'['", "']'");
+        final boolean[] separators = new boolean[PlPgSqlParser.tokenNames.length];
+        for (int type = 0; type < separators.length; type++) {
+            separators[type] = names.contains(PlPgSqlParser.tokenNames[type]);
+        }
+
+        return separators;
+    }
+
+    public static Stats compact(final ParserRuleContext root) {
+        final TreeCompactor compactor = new TreeCompactor();
+        final Deque<ParserRuleContext> stack = new ArrayDeque<ParserRuleContext>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final ParserRuleContext node = stack.pop();
+            compactor.compactNode(node);
+            for (int i = 0; i < node.getChildCount(); i++) {
+                if (node.getChild(i) instanceof ParserRuleContext) {
+                    stack.push((ParserRuleContext) node.getChild(i));
+                }
+            }
+        }
+
+        return compactor.getStats();
+    }
+
+    public static boolean isSeparator(final int tokenType) {
+        return tokenType >= 0 && tokenType < SEPARATORS.length && SEPARATORS[tokenType];
+    }
+
+    /**
+     * @return  the statistics of all rules compacted by this instance
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void visitTerminal(final TerminalNode node) { }
+
+    @Override
+    public void visitErrorNode(final ErrorNode node) { }
+
+    @Override
+    public void enterEveryRule(final ParserRuleContext ctx) { }
+
+    @Override
+    public void exitEveryRule(final ParserRuleContext ctx) {
+
+        // no children are added to a rule once it has been exited, also not for left recursive rules
+        compactNode(ctx);
+    }
+
+    private void compactNode(final ParserRuleContext node) {
+        stats.rulesBefore++;
+        stats.rulesAfter++;
+        stats.bytesBefore += CONTEXT_BYTES;
+        stats.bytesAfter += CONTEXT_BYTES;
+
+        final List<ParseTree> children = node.children;
+        if (children == null) {
+            return;
+        }
+
+        stats.bytesBefore += listBytes(children);
+
+        final List<ParseTree> kept = new ArrayList<ParseTree>(children);
+        for (final Iterator<ParseTree> i = kept.iterator(); i.hasNext();) {
+            final ParseTree child = i.next();
+            if (child instanceof TerminalNode) {
+                stats.terminalsBefore++;
+                stats.bytesBefore += TERMINAL_BYTES;
+                if (!(child instanceof ErrorNode) && isSeparator(((TerminalNode) child).getSymbol().getType())) {
+                    i.remove();
+                } else {
+                    stats.terminalsAfter++;
+                    stats.bytesAfter += TERMINAL_BYTES;
+                }
+            }
+        }
+
+        if (kept.isEmpty()) {
+            node.children = null;
+        } else if (kept.size() == 1) {
+            node.children = Collections.singletonList(kept.get(0));
+            stats.bytesAfter += SINGLETON_LIST_BYTES;
+        } else {
+            node.children = kept;
+            stats.bytesAfter += ARRAY_LIST_BYTES + arrayBytes(kept.size());
+        }
+    }
+
+    private static long listBytes(final List<ParseTree> children) {
+        if (!(children instanceof ArrayList)) {
+            return children.size() == 1 ? SINGLETON_LIST_BYTES : ARRAY_LIST_BYTES + arrayBytes(children.size());
+        }
+
+        // the capacity an ArrayList reaches when filled by ParserRuleContext.addChild
+        int capacity = 10;
+        while (capacity < children.size()) {
+            capacity += capacity >> 1;
+        }
+
+        return ARRAY_LIST_BYTES + arrayBytes(capacity);
+    }
+
+    private static long arrayBytes(final int length) {
+        return (16 + 4L * length + 7) & ~7L;
+    }
+
+    /**
+     * Node counts and estimated retained bytes of the tree structure (contexts, terminal nodes and child lists) before
+     * and after compaction. Tokens are shared with the token stream and not included.
+     */
+    public static final class Stats {
+        private long rulesBefore;
+        private long rulesAfter;
+        private long terminalsBefore;
+        private long terminalsAfter;
+        private long bytesBefore;
+        private long bytesAfter;
+
+        public long getNodesBefore() {
+            return rulesBefore + terminalsBefore;
+        }
+
+        public long getNodesAfter() {
+            return rulesAfter + terminalsAfter;
+        }
+
+        public long getTerminalsBefore() {
+            return terminalsBefore;
+        }
+
+        public long getTerminalsAfter() {
+            return terminalsAfter;
+        }
+
+        public long getBytesBefore() {
+            return bytesBefore;
+        }
+
+        public long getBytesAfter() {
+            return bytesAfter;
+        }
+
+        @Override
+        public String toString() {
+            return "nodes " + getNodesBefore() + " -> " + getNodesAfter() + ", bytes " + bytesBefore + " -> "
+                    + bytesAfter;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/**
+ * Rule nodes of a tree grouped by rule index, each group in preorder. Since a subtree occupies a contiguous range of
+ * {@link NodeIds}, the nodes of a rule below a given node are found by binary search instead of walking the subtree.
+ *
+ * @see  TreeQuery
+ */
+public final class TreeIndex {
+
+    private static final int RULES = PlPgSqlParser.ruleNames.length;
+
+    private final NodeIds ids;
+
+    // ids of the rule nodes grouped by rule index, CSR layout
+    private final int[] ruleOffsets;
+    private final int[] ruleIds;
+
+    private TreeIndex(final NodeIds ids, final int[] ruleOffsets, final int[] ruleIds) {
+        this.ids = ids;
+        this.ruleOffsets = ruleOffsets;
+        this.ruleIds = ruleIds;
+    }
+
+    public static TreeIndex of(final ParserRuleContext root) {
+        return of(NodeIds.of(root));
+    }
+
+    public static TreeIndex of(final NodeIds ids) {
+        final int[] ruleOffsets = new int[RULES + 1];
+        for (int id = 0; id < ids.size(); id++) {
+            final int rule = ids.getRuleIndex(id);
+            if (rule != FlatTree.TERMINAL) {
+                ruleOffsets[rule + 1]++;
+            }
+        }
+
+        for (int rule = 0; rule < RULES; rule++) {
+            ruleOffsets[rule + 1] += ruleOffsets[rule];
+        }
+
+        final int[] fill = Arrays.copyOf(ruleOffsets, RULES);
+        final int[] ruleIds = new int[ruleOffsets[RULES]];
+        for (int id = 0; id < ids.size(); id++) {
+            final int rule = ids.getRuleIndex(id);
+            if (rule != FlatTree.TERMINAL) {
+                ruleIds[fill[rule]++] = id;
+            }
+        }
+
+        return new TreeIndex(ids, ruleOffsets, ruleIds);
+    }
+
+    public NodeIds getNodeIds() {
+        return ids;
+    }
+
+    public ParserRuleContext getRoot() {
+        return (ParserRuleContext) ids.getNode(0);
+    }
+
+    public int count(final int rule) {
+        return ruleOffsets[rule + 1] - ruleOffsets[rule];
+    }
+
+    /**
+     * @return  the nodes of the rule in preorder
+     */
+    public List<ParserRuleContext> getNodes(final int rule) {
+        final int from = ruleOffsets[rule];
+        final int to = ruleOffsets[rule + 1];
+        return new AbstractList<ParserRuleContext>() {
+            @Override
+            public ParserRuleContext get(final int index) {
+                if (index < 0 || index >= to - from) {
+                    throw new IndexOutOfBoundsException(String.valueOf(index));
+                }
+
+                return (ParserRuleContext) ids.getNode(ruleIds[from + index]);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    /**
+     * @return  the position in {@link #getId(int, int)} of the first node of the rule with an id not below
+     *          {@code id}, or {@link #count(int)} if there is none
+     */
+    int lowerBound(final int rule, final int id) {
+        final int from = ruleOffsets[rule];
+        final int position = Arrays.binarySearch(ruleIds, from, ruleOffsets[rule + 1], id);
+        return (position >= 0 ? position : -position - 1) - from;
+    }
+
+    /**
+     * @return  the id of the node of the rule at the position
+     */
+    int getId(final int rule, final int position) {
+        return ruleIds[ruleOffsets[rule] + position];
+    }
+}
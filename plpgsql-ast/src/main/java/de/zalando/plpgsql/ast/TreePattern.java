@@ -0,0 +1,548 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * PL/pgSQL fragment with placeholders, compiled into a matcher for parse trees. For example the pattern
+ *
+ * <pre>
+   SELECT &lt;e&gt; INTO &lt;v&gt; FROM &lt;t&gt; WHERE &lt;cond&gt;; IF &lt;v&gt; &gt; 0 THEN END IF;
+ * </pre>
+ *
+ * compiled for {@code stmts} finds a select into a variable directly followed by an if statement testing it.
+ *
+ * <p/>A placeholder {@code <name>} binds the largest subtree at its position, {@code <name:rule>} the node of the
+ * given rule, e.g. {@code <body:stmts>}. Using a name twice requires both subtrees to have the same text. All other
+ * tokens must match by type and text, ignoring case except for string literals. The statements of a {@code stmts}
+ * node in the pattern match any consecutive statements of a {@code stmts} node in the tree, so an empty statement list
+ * matches any.
+ *
+ * <p/>Pattern nodes are compiled into matchers that compare rule index, alternative, child count and token type
+ * before anything else. Patterns are immutable and can be shared between threads.
+ *
+ * @see  PatternSet
+ */
+public final class TreePattern {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("(?<!<)<(\\w+)(?::(\\w+))?>(?!>)");
+
+    private static final String STAND_IN = "zz_placeholder_";
+
+    private static final Map<String, Integer> RULES = new HashMap<String, Integer>();
+
+    static {
+        for (int rule = 0; rule < PlPgSqlParser.ruleNames.length; rule++) {
+            RULES.put(PlPgSqlParser.ruleNames[rule], rule);
+        }
+    }
+
+    private static final int ANY_RULE = -1;
+
+    private final String source;
+    private final int ruleIndex;
+    private final List<String> names;
+    private final Node root;
+
+    // token type the first token of a matching node must have, or Token.INVALID_TYPE if not known
+    private final int firstTokenType;
+
+    private TreePattern(final String source, final int ruleIndex, final List<String> names, final Node root) {
+        this.source = source;
+        this.ruleIndex = ruleIndex;
+        this.names = names;
+        this.root = root;
+        this.firstTokenType = root.firstTokenType();
+    }
+
+    /**
+     * @param   fragment   the pattern source
+     * @param   ruleIndex  the rule of {@link PlPgSqlParser} the fragment is an instance of
+     *
+     * @throws  IllegalArgumentException  if the fragment does not parse or a placeholder type does not fit
+     */
+    public static TreePattern compile(final String fragment, final int ruleIndex) {
+        Preconditions.checkNotNull(fragment, "fragment");
+
+        // replace placeholders by identifiers, or assignments where a statement is expected
+        final List<String> names = new ArrayList<String>();
+        final List<Integer> types = new ArrayList<Integer>();
+        final StringBuffer substituted = new StringBuffer();
+        final Matcher matcher = PLACEHOLDER.matcher(fragment);
+        int occurrences = 0;
+        while (matcher.find()) {
+            final String name = matcher.group(1);
+            final int type;
+            if (matcher.group(2) == null) {
+                type = ANY_RULE;
+            } else if (RULES.containsKey(matcher.group(2))) {
+                type = RULES.get(matcher.group(2));
+            } else {
+                throw new IllegalArgumentException("unknown rule " + matcher.group(2) + " in pattern " + fragment);
+            }
+
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+
+            types.add(type);
+
+            final String standIn = STAND_IN + occurrences++;
+            matcher.appendReplacement(substituted,
+                type == PlPgSqlParser.RULE_stmt || type == PlPgSqlParser.RULE_stmts ? standIn + " := 0;" : standIn);
+        }
+
+        matcher.appendTail(substituted);
+
+        final ParserRuleContext tree;
+        try {
+            tree = ParseUtil.parseRule(substituted.toString(), ruleIndex);
+        } catch (ParseCancellationException e) {
+            throw new IllegalArgumentException("pattern does not parse as " + PlPgSqlParser.ruleNames[ruleIndex]
+                    + ": " + fragment, e);
+        }
+
+        final Compiler compiler = new Compiler(fragment, names, types);
+        compiler.collectStandIns(tree);
+        return new TreePattern(fragment, ruleIndex, Collections.unmodifiableList(names), compiler.compile(tree));
+    }
+
+    public int getRuleIndex() {
+        return ruleIndex;
+    }
+
+    /**
+     * @return  the placeholder names in order of first occurrence
+     */
+    public List<String> getPlaceholders() {
+        return names;
+    }
+
+    /**
+     * @return  whether a node of the tree can match without looking at its children
+     */
+    boolean accepts(final ParserRuleContext node) {
+        if (node.getRuleIndex() != ruleIndex) {
+            return false;
+        }
+
+        return firstTokenType == Token.INVALID_TYPE || (node.start != null && node.start.getType() == firstTokenType);
+    }
+
+    /**
+     * @return  the matches at the node, several if this is a {@code stmts} pattern matching at different statements
+     */
+    public List<Match> match(final ParserRuleContext node) {
+        if (!accepts(node)) {
+            return Collections.emptyList();
+        }
+
+        final Bindings bindings = new Bindings(names.size());
+        if (!(root instanceof Sequence)) {
+            return root.match(node, bindings) ? Collections.singletonList(bindings.toMatch(this, node, 0, 1))
+                                              : Collections.<Match>emptyList();
+        }
+
+        final Sequence sequence = (Sequence) root;
+        List<Match> matches = Collections.emptyList();
+        for (int offset = 0; offset + sequence.children.length <= node.getChildCount(); offset++) {
+            final int mark = bindings.mark();
+            if (sequence.matchAt(node, offset, bindings)) {
+                if (matches.isEmpty()) {
+                    matches = new ArrayList<Match>(1);
+                }
+
+                matches.add(bindings.toMatch(this, node, offset, sequence.children.length));
+            }
+
+            bindings.reset(mark);
+        }
+
+        return matches;
+    }
+
+    /**
+     * @return  all matches in the tree in preorder
+     */
+    public List<Match> findAll(final ParserRuleContext root) {
+        return new PatternSet().add(this).match(root);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * Nodes of a tree matched by a pattern, with the subtrees bound to the placeholders.
+     */
+    public static final class Match {
+        private final TreePattern pattern;
+        private final List<ParseTree> nodes;
+        private final Map<String, ParseTree> bindings;
+
+        Match(final TreePattern pattern, final List<ParseTree> nodes, final Map<String, ParseTree> bindings) {
+            this.pattern = pattern;
+            this.nodes = nodes;
+            this.bindings = bindings;
+        }
+
+        public TreePattern getPattern() {
+            return pattern;
+        }
+
+        /**
+         * @return  the matched node, or the matched statements of a {@code stmts} pattern
+         */
+        public List<ParseTree> getNodes() {
+            return nodes;
+        }
+
+        public ParseTree get(final String placeholder) {
+            Preconditions.checkArgument(bindings.containsKey(placeholder), "no placeholder %s in %s", placeholder,
+                pattern);
+            return bindings.get(placeholder);
+        }
+
+        /**
+         * @return  the bound subtrees by placeholder name, in order of first occurrence in the pattern
+         */
+        public Map<String, ParseTree> getBindings() {
+            return bindings;
+        }
+
+        @Override
+        public String toString() {
+            final Map<String, String> texts = new LinkedHashMap<String, String>();
+            for (final Map.Entry<String, ParseTree> binding : bindings.entrySet()) {
+                texts.put(binding.getKey(), binding.getValue().getText());
+            }
+
+            return pattern + " " + texts;
+        }
+    }
+
+    /**
+     * Bound subtrees by placeholder index, with a trail to undo bindings when backtracking.
+     */
+    private static final class Bindings {
+        private final ParseTree[] values;
+        private int[] trail = new int[8];
+        private int trailSize;
+
+        Bindings(final int size) {
+            values = new ParseTree[size];
+        }
+
+        boolean bind(final int placeholder, final ParseTree node) {
+            final ParseTree bound = values[placeholder];
+            if (bound != null) {
+                return bound.getText().equalsIgnoreCase(node.getText());
+            }
+
+            values[placeholder] = node;
+            if (trailSize == trail.length) {
+                trail = Arrays.copyOf(trail, trailSize * 2);
+            }
+
+            trail[trailSize++] = placeholder;
+            return true;
+        }
+
+        int mark() {
+            return trailSize;
+        }
+
+        void reset(final int mark) {
+            while (trailSize > mark) {
+                values[trail[--trailSize]] = null;
+            }
+        }
+
+        Match toMatch(final TreePattern pattern, final ParserRuleContext node, final int offset, final int count) {
+            final List<ParseTree> nodes;
+            if (pattern.root instanceof Sequence) {
+                nodes = new ArrayList<ParseTree>(count);
+                for (int i = 0; i < count; i++) {
+                    nodes.add(node.getChild(offset + i));
+                }
+            } else {
+                nodes = Collections.<ParseTree>singletonList(node);
+            }
+
+            final Map<String, ParseTree> bound = new LinkedHashMap<String, ParseTree>();
+            for (int i = 0; i < values.length; i++) {
+                bound.put(pattern.names.get(i), values[i]);
+            }
+
+            return new Match(pattern, Collections.unmodifiableList(nodes), Collections.unmodifiableMap(bound));
+        }
+    }
+
+    private abstract static class Node {
+
+        abstract boolean match(ParseTree node, Bindings bindings);
+
+        /**
+         * @return  the type of the first token of every match, {@link Token#INVALID_TYPE} if it can vary
+         */
+        int firstTokenType() {
+            return Token.INVALID_TYPE;
+        }
+    }
+
+    private static final class TokenNode extends Node {
+        private final int type;
+        private final String text;
+
+        TokenNode(final Token token) {
+            this.type = token.getType();
+            this.text = token.getText();
+        }
+
+        @Override
+        boolean match(final ParseTree node, final Bindings bindings) {
+            if (!(node instanceof TerminalNode)) {
+                return false;
+            }
+
+            final Token token = ((TerminalNode) node).getSymbol();
+            if (token.getType() != type) {
+                return false;
+            }
+
+            return type == PlPgSqlLexer.STRING ? text.equals(token.getText()) : text.equalsIgnoreCase(token.getText());
+        }
+
+        @Override
+        int firstTokenType() {
+            return type;
+        }
+    }
+
+    private static class RuleNode extends Node {
+        final int rule;
+        final Class<?> type;
+        final Node[] children;
+
+        RuleNode(final ParserRuleContext context, final Node[] children) {
+            this.rule = context.getRuleIndex();
+            this.type = context.getClass();
+            this.children = children;
+        }
+
+        @Override
+        boolean match(final ParseTree node, final Bindings bindings) {
+            if (!(node instanceof ParserRuleContext)) {
+                return false;
+            }
+
+            final ParserRuleContext context = (ParserRuleContext) node;
+            if (context.getRuleIndex() != rule || context.getClass() != type
+                    || context.getChildCount() != children.length) {
+                return false;
+            }
+
+            for (int i = 0; i < children.length; i++) {
+                if (!children[i].match(context.getChild(i), bindings)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        int firstTokenType() {
+            return children.length == 0 ? Token.INVALID_TYPE : children[0].firstTokenType();
+        }
+    }
+
+    /**
+     * A {@code stmts} node, its statements match any consecutive statements of the node in the tree.
+     */
+    private static final class Sequence extends RuleNode {
+
+        Sequence(final ParserRuleContext context, final Node[] children) {
+            super(context, children);
+        }
+
+        @Override
+        boolean match(final ParseTree node, final Bindings bindings) {
+            if (!(node instanceof ParserRuleContext) || ((ParserRuleContext) node).getRuleIndex() != rule) {
+                return false;
+            }
+
+            final ParserRuleContext context = (ParserRuleContext) node;
+            for (int offset = 0; offset + children.length <= context.getChildCount(); offset++) {
+                final int mark = bindings.mark();
+                if (matchAt(context, offset, bindings)) {
+                    return true;
+                }
+
+                bindings.reset(mark);
+            }
+
+            return false;
+        }
+
+        boolean matchAt(final ParserRuleContext context, final int offset, final Bindings bindings) {
+            for (int i = 0; i < children.length; i++) {
+                if (!children[i].match(context.getChild(offset + i), bindings)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        int firstTokenType() {
+            return Token.INVALID_TYPE;
+        }
+    }
+
+    private static final class PlaceholderNode extends Node {
+        private final int placeholder;
+
+        // rule index of the bound node, or ANY_RULE for a token
+        private final int rule;
+
+        PlaceholderNode(final int placeholder, final int rule) {
+            this.placeholder = placeholder;
+            this.rule = rule;
+        }
+
+        @Override
+        boolean match(final ParseTree node, final Bindings bindings) {
+            if (rule == ANY_RULE ? !(node instanceof TerminalNode)
+                                 : !(node instanceof ParserRuleContext)
+                                     || ((ParserRuleContext) node).getRuleIndex() != rule) {
+                return false;
+            }
+
+            return bindings.bind(placeholder, node);
+        }
+    }
+
+    /**
+     * Turns the parsed pattern into matcher nodes, replacing the subtrees of the stand-ins by placeholders.
+     */
+    private static final class Compiler {
+        private final String fragment;
+        private final List<String> names;
+        private final List<Integer> types;
+
+        // token index of the first stand-in token -> occurrence
+        private final Map<Integer, Integer> occurrenceByToken = new HashMap<Integer, Integer>();
+
+        // occurrence -> token index of the last stand-in token
+        private final Map<Integer, Integer> lastTokenByOccurrence = new HashMap<Integer, Integer>();
+
+        private final List<String> occurrenceNames = new ArrayList<String>();
+
+        Compiler(final String fragment, final List<String> names, final List<Integer> types) {
+            this.fragment = fragment;
+            this.names = names;
+            this.types = types;
+
+            final Matcher matcher = PLACEHOLDER.matcher(fragment);
+            while (matcher.find()) {
+                occurrenceNames.add(matcher.group(1));
+            }
+        }
+
+        void collectStandIns(final ParseTree node) {
+            if (node instanceof TerminalNode) {
+                final Token token = ((TerminalNode) node).getSymbol();
+                if (token.getText().startsWith(STAND_IN)) {
+                    final int occurrence = Integer.parseInt(token.getText().substring(STAND_IN.length()));
+                    final int rule = types.get(occurrence);
+                    occurrenceByToken.put(token.getTokenIndex(), occurrence);
+
+                    // "x := 0 ;" for statements
+                    lastTokenByOccurrence.put(occurrence,
+                        token.getTokenIndex()
+                            + (rule == PlPgSqlParser.RULE_stmt || rule == PlPgSqlParser.RULE_stmts ? 3 : 0));
+                }
+            }
+
+            for (int i = 0; i < node.getChildCount(); i++) {
+                collectStandIns(node.getChild(i));
+            }
+        }
+
+        Node compile(final ParseTree node) {
+            final Integer occurrence = standIn(node);
+            if (occurrence != null) {
+                final int type = types.get(occurrence);
+                final int placeholder = names.indexOf(occurrenceNames.get(occurrence));
+                if (type == ANY_RULE) {
+                    return new PlaceholderNode(placeholder,
+                            node instanceof TerminalNode ? ANY_RULE : ((ParserRuleContext) node).getRuleIndex());
+                }
+
+                if (node instanceof ParserRuleContext && ((ParserRuleContext) node).getRuleIndex() == type) {
+                    return new PlaceholderNode(placeholder, type);
+                }
+
+                if (node instanceof TerminalNode) {
+                    throw new IllegalArgumentException("placeholder <" + occurrenceNames.get(occurrence) + ":"
+                            + PlPgSqlParser.ruleNames[type] + "> is not a " + PlPgSqlParser.ruleNames[type]
+                            + " in pattern " + fragment);
+                }
+            }
+
+            if (node instanceof TerminalNode) {
+                return new TokenNode(((TerminalNode) node).getSymbol());
+            }
+
+            final ParserRuleContext context = (ParserRuleContext) node;
+            final Node[] children = new Node[context.getChildCount()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = compile(context.getChild(i));
+            }
+
+            return context.getRuleIndex() == PlPgSqlParser.RULE_stmts ? new Sequence(context, children)
+                                                                      : new RuleNode(context, children);
+        }
+
+        /**
+         * @return  the placeholder occurrence whose stand-in tokens are exactly the tokens of the node
+         */
+        private Integer standIn(final ParseTree node) {
+            final int first;
+            final int last;
+            if (node instanceof TerminalNode) {
+                first = ((TerminalNode) node).getSymbol().getTokenIndex();
+                last = first;
+            } else {
+                final ParserRuleContext context = (ParserRuleContext) node;
+                if (context.start == null || context.stop == null) {
+                    return null;
+                }
+
+                first = context.start.getTokenIndex();
+                last = context.stop.getTokenIndex();
+            }
+
+            final Integer occurrence = occurrenceByToken.get(first);
+            return occurrence != null && lastTokenByOccurrence.get(occurrence) == last ? occurrence : null;
+        }
+    }
+}
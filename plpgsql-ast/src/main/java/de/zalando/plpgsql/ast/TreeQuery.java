@@ -0,0 +1,538 @@
+package de.zalando.plpgsql.ast;
+
+import java.lang.reflect.Field;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Compiled path query over {@link PlPgSqlParser} trees, for example {@code //forInQueryStmt//select//fromTable} or
+ * {@code //comparisonExpression[operator='=']}. The syntax is
+ *
+ * <pre>
+   query     : step+
+   step      : ('/' | '//') test predicate*
+   test      : ruleName | alternativeLabel | '*'
+   predicate : '[' label (('=' | '!=') string)? ']'
+ * </pre>
+ *
+ * <p/>{@code /} selects children and {@code //} descendants, a leading {@code /} matches the root itself. Tests name
+ * a rule or a labeled alternative like {@code fromTable}. Predicates check an element label of the grammar such as
+ * {@code tableName} or {@code operator}: without a value it has to be present, values are compared ignoring case.
+ *
+ * <p/>Descendant steps look up their candidates in a {@link TreeIndex} by binary search, and skip context nodes whose
+ * rule cannot contain the rule looked for according to the {@link RuleGraph}. Queries are immutable and can be shared
+ * between threads.
+ */
+public final class TreeQuery {
+
+    private static final Map<String, Integer> RULES = new HashMap<String, Integer>();
+
+    private static final Map<String, Class<?>> ALTERNATIVES = new HashMap<String, Class<?>>();
+
+    static {
+        for (int rule = 0; rule < PlPgSqlParser.ruleNames.length; rule++) {
+            RULES.put(PlPgSqlParser.ruleNames[rule], rule);
+        }
+
+        for (final Class<?> type : PlPgSqlParser.class.getDeclaredClasses()) {
+            final String name = type.getSimpleName();
+            final Class<?> superclass = type.getSuperclass();
+            if (name.endsWith("Context") && superclass != ParserRuleContext.class
+                    && superclass.getEnclosingClass() == PlPgSqlParser.class) {
+                ALTERNATIVES.put(Character.toLowerCase(name.charAt(0))
+                        + name.substring(1, name.length() - "Context".length()), type);
+            }
+        }
+    }
+
+    private static final int ANY_RULE = -1;
+
+    private final String source;
+    private final Step[] steps;
+    private final boolean empty;
+
+    private TreeQuery(final String source, final Step[] steps) {
+        this.source = source;
+        this.steps = steps;
+        this.empty = isEmpty(steps);
+    }
+
+    /**
+     * @throws  IllegalArgumentException  if the query is malformed or names unknown rules or labels
+     */
+    public static TreeQuery compile(final String query) {
+        return new TreeQuery(query, new Compiler(query).compile());
+    }
+
+    /**
+     * @return  whether the query cannot match anything, because some step can never occur below the previous one
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    private static boolean isEmpty(final Step[] steps) {
+        for (int i = 1; i < steps.length; i++) {
+            if (steps[i - 1].rule != ANY_RULE && steps[i].rule != ANY_RULE
+                    && !RuleGraph.canContain(steps[i - 1].rule, steps[i].rule)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public List<ParserRuleContext> select(final ParserRuleContext root) {
+        return select(TreeIndex.of(root));
+    }
+
+    /**
+     * @return  the matching nodes in preorder
+     */
+    public List<ParserRuleContext> select(final TreeIndex index) {
+        if (empty) {
+            return Collections.emptyList();
+        }
+
+        int[] context = null;
+        for (final Step step : steps) {
+            context = context == null ? step.start(index) : step.apply(index, context);
+            if (context.length == 0) {
+                return Collections.emptyList();
+            }
+        }
+
+        final NodeIds ids = index.getNodeIds();
+        final List<ParserRuleContext> nodes = new ArrayList<ParserRuleContext>(context.length);
+        for (final int id : context) {
+            nodes.add((ParserRuleContext) ids.getNode(id));
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Runs the query on every tree, one task per tree on the executor. Matches are returned as soon as the trees
+     * before them are done, in the order of the trees and in preorder within a tree.
+     */
+    public Iterator<Match> select(final Iterable<? extends ParserRuleContext> trees, final ExecutorService executor) {
+        final List<Future<List<ParserRuleContext>>> futures = new ArrayList<Future<List<ParserRuleContext>>>();
+        final List<ParserRuleContext> roots = new ArrayList<ParserRuleContext>();
+        for (final ParserRuleContext tree : trees) {
+            roots.add(tree);
+            futures.add(executor.submit(new Callable<List<ParserRuleContext>>() {
+                        @Override
+                        public List<ParserRuleContext> call() {
+                            return select(tree);
+                        }
+                    }));
+        }
+
+        return new AbstractIterator<Match>() {
+            private int tree = -1;
+            private Iterator<ParserRuleContext> nodes = Collections.<ParserRuleContext>emptyList().iterator();
+
+            @Override
+            protected Match computeNext() {
+                while (!nodes.hasNext()) {
+                    if (++tree == futures.size()) {
+                        return endOfData();
+                    }
+
+                    try {
+                        nodes = Uninterruptibles.getUninterruptibly(futures.get(tree)).iterator();
+                    } catch (ExecutionException e) {
+                        throw Throwables.propagate(e.getCause());
+                    }
+                }
+
+                return new Match(tree, roots.get(tree), nodes.next());
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * A node matched in one of the trees of a corpus.
+     */
+    public static final class Match {
+        private final int treePosition;
+        private final ParserRuleContext tree;
+        private final ParserRuleContext node;
+
+        Match(final int treePosition, final ParserRuleContext tree, final ParserRuleContext node) {
+            this.treePosition = treePosition;
+            this.tree = tree;
+            this.node = node;
+        }
+
+        /**
+         * @return  the position of the tree in the queried trees
+         */
+        public int getTreePosition() {
+            return treePosition;
+        }
+
+        public ParserRuleContext getTree() {
+            return tree;
+        }
+
+        public ParserRuleContext getNode() {
+            return node;
+        }
+
+        @Override
+        public String toString() {
+            return treePosition + ":" + node.getText();
+        }
+    }
+
+    private static final class Step {
+        final boolean descendants;
+        final int rule;
+        final Class<?> alternative;
+        final Predicate[] predicates;
+
+        Step(final boolean descendants, final int rule, final Class<?> alternative, final Predicate[] predicates) {
+            this.descendants = descendants;
+            this.rule = rule;
+            this.alternative = alternative;
+            this.predicates = predicates;
+        }
+
+        int[] start(final TreeIndex index) {
+            if (descendants) {
+                return apply(index, new int[] { 0 }, true);
+            }
+
+            return matches(index.getNodeIds(), 0) ? new int[] { 0 } : new int[0];
+        }
+
+        int[] apply(final TreeIndex index, final int[] context) {
+            return descendants ? apply(index, context, false) : children(index.getNodeIds(), context);
+        }
+
+        private int[] children(final NodeIds ids, final int[] context) {
+            final IntList result = new IntList();
+            for (final int parent : context) {
+                for (int child = ids.getFirstChild(parent); child != FlatTree.NONE; child = ids.getNextSibling(child)) {
+                    if (matches(ids, child)) {
+                        result.add(child);
+                    }
+                }
+            }
+
+            // children of nested context nodes interleave
+            return result.sorted();
+        }
+
+        private int[] apply(final TreeIndex index, final int[] context, final boolean includeSelf) {
+            final NodeIds ids = index.getNodeIds();
+            final IntList result = new IntList();
+            int end = 0;
+            for (final int node : context) {
+
+                // descendants of a node nested in the previous one were already collected
+                if (node < end) {
+                    continue;
+                }
+
+                end = ids.getSubtreeEnd(node);
+
+                final int from = includeSelf ? node : node + 1;
+                if (rule == ANY_RULE) {
+                    for (int id = from; id < end; id++) {
+                        if (ids.getRuleIndex(id) != FlatTree.TERMINAL && matches(ids, id)) {
+                            result.add(id);
+                        }
+                    }
+                } else if (includeSelf || RuleGraph.canContain(ids.getRuleIndex(node), rule)) {
+                    for (int i = index.lowerBound(rule, from); i < index.count(rule); i++) {
+                        final int id = index.getId(rule, i);
+                        if (id >= end) {
+                            break;
+                        }
+
+                        if (matches(ids, id)) {
+                            result.add(id);
+                        }
+                    }
+                }
+            }
+
+            return result.toArray();
+        }
+
+        private boolean matches(final NodeIds ids, final int id) {
+            final int nodeRule = ids.getRuleIndex(id);
+            if (nodeRule == FlatTree.TERMINAL || (rule != ANY_RULE && nodeRule != rule)) {
+                return false;
+            }
+
+            final ParserRuleContext node = (ParserRuleContext) ids.getNode(id);
+            if (alternative != null && node.getClass() != alternative) {
+                return false;
+            }
+
+            for (final Predicate predicate : predicates) {
+                if (!predicate.test(node)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    private static final class Predicate {
+        private static final Object MISSING = new Object();
+
+        final String label;
+        final String value;
+        final boolean negated;
+
+        // context class -> label field or MISSING
+        private final ConcurrentMap<Class<?>, Object> fields = new ConcurrentHashMap<Class<?>, Object>();
+
+        Predicate(final String label, final String value, final boolean negated) {
+            this.label = label;
+            this.value = value;
+            this.negated = negated;
+        }
+
+        boolean test(final ParserRuleContext node) {
+            final Object labeled = labeled(node);
+            if (labeled == null) {
+                return false;
+            }
+
+            if (value == null) {
+                return true;
+            }
+
+            final String text = labeled instanceof Token ? ((Token) labeled).getText()
+                                                         : ((ParserRuleContext) labeled).getText();
+            return value.equalsIgnoreCase(text) != negated;
+        }
+
+        private Object labeled(final ParserRuleContext node) {
+            Object field = fields.get(node.getClass());
+            if (field == null) {
+                field = labelField(node.getClass(), label);
+                if (field == null) {
+                    field = MISSING;
+                }
+
+                fields.putIfAbsent(node.getClass(), field);
+            }
+
+            if (field == MISSING) {
+                return null;
+            }
+
+            try {
+                return ((Field) field).get(node);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * @return  the public field holding the labeled token or context, {@code null} if the class has no such label
+     */
+    private static Field labelField(final Class<?> type, final String label) {
+        try {
+            final Field field = type.getField(label);
+            if (Token.class.isAssignableFrom(field.getType())
+                    || ParserRuleContext.class.isAssignableFrom(field.getType())) {
+                return field;
+            }
+        } catch (NoSuchFieldException e) {
+            // not labeled in this alternative
+        }
+
+        return null;
+    }
+
+    /**
+     * Recursive descent compiler for the query syntax.
+     */
+    private static final class Compiler {
+        private final String query;
+        private int position;
+
+        Compiler(final String query) {
+            this.query = Preconditions.checkNotNull(query, "query");
+        }
+
+        Step[] compile() {
+            final List<Step> steps = new ArrayList<Step>();
+            skipSpaces();
+            do {
+                steps.add(step());
+                skipSpaces();
+            } while (position < query.length());
+
+            return steps.toArray(new Step[steps.size()]);
+        }
+
+        private Step step() {
+            expect('/');
+
+            final boolean descendants = accept('/');
+            final int testPosition = position;
+            final String name = accept('*') ? "*" : name();
+            final int rule;
+            final Class<?> alternative;
+            if (name.equals("*")) {
+                rule = ANY_RULE;
+                alternative = null;
+            } else if (RULES.containsKey(name)) {
+                rule = RULES.get(name);
+                alternative = null;
+            } else if (ALTERNATIVES.containsKey(name)) {
+                alternative = ALTERNATIVES.get(name);
+                rule = RULES.get(ruleName(alternative.getSuperclass()));
+            } else {
+                throw error("unknown rule or alternative '" + name + "'", testPosition);
+            }
+
+            final List<Predicate> predicates = new ArrayList<Predicate>();
+            skipSpaces();
+            while (accept('[')) {
+                skipSpaces();
+
+                final int labelPosition = position;
+                final String label = name();
+                if (rule != ANY_RULE && !isLabel(rule, alternative, label)) {
+                    throw error("'" + name + "' has no label '" + label + "'", labelPosition);
+                }
+
+                skipSpaces();
+
+                String value = null;
+                boolean negated = false;
+                if (accept('!')) {
+                    expect('=');
+                    negated = true;
+                    value = string();
+                } else if (accept('=')) {
+                    value = string();
+                }
+
+                skipSpaces();
+                expect(']');
+                skipSpaces();
+                predicates.add(new Predicate(label, value, negated));
+            }
+
+            return new Step(descendants, rule, alternative, predicates.toArray(new Predicate[predicates.size()]));
+        }
+
+        private static String ruleName(final Class<?> contextType) {
+            final String name = contextType.getSimpleName();
+            return Character.toLowerCase(name.charAt(0)) + name.substring(1, name.length() - "Context".length());
+        }
+
+        /**
+         * @return  whether the rule's context, the alternative or, without alternative, any alternative of the rule has
+         *          the label
+         */
+        private static boolean isLabel(final int rule, final Class<?> alternative, final String label) {
+            if (alternative != null) {
+                return labelField(alternative, label) != null;
+            }
+
+            for (final Class<?> type : PlPgSqlParser.class.getDeclaredClasses()) {
+                if (ParserRuleContext.class.isAssignableFrom(type) && type.getSimpleName().endsWith("Context")
+                        && (ruleName(type).equals(PlPgSqlParser.ruleNames[rule])
+                            || ruleName(type.getSuperclass()).equals(PlPgSqlParser.ruleNames[rule]))
+                        && labelField(type, label) != null) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private String name() {
+            final int start = position;
+            while (position < query.length()
+                    && (Character.isLetterOrDigit(query.charAt(position)) || query.charAt(position) == '_')) {
+                position++;
+            }
+
+            if (start == position) {
+                throw error("name expected", start);
+            }
+
+            return query.substring(start, position);
+        }
+
+        private String string() {
+            skipSpaces();
+            if (position == query.length() || (query.charAt(position) != '\'' && query.charAt(position) != '"')) {
+                throw error("quoted string expected", position);
+            }
+
+            final char quote = query.charAt(position);
+            final int end = query.indexOf(quote, position + 1);
+            if (end < 0) {
+                throw error("unterminated string", position);
+            }
+
+            final String value = query.substring(position + 1, end);
+            position = end + 1;
+            return value;
+        }
+
+        private void skipSpaces() {
+            while (position < query.length() && Character.isWhitespace(query.charAt(position))) {
+                position++;
+            }
+        }
+
+        private boolean accept(final char c) {
+            if (position < query.length() && query.charAt(position) == c) {
+                position++;
+                return true;
+            }
+
+            return false;
+        }
+
+        private void expect(final char c) {
+            if (!accept(c)) {
+                throw error("'" + c + "' expected", position);
+            }
+        }
+
+        private IllegalArgumentException error(final String message, final int at) {
+            return new IllegalArgumentException(message + " at position " + at + " of query " + query);
+        }
+    }
+}
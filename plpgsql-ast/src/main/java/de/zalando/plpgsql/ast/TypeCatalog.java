@@ -0,0 +1,27 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.List;
+
+/**
+ * Types of the functions and table columns a {@link TypeInference} cannot see in the analyzed function. Names are
+ * folded, types are {@link TypeInference#normalize(String) normalized}; implementations must be safe for concurrent
+ * reads.
+ *
+ * @see  SignatureTable
+ */
+public interface TypeCatalog {
+
+    /**
+     * @param   argumentTypes  the types of the arguments, {@code null} for those that could not be inferred
+     *
+     * @return  the return type of the function for arguments of the given types, or {@code null} if unknown
+     */
+    String getReturnType(String function, List<String> argumentTypes);
+
+    /**
+     * @param   table  the table name, possibly qualified with its schema
+     *
+     * @return  the type of the column, or {@code null} if unknown
+     */
+    String getColumnType(String table, String column);
+}
@@ -0,0 +1,468 @@
+package de.zalando.plpgsql.ast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * PostgreSQL types of the expressions of a function. Variables and arguments have their declared types, following
+ * {@code %TYPE} and {@code %ROWTYPE}; constants with a type or a cast have that type; calls, table columns and the
+ * fields of row variables are looked up in a {@link TypeCatalog}. Arithmetic promotes along
+ * {@code smallint < integer < bigint < numeric < real < double precision}.
+ *
+ * <p/>All types are inferred in one bottom-up pass over the {@link NodeIds} of the function and kept in a side table,
+ * so queries are a lookup. Types are {@link #normalize(String) normalized} names, {@link #UNKNOWN} for string literals
+ * and {@code null} where nothing could be inferred.
+ *
+ * <p/>{@link #getImplicitCasts()} reports comparisons whose operands have different types, which makes PostgreSQL
+ * cast one side and keeps it from using an index on a compared column. Types comparable without a cast, the integer
+ * types among each other and {@code text} with {@code character varying}, are not reported.
+ */
+public final class TypeInference {
+
+    /**
+     * Type of string literals, coerced to the type they are used as.
+     */
+    public static final String UNKNOWN = "unknown";
+
+    private static final String BOOLEAN = "boolean";
+    private static final String INTEGER = "integer";
+    private static final String BIGINT = "bigint";
+    private static final String NUMERIC = "numeric";
+    private static final String ARRAY = "[]";
+
+    private static final String[] NUMERIC_TYPES = {
+        "smallint", INTEGER, BIGINT, NUMERIC, "real", "double precision"
+    };
+
+    private final SymbolTable symbols;
+    private final NodeIds ids;
+    private final NodeIds.ObjectTable<String> types;
+    private final String[] symbolTypes;
+    private final List<ParserRuleContext> implicitCasts = new ArrayList<ParserRuleContext>();
+
+    private TypeInference(final SymbolTable symbols, final TypeCatalog catalog) {
+        this.symbols = symbols;
+        this.ids = NodeIds.of(symbols.getFunction());
+        this.types = ids.newObjectTable();
+        this.symbolTypes = new String[symbols.getSymbolCount()];
+
+        for (int symbol = 0; symbol < symbolTypes.length; symbol++) {
+            symbolTypes[symbol] = declaredType(symbol, catalog);
+        }
+
+        // children have higher ids than their parents
+        for (int id = ids.size() - 1; id >= 0; id--) {
+            final ParseTree node = ids.getNode(id);
+            if (node instanceof PlPgSqlParser.ExpressionContext || node instanceof PlPgSqlParser.VarExprContext) {
+                types.set(id, infer((ParserRuleContext) node, catalog));
+            }
+        }
+
+        Collections.reverse(implicitCasts);
+    }
+
+    public static TypeInference of(final PlPgSqlParser.PlFunctionContext function, final TypeCatalog catalog) {
+        return of(SymbolTable.of(function), catalog);
+    }
+
+    public static TypeInference of(final SymbolTable symbols, final TypeCatalog catalog) {
+        return new TypeInference(Preconditions.checkNotNull(symbols), Preconditions.checkNotNull(catalog));
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbols;
+    }
+
+    /**
+     * @return  the type of the expression or {@code varExpr}, or {@code null}
+     */
+    public String getType(final ParseTree node) {
+        return types.get(node);
+    }
+
+    /**
+     * @return  the declared type of the variable or argument, the aliased one for an alias, or {@code null}
+     */
+    public String getSymbolType(final int symbol) {
+        return symbolTypes[symbol];
+    }
+
+    /**
+     * @return  the comparisons and {@code BETWEEN} expressions casting one of their operands, in source order
+     */
+    public List<ParserRuleContext> getImplicitCasts() {
+        return Collections.unmodifiableList(implicitCasts);
+    }
+
+    /**
+     * @return  the folded name with the common abbreviations and aliases of PostgreSQL replaced by the type name
+     */
+    public static String normalize(final String type) {
+        String name = SymbolPool.fold(type);
+        if (name.startsWith("pg_catalog.")) {
+            name = name.substring("pg_catalog.".length());
+        }
+
+        if (name.endsWith(ARRAY)) {
+            return normalize(name.substring(0, name.length() - ARRAY.length())) + ARRAY;
+        }
+
+        switch (name) {
+
+            case "int" :
+            case "int4" :
+                return INTEGER;
+
+            case "int2" :
+                return "smallint";
+
+            case "int8" :
+                return BIGINT;
+
+            case "decimal" :
+                return NUMERIC;
+
+            case "float4" :
+                return "real";
+
+            case "float" :
+            case "float8" :
+                return "double precision";
+
+            case "bool" :
+                return BOOLEAN;
+
+            case "varchar" :
+                return "character varying";
+
+            case "char" :
+            case "bpchar" :
+                return "character";
+
+            case "timestamp" :
+                return "timestamp without time zone";
+
+            case "timestamptz" :
+                return "timestamp with time zone";
+
+            default :
+                return name;
+        }
+    }
+
+    /**
+     * @return  whether a value of the one type is implicitly converted to the other, a numeric type to a wider one or
+     *          a string type to {@code text}
+     */
+    static boolean convertsImplicitly(final String from, final String to) {
+        final int fromRank = numericRank(from);
+        final int toRank = numericRank(to);
+        return fromRank >= 0 && toRank >= 0 && fromRank <= toRank
+                || to.equals("text") && (from.equals("character varying") || from.equals("character"));
+    }
+
+    private static int numericRank(final String type) {
+        for (int i = 0; i < NUMERIC_TYPES.length; i++) {
+            if (NUMERIC_TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private String declaredType(final int symbol, final TypeCatalog catalog) {
+        final ParserRuleContext declaration = symbols.getDeclaration(symbol);
+        switch (symbols.getKind(symbol)) {
+
+            case ARGUMENT :
+                return typeOf(((PlPgSqlParser.FunctionArgContext) declaration).type, symbol, catalog);
+
+            case VARIABLE :
+                return typeOf(((PlPgSqlParser.VarDeclarationContext) declaration).type, symbol, catalog);
+
+            case ALIAS :
+
+                final int target = symbols.getAliasTarget(symbol);
+                return target == SymbolTable.NONE ? null : symbolTypes[target];
+
+            case LOOP_VARIABLE :
+                return INTEGER;
+
+            default :
+                return null;
+        }
+    }
+
+    /**
+     * @return  the type named by a type token; {@code %TYPE} refers to a variable declared before the symbol or to a
+     *          table column, {@code %ROWTYPE} to the composite type of a table
+     */
+    private String typeOf(final Token token, final int symbol, final TypeCatalog catalog) {
+        final String text = SymbolPool.fold(token.getText());
+        switch (token.getType()) {
+
+            case PlPgSqlParser.ROW_TYPE :
+                return text.substring(0, text.length() - "%rowtype".length());
+
+            case PlPgSqlParser.COPY_TYPE :
+                return copiedType(text.substring(0, text.length() - "%type".length()), symbol, catalog);
+
+            default :
+                return normalize(text);
+        }
+    }
+
+    private String copiedType(final String reference, final int symbol, final TypeCatalog catalog) {
+        final int dot = reference.lastIndexOf('.');
+        if (dot < 0) {
+            final int variable = visibleVariable(reference, symbol);
+            return variable == SymbolTable.NONE ? null : symbolTypes[variable];
+        }
+
+        return catalog.getColumnType(reference.substring(0, dot), reference.substring(dot + 1));
+    }
+
+    /**
+     * @return  the innermost variable of that name declared before the symbol in an enclosing scope
+     */
+    private int visibleVariable(final String name, final int symbol) {
+        for (int candidate = symbol - 1; candidate >= 0; candidate--) {
+            if (symbols.getKind(candidate) != SymbolTable.Kind.LABEL && symbols.getName(candidate).equals(name)) {
+                for (int scope = symbols.getScope(symbol); scope != SymbolTable.NONE;
+                        scope = symbols.getParentScope(scope)) {
+                    if (scope == symbols.getScope(candidate)) {
+                        return candidate;
+                    }
+                }
+            }
+        }
+
+        return SymbolTable.NONE;
+    }
+
+    private String infer(final ParserRuleContext node, final TypeCatalog catalog) {
+        if (node instanceof PlPgSqlParser.VarExprContext) {
+            return variableType((PlPgSqlParser.VarExprContext) node, catalog);
+        }
+
+        final List<PlPgSqlParser.ExpressionContext> operands = node.getRuleContexts(
+                PlPgSqlParser.ExpressionContext.class);
+        if (node instanceof PlPgSqlParser.VariableExpressionContext) {
+            return types.get(((PlPgSqlParser.VariableExpressionContext) node).varExpr());
+        } else if (node instanceof PlPgSqlParser.ExpressionGroupContext
+                || node instanceof PlPgSqlParser.LabelExpressionContext
+                || node instanceof PlPgSqlParser.UnaryExpressionContext) {
+            return types.get(operands.get(0));
+        } else if (node instanceof PlPgSqlParser.StringLiteralExpressionContext) {
+            return UNKNOWN;
+        } else if (node instanceof PlPgSqlParser.NumericalLiteralExpressionContext) {
+            return literalType(((PlPgSqlParser.NumericalLiteralExpressionContext) node).numericalLiteralExpr());
+        } else if (node instanceof PlPgSqlParser.ArbitraryConstantExpressionContext) {
+            return normalize(((PlPgSqlParser.ArbitraryConstantExpressionContext) node).constantOfOtherTypes().type
+                        .getText());
+        } else if (node instanceof PlPgSqlParser.FunctionCallExpressionContext) {
+            final PlPgSqlParser.FunctionCallExprContext call = ((PlPgSqlParser.FunctionCallExpressionContext) node)
+                    .functionCallExpr();
+            final List<String> argumentTypes = new ArrayList<String>();
+            for (final PlPgSqlParser.ExpressionContext argument : call.expression()) {
+                argumentTypes.add(types.get(argument));
+            }
+
+            return catalog.getReturnType(SymbolPool.fold(call.functionCallName.getText()), argumentTypes);
+        } else if (node instanceof PlPgSqlParser.ArrayAccessExpressionContext) {
+            String type = types.get(operands.get(0));
+            for (int i = 1; i < operands.size() && type != null; i++) {
+                type = type.endsWith(ARRAY) ? type.substring(0, type.length() - ARRAY.length()) : null;
+            }
+
+            return type;
+        } else if (node instanceof PlPgSqlParser.ComparisonExpressionContext
+                || node instanceof PlPgSqlParser.BetweenExpressionContext) {
+            for (int i = 1; i < operands.size(); i++) {
+                if (isCast(types.get(operands.get(0)), types.get(operands.get(i)))) {
+                    implicitCasts.add(node);
+                    break;
+                }
+            }
+
+            return BOOLEAN;
+        } else if (node instanceof PlPgSqlParser.BooleanLiteralExpressionContext
+                || node instanceof PlPgSqlParser.InExpressionContext
+                || node instanceof PlPgSqlParser.LogicalConjunctionExpressionContext) {
+            return BOOLEAN;
+        } else if (node instanceof PlPgSqlParser.ExponentiationExpressionContext) {
+            final String base = types.get(operands.get(0));
+            return NUMERIC.equals(base) ? NUMERIC : "double precision";
+        } else if (node instanceof PlPgSqlParser.MulExpressionContext
+                || node instanceof PlPgSqlParser.DivExpressionContext
+                || node instanceof PlPgSqlParser.ModExpressionContext
+                || node instanceof PlPgSqlParser.AddExpressionContext
+                || node instanceof PlPgSqlParser.SubExpressionContext) {
+            return promote(types.get(operands.get(0)), types.get(operands.get(1)));
+        } else if (node instanceof PlPgSqlParser.SubQueryExpressionContext) {
+            final PlPgSqlParser.SelectSpecificContext selected = ((PlPgSqlParser.SubQueryExpressionContext) node)
+                    .select().selectList().selectSpecific();
+            return selected == null || selected.expression().size() != 1 ? null : types.get(selected.expression(0));
+        }
+
+        return null;
+    }
+
+    private static String literalType(final PlPgSqlParser.NumericalLiteralExprContext literal) {
+        if (literal instanceof PlPgSqlParser.NumericalConstantExpressionContext) {
+            final PlPgSqlParser.NumericConstantContext constant =
+                ((PlPgSqlParser.NumericalConstantExpressionContext) literal).numericConstant();
+            return normalize((constant.type != null ? constant.type : constant.typeName).getText());
+        } else if (literal instanceof PlPgSqlParser.IntegerLiteralContext) {
+            final String digits = literal.getText();
+            if (digits.length() < 19) {
+                final long value = Long.parseLong(digits);
+                return value <= Integer.MAX_VALUE ? INTEGER : BIGINT;
+            }
+
+            return NUMERIC;
+        }
+
+        return NUMERIC;
+    }
+
+    private static String promote(final String left, final String right) {
+        if (left == null || right == null) {
+            return null;
+        } else if (left.equals(UNKNOWN) || left.equals(right)) {
+            return right;
+        } else if (right.equals(UNKNOWN)) {
+            return left;
+        }
+
+        final int leftRank = numericRank(left);
+        final int rightRank = numericRank(right);
+        if (leftRank >= 0 && rightRank >= 0) {
+            return NUMERIC_TYPES[Math.max(leftRank, rightRank)];
+        }
+
+        // date and time arithmetic keeps the type of the left operand
+        return leftRank < 0 ? left : null;
+    }
+
+    private static boolean isCast(final String left, final String right) {
+        if (left == null || right == null || left.equals(UNKNOWN) || right.equals(UNKNOWN) || left.equals(right)) {
+            return false;
+        }
+
+        final int leftRank = numericRank(left);
+        final int rightRank = numericRank(right);
+        return !(leftRank >= 0 && leftRank <= 2 && rightRank >= 0 && rightRank <= 2)
+                && !(isText(left) && isText(right));
+    }
+
+    private static boolean isText(final String type) {
+        return type.equals("text") || type.equals("character varying");
+    }
+
+    /**
+     * @return  the type of a variable, argument or field of a row variable, or of a column of a table in the enclosing
+     *          statements
+     */
+    private String variableType(final PlPgSqlParser.VarExprContext varExpr, final TypeCatalog catalog) {
+        final Token token = varExpr.getStart();
+        final String text = SymbolPool.fold(token.getText());
+        final int dot = text.indexOf('.');
+        final int symbol = symbols.resolve(token);
+        if (symbol != SymbolTable.NONE) {
+            final String type = symbolTypes[symbol];
+            if (dot < 0 || token.getType() == PlPgSqlParser.ANONYMOUS_PARAMETER
+                    || isLabel(text.substring(0, dot)) && text.substring(dot + 1).equals(symbols.getName(symbol))) {
+                return type;
+            }
+
+            return type == null ? null : catalog.getColumnType(type, text.substring(dot + 1));
+        }
+
+        final String qualifier = dot < 0 ? null : text.substring(0, dot);
+        final String column = text.substring(dot + 1);
+        for (ParserRuleContext statement = varExpr.getParent(); statement != null;
+                statement = statement.getParent()) {
+            final List<Token[]> tables = tables(statement);
+            for (final Token[] table : tables) {
+                final String name = SymbolPool.fold(table[0].getText());
+                if (qualifier == null || qualifier.equals(name) || name.endsWith('.' + qualifier)
+                        || table[1] != null && qualifier.equals(SymbolPool.fold(table[1].getText()))) {
+                    final String type = catalog.getColumnType(name, column);
+                    if (type != null) {
+                        return type;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isLabel(final String name) {
+        for (int symbol = 0; symbol < symbols.getSymbolCount(); symbol++) {
+            if (symbols.getKind(symbol) == SymbolTable.Kind.LABEL && symbols.getName(symbol).equals(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return  the name and alias tokens of the tables a select, insert, update or delete reads or writes
+     */
+    private static List<Token[]> tables(final ParserRuleContext statement) {
+        final List<Token[]> tables = new ArrayList<Token[]>();
+        PlPgSqlParser.FromClauseContext from = null;
+        if (statement instanceof PlPgSqlParser.SelectContext) {
+            final PlPgSqlParser.SelectContext select = (PlPgSqlParser.SelectContext) statement;
+            from = select.fromClause();
+            for (final PlPgSqlParser.JoinClauseContext join : select.joinClause()) {
+                for (final ParseTree child : join.join().children) {
+                    final Token token = child instanceof TerminalNode ? ((TerminalNode) child).getSymbol() : null;
+                    if (token != null
+                            && (token.getType() == PlPgSqlParser.ID || token.getType() == PlPgSqlParser.QNAME)) {
+                        tables.add(new Token[] { token, null });
+                        break;
+                    }
+                }
+            }
+        } else if (statement instanceof PlPgSqlParser.UpdateContext) {
+            final PlPgSqlParser.UpdateContext update = (PlPgSqlParser.UpdateContext) statement;
+            tables.add(new Token[] { update.table, update.tableAliasName });
+            from = update.fromClause();
+        } else if (statement instanceof PlPgSqlParser.DeleteContext) {
+            final PlPgSqlParser.DeleteContext delete = (PlPgSqlParser.DeleteContext) statement;
+            tables.add(new Token[] { delete.table, delete.tableAliasName });
+            final PlPgSqlParser.DeleteUsingClauseContext usingClause = delete.deleteUsingClause();
+            if (usingClause != null) {
+                for (final PlPgSqlParser.DeleteUsingTableContext using : usingClause.deleteUsingTable()) {
+                    tables.add(new Token[] { using.tableName, null });
+                }
+            }
+        } else if (statement instanceof PlPgSqlParser.InsertContext) {
+            tables.add(new Token[] { ((PlPgSqlParser.InsertContext) statement).table, null });
+        }
+
+        if (from != null) {
+            for (final PlPgSqlParser.TableExpressionContext table : from.tableExpression()) {
+                if (table instanceof PlPgSqlParser.FromTableContext) {
+                    final PlPgSqlParser.FromTableContext fromTable = (PlPgSqlParser.FromTableContext) table;
+                    tables.add(new Token[] { fromTable.tableName, fromTable.alias });
+                }
+            }
+        }
+
+        return tables;
+    }
+}
@@ -0,0 +1,167 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class CallGraphTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CallGraphTest.class);
+
+    @Test
+    public void testGraph() throws IOException {
+        final CallGraph graph = new CallGraph();
+        graph.put(TestCorpus.function("a", "  RETURN b(1) + b(2);\n"));
+        graph.put(TestCorpus.function("b", "  RETURN c(x);\n"));
+        graph.put(TestCorpus.function("c", "  IF x > 0 THEN\n    RETURN b(x - 1);\n  END IF;\n  RETURN 0;\n"));
+        graph.put(TestCorpus.function("d",
+                "  PERFORM a(1);\n" //
+                + "  EXECUTE 'SELECT e(1) FROM t WHERE x IN (1)';\n" //
+                + "  EXECUTE format('SELECT f2(%s) FROM %I', x, y);\n" //
+                + "  EXECUTE 'INSERT INTO audit_log(id) VALUES (1)';\n" //
+                + "  EXECUTE 'SELECT CAST(x AS numeric(10,2)) FROM t';\n" //
+                + "  EXECUTE 'no SQL(1)';\n" //
+                + "  RETURN 0;\n"));
+        final int a = graph.getNode("a");
+        final int b = graph.getNode("B");
+        final int c = graph.getNode("c");
+        final int d = graph.getNode("d");
+        final int e = graph.getNode("e");
+        final int f2 = graph.getNode("f2");
+        final int format = graph.getNode("format");
+        assertEquals(CallGraph.NONE, graph.getNode("in"));
+        assertEquals(CallGraph.NONE, graph.getNode("audit_log"));
+        assertEquals(CallGraph.NONE, graph.getNode("cast"));
+        assertEquals(CallGraph.NONE, graph.getNode("numeric"));
+        assertEquals(CallGraph.NONE, graph.getNode("sql"));
+        assertEquals("b", graph.getName(b));
+
+        assertArrayEquals(new int[] { b }, graph.getCallees(a));
+        assertArrayEquals(new int[] { a, c }, graph.getCallers(b));
+        assertArrayEquals(sorted(a, e, f2, format), graph.getCallees(d));
+        assertTrue(graph.isDefined(d));
+        assertFalse(graph.isDefined(e));
+        assertFalse(graph.isDefined(f2));
+
+        assertEquals(graph.getComponent(b), graph.getComponent(c));
+        assertTrue(graph.getComponent(a) > graph.getComponent(b));
+        assertArrayEquals(sorted(b, c), graph.getComponentMembers(graph.getComponent(b)));
+        assertTrue(graph.isRecursive(b));
+        assertFalse(graph.isRecursive(a));
+        assertTrue(graph.reaches(d, c));
+        assertFalse(graph.reaches(c, a));
+        assertEquals(bits(a, b, c, d), graph.getTransitiveCallers(c));
+        assertEquals(bits(a, b, c, e, f2, format), graph.getTransitiveCallees(d));
+
+        graph.remove("c");
+        assertFalse(graph.isDefined(c));
+        assertFalse(graph.isRecursive(b));
+        assertEquals(bits(a, b, d), graph.getTransitiveCallers(c));
+    }
+
+    @Test
+    public void testIncremental() throws IOException {
+        final int count = 1000;
+        final List<PlPgSqlParser.PlFunctionContext> chain = new ArrayList<PlPgSqlParser.PlFunctionContext>();
+        for (int i = 0; i < count; i++) {
+
+            // a chain calling its successor, every tenth function also calls back ten functions
+            final String call = i + 1 < count ? "  PERFORM g" + (i + 1) + "(x);\n" : "";
+            final String back = i % 10 == 9 ? "  PERFORM g" + (i - 9) + "(x);\n" : "";
+            chain.add(TestCorpus.function("g" + i, call + back + "  RETURN 0;\n"));
+        }
+
+        final List<ParserRuleContext> corpus = TestCorpus.parseAll();
+
+        long start = System.nanoTime();
+
+        final CallGraph graph = build(chain, corpus);
+        graph.getComponentCount();
+
+        final long build = System.nanoTime() - start;
+
+        // cut the chain in the middle
+        final PlPgSqlParser.PlFunctionContext cut = TestCorpus.function("g500", "  RETURN 0;\n");
+        start = System.nanoTime();
+        graph.put(cut);
+
+        final int components = graph.getComponentCount();
+        final long update = System.nanoTime() - start;
+        assertTrue(graph.getRecomputedComponentCount() < components);
+
+        final CallGraph expected = build(chain, corpus).put(cut);
+        assertEquals(expected.getNodeCount(), graph.getNodeCount());
+        assertEquals(expected.getComponentCount(), components);
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            final int other = expected.getNode(graph.getName(node));
+            assertEquals(translate(expected, graph, expected.getTransitiveCallees(other)),
+                graph.getTransitiveCallees(node));
+        }
+
+        assertFalse(graph.reaches(graph.getNode("g0"), graph.getNode("g501")));
+        assertTrue(graph.reaches(graph.getNode("g501"), graph.getNode("g999")));
+
+        LOGGER.info("built call graph of {} functions in {} ms, updated {} of {} components in {} ms",
+            new Object[] {
+                graph.getNodeCount(), build / 1000000, graph.getRecomputedComponentCount(), components,
+                update / 1000000
+            });
+    }
+
+    private static CallGraph build(final List<PlPgSqlParser.PlFunctionContext> functions,
+            final List<ParserRuleContext> corpus) {
+        final CallGraph graph = new CallGraph();
+        for (final PlPgSqlParser.PlFunctionContext function : functions) {
+            graph.put(function);
+        }
+
+        for (final ParserRuleContext unit : corpus) {
+            graph.putAll(unit);
+        }
+
+        return graph;
+    }
+
+    private static int[] sorted(final int... nodes) {
+        final BitSet set = bits(nodes);
+        final int[] sorted = new int[set.cardinality()];
+        int i = 0;
+        for (int node = set.nextSetBit(0); node >= 0; node = set.nextSetBit(node + 1)) {
+            sorted[i++] = node;
+        }
+
+        return sorted;
+    }
+
+    private static BitSet bits(final int... nodes) {
+        final BitSet set = new BitSet();
+        for (final int node : nodes) {
+            set.set(node);
+        }
+
+        return set;
+    }
+
+    private static BitSet translate(final CallGraph from, final CallGraph to, final BitSet nodes) {
+        final BitSet translated = new BitSet();
+        for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+            translated.set(to.getNode(from.getName(node)));
+        }
+
+        return translated;
+    }
+}
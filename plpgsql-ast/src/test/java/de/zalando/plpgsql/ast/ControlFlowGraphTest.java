@@ -0,0 +1,213 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Test;
+
+public final class ControlFlowGraphTest {
+
+    @Test
+    public void testIf() throws IOException {
+        final ControlFlowGraph cfg = ControlFlowGraph.of(function("a := 1;\n" //
+                    + "IF a > b THEN\n  a := 2;\nELSIF a = b THEN\n  RETURN 1;\nEND IF;\n" //
+                    + "a := 3;\n"));
+        final int test = block(cfg, "a:=1;");
+        assertEquals(test, block(cfg, "a>b"));
+        assertEquals(2, cfg.getSuccessorCount(test));
+
+        final int elsif = block(cfg, "a=b");
+        final int ret = block(cfg, "RETURN1;");
+        assertEquals(1, cfg.getSuccessorCount(ret));
+        assertEquals(ControlFlowGraph.EXIT, cfg.getSuccessor(ret, 0));
+
+        final int join = block(cfg, "a:=3;");
+        assertEquals(2, cfg.getPredecessorCount(join));
+        assertEquals(test, cfg.getImmediateDominator(join));
+        assertEquals(test, cfg.getImmediateDominator(elsif));
+        assertTrue(cfg.dominates(test, ret));
+        assertFalse(cfg.dominates(ret, join));
+        assertEquals(0, cfg.getLoopCount());
+    }
+
+    @Test
+    public void testLoops() throws IOException {
+        final ControlFlowGraph cfg = ControlFlowGraph.of(function("<<outer_loop>>\n" //
+                    + "FOR i IN 1..10 LOOP\n" //
+                    + "  WHILE x > 0 LOOP\n" //
+                    + "    EXIT OUTER_LOOP WHEN x = 5;\n" //
+                    + "    CONTINUE outer_loop WHEN x = 3;\n" //
+                    + "    x := x - 1;\n" //
+                    + "  END LOOP;\n" //
+                    + "END LOOP;\n" //
+                    + "y := 1;\n"));
+        assertEquals(2, cfg.getLoopCount());
+        assertEquals(ControlFlowGraph.NONE, cfg.getParentLoop(0));
+        assertEquals(0, cfg.getParentLoop(1));
+
+        final int outerHeader = block(cfg, "i");
+        final int innerHeader = block(cfg, "x>0");
+        assertEquals(outerHeader, cfg.getLoopHeader(0));
+        assertEquals(innerHeader, cfg.getLoopHeader(1));
+        assertEquals(0, cfg.getLoopDepth(block(cfg, "1")));
+        assertEquals(1, cfg.getLoopDepth(outerHeader));
+        assertEquals(2, cfg.getLoopDepth(block(cfg, "x:=x-1;")));
+        assertTrue(cfg.isInLoop(block(cfg, "x:=x-1;"), 0));
+
+        final int after = block(cfg, "y:=1;");
+        assertEquals(0, cfg.getLoopDepth(after));
+        assertEquals(2, cfg.getPredecessorCount(after));
+        assertTrue(successors(cfg, block(cfg, "EXITOUTER_LOOPWHENx=5;")).contains(after));
+        assertTrue(successors(cfg, block(cfg, "CONTINUEouter_loopWHENx=3;")).contains(outerHeader));
+        assertTrue(cfg.dominates(outerHeader, innerHeader));
+        assertEquals(outerHeader, cfg.getImmediateDominator(after));
+
+        final ControlFlowGraph corpus = ControlFlowGraph.of(TestCorpus.find(TestCorpus.parse(
+                        new File(TestCorpus.TEST_FOLDER, "loop_exit_continue_test.sql")), PlPgSqlParser.RULE_plFunction)
+                    .get(0));
+        assertEquals(5, corpus.getLoopCount());
+        for (int loop = 0; loop < corpus.getLoopCount(); loop++) {
+            assertEquals(ControlFlowGraph.NONE, corpus.getParentLoop(loop));
+        }
+    }
+
+    @Test
+    public void testExceptions() throws IOException {
+        final ControlFlowGraph cfg = ControlFlowGraph.of(function("BEGIN\n" //
+                    + "  a := 1;\n" //
+                    + "  RAISE NOTICE 'a';\n" //
+                    + "  RAISE 'boom';\n" //
+                    + "  a := 2;\n" //
+                    + "EXCEPTION WHEN OTHERS THEN\n" //
+                    + "  a := 3;\n" //
+                    + "END;\n" //
+                    + "RETURN a;\n"));
+        final int body = block(cfg, "a:=1;");
+        final int dispatcher = block(cfg, "OTHERS");
+        assertEquals(body, block(cfg, "RAISENOTICE'a';"));
+        assertEquals(body, block(cfg, "RAISE'boom';"));
+        assertEquals(1, cfg.getSuccessorCount(body));
+        assertEquals(dispatcher, cfg.getSuccessor(body, 0));
+        assertTrue(cfg.isExceptional(body, 0));
+        assertFalse(cfg.isReachable(block(cfg, "a:=2;")));
+
+        final int handler = block(cfg, "a:=3;");
+        assertTrue(cfg.isReachable(handler));
+        assertEquals(dispatcher, cfg.getImmediateDominator(handler));
+        assertTrue(successors(cfg, dispatcher).contains(ControlFlowGraph.EXIT));
+        assertTrue(cfg.isReachable(block(cfg, "RETURNa;")));
+
+        final ControlFlowGraph corpus = ControlFlowGraph.of(TestCorpus.find(TestCorpus.parse(
+                        new File(TestCorpus.TEST_FOLDER, "function_with_exception_handling.sql")),
+                    PlPgSqlParser.RULE_plFunction).get(0));
+
+        // nothing can fail in the empty inner block, the declaration of b belongs to the outer one
+        assertFalse(corpus.isReachable(block(corpus, "b=b+1;")));
+        assertTrue(corpus.isReachable(block(corpus, "a=a+1;")));
+        final int declaration = block(corpus, "bINTEGER;");
+        assertTrue(corpus.isExceptional(declaration, corpus.getSuccessorCount(declaration) - 1));
+    }
+
+    @Test
+    public void testCase() throws IOException {
+        final ControlFlowGraph cfg = ControlFlowGraph.of(function("CASE\n" //
+                    + "  WHEN x > 1 THEN\n    a := 1;\n" //
+                    + "  WHEN x > 2 THEN\n    a := 2;\n" //
+                    + "END CASE;\n"));
+        final int second = block(cfg, "x>2");
+        assertEquals(2, cfg.getSuccessorCount(second));
+        assertEquals(ControlFlowGraph.EXIT, cfg.getSuccessor(second, 1));
+        assertTrue(cfg.isExceptional(second, 1));
+    }
+
+    @Test
+    public void testJumpsOutsideOfLoops() throws IOException {
+        for (final String body : new String[] { "EXIT;\n", "LOOP\n  CONTINUE other;\nEND LOOP;\n" }) {
+            try {
+                ControlFlowGraph.of(function(body));
+                fail("expected an error for " + body);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testCorpus() throws IOException {
+        final List<ParserRuleContext> functions = new ArrayList<ParserRuleContext>();
+        for (final ParserRuleContext tree : TestCorpus.parseAll()) {
+            functions.addAll(TestCorpus.find(tree, PlPgSqlParser.RULE_plFunction));
+        }
+
+        for (final ParserRuleContext function : functions) {
+            final ControlFlowGraph cfg = ControlFlowGraph.of(function);
+            int reachable = 0;
+            for (int block = 0; block < cfg.getBlockCount(); block++) {
+                for (int i = 0; i < cfg.getSuccessorCount(block); i++) {
+                    assertTrue(predecessors(cfg, cfg.getSuccessor(block, i)).contains(block));
+                }
+
+                if (cfg.isReachable(block)) {
+                    reachable++;
+                    assertTrue(cfg.dominates(ControlFlowGraph.ENTRY, block));
+                    assertTrue(cfg.dominates(block, block));
+                }
+
+                if (cfg.getImmediateDominator(block) != ControlFlowGraph.NONE) {
+                    assertTrue(cfg.dominates(cfg.getImmediateDominator(block), block));
+                    assertFalse(cfg.dominates(block, cfg.getImmediateDominator(block)));
+                }
+            }
+
+            assertEquals(reachable, cfg.getReversePostorder().length);
+        }
+    }
+
+    private static ParserRuleContext function(final String body) throws IOException {
+        return TestCorpus.find(TestCorpus.parse("CREATE OR REPLACE FUNCTION f(x integer)\nRETURNS integer AS\n$$\n"
+                        + "BEGIN\n" + body + "END;\n$$\nLANGUAGE plpgsql;\n"), PlPgSqlParser.RULE_plFunction).get(0);
+    }
+
+    /**
+     * @return  the block holding a node with the given text
+     */
+    private static int block(final ControlFlowGraph cfg, final String text) {
+        for (int block = 0; block < cfg.getBlockCount(); block++) {
+            for (final ParserRuleContext node : cfg.getNodes(block)) {
+                if (node.getText().equals(text)) {
+                    return block;
+                }
+            }
+        }
+
+        throw new AssertionError("no block holds " + text + " in\n" + cfg);
+    }
+
+    private static List<Integer> successors(final ControlFlowGraph cfg, final int block) {
+        final List<Integer> successors = new ArrayList<Integer>();
+        for (int i = 0; i < cfg.getSuccessorCount(block); i++) {
+            successors.add(cfg.getSuccessor(block, i));
+        }
+
+        return successors;
+    }
+
+    private static List<Integer> predecessors(final ControlFlowGraph cfg, final int block) {
+        final List<Integer> predecessors = new ArrayList<Integer>();
+        for (int i = 0; i < cfg.getPredecessorCount(block); i++) {
+            predecessors.add(cfg.getPredecessor(block, i));
+        }
+
+        return predecessors;
+    }
+}
@@ -0,0 +1,172 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheStats;
+
+public final class CorpusStoreTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CorpusStoreTest.class);
+
+    @Test
+    public void testSourcesRoundTrip() throws IOException {
+        final List<String> sources = sources();
+        final CorpusStore store = new CorpusStore(4096, 4, CorpusStore.DEFAULT_DICTIONARY);
+        for (final String source : sources) {
+            store.add(source);
+        }
+
+        // the last block is still pending
+        for (int id = 0; id < sources.size(); id++) {
+            assertEquals(sources.get(id), store.getSource(id));
+        }
+
+        store.flush();
+        for (int id = sources.size() - 1; id >= 0; id--) {
+            assertEquals(sources.get(id), store.getSource(id));
+        }
+
+        assertTrue(store.getCompressionRatio() > 2);
+    }
+
+    @Test
+    public void testDictionaryImprovesCompression() throws IOException {
+        final List<String> sources = sources();
+        final double plain = compressionRatio(sources, new byte[0]);
+        final double keywords = compressionRatio(sources, CorpusStore.DEFAULT_DICTIONARY);
+        final double trained = compressionRatio(sources, CorpusStore.trainDictionary(sources, 8 * 1024));
+
+        assertTrue(keywords > plain);
+        assertTrue(trained > keywords);
+        LOGGER.info("compression ratio with 4k blocks: {} plain, {} keyword dictionary, {} trained dictionary",
+            new Object[] {plain, keywords, trained});
+    }
+
+    @Test
+    public void testTreesAreParsedLazily() throws IOException {
+        final List<String> sources = sources();
+        final CorpusStore store = new CorpusStore(4096, 2, CorpusStore.DEFAULT_DICTIONARY);
+        for (final String source : sources) {
+            store.add(source);
+        }
+
+        store.flush();
+        assertEquals(0, store.stats().loadCount());
+
+        long start = System.nanoTime();
+        final ParserRuleContext first = store.getTree(0);
+        final long cold = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        assertSame(first, store.getTree(0));
+
+        final long warm = System.nanoTime() - start;
+
+        store.getTree(1);
+        store.getTree(2);
+
+        final CacheStats stats = store.stats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(3, stats.loadSuccessCount());
+        assertEquals(1, stats.evictionCount());
+        assertEquals(sources.get(0).replaceAll("\\s", ""), first.start.getInputStream().toString().replaceAll(
+                "\\s", ""));
+        LOGGER.info("access latency: {} us inflate and parse, {} us cached", cold / 1000, warm / 1000);
+    }
+
+    @Test
+    public void testConcurrentTrees() throws Exception {
+        final List<String> sources = new ArrayList<String>();
+        for (final String source : sources()) {
+            try {
+                ParseUtil.parse(source);
+                sources.add(source);
+            } catch (ParseCancellationException e) {
+                // not supported by the grammar yet
+            }
+        }
+
+        final CorpusStore store = new CorpusStore(4096, sources.size(), CorpusStore.DEFAULT_DICTIONARY);
+        for (final String source : sources) {
+            store.add(source);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<List<ParserRuleContext>>> results = new ArrayList<Future<List<ParserRuleContext>>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(new Callable<List<ParserRuleContext>>() {
+                            @Override
+                            public List<ParserRuleContext> call() {
+                                final List<ParserRuleContext> trees = new ArrayList<ParserRuleContext>();
+                                for (int id = 0; id < store.size(); id++) {
+                                    trees.add(store.getTree(id));
+                                }
+
+                                return trees;
+                            }
+                        }));
+            }
+
+            // every thread gets the tree that made it into the LRU
+            for (final Future<List<ParserRuleContext>> result : results) {
+                result.get();
+            }
+
+            for (int id = 0; id < sources.size(); id++) {
+                final ParserRuleContext tree = store.getTree(id);
+                for (final Future<List<ParserRuleContext>> result : results) {
+                    assertSame(tree, result.get().get(id));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final CacheStats stats = store.stats();
+        assertEquals(5 * sources.size(), stats.requestCount());
+        assertTrue(stats.loadCount() >= sources.size());
+    }
+
+    private static double compressionRatio(final List<String> sources, final byte[] dictionary) {
+        final CorpusStore store = new CorpusStore(4096, 0, dictionary);
+        for (final String source : sources) {
+            store.add(source);
+        }
+
+        store.flush();
+        return store.getCompressionRatio();
+    }
+
+    private static List<String> sources() throws IOException {
+        final List<String> sources = new ArrayList<String>();
+        for (final File file : TestCorpus.files()) {
+            sources.add(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        }
+
+        return sources;
+    }
+}
@@ -0,0 +1,205 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class DefUseAnalysisTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DefUseAnalysisTest.class);
+
+    @Test
+    public void testChains() throws IOException {
+        final DefUseAnalysis analysis = analyze("(x integer, OUT y integer)",
+                "DECLARE\n  a integer := 1;\n  b integer;\n  c ALIAS FOR x;\n" //
+                    + "BEGIN\n" //
+                    + "  a := 2;\n" //
+                    + "  IF c > 0 THEN\n    b := a;\n  ELSE\n    b := 0;\n  END IF;\n" //
+                    + "  y := b + a;\n" //
+                    + "  a := 3;\n" //
+                    + "END;\n");
+        assertEquals(4, analysis.getVariableCount());
+        assertEquals(0, analysis.getVariable("X"));
+        assertEquals(0, analysis.getVariable("c"));
+        assertEquals(DefUseAnalysis.NONE, analysis.getVariable("d"));
+
+        assertTrue(analysis.isDead(definition(analysis, "ainteger:=1;")));
+        assertTrue(analysis.isDead(definition(analysis, "a:=3;")));
+        assertFalse(analysis.isDead(definition(analysis, "xinteger")));
+        assertFalse(analysis.isDead(definition(analysis, "y:=b+a;")));
+        assertEquals(2, analysis.getUses(definition(analysis, "a:=2;")).length);
+
+        final int sum = use(analysis, "b", "y:=b+a;");
+        assertArrayEquals(new int[] { definition(analysis, "b:=a;"), definition(analysis, "b:=0;") },
+            analysis.getDefinitions(sum));
+
+        // b is assigned before it is read on the branch, the first definition of a never reaches it
+        final int b = analysis.getVariable("b");
+        final int a = analysis.getVariable("a");
+        final int then = block(analysis.getControlFlowGraph(), "b:=a;");
+        assertFalse(analysis.getLiveVariables().holdsAtEntry(then, b));
+        assertTrue(analysis.getLiveVariables().holdsAtEntry(then, a));
+        assertTrue(analysis.getReachingDefinitions().holdsAtEntry(then, definition(analysis, "binteger;")));
+        assertTrue(analysis.getReachingDefinitions().holdsAtEntry(then, definition(analysis, "a:=2;")));
+        assertFalse(analysis.getReachingDefinitions().holdsAtEntry(then, definition(analysis, "ainteger:=1;")));
+    }
+
+    @Test
+    public void testLoops() throws IOException {
+        final DefUseAnalysis analysis = analyze("(n integer)",
+                "DECLARE\n  s integer := 0;\n  r record;\n" //
+                    + "BEGIN\n" //
+                    + "  FOR i IN 1..$1 LOOP\n    s := s + i;\n  END LOOP;\n" //
+                    + "  r.total := s;\n" //
+                    + "  RETURN r;\n" //
+                    + "END;\n");
+        final int loopUse = use(analysis, "s", "s:=s+i;");
+        assertArrayEquals(new int[] { definition(analysis, "sinteger:=0;"), definition(analysis, "s:=s+i;") },
+            analysis.getDefinitions(loopUse));
+        assertFalse(analysis.isDead(definition(analysis, "i")));
+        assertFalse(analysis.isDead(definition(analysis, "ninteger")));
+        assertFalse(analysis.isDead(definition(analysis, "rrecord;")));
+        assertFalse(analysis.isDead(definition(analysis, "r.total:=s;")));
+    }
+
+    @Test
+    public void testExceptionHandler() throws IOException {
+        final DefUseAnalysis analysis = analyze("()",
+                "DECLARE\n  a integer;\n" //
+                    + "BEGIN\n" //
+                    + "  BEGIN\n" //
+                    + "    a := 1;\n    PERFORM g();\n    a := 2;\n    RETURN a;\n" //
+                    + "  EXCEPTION WHEN OTHERS THEN\n" //
+                    + "    RETURN a + 1;\n" //
+                    + "  END;\n" //
+                    + "END;\n");
+        final int handlerUse = use(analysis, "a", "RETURNa+1;");
+        assertArrayEquals(new int[] {
+                definition(analysis, "ainteger;"), definition(analysis, "a:=1;"), definition(analysis, "a:=2;")
+            }, analysis.getDefinitions(handlerUse));
+        assertFalse(analysis.isDead(definition(analysis, "a:=1;")));
+    }
+
+    @Test
+    public void testIntersection() throws IOException {
+        final ControlFlowGraph cfg = analyze("(x integer)",
+                    "BEGIN\n  IF x > 0 THEN\n    x := 1;\n  ELSE\n    x := 2;\n  END IF;\n  x := 3;\nEND;\n")
+                .getControlFlowGraph();
+        final int then = block(cfg, "x:=1;");
+        final int otherwise = block(cfg, "x:=2;");
+        final int join = block(cfg, "x:=3;");
+        final DataflowProblem.Solution must = new DataflowProblem(cfg, 2, DataflowProblem.Direction.FORWARD,
+                    DataflowProblem.Meet.INTERSECTION).gen(then, 0).gen(then, 1).gen(otherwise, 1).solve();
+        assertFalse(must.holdsAtEntry(join, 0));
+        assertTrue(must.holdsAtEntry(join, 1));
+
+        final DataflowProblem.Solution may = new DataflowProblem(cfg, 2, DataflowProblem.Direction.FORWARD,
+                    DataflowProblem.Meet.UNION).gen(then, 0).solve();
+        assertTrue(may.holdsAtEntry(join, 0));
+        assertFalse(may.holdsAtEntry(otherwise, 0));
+    }
+
+    @Test
+    public void testCorpusInParallel() throws IOException, InterruptedException {
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        final List<DefUseAnalysis> sequential = new ArrayList<DefUseAnalysis>();
+        for (final ParserRuleContext tree : trees) {
+            for (final PlPgSqlParser.PlFunctionContext function : FunctionExecutor.functions(tree)) {
+                sequential.add(DefUseAnalysis.of(function));
+            }
+        }
+
+        try(final FunctionExecutor executor = new FunctionExecutor(4)) {
+            final List<DefUseAnalysis> parallel = DefUseAnalysis.ofAll(trees, executor);
+            assertEquals(sequential.size(), parallel.size());
+            for (int i = 0; i < parallel.size(); i++) {
+                assertEquals(chains(sequential.get(i)), chains(parallel.get(i)));
+            }
+
+            final List<ParserRuleContext> units = new ArrayList<ParserRuleContext>();
+            for (int i = 0; i < 1000; i++) {
+                units.addAll(trees);
+            }
+
+            final long start = System.nanoTime();
+            final List<DefUseAnalysis> analyses = DefUseAnalysis.ofAll(units, executor);
+            int definitions = 0;
+            for (final DefUseAnalysis analysis : analyses) {
+                definitions += analysis.getDefinitionCount();
+            }
+
+            LOGGER.info("analyzed {} functions with {} definitions in {} ms",
+                new Object[] { analyses.size(), definitions, (System.nanoTime() - start) / 1000000 });
+        }
+    }
+
+    private static DefUseAnalysis analyze(final String args, final String body) throws IOException {
+        final ParserRuleContext unit = TestCorpus.parse("CREATE OR REPLACE FUNCTION f" + args
+                    + "\nRETURNS integer AS\n$$\n" + body + "$$\nLANGUAGE plpgsql;\n");
+        return DefUseAnalysis.of(FunctionExecutor.functions(unit).get(0));
+    }
+
+    private static int definition(final DefUseAnalysis analysis, final String text) {
+        for (int definition = 0; definition < analysis.getDefinitionCount(); definition++) {
+            if (analysis.getDefinitionNode(definition).getText().equals(text)) {
+                return definition;
+            }
+        }
+
+        throw new AssertionError("no definition " + text);
+    }
+
+    /**
+     * @return  the use of the variable inside the node with the given text
+     */
+    private static int use(final DefUseAnalysis analysis, final String variable, final String text) {
+        for (int use = 0; use < analysis.getUseCount(); use++) {
+            for (ParserRuleContext node = analysis.getUseNode(use); node != null; node = node.getParent()) {
+                if (node.getText().equals(text) && analysis.getUseNode(use).getText().equals(variable)) {
+                    return use;
+                }
+            }
+        }
+
+        throw new AssertionError("no use of " + variable + " in " + text);
+    }
+
+    private static int block(final ControlFlowGraph cfg, final String text) {
+        for (int block = 0; block < cfg.getBlockCount(); block++) {
+            for (final ParserRuleContext node : cfg.getNodes(block)) {
+                if (node.getText().equals(text)) {
+                    return block;
+                }
+            }
+        }
+
+        throw new AssertionError("no block holds " + text);
+    }
+
+    private static List<String> chains(final DefUseAnalysis analysis) {
+        final List<String> chains = new ArrayList<String>();
+        for (int use = 0; use < analysis.getUseCount(); use++) {
+            final StringBuilder sb = new StringBuilder(analysis.getUseNode(use).getText());
+            for (final int definition : analysis.getDefinitions(use)) {
+                sb.append(' ').append(analysis.getDefinitionNode(definition).getText());
+            }
+
+            chains.add(sb.toString());
+        }
+
+        return chains;
+    }
+}
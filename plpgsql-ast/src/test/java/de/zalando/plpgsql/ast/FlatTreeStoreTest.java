@@ -0,0 +1,134 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import org.junit.rules.TemporaryFolder;
+
+public final class FlatTreeStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTripAcrossSegments() throws Exception {
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        final File directory = folder.newFolder("store");
+
+        try(final FlatTreeStore store = FlatTreeStore.open(directory, 16 * 1024)) {
+            for (int i = 0; i < trees.size(); i++) {
+                store.put("tree-" + i, FlatTree.flatten(trees.get(i)));
+            }
+
+            assertEquals(trees.size(), store.size());
+        }
+
+        assertTrue(directory.list().length > 1);
+
+        try(final FlatTreeStore store = FlatTreeStore.open(directory, 16 * 1024)) {
+            assertEquals(trees.size(), store.size());
+            assertNull(store.get("unknown"));
+
+            for (int i = 0; i < trees.size(); i++) {
+                assertSameTree(FlatTree.flatten(trees.get(i)), store.get("tree-" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testOverwriteAndTornWrite() throws Exception {
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        final File directory = folder.newFolder("store");
+
+        try(final FlatTreeStore store = FlatTreeStore.open(directory)) {
+            store.put("a", FlatTree.flatten(trees.get(0)));
+            store.put("a", FlatTree.flatten(trees.get(1)));
+            assertSameTree(FlatTree.flatten(trees.get(1)), store.get("a"));
+        }
+
+        // simulate a crash in the middle of appending a record
+        try(final FileOutputStream out = new FileOutputStream(new File(directory, directory.list()[0]), true)) {
+            out.write(new byte[] {0x31, 0x52, 0x54, 0x46, 0x7f, 0, 0, 0, 1, 2});
+        }
+
+        try(final FlatTreeStore store = FlatTreeStore.open(directory)) {
+            assertEquals(1, store.size());
+            assertSameTree(FlatTree.flatten(trees.get(1)), store.get("a"));
+
+            store.put("b", FlatTree.flatten(trees.get(2)));
+            assertSameTree(FlatTree.flatten(trees.get(2)), store.get("b"));
+        }
+    }
+
+    @Test
+    public void testMissingSegment() throws Exception {
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        final File directory = folder.newFolder("store");
+        try(final FlatTreeStore store = FlatTreeStore.open(directory, 16 * 1024)) {
+            for (int i = 0; i < trees.size(); i++) {
+                store.put("tree-" + i, FlatTree.flatten(trees.get(i)));
+            }
+        }
+
+        assertTrue(directory.list().length > 2);
+        assertTrue(new File(directory, "segment-000001.ftree").delete());
+
+        // new segments must not reuse the names of the remaining ones
+        final List<Integer> kept = new ArrayList<Integer>();
+        try(final FlatTreeStore store = FlatTreeStore.open(directory, 16 * 1024)) {
+            for (int i = 0; i < trees.size(); i++) {
+                if (store.get("tree-" + i) != null) {
+                    kept.add(i);
+                }
+
+                store.put("new-" + i, FlatTree.flatten(trees.get(i)));
+            }
+        }
+
+        try(final FlatTreeStore store = FlatTreeStore.open(directory, 16 * 1024)) {
+            for (final int i : kept) {
+                assertSameTree(FlatTree.flatten(trees.get(i)), store.get("tree-" + i));
+            }
+
+            for (int i = 0; i < trees.size(); i++) {
+                assertSameTree(FlatTree.flatten(trees.get(i)), store.get("new-" + i));
+            }
+
+            assertEquals(kept.size() + trees.size(), store.size());
+        }
+    }
+
+    private static void assertSameTree(final FlatTree expected, final FlatTree actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getTokenCount(), actual.getTokenCount());
+        assertEquals(expected.getSource().toString(), actual.getSource().toString());
+
+        for (int node = 0; node < expected.size(); node++) {
+            assertEquals(expected.getRuleIndex(node), actual.getRuleIndex(node));
+            assertEquals(expected.getParent(node), actual.getParent(node));
+            assertEquals(expected.getFirstChild(node), actual.getFirstChild(node));
+            assertEquals(expected.getNextSibling(node), actual.getNextSibling(node));
+            assertEquals(expected.getTokenStart(node), actual.getTokenStart(node));
+            assertEquals(expected.getTokenStop(node), actual.getTokenStop(node));
+            assertEquals(expected.getText(node), actual.getText(node));
+        }
+
+        for (int token = 0; token < expected.getTokenCount(); token++) {
+            assertEquals(expected.getTokenTypeAt(token), actual.getTokenTypeAt(token));
+            assertEquals(expected.getTokenLine(token), actual.getTokenLine(token));
+            assertEquals(expected.getTokenColumn(token), actual.getTokenColumn(token));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import org.junit.Test;
+
+public final class FlatTreeTest {
+
+    @Test
+    public void testStructureMatchesParseTree() throws Exception {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            assertStructure(root, FlatTree.flatten(root));
+        }
+    }
+
+    @Test
+    public void testWideFirstChild() {
+        // the children of the first child are pending together with all its siblings
+        final StringBuilder source = new StringBuilder();
+        final PlPgSqlParser.UnitContext root = new PlPgSqlParser.UnitContext(null, 0);
+        final PlPgSqlParser.StmtContext first = new PlPgSqlParser.StmtContext(root, 0);
+        root.addChild(first);
+        for (int i = 0; i < 30; i++) {
+            first.addChild(token(source));
+        }
+
+        for (int i = 0; i < 60; i++) {
+            root.addChild(token(source));
+        }
+
+        assertStructure(root, FlatTree.flatten(root, source.toString().toCharArray()));
+    }
+
+    @Test
+    public void testTokenRanges() throws Exception {
+        final ParserRuleContext root = TestCorpus.parse(
+                "CREATE FUNCTION f(a integer) RETURNS integer AS $$ BEGIN RETURN a; END; $$ LANGUAGE plpgsql;");
+        final FlatTree tree = FlatTree.flatten(root);
+
+        assertEquals(0, tree.getTokenStart(0));
+        assertEquals(tree.getTokenCount() - 1, tree.getTokenStop(0));
+        assertEquals(tree.size(), tree.getSubtreeEnd(0));
+
+        for (int node = 0; node < tree.size(); node++) {
+            for (int child = tree.getFirstChild(node); child != FlatTree.NONE; child = tree.getNextSibling(child)) {
+                assertTrue(tree.getTokenStart(child) >= tree.getTokenStart(node));
+                assertTrue(tree.getTokenStop(child) <= tree.getTokenStop(node));
+                assertTrue(tree.getSubtreeEnd(child) <= tree.getSubtreeEnd(node));
+            }
+        }
+    }
+
+    @Test
+    public void testWalk() throws Exception {
+        final FlatTree tree = FlatTree.flatten(TestCorpus.parse(
+                    "CREATE FUNCTION f() RETURNS void AS $$ BEGIN IF a THEN b := 1; END IF; END; $$ LANGUAGE plpgsql;"));
+
+        final int[] counts = new int[2];
+        tree.walk(new FlatTreeListener() {
+                @Override
+                public boolean enterNode(final FlatTree t, final int node) {
+                    assertEquals(counts[0], node);
+                    counts[0]++;
+                    return true;
+                }
+
+                @Override
+                public void exitNode(final FlatTree t, final int node) {
+                    counts[1]++;
+                }
+            });
+
+        assertEquals(tree.size(), counts[0]);
+        assertEquals(tree.size(), counts[1]);
+
+        // skipping the children of the function body only visits the nodes before and after it
+        counts[0] = 0;
+        tree.walk(new FlatTreeListener() {
+                @Override
+                public boolean enterNode(final FlatTree t, final int node) {
+                    counts[0]++;
+                    return t.getRuleIndex(node) != PlPgSqlParser.RULE_functionBody;
+                }
+
+                @Override
+                public void exitNode(final FlatTree t, final int node) {
+                    assertFalse(t.getRuleIndex(node) == PlPgSqlParser.RULE_blockStmt);
+                }
+            });
+
+        int body = 0;
+        while (tree.getRuleIndex(body) != PlPgSqlParser.RULE_functionBody) {
+            body++;
+        }
+
+        assertEquals(tree.size() - (tree.getSubtreeEnd(body) - body - 1), counts[0]);
+    }
+
+    private static void assertStructure(final ParserRuleContext root, final FlatTree tree) {
+        final List<ParseTree> preorder = new ArrayList<ParseTree>();
+        collect(root, preorder);
+        assertEquals(preorder.size(), tree.size());
+
+        for (int node = 0; node < tree.size(); node++) {
+            final ParseTree expected = preorder.get(node);
+            assertEquals(expected.getChildCount(), tree.getChildCount(node));
+
+            if (expected instanceof TerminalNode) {
+                assertTrue(tree.isTerminal(node));
+                assertEquals(((TerminalNode) expected).getSymbol().getType(), tree.getTokenType(node));
+                assertEquals(expected.getText(), tree.getText(node));
+                assertTrue(tree.textEquals(node, expected.getText().toUpperCase(), true));
+            } else {
+                assertEquals(((ParserRuleContext) expected).getRuleIndex(), tree.getRuleIndex(node));
+            }
+
+            if (node > 0) {
+                assertEquals(preorder.indexOf(expected.getParent()), tree.getParent(node));
+            }
+        }
+    }
+
+    private static Token token(final StringBuilder source) {
+        final CommonToken token = new CommonToken(PlPgSqlLexer.ID, "a");
+        token.setStartIndex(source.length());
+        token.setStopIndex(source.length());
+        token.setCharPositionInLine(source.length());
+        token.setLine(1);
+        source.append("a ");
+        return token;
+    }
+
+    private static void collect(final ParseTree node, final List<ParseTree> preorder) {
+        preorder.add(node);
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collect(node.getChild(i), preorder);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+
+public final class FunctionExecutorTest {
+
+    private static final Supplier<SelectiveTreeWalkerTest.StatementRecorder> STATEMENTS =
+        new Supplier<SelectiveTreeWalkerTest.StatementRecorder>() {
+            @Override
+            public SelectiveTreeWalkerTest.StatementRecorder get() {
+                return new SelectiveTreeWalkerTest.StatementRecorder();
+            }
+        };
+
+    private static final Supplier<SelectiveTreeWalkerTest.TerminalRecorder> TERMINALS =
+        new Supplier<SelectiveTreeWalkerTest.TerminalRecorder>() {
+            @Override
+            public SelectiveTreeWalkerTest.TerminalRecorder get() {
+                return new SelectiveTreeWalkerTest.TerminalRecorder();
+            }
+        };
+
+    @Test
+    public void testSourceOrder() throws IOException, InterruptedException {
+        final List<ParserRuleContext> units = TestCorpus.parseAll();
+        final List<String> expected = new ArrayList<String>();
+        for (final ParserRuleContext unit : units) {
+            for (final PlPgSqlParser.PlFunctionContext function : FunctionExecutor.functions(unit)) {
+                expected.add(function.functionName.getText());
+            }
+        }
+
+        try(final FunctionExecutor executor = new FunctionExecutor(4)) {
+            final List<String> names = executor.map(units, new Function<PlPgSqlParser.PlFunctionContext, String>() {
+                        @Override
+                        public String apply(final PlPgSqlParser.PlFunctionContext function) {
+                            return function.functionName.getText();
+                        }
+                    });
+            assertEquals(expected, names);
+        }
+    }
+
+    @Test
+    public void testListenersAndVisitors() throws IOException, InterruptedException {
+        final List<ParserRuleContext> units = TestCorpus.parseAll();
+        final List<List<String>> expected = new ArrayList<List<String>>();
+        final List<Integer> expectedCounts = new ArrayList<Integer>();
+        for (final ParserRuleContext unit : units) {
+            for (final PlPgSqlParser.PlFunctionContext function : FunctionExecutor.functions(unit)) {
+                final SelectiveTreeWalkerTest.StatementRecorder recorder = STATEMENTS.get();
+                ParseTreeWalker.DEFAULT.walk(recorder, function);
+                expected.add(recorder.events);
+                expectedCounts.add(function.accept(new IterativeTreeWalkerTest.IterativeCounter()));
+            }
+        }
+
+        try(final FunctionExecutor executor = new FunctionExecutor(4)) {
+            final List<List<String>> actual = new ArrayList<List<String>>();
+            for (final SelectiveTreeWalkerTest.StatementRecorder recorder : executor.walk(units, STATEMENTS)) {
+                actual.add(recorder.events);
+            }
+
+            assertEquals(expected, actual);
+
+            final List<List<ParseTreeListener>> fused = executor.walkAll(units, Arrays.asList(STATEMENTS, TERMINALS));
+            assertEquals(expected.size(), fused.size());
+            for (int i = 0; i < fused.size(); i++) {
+                assertEquals(expected.get(i), ((SelectiveTreeWalkerTest.Recorder) fused.get(i).get(0)).events);
+                assertFalse(((SelectiveTreeWalkerTest.Recorder) fused.get(i).get(1)).events.isEmpty());
+            }
+
+            final Supplier<IterativeTreeWalkerTest.IterativeCounter> counters =
+                new Supplier<IterativeTreeWalkerTest.IterativeCounter>() {
+                    @Override
+                    public IterativeTreeWalkerTest.IterativeCounter get() {
+                        return new IterativeTreeWalkerTest.IterativeCounter();
+                    }
+                };
+            assertEquals(expectedCounts, executor.<Integer>visit(units, counters));
+        }
+    }
+
+    @Test
+    public void testFailure() throws IOException, InterruptedException {
+        final IllegalStateException failure = new IllegalStateException("analysis failed");
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try(final FunctionExecutor executor = new FunctionExecutor(pool)) {
+            executor.map(TestCorpus.parseAll(), new Function<PlPgSqlParser.PlFunctionContext, Void>() {
+                    @Override
+                    public Void apply(final PlPgSqlParser.PlFunctionContext function) {
+                        throw failure;
+                    }
+                });
+            fail("expected the failure to be rethrown");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+
+        // the executor does not shut down pools it was given
+        assertFalse(pool.isShutdown());
+        pool.shutdown();
+        assertTrue(pool.isShutdown());
+    }
+}
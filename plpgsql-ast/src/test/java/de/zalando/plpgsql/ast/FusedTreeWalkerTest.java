@@ -0,0 +1,80 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+
+import org.junit.Test;
+
+public final class FusedTreeWalkerTest {
+
+    @Test
+    public void testSameEventsAsSeparateWalks() throws IOException {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final SelectiveTreeWalkerTest.StatementRecorder statements =
+                new SelectiveTreeWalkerTest.StatementRecorder();
+            final SelectiveTreeWalkerTest.TerminalRecorder terminals = new SelectiveTreeWalkerTest.TerminalRecorder();
+            final IterativeTreeWalkerTest.EventRecorder all = new IterativeTreeWalkerTest.EventRecorder();
+            final SelectiveTreeWalkerTest.Recorder nothing = new SelectiveTreeWalkerTest.Recorder();
+            new FusedTreeWalker().add(statements).add(terminals).add(all).add(nothing).walk(root);
+
+            final SelectiveTreeWalkerTest.StatementRecorder expectedStatements =
+                new SelectiveTreeWalkerTest.StatementRecorder();
+            final SelectiveTreeWalkerTest.TerminalRecorder expectedTerminals =
+                new SelectiveTreeWalkerTest.TerminalRecorder();
+            final IterativeTreeWalkerTest.EventRecorder expectedAll = new IterativeTreeWalkerTest.EventRecorder();
+            ParseTreeWalker.DEFAULT.walk(expectedStatements, root);
+            ParseTreeWalker.DEFAULT.walk(expectedTerminals, root);
+            ParseTreeWalker.DEFAULT.walk(expectedAll, root);
+
+            assertEquals(expectedStatements.events, statements.events);
+            assertEquals(expectedTerminals.events, terminals.events);
+            assertEquals(expectedAll.events, all.events);
+            assertTrue(nothing.events.isEmpty());
+        }
+    }
+
+    @Test
+    public void testTimings() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse(new File(TestCorpus.TEST_FOLDER, "if_test.sql"));
+        final SlowListener slow = new SlowListener();
+        final SelectiveTreeWalkerTest.Recorder nothing = new SelectiveTreeWalkerTest.Recorder();
+        final FusedTreeWalker walker = new FusedTreeWalker(true).add(nothing).add(slow);
+        walker.walk(root);
+
+        final int ifs = TestCorpus.find(root, PlPgSqlParser.RULE_ifStmt).size();
+        assertEquals(ifs, walker.getEvents(slow));
+        assertEquals(0, walker.getEvents(nothing));
+        assertTrue(walker.getNanos(slow) >= ifs * 1000000L);
+        assertEquals(0, walker.getNanos(nothing));
+
+        walker.resetTimings();
+        assertEquals(0, walker.getNanos(slow));
+
+        final FusedTreeWalker untimed = new FusedTreeWalker().add(slow);
+        untimed.walk(root);
+        assertEquals(ifs, untimed.getEvents(slow));
+        assertEquals(0, untimed.getNanos(slow));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownListener() {
+        new FusedTreeWalker().add(new SlowListener()).getNanos(new SlowListener());
+    }
+
+    static final class SlowListener extends PlPgSqlBaseListener {
+        @Override
+        public void exitIfStmt(final PlPgSqlParser.IfStmtContext ctx) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class ImpactAnalysisTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImpactAnalysisTest.class);
+
+    @Test
+    public void testColumnImpact() throws IOException {
+        final ImpactAnalysis analysis = new ImpactAnalysis();
+        analysis.add(TestCorpus.function("type_ref", "  v z.orders.o_status%TYPE;\n", "  RETURN x;\n"));
+        analysis.add(TestCorpus.function("row_ref", "  r z.orders%ROWTYPE;\n", "  RETURN x;\n"));
+        analysis.add(TestCorpus.function("insert_ref",
+                "  INSERT INTO z.orders (o_id, o_status) VALUES (x, 'NEW');\n  RETURN x;\n"));
+        analysis.add(TestCorpus.function("update_ref",
+                "  UPDATE z.orders SET o_status = 'PAID' WHERE o_id = x;\n  RETURN x;\n"));
+        analysis.add(TestCorpus.function("multi_ref",
+                "  UPDATE orders SET (o_status, o_total) = ('PAID', 1) WHERE o_id = x;\n  RETURN x;\n"));
+        analysis.add(TestCorpus.function("qualified_ref", "  v text;\n",
+                "  SELECT o.o_status INTO v FROM z.orders AS o (o_id) "
+                + "JOIN z.customers ON customers.c_id = o.o_customer_id WHERE o.o_id = x;\n  RETURN x;\n"));
+        analysis.add(TestCorpus.function("star_ref", "  RETURN QUERY SELECT * FROM z.orders WHERE o_id = x;\n"));
+        analysis.add(TestCorpus.function("caller", "  RETURN update_ref(x);\n"));
+        analysis.add(TestCorpus.function("indirect_caller", "  RETURN caller(x) + customer_ref(x);\n"));
+        analysis.add(TestCorpus.function("customer_ref", "  v text;\n",
+                "  SELECT c_name INTO v FROM z.customers WHERE c_id = x;\n  RETURN x;\n"));
+
+        final ImpactAnalysis.Impact status = analysis.ofColumn("Z.Orders", "O_STATUS");
+        assertEquals(set("insert_ref", "multi_ref", "qualified_ref", "row_ref", "star_ref", "type_ref", "update_ref"),
+            status.getFunctions());
+        assertEquals(set("caller", "indirect_caller"), status.getCallers());
+        assertEquals(EnumSet.of(ImpactAnalysis.Reference.TYPE, ImpactAnalysis.Reference.ROW_TYPE,
+                ImpactAnalysis.Reference.INSERT_COLUMN, ImpactAnalysis.Reference.UPDATE_COLUMN,
+                ImpactAnalysis.Reference.QUALIFIED_NAME, ImpactAnalysis.Reference.ALL_COLUMNS),
+            references(status.getUsages()));
+
+        final ImpactAnalysis.Usage type = status.getUsages().get(status.getUsages().size() - 1);
+        assertEquals("update_ref", type.getFunction());
+        assertEquals(ImpactAnalysis.Reference.UPDATE_COLUMN, type.getReference());
+        assertEquals(5, type.getLine());
+        assertEquals(22, type.getColumn());
+
+        // unqualified names of other columns in queries on orders do not count
+        final ImpactAnalysis.Impact total = analysis.ofColumn("z.orders", "o_total");
+        assertEquals(set("multi_ref", "row_ref", "star_ref"), total.getFunctions());
+        assertEquals(set("insert_ref", "multi_ref", "qualified_ref", "row_ref", "star_ref", "update_ref"),
+            analysis.ofColumn("z.orders", "o_id").getFunctions());
+        assertEquals(set("customer_ref", "qualified_ref"), analysis.ofColumn("z.customers", "c_id").getFunctions());
+
+        // a lookup of the unqualified name finds no qualified references
+        assertEquals(set("multi_ref"), analysis.ofColumn("orders", "o_total").getFunctions());
+
+        final ImpactAnalysis.Impact customers = analysis.ofTable("z.customers");
+        assertEquals(set("customer_ref", "qualified_ref"), customers.getFunctions());
+        assertEquals(set("indirect_caller"), customers.getCallers());
+        assertEquals(set("customer_ref", "indirect_caller", "qualified_ref"), customers.getAffectedFunctions());
+        assertTrue(analysis.ofTable("z.no_such_table").getAffectedFunctions().isEmpty());
+    }
+
+    @Test
+    public void testCorpus() throws IOException {
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        long start = System.nanoTime();
+
+        final ImpactAnalysis analysis = new ImpactAnalysis();
+        for (final ParserRuleContext tree : trees) {
+            analysis.addAll(tree);
+        }
+
+        final long build = System.nanoTime() - start;
+        final TableIndex index = analysis.getTableIndex();
+        start = System.nanoTime();
+
+        int affected = 0;
+        for (final String table : index.getTables()) {
+            final ImpactAnalysis.Impact impact = analysis.ofTable(table);
+            assertTrue(table, impact.getFunctions().containsAll(functions(index, table)));
+            affected += impact.getAffectedFunctions().size();
+        }
+
+        LOGGER.info("indexed {} functions in {} ms, {} table lookups with {} affected functions in {} ms",
+            new Object[] {
+                index.getFunctionCount(), build / 1000000, index.getTables().size(), affected,
+                (System.nanoTime() - start) / 1000000
+            });
+    }
+
+    private static Set<String> functions(final TableIndex index, final String table) {
+        final Set<String> functions = new TreeSet<String>();
+        for (final int access : index.getAccesses(table)) {
+            functions.add(index.getFunctionName(index.getFunction(access)));
+        }
+
+        return functions;
+    }
+
+    private static Set<ImpactAnalysis.Reference> references(final List<ImpactAnalysis.Usage> usages) {
+        final Set<ImpactAnalysis.Reference> references = EnumSet.noneOf(ImpactAnalysis.Reference.class);
+        for (final ImpactAnalysis.Usage usage : usages) {
+            references.add(usage.getReference());
+        }
+
+        return references;
+    }
+
+    private static Set<String> set(final String... names) {
+        return new TreeSet<String>(Arrays.asList(names));
+    }
+}
@@ -0,0 +1,361 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.RuleNode;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class IterativeTreeWalkerTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IterativeTreeWalkerTest.class);
+
+    private static final long SMALL_STACK = 128 * 1024;
+
+    private static final long LARGE_STACK = 1024 * 1024 * 1024;
+
+    @Test
+    public void testSameEventsAsParseTreeWalker() throws IOException {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final EventRecorder expected = new EventRecorder();
+            ParseTreeWalker.DEFAULT.walk(expected, root);
+
+            final EventRecorder actual = new EventRecorder();
+            IterativeTreeWalker.DEFAULT.walk(actual, root);
+            assertEquals(expected.events, actual.events);
+        }
+    }
+
+    @Test
+    public void testSameResultsAsRecursiveVisitor() throws IOException {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            assertEquals(root.accept(new RecursiveCounter()), root.accept(new IterativeCounter()));
+            assertEquals(root.accept(new RecursiveCounter().limitedTo(40)),
+                root.accept(new IterativeCounter().limitedTo(40)));
+        }
+    }
+
+    @Test
+    public void testDeepTrees() throws Exception {
+
+        // load the parser here, deserializing its ATN needs more than the small stack
+        assertTrue(PlPgSqlParser.ruleNames.length > 0);
+        for (final ParserRuleContext root : new ParserRuleContext[] { nestedIfs(10000), longCondition(50000) }) {
+            try {
+                onStack(SMALL_STACK, walk(ParseTreeWalker.DEFAULT, new EventRecorder(), root));
+                fail("expected the recursive walker to overflow the stack");
+            } catch (StackOverflowError e) {
+                // expected
+            }
+
+            final EventRecorder recorder = new EventRecorder();
+            onStack(SMALL_STACK, walk(IterativeTreeWalker.DEFAULT, recorder, root));
+            assertTrue(recorder.terminals > 50000);
+
+            // the visitor handles no rule, so it does not recurse either
+            final int count = onStack(SMALL_STACK, new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return root.accept(new TerminalCounter());
+                        }
+                    });
+            assertEquals(recorder.terminals, count);
+        }
+    }
+
+    /**
+     * Compares the walkers on a deep and a wide tree, the recursive walker gets a large stack to survive the deep one.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        final ParserRuleContext deep = longCondition(50000);
+        final ParserRuleContext wide = sequentialIfs(20000);
+        for (final ParserRuleContext root : new ParserRuleContext[] { deep, wide }) {
+            final String shape = root == deep ? "deep" : "wide";
+            final long recursive = time(ParseTreeWalker.DEFAULT, root);
+            final long iterative = time(IterativeTreeWalker.DEFAULT, root);
+            LOGGER.info("{} tree: recursive walker {} us, iterative walker {} us per walk",
+                new Object[] {shape, recursive / 1000, iterative / 1000});
+        }
+    }
+
+    private static long time(final ParseTreeWalker walker, final ParserRuleContext root) throws Exception {
+        final int rounds = 10;
+        final NodeCounter counter = new NodeCounter();
+        final long elapsed = onStack(LARGE_STACK, new Callable<Long>() {
+                    @Override
+                    public Long call() {
+
+                        // warm up
+                        for (int i = 0; i < rounds; i++) {
+                            walker.walk(counter, root);
+                        }
+
+                        final long start = System.nanoTime();
+                        for (int i = 0; i < rounds; i++) {
+                            walker.walk(counter, root);
+                        }
+
+                        return (System.nanoTime() - start) / rounds;
+                    }
+                });
+
+        assertEquals(2 * rounds * NodeCounter.count(root), counter.nodes);
+        return elapsed;
+    }
+
+    // generated inputs of this size take the parser minutes, so the trees are built directly
+
+    /**
+     * @return  {@code IF a0 THEN IF a1 THEN ... END IF; END IF;}
+     */
+    private static ParserRuleContext nestedIfs(final int depth) {
+        final ParserRuleContext root = new PlPgSqlParser.StmtsContext(null, 0);
+        ParserRuleContext stmts = root;
+        for (int i = 0; i < depth; i++) {
+            final ParserRuleContext stmt = new PlPgSqlParser.StmtContext(stmts, 0);
+            final ParserRuleContext ifStmt = new PlPgSqlParser.IfStmtContext(stmt, 0);
+            final ParserRuleContext condition = new PlPgSqlParser.IfConditionContext(ifStmt, 0);
+            final ParserRuleContext body = new PlPgSqlParser.StmtsContext(ifStmt, 0);
+            stmts.addChild(stmt);
+            stmt.addChild(ifStmt);
+            ifStmt.addChild(token(PlPgSqlParser.IF, "IF"));
+            ifStmt.addChild(condition);
+            condition.addChild(token(PlPgSqlParser.ID, "a" + i));
+            ifStmt.addChild(token(PlPgSqlParser.THEN, "THEN"));
+            ifStmt.addChild(body);
+            ifStmt.addChild(token(PlPgSqlParser.END, "END"));
+            ifStmt.addChild(token(PlPgSqlParser.IF, "IF"));
+            ifStmt.addChild(token(PlPgSqlParser.T__2, ";"));
+            stmts = body;
+        }
+
+        return root;
+    }
+
+    /**
+     * @return  {@code a0 OR a1 AND a2 OR ...} as the left recursive expression rule builds it
+     */
+    private static ParserRuleContext longCondition(final int terms) {
+        ParserRuleContext left = new PlPgSqlParser.ExpressionContext(null, 0);
+        left.addChild(token(PlPgSqlParser.ID, "a0"));
+        for (int i = 1; i < terms; i++) {
+            final ParserRuleContext expression = new PlPgSqlParser.LogicalConjunctionExpressionContext(
+                    new PlPgSqlParser.ExpressionContext(null, 0));
+            final ParserRuleContext right = new PlPgSqlParser.ExpressionContext(expression, 0);
+            left.parent = expression;
+            expression.addChild(left);
+            expression.addChild(i % 2 == 0 ? token(PlPgSqlParser.AND, "AND") : token(PlPgSqlParser.OR, "OR"));
+            expression.addChild(right);
+            right.addChild(token(PlPgSqlParser.ID, "a" + i));
+            left = expression;
+        }
+
+        return left;
+    }
+
+    /**
+     * @return  {@code count} statements {@code IF ai THEN END IF;}
+     */
+    private static ParserRuleContext sequentialIfs(final int count) {
+        final ParserRuleContext stmts = new PlPgSqlParser.StmtsContext(null, 0);
+        for (int i = 0; i < count; i++) {
+            final ParserRuleContext stmt = new PlPgSqlParser.StmtContext(stmts, 0);
+            final ParserRuleContext ifStmt = new PlPgSqlParser.IfStmtContext(stmt, 0);
+            final ParserRuleContext condition = new PlPgSqlParser.IfConditionContext(ifStmt, 0);
+            stmts.addChild(stmt);
+            stmt.addChild(ifStmt);
+            ifStmt.addChild(token(PlPgSqlParser.IF, "IF"));
+            ifStmt.addChild(condition);
+            condition.addChild(token(PlPgSqlParser.ID, "a" + i));
+            ifStmt.addChild(token(PlPgSqlParser.THEN, "THEN"));
+            ifStmt.addChild(new PlPgSqlParser.StmtsContext(ifStmt, 0));
+            ifStmt.addChild(token(PlPgSqlParser.END, "END"));
+            ifStmt.addChild(token(PlPgSqlParser.IF, "IF"));
+            ifStmt.addChild(token(PlPgSqlParser.T__2, ";"));
+        }
+
+        return stmts;
+    }
+
+    private static Token token(final int type, final String text) {
+        return new CommonToken(type, text);
+    }
+
+    private static Callable<Void> walk(final ParseTreeWalker walker, final ParseTreeListener listener,
+            final ParserRuleContext root) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                walker.walk(listener, root);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Runs the task on a new thread with the given stack size and rethrows whatever it throws.
+     */
+    private static <V> V onStack(final long stackSize, final Callable<V> task) throws Exception {
+        final AtomicReference<V> result = new AtomicReference<V>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread thread = new Thread(null, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            result.set(task.call());
+                        } catch (Throwable t) {
+                            failure.set(t);
+                        }
+                    }
+                }, "stack-" + stackSize, stackSize);
+        thread.start();
+        thread.join();
+
+        if (failure.get() instanceof Exception) {
+            throw (Exception) failure.get();
+        } else if (failure.get() != null) {
+            throw (Error) failure.get();
+        }
+
+        return result.get();
+    }
+
+    static final class EventRecorder extends PlPgSqlBaseListener {
+        final List<String> events = new ArrayList<String>();
+        int terminals;
+
+        @Override
+        public void enterEveryRule(final ParserRuleContext ctx) {
+            if (events.size() < 100000) {
+                events.add("enter " + PlPgSqlParser.ruleNames[ctx.getRuleIndex()]);
+            }
+        }
+
+        @Override
+        public void exitEveryRule(final ParserRuleContext ctx) {
+            if (events.size() < 100000) {
+                events.add("exit " + PlPgSqlParser.ruleNames[ctx.getRuleIndex()]);
+            }
+        }
+
+        @Override
+        public void visitTerminal(final TerminalNode node) {
+            terminals++;
+            if (events.size() < 100000) {
+                events.add(node.getText());
+            }
+        }
+    }
+
+    static final class NodeCounter extends PlPgSqlBaseListener {
+        long nodes;
+
+        static long count(final ParserRuleContext root) {
+            final NodeCounter counter = new NodeCounter();
+            IterativeTreeWalker.DEFAULT.walk(counter, root);
+            return counter.nodes;
+        }
+
+        @Override
+        public void enterEveryRule(final ParserRuleContext ctx) {
+            nodes++;
+        }
+
+        @Override
+        public void visitTerminal(final TerminalNode node) {
+            nodes++;
+        }
+    }
+
+    static class TerminalCounter extends IterativeVisitor<Integer> {
+        private int limit = Integer.MAX_VALUE;
+
+        TerminalCounter limitedTo(final int max) {
+            limit = max;
+            return this;
+        }
+
+        @Override
+        public Integer visitTerminal(final TerminalNode node) {
+            return 1;
+        }
+
+        @Override
+        protected Integer defaultResult() {
+            return 0;
+        }
+
+        @Override
+        protected Integer aggregateResult(final Integer aggregate, final Integer nextResult) {
+            return aggregate + nextResult;
+        }
+
+        @Override
+        protected boolean shouldVisitNextChild(final RuleNode node, final Integer currentResult) {
+            return currentResult < limit;
+        }
+    }
+
+    /**
+     * Counts terminals, if statements count 1000.
+     */
+    static final class IterativeCounter extends TerminalCounter {
+        @Override
+        public Integer visitIfStmt(final PlPgSqlParser.IfStmtContext ctx) {
+            return visitChildren(ctx) + 1000;
+        }
+    }
+
+    static final class RecursiveCounter extends PlPgSqlBaseVisitor<Integer> {
+        private int limit = Integer.MAX_VALUE;
+
+        RecursiveCounter limitedTo(final int max) {
+            limit = max;
+            return this;
+        }
+
+        @Override
+        public Integer visitIfStmt(final PlPgSqlParser.IfStmtContext ctx) {
+            return visitChildren(ctx) + 1000;
+        }
+
+        @Override
+        public Integer visitTerminal(final TerminalNode node) {
+            return 1;
+        }
+
+        @Override
+        protected Integer defaultResult() {
+            return 0;
+        }
+
+        @Override
+        protected Integer aggregateResult(final Integer aggregate, final Integer nextResult) {
+            return aggregate + nextResult;
+        }
+
+        @Override
+        protected boolean shouldVisitNextChild(final RuleNode node, final Integer currentResult) {
+            return currentResult < limit;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class MemoryEstimatorTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemoryEstimatorTest.class);
+
+    private final MemoryEstimator estimator = new MemoryEstimator(true);
+
+    @Test
+    public void testShallowSizes() {
+        assertEquals(16, estimator.shallowSize(Object.class));
+        assertEquals(24, estimator.arraySize(4, 2));
+        assertEquals(16, estimator.arraySize(2, 0));
+        assertEquals(24, new MemoryEstimator(false).arraySize(4, 0));
+        assertTrue(estimator.shallowSize(PlPgSqlParser.ComparisonExpressionContext.class)
+                >= estimator.shallowSize(PlPgSqlParser.ExpressionContext.class));
+    }
+
+    @Test
+    public void testEstimateCorpus() throws IOException {
+        for (final File file : TestCorpus.files()) {
+            final ParseResult result;
+            try(final FileInputStream in = new FileInputStream(file)) {
+                result = ParseUtil.parseResult(in);
+            } catch (ParseCancellationException e) {
+                continue;
+            }
+
+            final MemoryEstimate full = estimator.estimate(result);
+            final MemoryEstimate quick = estimator.estimateQuick(result);
+
+            assertTrue(full.isExact());
+            assertFalse(quick.isExact());
+            for (final MemoryEstimate.Category category : new MemoryEstimate.Category[] {
+                        MemoryEstimate.Category.CONTEXTS, MemoryEstimate.Category.TERMINALS,
+                        MemoryEstimate.Category.TOKENS, MemoryEstimate.Category.TOKEN_STREAM,
+                        MemoryEstimate.Category.CHAR_BUFFER
+                    }) {
+                assertTrue(category.name(), full.getBytes(category) > 0);
+                assertEquals(category.name(), full.getBytes(category), quick.getBytes(category));
+            }
+
+            assertTrue(quick.getTotalBytes() <= full.getTotalBytes());
+            assertEquals(1, full.getRuleCount(PlPgSqlParser.RULE_unit));
+
+            long previous = Long.MAX_VALUE;
+            for (final int rule : full.getRulesBySize()) {
+                assertTrue(full.getRuleBytes(rule) <= previous);
+                previous = full.getRuleBytes(rule);
+            }
+        }
+    }
+
+    @Test
+    public void testCompactionIsVisible() throws IOException {
+        final File file = new File(TestCorpus.TEST_FOLDER, "function_with_query.sql");
+        final ParseResult result;
+        try(final FileInputStream in = new FileInputStream(file)) {
+            result = ParseUtil.parseResult(in);
+        }
+
+        final MemoryEstimate before = estimator.estimate(result);
+        TreeCompactor.compact(result.getTree());
+
+        final MemoryEstimate after = estimator.estimate(result);
+        assertTrue(after.getBytes(MemoryEstimate.Category.CONTEXTS)
+                < before.getBytes(MemoryEstimate.Category.CONTEXTS));
+        assertEquals(before.getBytes(MemoryEstimate.Category.TOKENS), after.getBytes(MemoryEstimate.Category.TOKENS));
+        LOGGER.info("{}: {}", file.getName(), before);
+        LOGGER.info("{} compacted: {}", file.getName(), after);
+    }
+}
@@ -0,0 +1,97 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import org.junit.Test;
+
+public final class NodeIdsTest {
+
+    @Test
+    public void testNumberingMatchesFlatTree() throws IOException {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final NodeIds ids = NodeIds.of(root);
+            final FlatTree flat = FlatTree.flatten(root);
+
+            assertEquals(flat.size(), ids.size());
+            for (int id = 0; id < ids.size(); id++) {
+                assertEquals(flat.getRuleIndex(id), ids.getRuleIndex(id));
+                assertEquals(flat.getParent(id), ids.getParent(id));
+                assertEquals(flat.getFirstChild(id), ids.getFirstChild(id));
+                assertEquals(flat.getNextSibling(id), ids.getNextSibling(id));
+                assertEquals(flat.getSubtreeEnd(id), ids.getSubtreeEnd(id));
+                assertEquals(id, ids.getId(ids.getNode(id)));
+            }
+        }
+    }
+
+    @Test
+    public void testLeftRecursiveChain() throws IOException {
+
+        // all expressions of the chain start at the first operand
+        final StringBuilder sql = new StringBuilder("a");
+        for (int i = 0; i < 200; i++) {
+            sql.append(" + a");
+        }
+
+        final ParserRuleContext root = TestCorpus.parse(
+                "CREATE FUNCTION f(a integer) RETURNS integer AS $$ BEGIN RETURN " + sql
+                    + "; END; $$ LANGUAGE plpgsql;");
+        final NodeIds ids = NodeIds.of(root);
+        for (int id = 0; id < ids.size(); id++) {
+            assertEquals(id, ids.getId(ids.getNode(id)));
+        }
+    }
+
+    @Test
+    public void testAncestors() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse(TestCorpus.files().get(0));
+        final NodeIds ids = NodeIds.of(root);
+
+        for (int id = 0; id < ids.size(); id++) {
+            assertFalse(ids.isAncestor(id, id));
+            for (int ancestor = ids.getParent(id); ancestor != FlatTree.NONE; ancestor = ids.getParent(ancestor)) {
+                assertTrue(ids.isAncestor(ancestor, id));
+                assertFalse(ids.isAncestor(id, ancestor));
+            }
+        }
+
+        final ParseTree leaf = ids.getNode(ids.size() - 1);
+        assertTrue(ids.isAncestor(root, leaf));
+        assertEquals(ids.size(), ids.getSubtreeSize(0));
+    }
+
+    @Test
+    public void testTables() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse(TestCorpus.files().get(0));
+        final NodeIds ids = NodeIds.of(root);
+
+        final NodeIds.IntTable depth = ids.newIntTable();
+        for (int id = 1; id < ids.size(); id++) {
+            depth.set(id, depth.get(ids.getParent(id)) + 1);
+        }
+
+        assertEquals(0, depth.get(0));
+        assertEquals(1, depth.get(1));
+
+        final NodeIds.ObjectTable<String> names = ids.newObjectTable();
+        names.put(root, "root");
+        assertEquals("root", names.get(0));
+        assertSame(names.get(root), names.removeFrom(root));
+        assertNull(names.get(root));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForeignNode() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse(TestCorpus.files().get(0));
+        NodeIds.of(root).getId(TestCorpus.parse(TestCorpus.files().get(0)));
+    }
+}
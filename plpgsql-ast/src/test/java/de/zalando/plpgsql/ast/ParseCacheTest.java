@@ -0,0 +1,135 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.cache.CacheStats;
+
+public final class ParseCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCodecRoundTrip() throws Exception {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final FlatTree expected = FlatTree.flatten(root);
+            final byte[] encoded = FlatTreeCodec.encode(expected);
+            final FlatTree actual = FlatTreeCodec.decode(encoded);
+
+            // considerably smaller than the fixed width layout of the mapped store
+            assertTrue(encoded.length * 2 < MappedFlatTree.recordLength(0, expected.size(), expected.getTokenCount(),
+                    expected.getSource().length()));
+            assertEquals(expected.size(), actual.size());
+            assertEquals(expected.getTokenCount(), actual.getTokenCount());
+            for (int node = 0; node < expected.size(); node++) {
+                assertEquals(expected.getRuleIndex(node), actual.getRuleIndex(node));
+                assertEquals(expected.getParent(node), actual.getParent(node));
+                assertEquals(expected.getFirstChild(node), actual.getFirstChild(node));
+                assertEquals(expected.getNextSibling(node), actual.getNextSibling(node));
+                assertEquals(expected.getTokenStart(node), actual.getTokenStart(node));
+                assertEquals(expected.getTokenStop(node), actual.getTokenStop(node));
+                assertEquals(expected.getStartOffset(node), actual.getStartOffset(node));
+                assertEquals(expected.getStopOffset(node), actual.getStopOffset(node));
+            }
+
+            for (int token = 0; token < expected.getTokenCount(); token++) {
+                assertEquals(expected.getTokenTypeAt(token), actual.getTokenTypeAt(token));
+                assertEquals(expected.getTokenLine(token), actual.getTokenLine(token));
+                assertEquals(expected.getTokenColumn(token), actual.getTokenColumn(token));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeRejectsOtherGrammar() throws Exception {
+        final byte[] encoded = FlatTreeCodec.encode(FlatTree.flatten(TestCorpus.parseAll().get(0)));
+        encoded[6] ^= 1;
+        FlatTreeCodec.decode(encoded);
+    }
+
+    @Test
+    public void testParseConsultsCache() throws Exception {
+        final File directory = folder.newFolder("cache");
+        final File sql = TestCorpus.files().get(0);
+
+        final ParseCache cache = ParseCache.open(directory, 1 << 20);
+        final FlatTree parsed = parseFlat(sql, cache);
+        final FlatTree cached = parseFlat(sql, cache);
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(1, stats.missCount());
+        assertEquals(1, stats.loadSuccessCount());
+        assertEquals(1, cache.size());
+        assertEquals(parsed.size(), cached.size());
+        assertEquals(parsed.getText(0), cached.getText(0));
+
+        // entries survive a restart
+        final ParseCache reopened = ParseCache.open(directory, 1 << 20);
+        assertEquals(1, reopened.size());
+        parseFlat(sql, reopened);
+        stats = reopened.stats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(0, stats.loadSuccessCount());
+    }
+
+    @Test
+    public void testSizeBasedEviction() throws Exception {
+        final File directory = folder.newFolder("cache");
+        final ParseCache cache = ParseCache.open(directory, 4096);
+
+        for (final File sql : TestCorpus.files()) {
+            if (!sql.getName().startsWith("foreach")) {
+                parseFlat(sql, cache);
+            }
+        }
+
+        assertTrue(cache.getTotalBytes() <= 4096);
+        assertTrue(cache.stats().evictionCount() > 0);
+        assertEquals(cache.size(), directory.list().length);
+    }
+
+    @Test
+    public void testOutdatedAndCorruptEntriesAreDropped() throws Exception {
+        final File directory = folder.newFolder("cache");
+        final File outdated = new File(directory, "0123-abcdef.tree");
+        Files.write(outdated.toPath(), new byte[] {1, 2, 3});
+
+        final ParseCache cache = ParseCache.open(directory, 1 << 20);
+        assertFalse(outdated.exists());
+
+        final File sql = TestCorpus.files().get(0);
+        final FlatTree tree = parseFlat(sql, cache);
+        final String key = ParseCache.key(tree.getSource().toString().toCharArray());
+        assertNotNull(cache.get(key));
+
+        final File entry = directory.listFiles()[0];
+        Files.write(entry.toPath(), new byte[] {1, 2, 3});
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+        assertFalse(entry.exists());
+    }
+
+    private static FlatTree parseFlat(final File file, final ParseCache cache) throws IOException {
+        try(final FileInputStream in = new FileInputStream(file)) {
+            return ParseUtil.parseFlat(in, cache);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import org.junit.Test;
+
+public final class PositionIndexTest {
+
+    @Test
+    public void testInnermostNodeMatchesTreeSearch() throws IOException {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final PositionIndex index = PositionIndex.of(root);
+            final int length = root.start.getInputStream().size();
+            for (int offset = 0; offset < length; offset++) {
+                assertSame(innermost(root, offset), index.getNodeAt(offset));
+            }
+
+            assertNull(index.getNodeAt(-1));
+            assertNull(index.getNodeAt(length));
+        }
+    }
+
+    @Test
+    public void testLineAndColumn() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse("CREATE FUNCTION f() RETURNS integer AS $$\n"
+                    + "BEGIN\n"
+                    + "    RETURN 1 + 2;\n"
+                    + "END; $$ LANGUAGE plpgsql;");
+        final PositionIndex index = PositionIndex.of(root);
+
+        assertEquals(4, index.getLineCount());
+        assertEquals(3, index.getLine(index.getOffset(3, 4)));
+        assertEquals(4, index.getColumn(index.getOffset(3, 4)));
+
+        final ParserRuleContext stmt = index.getEnclosingNode(index.getOffset(3, 13), PlPgSqlParser.RULE_stmt);
+        assertEquals("RETURN1+2;", stmt.getText());
+        assertEquals("2", index.getNodeAt(3, 15).getText());
+        assertEquals(PlPgSqlParser.RULE_returnSimple, index.getNodeAt(3, 4).getRuleIndex());
+
+        for (final Token token : new Token[] {root.start, root.stop}) {
+            assertEquals(token.getLine(), index.getLine(token.getStartIndex()));
+            assertEquals(token.getCharPositionInLine(), index.getColumn(token.getStartIndex()));
+        }
+    }
+
+    private static ParserRuleContext innermost(final ParseTree node, final int offset) {
+        if (!(node instanceof ParserRuleContext)) {
+            return null;
+        }
+
+        final ParserRuleContext context = (ParserRuleContext) node;
+        if (context.start.getStartIndex() > offset || context.stop.getStopIndex() < offset) {
+            return null;
+        }
+
+        for (int i = 0; i < context.getChildCount(); i++) {
+            final ParserRuleContext inner = innermost(context.getChild(i), offset);
+            if (inner != null) {
+                return inner;
+            }
+        }
+
+        return context;
+    }
+}
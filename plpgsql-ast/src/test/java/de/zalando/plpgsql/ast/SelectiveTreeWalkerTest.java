@@ -0,0 +1,95 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import org.junit.Test;
+
+public final class SelectiveTreeWalkerTest {
+
+    @Test
+    public void testRuleGraph() {
+        assertTrue(RuleGraph.canContain(PlPgSqlParser.RULE_unit, PlPgSqlParser.RULE_ifStmt));
+        assertTrue(RuleGraph.canContain(PlPgSqlParser.RULE_ifStmt, PlPgSqlParser.RULE_ifStmt));
+        assertTrue(RuleGraph.canContain(PlPgSqlParser.RULE_expression, PlPgSqlParser.RULE_expression));
+        assertTrue(RuleGraph.canContain(PlPgSqlParser.RULE_expression, PlPgSqlParser.RULE_ifStmt));
+        assertFalse(RuleGraph.canContain(PlPgSqlParser.RULE_numericalLiteralExpr, PlPgSqlParser.RULE_expression));
+        assertFalse(RuleGraph.canContain(PlPgSqlParser.RULE_functionReturns, PlPgSqlParser.RULE_expression));
+        assertFalse(RuleGraph.canContain(PlPgSqlParser.RULE_unit, PlPgSqlParser.RULE_unit));
+    }
+
+    @Test
+    public void testHandledRules() {
+        final BitSet rules = SelectiveTreeWalker.getHandledRules(StatementRecorder.class);
+        assertEquals(3, rules.cardinality());
+        assertTrue(rules.get(PlPgSqlParser.RULE_selectList));
+        assertTrue(rules.get(PlPgSqlParser.RULE_ifStmt));
+        assertTrue(rules.get(PlPgSqlParser.RULE_expression));
+        assertTrue(SelectiveTreeWalker.getHandledRules(Recorder.class).isEmpty());
+        assertEquals(RuleGraph.getRuleCount(),
+            SelectiveTreeWalker.getHandledRules(TreeCompactor.class).cardinality());
+    }
+
+    @Test
+    public void testSameEventsAsParseTreeWalker() throws IOException {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final StatementRecorder expected = new StatementRecorder();
+            ParseTreeWalker.DEFAULT.walk(expected, root);
+
+            final StatementRecorder actual = new StatementRecorder();
+            SelectiveTreeWalker.DEFAULT.walk(actual, root);
+            assertEquals(expected.events, actual.events);
+
+            final TerminalRecorder allTerminals = new TerminalRecorder();
+            SelectiveTreeWalker.DEFAULT.walk(allTerminals, root);
+
+            final TerminalRecorder expectedTerminals = new TerminalRecorder();
+            ParseTreeWalker.DEFAULT.walk(expectedTerminals, root);
+            assertEquals(expectedTerminals.events, allTerminals.events);
+        }
+    }
+
+    static class Recorder extends PlPgSqlBaseListener {
+        final List<String> events = new ArrayList<String>();
+    }
+
+    static class StatementRecorder extends Recorder {
+        @Override
+        public void enterSelectList(final PlPgSqlParser.SelectListContext ctx) {
+            events.add("enter " + ctx.getText());
+        }
+
+        @Override
+        public void exitSelectList(final PlPgSqlParser.SelectListContext ctx) {
+            events.add("exit " + ctx.getText());
+        }
+
+        @Override
+        public void exitIfStmt(final PlPgSqlParser.IfStmtContext ctx) {
+            events.add("if " + ctx.ifCondition().getText());
+        }
+
+        @Override
+        public void enterComparisonExpression(final PlPgSqlParser.ComparisonExpressionContext ctx) {
+            events.add("comparison " + ctx.getText());
+        }
+    }
+
+    static final class TerminalRecorder extends Recorder {
+        @Override
+        public void visitTerminal(final TerminalNode node) {
+            events.add(node.getText());
+        }
+    }
+}
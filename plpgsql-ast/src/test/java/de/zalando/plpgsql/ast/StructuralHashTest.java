@@ -0,0 +1,90 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.IOException;
+
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Test;
+
+public final class StructuralHashTest {
+
+    private static final String FUNCTION = "CREATE OR REPLACE FUNCTION f(i integer) RETURNS integer AS $$\n"
+            + "DECLARE\n"
+            + "    x integer;\n"
+            + "BEGIN\n"
+            + "    x := i + 1;\n"
+            + "    IF x > 10 THEN\n"
+            + "        RETURN x;\n"
+            + "    END IF;\n"
+            + "    RETURN 0;\n"
+            + "END; $$ LANGUAGE plpgsql;";
+
+    private static final String REFORMATTED = "create or replace function f( i integer )\n"
+            + "returns integer as $body$ declare x integer; -- the result\n"
+            + "begin x:=i+1; /* clamp */ if x>10 then return x; end if; return 0; end; $body$ language plpgsql;";
+
+    @Test
+    public void testLayoutIsIgnored() throws IOException {
+        final ParserRuleContext original = TestCorpus.parse(FUNCTION);
+        final ParserRuleContext reformatted = TestCorpus.parse(REFORMATTED);
+
+        assertEquals(StructuralHash.compute(original).get(original),
+            StructuralHash.compute(reformatted).get(reformatted));
+    }
+
+    @Test
+    public void testChangesAreDetected() throws IOException {
+        final ParserRuleContext original = TestCorpus.parse(FUNCTION);
+        final ParserRuleContext changed = TestCorpus.parse(FUNCTION.replace("x > 10", "x > 11"));
+        final StructuralHash originalHash = StructuralHash.compute(original);
+        final StructuralHash changedHash = StructuralHash.compute(changed);
+
+        assertNotEquals(originalHash.get(original), changedHash.get(changed));
+
+        // only the if statement changed
+        final List<ParserRuleContext> originalStmts = TestCorpus.find(original, PlPgSqlParser.RULE_stmt);
+        final List<ParserRuleContext> changedStmts = TestCorpus.find(changed, PlPgSqlParser.RULE_stmt);
+        assertEquals(originalStmts.size(), changedStmts.size());
+        for (int i = 0; i < originalStmts.size(); i++) {
+            final boolean isIf = originalStmts.get(i).getChild(0) instanceof PlPgSqlParser.IfStmtContext;
+            assertEquals(!isIf, originalHash.get(originalStmts.get(i)) == changedHash.get(changedStmts.get(i)));
+        }
+    }
+
+    @Test
+    public void testIdentifierCase() throws IOException {
+        final ParserRuleContext original = TestCorpus.parse(FUNCTION);
+        final ParserRuleContext renamed = TestCorpus.parse(FUNCTION.replace("x", "X"));
+
+        assertNotEquals(StructuralHash.compute(original).get(original), StructuralHash.compute(renamed).get(renamed));
+        assertEquals(StructuralHash.compute(original, true).get(original),
+            StructuralHash.compute(renamed, true).get(renamed));
+    }
+
+    @Test
+    public void testIdenticalStatementsShareHashes() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse(FUNCTION);
+        final StructuralHash hash = StructuralHash.compute(root);
+        final List<ParserRuleContext> returns = TestCorpus.find(root, PlPgSqlParser.RULE_returnStmt);
+
+        assertEquals(2, returns.size());
+        assertNotEquals(hash.get(returns.get(0)), hash.get(returns.get(1)));
+
+        final ParserRuleContext other = TestCorpus.parse(FUNCTION);
+        assertEquals(hash.get(returns.get(0)),
+            StructuralHash.compute(other).get(TestCorpus.find(other, PlPgSqlParser.RULE_returnStmt).get(0)));
+    }
+
+    @Test
+    public void testCorpusHashesAreDeterministic() throws IOException {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final ParserRuleContext again = TestCorpus.parse(root.start.getInputStream().toString());
+            assertEquals(StructuralHash.compute(root).get(root), StructuralHash.compute(again).get(again));
+        }
+    }
+}
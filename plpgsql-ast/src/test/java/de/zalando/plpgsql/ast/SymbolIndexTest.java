@@ -0,0 +1,153 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import org.junit.rules.TemporaryFolder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class SymbolIndexTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SymbolIndexTest.class);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUpdatesAndMerge() throws Exception {
+        final File directory = folder.newFolder("index");
+        try(final SymbolIndex index = SymbolIndex.open(directory)) {
+            index.put("a.sql",
+                TestCorpus.function("f", "  v integer;\n", "  SELECT o_id INTO v FROM z.orders;\n  RETURN g(v);\n"));
+            index.put("b.sql", TestCorpus.function("g", "  RETURN x;\n"));
+            index.commit();
+
+            final List<SymbolIndex.Entry> definitions = index.find(SymbolIndex.Kind.DEFINITION, "F");
+            assertEquals(1, definitions.size());
+            assertEquals("a.sql", definitions.get(0).getSource());
+            assertEquals(1, definitions.get(0).getDetail());
+            assertEquals(1, definitions.get(0).getLine());
+            assertEquals(27, definitions.get(0).getColumn());
+
+            final List<SymbolIndex.Entry> calls = index.find(SymbolIndex.Kind.CALL, "g");
+            assertEquals(1, calls.size());
+            assertEquals("f", calls.get(0).getFunction());
+            assertEquals(8, calls.get(0).getLine());
+
+            final List<SymbolIndex.Entry> tables = index.find(SymbolIndex.Kind.TABLE, "z.orders");
+            assertEquals(1, tables.size());
+            assertEquals(TableIndex.Mode.READ, tables.get(0).getTableMode());
+            assertEquals(TableIndex.Statement.SELECT, tables.get(0).getTableStatement());
+            assertEquals(SymbolTable.Kind.VARIABLE,
+                index.find(SymbolIndex.Kind.VARIABLE, "v").get(0).getVariableKind());
+            assertEquals(SymbolTable.Kind.ARGUMENT,
+                index.find(SymbolIndex.Kind.VARIABLE, "x").get(0).getVariableKind());
+
+            // the new version of a.sql shadows the old one
+            index.put("a.sql", TestCorpus.function("f", "  RETURN h(x);\n"));
+            index.commit();
+            index.remove("b.sql");
+            index.commit();
+            assertEquals(3, index.getSegmentCount());
+            assertLatest(index);
+        }
+
+        try(final SymbolIndex index = SymbolIndex.open(directory)) {
+            assertEquals(3, index.getSegmentCount());
+            assertLatest(index);
+
+            index.merge().get();
+            assertEquals(1, index.getSegmentCount());
+            assertLatest(index);
+        }
+
+        assertEquals(2, directory.list().length);
+
+        try(final SymbolIndex index = SymbolIndex.open(directory)) {
+            assertLatest(index);
+        }
+    }
+
+    @Test
+    public void testColdStart() throws Exception {
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        final File directory = folder.newFolder("index");
+        final int rounds = 200;
+
+        final Map<String, Integer> expected = new HashMap<String, Integer>();
+        long start = System.nanoTime();
+        try(final SymbolIndex index = SymbolIndex.open(directory, 4)) {
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < trees.size(); i++) {
+                    final String source = round + "/" + i + ".sql";
+                    index.put(source, trees.get(i));
+                    for (final SymbolIndex.Entry entry : SymbolIndex.entries(source, trees.get(i))) {
+                        final String key = entry.getKind() + " " + entry.getKey();
+                        final Integer count = expected.get(key);
+                        expected.put(key, count == null ? 1 : count + 1);
+                    }
+                }
+
+                index.commit();
+            }
+        }
+
+        final long build = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        try(final SymbolIndex index = SymbolIndex.open(directory, 4)) {
+            final int found = index.find(SymbolIndex.Kind.CALL, "create_mv").size();
+            final long firstQuery = System.nanoTime() - start;
+
+            assertEquals((int) expected.get("CALL create_mv"), found);
+            assertTrue(index.getSegmentCount() < rounds);
+
+            start = System.nanoTime();
+            for (final Map.Entry<String, Integer> key : expected.entrySet()) {
+                final int space = key.getKey().indexOf(' ');
+                assertEquals(key.getValue().intValue(),
+                    index.find(SymbolIndex.Kind.valueOf(key.getKey().substring(0, space)),
+                        key.getKey().substring(space + 1)).size());
+            }
+
+            LOGGER.info("indexed {} functions in {} ms into {} segments, first query after {} ms, "
+                    + "{} lookups in {} ms",
+                new Object[] {
+                    count(expected, "DEFINITION"), build / 1000000, index.getSegmentCount(), firstQuery / 1000000,
+                    expected.size(), (System.nanoTime() - start) / 1000000
+                });
+        }
+    }
+
+    private static void assertLatest(final SymbolIndex index) {
+        assertEquals(0, index.find(SymbolIndex.Kind.CALL, "g").size());
+        assertEquals(0, index.find(SymbolIndex.Kind.DEFINITION, "g").size());
+        assertEquals(0, index.find(SymbolIndex.Kind.TABLE, "z.orders").size());
+        assertEquals("f", index.find(SymbolIndex.Kind.CALL, "h").get(0).getFunction());
+        assertEquals(1, index.find(SymbolIndex.Kind.DEFINITION, "f").size());
+    }
+
+    private static int count(final Map<String, Integer> counts, final String kind) {
+        int count = 0;
+        for (final Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getKey().startsWith(kind + ' ')) {
+                count += entry.getValue();
+            }
+        }
+
+        return count;
+    }
+}
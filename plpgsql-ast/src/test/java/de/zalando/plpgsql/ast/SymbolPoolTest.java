@@ -0,0 +1,116 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import org.junit.Test;
+
+public final class SymbolPoolTest {
+
+    private static final String FUNCTION = "CREATE OR REPLACE FUNCTION f(i z.custom, j Z.Custom) RETURNS integer AS $$\n"
+            + "DECLARE\n"
+            + "    r z.my_table%ROWTYPE;\n"
+            + "    c Z.MY_TABLE%ROWTYPE;\n"
+            + "    x integer;\n"
+            + "BEGIN\n"
+            + "    x := i;\n"
+            + "    RETURN X;\n"
+            + "END; $$ LANGUAGE plpgsql;";
+
+    @Test
+    public void testFoldedNamesShareSymbols() {
+        final SymbolPool pool = new SymbolPool();
+        final int symbol = pool.intern("Customer_Id");
+
+        assertEquals(symbol, pool.intern("customer_id"));
+        assertEquals(symbol, pool.lookup("CUSTOMER_ID"));
+        assertEquals("customer_id", pool.getName(symbol));
+        assertEquals(SymbolPool.NO_SYMBOL, pool.lookup("order_id"));
+        assertNotEquals(symbol, pool.intern("order_id"));
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void testTokensCarrySymbols() throws IOException {
+        final SymbolPool pool = new SymbolPool();
+        final List<Token> names = symbolTokens(parse(FUNCTION, pool));
+
+        assertTrue(names.size() > 8);
+        for (final Token token : names) {
+            assertTrue(token instanceof SymbolToken);
+            assertEquals(SymbolPool.fold(token.getText()), pool.getName(SymbolPool.symbolOf(token)));
+        }
+
+        assertEquals(symbol(names, "x"), symbol(names, "X"));
+        assertEquals(symbol(names, "z.custom"), symbol(names, "Z.Custom"));
+        assertEquals(symbol(names, "z.my_table%ROWTYPE"), symbol(names, "Z.MY_TABLE%ROWTYPE"));
+        assertNotEquals(symbol(names, "x"), symbol(names, "i"));
+    }
+
+    @Test
+    public void testTextsAreSharedAcrossParses() throws IOException {
+        final SymbolPool pool = new SymbolPool();
+        final List<Token> first = symbolTokens(parse(FUNCTION, pool));
+        final List<Token> second = symbolTokens(parse(FUNCTION, pool));
+
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertSame(first.get(i).getText(), second.get(i).getText());
+            assertEquals(SymbolPool.symbolOf(first.get(i)), SymbolPool.symbolOf(second.get(i)));
+        }
+    }
+
+    @Test
+    public void testPlainParseHasNoSymbols() throws IOException {
+        for (final Token token : symbolTokens(TestCorpus.parse(FUNCTION))) {
+            assertEquals(SymbolPool.NO_SYMBOL, SymbolPool.symbolOf(token));
+        }
+    }
+
+    private static ParseTree parse(final String sql, final SymbolPool pool) throws IOException {
+        return ParseUtil.parse(new ByteArrayInputStream(sql.getBytes(StandardCharsets.UTF_8)), pool);
+    }
+
+    private static int symbol(final List<Token> tokens, final String text) {
+        for (final Token token : tokens) {
+            if (token.getText().equals(text)) {
+                return SymbolPool.symbolOf(token);
+            }
+        }
+
+        throw new AssertionError("no token " + text);
+    }
+
+    private static List<Token> symbolTokens(final ParseTree tree) {
+        final List<Token> tokens = new ArrayList<Token>();
+        collect(tree, tokens);
+        return tokens;
+    }
+
+    private static void collect(final ParseTree node, final List<Token> tokens) {
+        if (node instanceof TerminalNode) {
+            final Token token = ((TerminalNode) node).getSymbol();
+            if (SymbolPool.isSymbolType(token.getType())) {
+                tokens.add(token);
+            }
+        }
+
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collect(node.getChild(i), tokens);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+
+import org.junit.Test;
+
+public final class SymbolTableTest {
+
+    @Test
+    public void testScopes() throws IOException {
+        final SymbolTable table = table("(x integer, y integer)",
+                "DECLARE\n  a integer := x;\n  c ALIAS FOR y;\n  d integer;\n" //
+                    + "BEGIN\n" //
+                    + "  DECLARE\n    a text := a;\n" //
+                    + "  BEGIN\n" //
+                    + "    RETURN a + $2 + c + f.x;\n" //
+                    + "  END;\n" //
+                    + "  <<outer_loop>>\n" //
+                    + "  FOR i IN 1..a LOOP\n" //
+                    + "    x := outer_loop.i + i;\n" //
+                    + "    EXIT outer_loop;\n" //
+                    + "  END LOOP outer_loop;\n" //
+                    + "  RETURN a + i;\n" //
+                    + "END;\n");
+        assertEquals(4, table.getScopeCount());
+
+        final int f = symbol(table, "f", SymbolTable.Kind.LABEL);
+        final int x = symbol(table, "x", SymbolTable.Kind.ARGUMENT);
+        final int y = symbol(table, "y", SymbolTable.Kind.ARGUMENT);
+        final int i = symbol(table, "i", SymbolTable.Kind.LOOP_VARIABLE);
+        final int label = symbol(table, "outer_loop", SymbolTable.Kind.LABEL);
+        assertEquals(SymbolTable.NONE, table.getParentScope(table.getScope(f)));
+        assertEquals(y, table.getArgument(1));
+        assertEquals(y, table.getAliasTarget(symbol(table, "c", SymbolTable.Kind.ALIAS)));
+        assertTrue(table.getDeclaration(i) instanceof PlPgSqlParser.VarExprContext);
+        assertTrue(table.isUnused(symbol(table, "d", SymbolTable.Kind.VARIABLE)));
+
+        // the initializer of the inner a, the loop bound and the last return see the outer one
+        final List<Integer> as = references(table, "a");
+        assertEquals(4, as.size());
+        assertEquals(as.get(0), as.get(2));
+        assertEquals(as.get(0), as.get(3));
+        assertFalse(as.get(0).equals(as.get(1)));
+        assertEquals(table.getScope(as.get(0)), table.getParentScope(table.getScope(as.get(1))));
+
+        assertEquals(Arrays.asList(y), references(table, "$2"));
+        assertEquals(Arrays.asList(y), references(table, "c"));
+        assertEquals(Arrays.asList(x), references(table, "f.x"));
+        assertEquals(Arrays.asList(x, x), references(table, "x"));
+        assertEquals(Arrays.asList(i), references(table, "outer_loop.i"));
+        assertEquals(Arrays.asList(i, SymbolTable.NONE), references(table, "i"));
+        assertEquals(Arrays.asList(label, label), references(table, "outer_loop"));
+        assertEquals(3, table.getReferences(y).length);
+    }
+
+    @Test
+    public void testCorpus() throws IOException {
+        final List<PlPgSqlParser.PlFunctionContext> functions = new ArrayList<PlPgSqlParser.PlFunctionContext>();
+        for (final ParserRuleContext tree : TestCorpus.parseAll()) {
+            functions.addAll(FunctionExecutor.functions(tree));
+        }
+
+        for (final PlPgSqlParser.PlFunctionContext function : functions) {
+            final SymbolTable table = SymbolTable.of(function);
+            for (int reference = 0; reference < table.getReferenceCount(); reference++) {
+                final int symbol = table.getReferenceSymbol(reference);
+                final Token token = table.getReferenceToken(reference);
+                assertEquals(symbol, table.resolve(token));
+                if (symbol != SymbolTable.NONE) {
+
+                    // the declaring scope encloses the reference
+                    final ParserRuleContext scope = table.getScopeNode(table.getScope(symbol));
+                    assertTrue(scope.getStart().getTokenIndex() <= token.getTokenIndex());
+                    assertTrue(token.getTokenIndex() <= scope.getStop().getTokenIndex());
+                }
+            }
+        }
+    }
+
+    private static SymbolTable table(final String args, final String body) throws IOException {
+        final ParserRuleContext unit = TestCorpus.parse("CREATE OR REPLACE FUNCTION f" + args
+                    + "\nRETURNS integer AS\n$$\n" + body + "$$\nLANGUAGE plpgsql;\n");
+        return SymbolTable.of(FunctionExecutor.functions(unit).get(0));
+    }
+
+    private static int symbol(final SymbolTable table, final String name, final SymbolTable.Kind kind) {
+        for (int symbol = 0; symbol < table.getSymbolCount(); symbol++) {
+            if (table.getName(symbol).equals(name) && table.getKind(symbol) == kind) {
+                return symbol;
+            }
+        }
+
+        throw new AssertionError("no " + kind + " " + name + " in\n" + table);
+    }
+
+    /**
+     * @return  the symbols of the references with the given text, in source order
+     */
+    private static List<Integer> references(final SymbolTable table, final String text) {
+        final List<Integer> symbols = new ArrayList<Integer>();
+        for (int reference = 0; reference < table.getReferenceCount(); reference++) {
+            if (table.getReferenceToken(reference).getText().equals(text)) {
+                symbols.add(table.getReferenceSymbol(reference));
+            }
+        }
+
+        return symbols;
+    }
+}
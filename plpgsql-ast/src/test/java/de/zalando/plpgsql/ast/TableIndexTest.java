@@ -0,0 +1,101 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Test;
+
+import com.google.common.primitives.Ints;
+
+public final class TableIndexTest {
+
+    @Test
+    public void testAccesses() throws IOException {
+        final TableIndex index = new TableIndex();
+        final int f = index.add(TestCorpus.function("f",
+                    "  WITH recent AS (SELECT o_id FROM z.orders) INSERT INTO archive SELECT * FROM recent;\n"
+                    + "  SELECT id INTO x FROM z.orders AS o (id) JOIN customers ON c_id = id FOR UPDATE OF o;\n"
+                    + "  PERFORM o_id FROM orders FOR SHARE;\n" //
+                    + "  IF x IN (SELECT i_id FROM items) THEN\n" //
+                    + "    DELETE FROM z.orders USING archive WHERE a_id = o_id;\n" //
+                    + "  END IF;\n" //
+                    + "  FOR r IN SELECT * FROM items LOOP\n" //
+                    + "    UPDATE Z.Orders SET o_total = 0 WHERE o_id = x;\n" //
+                    + "  END LOOP;\n" //
+                    + "  RETURN QUERY SELECT * FROM z.orders;\n"));
+        final int g = index.add(TestCorpus.function("g", "  RETURN QUERY SELECT * FROM archive;\n"));
+        assertEquals(2, index.getFunctionCount());
+        assertEquals("g", index.getFunctionName(g));
+
+        final List<String> accesses = new ArrayList<String>();
+        for (final int access : index.getAccesses(f)) {
+            assertEquals(f, index.getFunction(access));
+            accesses.add(index.getMode(access) + " " + index.getTable(access) + " " + index.getStatement(access));
+        }
+
+        assertEquals(Arrays.asList("WRITE archive INSERT", "READ z.orders INSERT", "READ z.orders SELECT",
+                "READ customers SELECT", "LOCK z.orders SELECT", "READ orders PERFORM", "LOCK orders PERFORM",
+                "READ items EXPRESSION", "WRITE z.orders DELETE", "READ archive DELETE", "READ items FOR_QUERY",
+                "WRITE z.orders UPDATE", "READ z.orders RETURN_QUERY"), accesses);
+
+        // the name of the with query is not a table
+        assertFalse(index.getTables().contains("recent"));
+
+        // positions of the table names
+        final int update = index.getAccesses(f)[11];
+        assertEquals(12, index.getLine(update));
+        assertEquals(11, index.getColumn(update));
+
+        assertArrayEquals(new int[] { f }, index.getFunctions("Z.ORDERS", TableIndex.Mode.WRITE));
+        assertArrayEquals(new int[] { f }, index.getFunctions("z.orders", TableIndex.Mode.LOCK));
+        assertArrayEquals(new int[] { f, g }, index.getFunctions("archive", TableIndex.Mode.READ));
+        assertArrayEquals(new int[0], index.getFunctions("orders", TableIndex.Mode.WRITE));
+        assertEquals(8, index.getAccesses("z.orders").length);
+        assertEquals(2, index.getAccesses("orders").length);
+    }
+
+    @Test
+    public void testCorpus() throws IOException {
+        final TableIndex index = new TableIndex();
+        for (final ParserRuleContext tree : TestCorpus.parseAll()) {
+            index.addAll(tree);
+        }
+
+        assertTrue(index.getAccessCount() > 0);
+
+        // the functions by mode partition the functions accessing each table
+        for (final String table : index.getTables()) {
+            final Set<Integer> all = new TreeSet<Integer>();
+            for (final TableIndex.Mode mode : TableIndex.Mode.values()) {
+                final Set<Integer> functions = new TreeSet<Integer>();
+                for (final int access : index.getAccesses(table)) {
+                    if (index.getMode(access) == mode) {
+                        functions.add(index.getFunction(access));
+                    }
+                }
+
+                assertArrayEquals(table + " " + mode, Ints.toArray(functions), index.getFunctions(table, mode));
+                all.addAll(functions);
+            }
+
+            final Set<Integer> accessing = new TreeSet<Integer>();
+            for (final int access : index.getAccesses(table)) {
+                accessing.add(index.getFunction(access));
+            }
+
+            assertEquals(table, accessing, all);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import org.junit.rules.TemporaryFolder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class TermFilterTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TermFilterTest.class);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSearch() throws IOException {
+        final File directory = copyCorpus();
+        final TermFilter filter = new TermFilter(directory);
+        assertEquals(TestCorpus.files().size(), filter.refresh());
+
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        for (final String term : new String[] { "temp_lo", "weather", "accounts.name", "create_mv", "a", "i" }) {
+            int expected = 0;
+            for (final ParserRuleContext tree : trees) {
+                expected += count(tree, TermFilter.parts(term));
+            }
+
+            final List<TermFilter.Match> matches = filter.search(term);
+            assertEquals(term, expected, matches.size());
+            assertTrue(filter.candidates(term).size() <= filter.getFunctionCount());
+        }
+
+        final TermFilter.Match match = filter.search("TEMP_LO").get(0);
+        assertEquals("update_test.sql", match.getFile());
+        assertEquals("update_test", match.getName());
+        assertEquals(11, match.getLine());
+        assertEquals(23, match.getColumn());
+        assertTrue(filter.search("no_such_column").isEmpty());
+    }
+
+    @Test
+    public void testIncrementalRefresh() throws IOException {
+        final File directory = copyCorpus();
+        final TermFilter filter = new TermFilter(directory);
+        long start = System.nanoTime();
+        filter.refresh();
+
+        final long lexing = System.nanoTime() - start;
+        assertEquals(0, filter.refresh());
+
+        // a new process loads the persisted filters
+        start = System.nanoTime();
+
+        final TermFilter loaded = new TermFilter(directory);
+        assertEquals(0, loaded.refresh());
+
+        final long loading = System.nanoTime() - start;
+        assertEquals(filter.getFunctionCount(), loaded.getFunctionCount());
+        assertTrue(loaded.search("order_status").isEmpty());
+
+        final File changed = new File(directory, "update_test.sql");
+        final String source = new String(Files.readAllBytes(changed.toPath()), StandardCharsets.UTF_8);
+        Files.write(changed.toPath(),
+            source.replace("SET kind =", "SET order_status =").getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(directory, "set_status.sql").toPath(),
+            ("CREATE OR REPLACE FUNCTION set_status(i integer)\nRETURNS integer AS\n$$\nBEGIN\n"
+                + "  UPDATE orders SET order_status = 'SHIPPED' WHERE o_id = i;\n  RETURN i;\nEND;\n$$\n"
+                + "LANGUAGE plpgsql;\n").getBytes(StandardCharsets.UTF_8));
+        assertTrue(new File(directory, "delete_test.sql").delete());
+        assertEquals(2, loaded.refresh());
+        assertFalse(new File(directory, "delete_test.sql.terms").exists());
+
+        final List<TermFilter.Match> matches = loaded.search("order_status");
+        assertEquals(2, matches.size());
+        assertEquals("set_status", matches.get(0).getName());
+        assertEquals(5, matches.get(0).getLine());
+        assertEquals("update_test", matches.get(1).getName());
+
+        LOGGER.info("lexed {} functions in {} ms, loaded their filters in {} ms",
+            new Object[] {filter.getFunctionCount(), lexing / 1000000, loading / 1000000});
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingDirectory() throws IOException {
+        new TermFilter(new File(folder.getRoot(), "missing")).refresh();
+    }
+
+    private File copyCorpus() throws IOException {
+        final File directory = folder.newFolder("corpus");
+        for (final File file : TestCorpus.files()) {
+            Files.copy(file.toPath(), new File(directory, file.getName()).toPath());
+        }
+
+        return directory;
+    }
+
+    private static int count(final ParseTree node, final List<String> parts) {
+        if (node instanceof TerminalNode) {
+            final int type = ((TerminalNode) node).getSymbol().getType();
+            final boolean identifier = type == PlPgSqlLexer.ID || type == PlPgSqlLexer.QNAME
+                    || type == PlPgSqlLexer.ARRAY_TYPE || type == PlPgSqlLexer.COPY_TYPE
+                    || type == PlPgSqlLexer.ROW_TYPE;
+            return identifier && Collections.indexOfSubList(TermFilter.parts(node.getText()), parts) >= 0 ? 1 : 0;
+        }
+
+        int count = 0;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            count += count(node.getChild(i), parts);
+        }
+
+        return count;
+    }
+}
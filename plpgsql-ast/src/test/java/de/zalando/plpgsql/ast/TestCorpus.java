@@ -0,0 +1,109 @@
+package de.zalando.plpgsql.ast;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses the sql files used by {@link FunctionParseTest} so that other tests can run on real trees.
+ */
+final class TestCorpus {
+    private TestCorpus() { }
+
+    static final String TEST_FOLDER = "src/test/resources/function_parse_test";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestCorpus.class);
+
+    static List<File> files() {
+        final File[] files = new File(TEST_FOLDER).listFiles();
+        Arrays.sort(files);
+
+        final List<File> sqlFiles = new ArrayList<File>();
+        for (final File file : files) {
+            if (file.getName().endsWith(".sql")) {
+                sqlFiles.add(file);
+            }
+        }
+
+        return sqlFiles;
+    }
+
+    /**
+     * Parses all test files, skipping those the grammar cannot handle yet (these are reported by
+     * {@link FunctionParseTest}).
+     */
+    static List<ParserRuleContext> parseAll() throws IOException {
+        final List<ParserRuleContext> trees = new ArrayList<ParserRuleContext>();
+        for (final File file : files()) {
+            try(final FileInputStream in = new FileInputStream(file)) {
+                trees.add((ParserRuleContext) ParseUtil.parse(in));
+            } catch (ParseCancellationException e) {
+                LOGGER.warn("skipping unparsable test file {}", file.getName());
+            }
+        }
+
+        return trees;
+    }
+
+    static ParserRuleContext parse(final String sql) throws IOException {
+        return (ParserRuleContext) ParseUtil.parse(new ByteArrayInputStream(sql.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return  the function {@code name(x integer) RETURNS integer} with the statements as its body
+     */
+    static PlPgSqlParser.PlFunctionContext function(final String name, final String statements) throws IOException {
+        return function(name, "", statements);
+    }
+
+    /**
+     * @param  declarations  the lines of the {@code DECLARE} section, none if empty
+     */
+    static PlPgSqlParser.PlFunctionContext function(final String name, final String declarations,
+            final String statements) throws IOException {
+        final String declare = declarations.isEmpty() ? "" : "DECLARE\n" + declarations;
+        final ParserRuleContext unit = parse("CREATE OR REPLACE FUNCTION " + name
+                    + "(x integer)\nRETURNS integer AS\n$$\n" + declare + "BEGIN\n" + statements
+                    + "END;\n$$\nLANGUAGE plpgsql;\n");
+        return FunctionExecutor.functions(unit).get(0);
+    }
+
+    static ParserRuleContext parse(final File file) throws IOException {
+        try(final FileInputStream in = new FileInputStream(file)) {
+            return (ParserRuleContext) ParseUtil.parse(in);
+        }
+    }
+
+    /**
+     * @return  all rule nodes of the given rule in preorder
+     */
+    static List<ParserRuleContext> find(final ParseTree tree, final int ruleIndex) {
+        final List<ParserRuleContext> found = new ArrayList<ParserRuleContext>();
+        collect(tree, ruleIndex, found);
+        return found;
+    }
+
+    private static void collect(final ParseTree node, final int ruleIndex, final List<ParserRuleContext> found) {
+        if (node instanceof ParserRuleContext && ((ParserRuleContext) node).getRuleIndex() == ruleIndex) {
+            found.add((ParserRuleContext) node);
+        }
+
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collect(node.getChild(i), ruleIndex, found);
+        }
+    }
+}
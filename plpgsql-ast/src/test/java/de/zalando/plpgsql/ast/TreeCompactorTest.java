@@ -0,0 +1,114 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class TreeCompactorTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TreeCompactorTest.class);
+
+    @Test
+    public void testCompactCorpus() throws IOException {
+        long nodesBefore = 0;
+        long nodesAfter = 0;
+        long bytesBefore = 0;
+        long bytesAfter = 0;
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final int tokens = tokenCount(root);
+            final TreeCompactor.Stats stats = TreeCompactor.compact(root);
+
+            assertNoSeparators(root);
+            assertEquals(stats.getTerminalsAfter(), tokenCount(root));
+            assertEquals(stats.getTerminalsBefore(), tokens);
+            assertTrue(stats.getBytesAfter() < stats.getBytesBefore());
+            nodesBefore += stats.getNodesBefore();
+            nodesAfter += stats.getNodesAfter();
+            bytesBefore += stats.getBytesBefore();
+            bytesAfter += stats.getBytesAfter();
+        }
+
+        assertTrue(nodesAfter < nodesBefore);
+        LOGGER.info("compacted corpus: nodes {} -> {}, estimated bytes {} -> {}",
+            new Object[] {nodesBefore, nodesAfter, bytesBefore, bytesAfter});
+    }
+
+    @Test
+    public void testTypedAccessorsSurvive() throws IOException {
+        final File file = new File(TestCorpus.TEST_FOLDER, "if_test.sql");
+        final ParserRuleContext root = TestCorpus.parse(file);
+        TreeCompactor.compact(root);
+
+        final List<ParserRuleContext> ifs = TestCorpus.find(root, PlPgSqlParser.RULE_ifStmt);
+        assertFalse(ifs.isEmpty());
+        for (final ParserRuleContext node : ifs) {
+            final PlPgSqlParser.IfStmtContext ifStmt = (PlPgSqlParser.IfStmtContext) node;
+            assertNotNull(ifStmt.ifCondition().condition().expression());
+            assertEquals(ifStmt.elsifCondition().size(), ifStmt.ELSIF().size());
+            assertNotNull(ifStmt.stmts(0));
+        }
+
+        final ParserRuleContext condition = TestCorpus.find(root, PlPgSqlParser.RULE_condition).get(0);
+        assertEquals(Collections.singletonList(condition.getChild(0)).getClass(), condition.children.getClass());
+    }
+
+    @Test
+    public void testCompactWhileParsing() throws IOException {
+        for (final File file : TestCorpus.files()) {
+            final ParserRuleContext expected;
+            try {
+                expected = TestCorpus.parse(file);
+            } catch (ParseCancellationException e) {
+                continue;
+            }
+
+            final TreeCompactor.Stats stats = TreeCompactor.compact(expected);
+            final TreeCompactor compactor = new TreeCompactor();
+            final ParseTree actual;
+            try(final FileInputStream in = new FileInputStream(file)) {
+                actual = ParseUtil.parse(in, compactor);
+            }
+
+            assertEquals(expected.toStringTree(), actual.toStringTree());
+            assertEquals(stats.getNodesAfter(), compactor.getStats().getNodesAfter());
+            assertEquals(stats.getBytesAfter(), compactor.getStats().getBytesAfter());
+        }
+    }
+
+    private static void assertNoSeparators(final ParseTree node) {
+        if (node instanceof TerminalNode) {
+            assertFalse(TreeCompactor.isSeparator(((TerminalNode) node).getSymbol().getType()));
+        }
+
+        for (int i = 0; i < node.getChildCount(); i++) {
+            assertNoSeparators(node.getChild(i));
+        }
+    }
+
+    private static int tokenCount(final ParseTree node) {
+        int count = node instanceof TerminalNode ? 1 : 0;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            count += tokenCount(node.getChild(i));
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,151 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Interval;
+
+import org.junit.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class TreePatternTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TreePatternTest.class);
+
+    private static final String SOURCE = "CREATE OR REPLACE FUNCTION count_orders(c integer)\n" //
+            + "RETURNS integer AS\n$$\nBEGIN\n" //
+            + "  SELECT count(id) INTO n FROM orders WHERE customer = c;\n" //
+            + "  IF n > 0 THEN\n    RETURN 1;\n  END IF;\n" //
+            + "  SELECT count(id) INTO m FROM orders WHERE customer = c;\n" //
+            + "  IF n > 0 THEN\n    RETURN 2;\n  END IF;\n" //
+            + "END;\n$$\nLANGUAGE plpgsql;\n";
+
+    @Test
+    public void testStatementSequence() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse(SOURCE);
+        final TreePattern pattern = TreePattern.compile(
+                "SELECT <e> INTO <v> FROM <t> WHERE <cond>; IF <v> > 0 THEN END IF;", PlPgSqlParser.RULE_stmts);
+        assertEquals(4, pattern.getPlaceholders().size());
+
+        final List<TreePattern.Match> matches = pattern.findAll(root);
+        assertEquals(1, matches.size());
+
+        final TreePattern.Match match = matches.get(0);
+        assertEquals(2, match.getNodes().size());
+        assertEquals("count(id)", match.get("e").getText());
+        assertEquals("n", match.get("v").getText());
+        assertEquals("orders", match.get("t").getText());
+        assertEquals("customer=c", match.get("cond").getText());
+        assertEquals(PlPgSqlParser.RULE_condition, ((ParserRuleContext) match.get("cond")).getRuleIndex());
+    }
+
+    @Test
+    public void testTypedPlaceholders() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse(SOURCE);
+        final List<TreePattern.Match> matches = TreePattern.compile("IF <c:expression> THEN <body:stmts> END IF;",
+                    PlPgSqlParser.RULE_ifStmt).findAll(root);
+        assertEquals(2, matches.size());
+        assertEquals("n>0", matches.get(0).get("c").getText());
+        assertEquals("RETURN1;", matches.get(0).get("body").getText());
+        assertEquals("RETURN2;", matches.get(1).get("body").getText());
+
+        final List<TreePattern.Match> statements = TreePattern.compile("<s:stmt> IF n > 0 THEN RETURN 2; END IF;",
+                    PlPgSqlParser.RULE_stmts).findAll(root);
+        assertEquals(1, statements.size());
+        assertTrue(statements.get(0).get("s").getText().startsWith("SELECTcount(id)INTOm"));
+    }
+
+    @Test
+    public void testExpressions() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse(new File(TestCorpus.TEST_FOLDER,
+                    "function_with_assign_stmts.sql"));
+        final List<TreePattern.Match> matches = TreePattern.compile("<x> + 1", PlPgSqlParser.RULE_expression)
+                .findAll(root);
+        final List<String> bound = new ArrayList<String>();
+        for (final TreePattern.Match match : matches) {
+            bound.add(match.get("x").getText());
+        }
+
+        assertTrue(bound.toString(), bound.contains("i"));
+        assertTrue(bound.toString(), bound.contains("a"));
+        assertTrue(TreePattern.compile("<x> + <x>", PlPgSqlParser.RULE_expression).findAll(root).isEmpty());
+    }
+
+    @Test
+    public void testCompileErrors() {
+        for (final String pattern : new String[] {
+                    "IF THEN", "IF <c:noSuchRule> THEN END IF;", "IF <c:selectList> THEN END IF;",
+                    "IF a THEN END IF; extra"
+                }) {
+            try {
+                TreePattern.compile(pattern, PlPgSqlParser.RULE_ifStmt);
+                fail("expected a compile error for " + pattern);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Uses every statement of the corpus as a pattern and matches them all in one pass, compared to one pass per
+     * pattern.
+     */
+    @Test
+    public void testBenchmark() throws IOException {
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        final PatternSet patterns = new PatternSet();
+        for (final ParserRuleContext tree : trees) {
+            for (final ParserRuleContext stmt : TestCorpus.find(tree, PlPgSqlParser.RULE_stmt)) {
+                final String text = stmt.start.getInputStream().getText(Interval.of(stmt.start.getStartIndex(),
+                            stmt.stop.getStopIndex()));
+                final TreePattern pattern = TreePattern.compile(text, PlPgSqlParser.RULE_stmt);
+                assertFalse(text, pattern.match(stmt).isEmpty());
+                patterns.add(pattern);
+            }
+        }
+
+        patterns.add(TreePattern.compile("IF <c> THEN <body:stmts> END IF;", PlPgSqlParser.RULE_ifStmt));
+        patterns.add(TreePattern.compile("<x> = <y>", PlPgSqlParser.RULE_expression));
+        assertTrue(patterns.getPatterns().size() > 100);
+
+        final int rounds = 20;
+        int fused = 0;
+        final long fusedStart = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (final ParserRuleContext tree : trees) {
+                fused += patterns.match(tree).size();
+            }
+        }
+
+        final long fusedNanos = System.nanoTime() - fusedStart;
+
+        int separate = 0;
+        final long separateStart = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (final ParserRuleContext tree : trees) {
+                for (final TreePattern pattern : patterns.getPatterns()) {
+                    separate += pattern.findAll(tree).size();
+                }
+            }
+        }
+
+        final long separateNanos = System.nanoTime() - separateStart;
+        assertEquals(separate, fused);
+        LOGGER.info("{} patterns on {} trees: one pass {} ms, one pass per pattern {} ms, {} matches",
+            new Object[] {
+                patterns.getPatterns().size(), trees.size() * rounds, fusedNanos / 1000000, separateNanos / 1000000,
+                fused
+            });
+    }
+}
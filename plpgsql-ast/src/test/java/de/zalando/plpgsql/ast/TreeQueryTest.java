@@ -0,0 +1,151 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import org.junit.Test;
+
+public final class TreeQueryTest {
+
+    @Test
+    public void testDescendants() throws IOException {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final TreeIndex index = TreeIndex.of(root);
+            final List<ParserRuleContext> ifs = TestCorpus.find(root, PlPgSqlParser.RULE_ifStmt);
+            assertEquals(ifs, TreeQuery.compile("//ifStmt").select(index));
+            assertEquals(ifs.size(), index.count(PlPgSqlParser.RULE_ifStmt));
+
+            final List<ParserRuleContext> nestedIfs = new ArrayList<ParserRuleContext>();
+            for (final ParserRuleContext ifStmt : ifs) {
+                if (hasAncestor(ifStmt, PlPgSqlParser.RULE_ifStmt)) {
+                    nestedIfs.add(ifStmt);
+                }
+            }
+
+            assertEquals(nestedIfs, TreeQuery.compile("//ifStmt//ifStmt").select(index));
+            assertEquals(nestedIfs, TreeQuery.compile("//ifStmt//*//ifStmt").select(index));
+
+            int ruleNodes = 0;
+            for (int id = 0; id < index.getNodeIds().size(); id++) {
+                if (index.getNodeIds().getRuleIndex(id) != FlatTree.TERMINAL) {
+                    ruleNodes++;
+                }
+            }
+
+            assertEquals(ruleNodes, TreeQuery.compile("//*").select(index).size());
+        }
+    }
+
+    @Test
+    public void testChildren() throws IOException {
+        for (final ParserRuleContext root : TestCorpus.parseAll()) {
+            final List<PlPgSqlParser.PlFunctionContext> functions = ((PlPgSqlParser.UnitContext) root).plFunction();
+            assertEquals(functions, TreeQuery.compile("/unit/plFunction").select(root));
+            assertEquals(functions, TreeQuery.compile("//plFunction").select(root));
+            assertEquals(functions, TreeQuery.compile("/*/*[functionName]").select(root));
+            assertTrue(TreeQuery.compile("/plFunction").select(root).isEmpty());
+            assertEquals(1, TreeQuery.compile("/unit").select(root).size());
+        }
+    }
+
+    @Test
+    public void testAlternativesAndLabels() throws IOException {
+        final ParserRuleContext root = TestCorpus.parse(new File(TestCorpus.TEST_FOLDER, "for_query_test.sql"));
+        final List<ParserRuleContext> tables = TreeQuery.compile("//forInQueryStmt//select//fromTable").select(root);
+        assertEquals(3, tables.size());
+        for (final ParserRuleContext table : tables) {
+            assertEquals("cs_materialized_views", ((PlPgSqlParser.FromTableContext) table).tableName.getText());
+        }
+
+        assertEquals(tables,
+            TreeQuery.compile("//tableExpression[tableName = 'CS_MATERIALIZED_VIEWS']").select(root));
+        assertTrue(TreeQuery.compile("//fromTable[tableName!=\"cs_materialized_views\"]").select(root).isEmpty());
+        assertTrue(TreeQuery.compile("//fromTable[alias]").select(root).isEmpty());
+
+        final ParserRuleContext ifTest = TestCorpus.parse(new File(TestCorpus.TEST_FOLDER, "if_test.sql"));
+        final List<ParserRuleContext> ifComparisons = TreeQuery.compile("//ifCondition//comparisonExpression")
+                .select(ifTest);
+        final List<ParserRuleContext> elsifComparisons = TreeQuery.compile(
+                    "//elsifCondition//comparisonExpression").select(ifTest);
+        assertEquals(1, ifComparisons.size());
+        assertEquals("a>b", ifComparisons.get(0).getText());
+        assertEquals(1, elsifComparisons.size());
+        assertEquals("a=b", elsifComparisons.get(0).getText());
+        assertEquals(elsifComparisons, TreeQuery.compile("//elsifCondition//expression[operator='=']").select(ifTest));
+        assertTrue(TreeQuery.compile("//elsifCondition//expression[operator='>']").select(ifTest).isEmpty());
+    }
+
+    @Test
+    public void testEmptyQueries() {
+        assertTrue(TreeQuery.compile("//numericalLiteralExpr//expression").isEmpty());
+        assertTrue(TreeQuery.compile("/unit//unit").isEmpty());
+        assertFalse(TreeQuery.compile("//expression//ifStmt").isEmpty());
+        assertFalse(TreeQuery.compile("//*//unit").isEmpty());
+    }
+
+    @Test
+    public void testSyntaxErrors() {
+        for (final String query : new String[] {
+                    "", "ifStmt", "//", "//noSuchRule", "//ifStmt[", "//fromTable[noLabel]",
+                    "//fromTable[tableName='x]", "//fromTable[tableName=x]", "//ifStmt extra"
+                }) {
+            try {
+                TreeQuery.compile(query);
+                fail("expected a syntax error for " + query);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("position"));
+            }
+        }
+    }
+
+    @Test
+    public void testCorpusInParallel() throws IOException {
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        final TreeQuery query = TreeQuery.compile("//selectList");
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < trees.size(); i++) {
+            for (final ParserRuleContext node : query.select(trees.get(i))) {
+                expected.add(i + ":" + node.getText());
+            }
+        }
+
+        assertFalse(expected.isEmpty());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<String> actual = new ArrayList<String>();
+            final Iterator<TreeQuery.Match> matches = query.select(trees, executor);
+            while (matches.hasNext()) {
+                actual.add(matches.next().toString());
+            }
+
+            assertEquals(expected, actual);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static boolean hasAncestor(final ParseTree node, final int rule) {
+        for (ParseTree parent = node.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent instanceof ParserRuleContext && ((ParserRuleContext) parent).getRuleIndex() == rule) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
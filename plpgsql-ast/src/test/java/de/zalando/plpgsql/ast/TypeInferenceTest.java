@@ -0,0 +1,118 @@
+package de.zalando.plpgsql.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import org.junit.Test;
+
+public final class TypeInferenceTest {
+
+    @Test
+    public void testTypes() throws IOException {
+        final TypeInference inference = infer("(x int4, y varchar)",
+                "DECLARE\n  a x%TYPE;\n  n numeric := 1.5;\n  r z.my_table%ROWTYPE;\n  arr int[];\n" //
+                    + "  c ALIAS FOR y;\n" //
+                    + "BEGIN\n" //
+                    + "  a := x + 1;\n" //
+                    + "  n := a * 2.5;\n" //
+                    + "  n := length(c) + 1;\n" //
+                    + "  n := coalesce(n, 0);\n" //
+                    + "  n := arr[1];\n" //
+                    + "  n := r.total;\n" //
+                    + "  n := '1'::bigint;\n" //
+                    + "  n := 3000000000;\n" //
+                    + "  n := unknown_function(x);\n" //
+                    + "  RETURN n;\n" //
+                    + "END;\n",
+                SignatureTable.builtins().column("z.my_table", "total", "decimal"));
+        final SymbolTable symbols = inference.getSymbolTable();
+        for (int symbol = 0; symbol < symbols.getSymbolCount(); symbol++) {
+            if (symbols.getName(symbol).equals("a")) {
+                assertEquals("integer", inference.getSymbolType(symbol));
+            } else if (symbols.getName(symbol).equals("c")) {
+                assertEquals("character varying", inference.getSymbolType(symbol));
+            }
+        }
+
+        assertEquals("integer", type(inference, "x+1"));
+        assertEquals("numeric", type(inference, "a*2.5"));
+        assertEquals("integer", type(inference, "length(c)+1"));
+        assertEquals("numeric", type(inference, "coalesce(n,0)"));
+        assertEquals("integer", type(inference, "arr[1]"));
+        assertEquals("numeric", type(inference, "r.total"));
+        assertEquals("bigint", type(inference, "'1'::bigint"));
+        assertEquals("bigint", type(inference, "3000000000"));
+        assertNull(type(inference, "unknown_function(x)"));
+    }
+
+    @Test
+    public void testImplicitCasts() throws IOException {
+        final TypeInference inference = infer("(x integer, y text)",
+                "DECLARE\n  a bigint;\n  n numeric;\n" //
+                    + "BEGIN\n" //
+                    + "  SELECT o_id INTO a FROM orders WHERE o_number = x;\n" //
+                    + "  SELECT o_id INTO a FROM shop.orders WHERE o_id = x AND o_number = y;\n" //
+                    + "  IF n > x OR y = 'a' THEN\n    RETURN 1;\n  END IF;\n" //
+                    + "  RETURN a;\n" //
+                    + "END;\n",
+                new SignatureTable().column("orders", "o_id", "int8").column("orders", "o_number", "varchar"));
+        assertEquals("character varying", type(inference, "o_number"));
+
+        final List<String> casts = new ArrayList<String>();
+        for (final ParserRuleContext cast : inference.getImplicitCasts()) {
+            casts.add(cast.getText());
+        }
+
+        assertEquals(Arrays.asList("o_number=x", "n>x"), casts);
+    }
+
+    @Test
+    public void testCorpus() throws IOException {
+        final List<ParserRuleContext> trees = TestCorpus.parseAll();
+        final SignatureTable catalog = SignatureTable.builtins();
+        final List<PlPgSqlParser.PlFunctionContext> functions = new ArrayList<PlPgSqlParser.PlFunctionContext>();
+        for (final ParserRuleContext tree : trees) {
+            catalog.addFunctions(tree);
+            functions.addAll(FunctionExecutor.functions(tree));
+        }
+
+        int typed = 0;
+        for (final PlPgSqlParser.PlFunctionContext function : functions) {
+            final TypeInference inference = TypeInference.of(function, catalog);
+            for (final ParserRuleContext expression : TestCorpus.find(function, PlPgSqlParser.RULE_expression)) {
+                if (inference.getType(expression) != null) {
+                    typed++;
+                }
+            }
+        }
+
+        assertTrue(typed > 0);
+    }
+
+    private static TypeInference infer(final String args, final String body, final TypeCatalog catalog)
+        throws IOException {
+        final ParserRuleContext unit = TestCorpus.parse("CREATE OR REPLACE FUNCTION f" + args
+                    + "\nRETURNS integer AS\n$$\n" + body + "$$\nLANGUAGE plpgsql;\n");
+        return TypeInference.of(FunctionExecutor.functions(unit).get(0), catalog);
+    }
+
+    private static String type(final TypeInference inference, final String text) {
+        final ParserRuleContext function = inference.getSymbolTable().getFunction();
+        for (final ParserRuleContext expression : TestCorpus.find(function, PlPgSqlParser.RULE_expression)) {
+            if (expression.getText().equals(text)) {
+                return inference.getType(expression);
+            }
+        }
+
+        throw new AssertionError("no expression " + text);
+    }
+}